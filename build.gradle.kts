@@ -10,6 +10,7 @@ plugins {
     application
     id("io.github.gradle-nexus.publish-plugin") version "1.1.0"
     id("org.jetbrains.dokka") version "1.6.21"
+    id("me.champeau.jmh") version "0.6.8"
     signing
 }
 
@@ -38,6 +39,9 @@ dependencies {
     antlr("org.antlr:antlr4:4.10.1")
 
     implementation("org.ow2.asm:asm:9.3")
+    implementation("org.ow2.asm:asm-tree:9.3")
+    implementation("org.ow2.asm:asm-analysis:9.3")
+    implementation("org.ow2.asm:asm-commons:9.3")
     implementation("com.beust:jcommander:1.75")
 
     testImplementation("org.ow2.asm:asm-util:9.3")
@@ -0,0 +1,60 @@
+import org.jetbrains.kotlin.gradle.tasks.KotlinCompile
+
+plugins {
+    kotlin("jvm")
+    java
+}
+
+group = rootProject.group
+version = rootProject.version
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+tasks.withType<KotlinCompile>().all {
+    kotlinOptions {
+        jvmTarget = "11"
+    }
+}
+
+repositories {
+    mavenCentral()
+}
+
+dependencies {
+    implementation(project(":"))
+    implementation("org.ow2.asm:asm:9.3")
+    implementation("org.ow2.asm:asm-tree:9.3")
+
+    testImplementation("org.junit.jupiter:junit-jupiter-api:5.8.2")
+    testRuntimeOnly("org.junit.jupiter:junit-jupiter-engine:5.8.2")
+    testImplementation("org.assertj:assertj-core:3.22.0")
+}
+
+tasks.jar {
+    manifest {
+        attributes(
+            "Main-Class" to "com.roscopeco.jasm.agent.JasmAttach",
+            "Premain-Class" to "com.roscopeco.jasm.agent.JasmAgent",
+            "Agent-Class" to "com.roscopeco.jasm.agent.JasmAgent",
+            "Can-Redefine-Classes" to "true",
+            "Can-Retransform-Classes" to "true"
+        )
+    }
+
+    // Agents are loaded from a single jar, so it needs to include JASM and its dependencies
+    dependsOn(configurations.runtimeClasspath)
+    from(configurations.runtimeClasspath.map { files -> files.map { if (it.isDirectory) it else zipTree(it) } })
+    exclude("module-info.class", "META-INF/*.SF", "META-INF/*.DSA", "META-INF/*.RSA")
+    duplicatesStrategy = DuplicatesStrategy.EXCLUDE
+}
+
+tasks.getByName<Test>("test") {
+    useJUnitPlatform()
+
+    // The tests start JVMs with the agent jar
+    dependsOn(tasks.jar)
+    systemProperty("jasm.agent.jar", tasks.jar.get().archiveFile.get().asFile.absolutePath)
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm.agent
+
+import com.roscopeco.jasm.AssemblerOptions
+import com.roscopeco.jasm.JasmAssembler
+import com.roscopeco.jasm.Modifiers
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.tree.ClassNode
+import java.io.Closeable
+import java.io.IOException
+import java.io.PrintStream
+import java.lang.instrument.ClassDefinition
+import java.lang.instrument.ClassFileTransformer
+import java.lang.instrument.Instrumentation
+import java.nio.file.ClosedWatchServiceException
+import java.nio.file.FileSystems
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardWatchEventKinds
+import java.nio.file.WatchKey
+import java.security.ProtectionDomain
+import java.util.concurrent.TimeUnit
+
+/**
+ * Watches a directory of JASM source, and hot-swaps classes into the running JVM when their
+ * source changes.
+ *
+ * Sources are laid out like classes - when `com/example/Foo.jasm` changes, it's assembled and
+ * every loaded `com.example.Foo` is redefined with the result. Classes that aren't loaded yet
+ * are left alone.
+ *
+ * The JVM only allows method bodies to change, so the new class is checked against the loaded
+ * one first, and changes to its members or declaration are reported rather than applied.
+ *
+ * Each swap is reported with its latency, from when the file was last modified to when the new
+ * code was live, along with how much of that was spent assembling and redefining. Reading the
+ * loaded class means retransforming it, which re-runs any other retransforming transformers
+ * (such as [PatchingTransformer]) - so they may report again each time a class is swapped.
+ *
+ * Classes are compared as they were before any transformers ran, as their changes are applied
+ * again to the new class when it's redefined. That's only possible for transformers added after
+ * the swapper, though - those added earlier (by another agent, say) have already run by the
+ * time it sees the class.
+ *
+ * @param instrumentation The instrumentation to redefine classes with
+ * @param sourceDir The directory to watch
+ * @param options Optional assembler behaviour
+ * @param log Where to report swaps, and any problems with them
+ */
+class HotSwapper @JvmOverloads constructor(
+    private val instrumentation: Instrumentation,
+    private val sourceDir: Path,
+    private val options: AssemblerOptions = AssemblerOptions(),
+    private val log: PrintStream = System.err,
+) : Closeable {
+
+    private val watcher = FileSystems.getDefault().newWatchService()
+    private val keys = HashMap<WatchKey, Path>()
+    private val thread = Thread(::watch, "jasm-hotswap").apply { isDaemon = true }
+    private val capture = CapturingTransformer()
+
+    init {
+        // Added first, so it sees classes before any other transformers change them
+        instrumentation.addTransformer(capture, true)
+    }
+
+    /**
+     * Start watching for changes, in a background thread.
+     */
+    fun start(): HotSwapper {
+        Files.walk(sourceDir).use { dirs -> dirs.filter { Files.isDirectory(it) }.forEach(::register) }
+        thread.start()
+        return this
+    }
+
+    /**
+     * Stop watching for changes.
+     */
+    override fun close() {
+        watcher.close()
+        instrumentation.removeTransformer(capture)
+    }
+
+    /**
+     * Assemble the given source, and redefine any loaded classes with the result.
+     *
+     * @param file The source file, under the source directory
+     * @return `true` if any classes were redefined
+     */
+    fun swap(file: Path): Boolean {
+        val unitName = sourceDir.relativize(file).joinToString("/")
+        val className = unitName.removeSuffix(".jasm")
+        val changed = Files.getLastModifiedTime(file).toMillis()
+        val start = System.nanoTime()
+
+        val loaded = instrumentation.allLoadedClasses.filter { it.name.replace('.', '/') == className }
+
+        if (loaded.isEmpty()) {
+            return false
+        }
+
+        val definitions = loaded.map { clz ->
+            val current = currentBytes(clz) ?: run {
+                log.println("${LOG_PREFIX}Cannot hot-swap $className from $unitName: the current class isn't available")
+                return false
+            }
+
+            // Assembled for each class, as they may have been loaded from different class formats (and
+            // frames are computed from the classes it will see)
+            val classLoader = clz.classLoader ?: ClassLoader.getPlatformClassLoader()
+            val assembler = JasmAssembler(unitName, ClassReader(current).readUnsignedShort(6), options, classLoader) {
+                Files.newInputStream(file)
+            }
+
+            val bytes = try {
+                withSuperFlagOf(current, assembler.assemble())
+            } catch (e: Exception) {
+                log.println("${LOG_PREFIX}Cannot hot-swap $className: ${e.message}")
+                return false
+            }
+
+            assembler.warnings.forEach { log.println("$LOG_PREFIX${it.displayMessage}") }
+
+            val problems = schemaChanges(current, bytes)
+
+            if (problems.isNotEmpty()) {
+                log.println("${LOG_PREFIX}Cannot hot-swap $className from $unitName, as only method bodies can change:")
+                problems.forEach { log.println("$LOG_PREFIX    $it") }
+                return false
+            }
+
+            ClassDefinition(clz, bytes)
+        }
+
+        val assembled = System.nanoTime()
+
+        try {
+            instrumentation.redefineClasses(*definitions.toTypedArray())
+        } catch (e: Exception) {
+            log.println("${LOG_PREFIX}Failed to hot-swap $className: $e")
+            return false
+        } catch (e: LinkageError) {
+            log.println("${LOG_PREFIX}Failed to hot-swap $className: $e")
+            return false
+        }
+
+        val done = System.nanoTime()
+
+        log.println(
+            "${LOG_PREFIX}Hot-swapped $className from $unitName " +
+                    "(${System.currentTimeMillis() - changed}ms after the change; " +
+                    "assembled in ${millis(start, assembled)}ms, redefined in ${millis(assembled, done)}ms)"
+        )
+
+        return true
+    }
+
+    private fun watch() {
+        // Most of the first swap would otherwise be spent loading (and interpreting) the assembler
+        JasmAssembler("<warm-up>") { WARM_UP.byteInputStream() }.assemble()
+
+        try {
+            while (true) {
+                val changed = LinkedHashSet<Path>()
+                var key: WatchKey? = watcher.take()
+
+                // Editors often write a file in several steps, so wait until things settle down
+                while (key != null) {
+                    val dir = keys[key]
+
+                    key.pollEvents().forEach { event ->
+                        val path = dir?.resolve(event.context() as? Path ?: return@forEach) ?: return@forEach
+
+                        if (Files.isDirectory(path)) {
+                            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) register(path)
+                        } else if (path.fileName.toString().endsWith(".jasm") && Files.exists(path)) {
+                            changed.add(path)
+                        }
+                    }
+
+                    key.reset()
+                    key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)
+                }
+
+                changed.forEach { file ->
+                    // Keep watching, whatever goes wrong with one file
+                    try {
+                        swap(file)
+                    } catch (e: Exception) {
+                        log.println("${LOG_PREFIX}Failed to hot-swap $file: $e")
+                    }
+                }
+            }
+        } catch (e: ClosedWatchServiceException) {
+            // Closed
+        } catch (e: InterruptedException) {
+            // Stopped
+        }
+    }
+
+    private fun register(dir: Path) {
+        try {
+            keys[dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY)] = dir
+        } catch (e: IOException) {
+            log.println("${LOG_PREFIX}Cannot watch $dir: ${e.message}")
+        }
+    }
+
+    /**
+     * Get the class as the JVM currently has it, before any later transformers, by retransforming
+     * it without changes.
+     */
+    @Synchronized
+    private fun currentBytes(clz: Class<*>): ByteArray? {
+        capture.target = clz
+        capture.captured = null
+
+        try {
+            instrumentation.retransformClasses(clz)
+        } catch (e: Exception) {
+            return null
+        } finally {
+            capture.target = null
+        }
+
+        return capture.captured
+    }
+
+    private class CapturingTransformer : ClassFileTransformer {
+        @Volatile var target: Class<*>? = null
+        @Volatile var captured: ByteArray? = null
+
+        override fun transform(
+            loader: ClassLoader?,
+            className: String?,
+            classBeingRedefined: Class<*>?,
+            protectionDomain: ProtectionDomain?,
+            classfileBuffer: ByteArray
+        ): ByteArray? {
+            if (classBeingRedefined != null && classBeingRedefined == target) captured = classfileBuffer
+            return null
+        }
+    }
+
+    /**
+     * JASM only sets `ACC_SUPER` when asked (it's been meaningless since Java 8), but the JVM
+     * won't redefine a class if it changes, so take it from the loaded class.
+     */
+    private fun withSuperFlagOf(current: ByteArray, bytes: ByteArray): ByteArray {
+        val reader = ClassReader(bytes)
+        val header = reader.header
+        val access = reader.access and Opcodes.ACC_SUPER.inv() or (ClassReader(current).access and Opcodes.ACC_SUPER)
+
+        return bytes.copyOf().also {
+            it[header] = (access shr 8).toByte()
+            it[header + 1] = access.toByte()
+        }
+    }
+
+    private fun millis(from: Long, to: Long) = TimeUnit.NANOSECONDS.toMillis(to - from)
+
+    companion object {
+        private const val LOG_PREFIX = PatchingTransformer.LOG_PREFIX
+        private const val SETTLE_MILLIS = 50L
+        private const val WARM_UP = "class WarmUp {\n  m()I {\n    iconst 1\n    ireturn\n  }\n}\n"
+        private val MODIFIERS = Modifiers()
+
+        // Copied from the loaded class when swapping (see withSuperFlagOf)
+        private const val IGNORED_CLASS_ACCESS = Opcodes.ACC_SUPER
+
+        /**
+         * Describe the changes between two versions of a class that prevent one being redefined
+         * as the other.
+         *
+         * @param original The class as it is
+         * @param replacement The class to redefine it as
+         * @return The changes, or an empty list if the class can be redefined
+         */
+        @JvmStatic
+        fun schemaChanges(original: ByteArray, replacement: ByteArray): List<String> {
+            val old = ClassNode().also { ClassReader(original).accept(it, ClassReader.SKIP_CODE) }
+            val new = ClassNode().also { ClassReader(replacement).accept(it, ClassReader.SKIP_CODE) }
+            val problems = mutableListOf<String>()
+
+            fun check(what: String, before: Any?, after: Any?) {
+                if (before != after) problems.add("$what changed from ${before ?: "none"} to ${after ?: "none"}")
+            }
+
+            check("class name", old.name, new.name)
+            check("superclass", old.superName, new.superName)
+            check("interfaces", old.interfaces, new.interfaces)
+            check(
+                "class modifiers",
+                modifiers(old.access and IGNORED_CLASS_ACCESS.inv(), MODIFIERS::disassembleClassModifiers),
+                modifiers(new.access and IGNORED_CLASS_ACCESS.inv(), MODIFIERS::disassembleClassModifiers)
+            )
+            check("nest host", old.nestHostClass, new.nestHostClass)
+            check("nest members", old.nestMembers?.toSet(), new.nestMembers?.toSet())
+
+            val oldFields = old.fields.associate { "${it.name}:${it.desc}" to it.access }
+            val newFields = new.fields.associate { "${it.name}:${it.desc}" to it.access }
+
+            members("field", oldFields, newFields, MODIFIERS::disassembleFieldModifiers, problems)
+
+            val oldMethods = old.methods.associate { it.name + it.desc to it.access }
+            val newMethods = new.methods.associate { it.name + it.desc to it.access }
+
+            members("method", oldMethods, newMethods, MODIFIERS::disassembleMethodModifiers, problems)
+
+            return problems
+        }
+
+        private fun members(
+            kind: String,
+            old: Map<String, Int>,
+            new: Map<String, Int>,
+            names: (Int) -> String,
+            problems: MutableList<String>
+        ) {
+            (new.keys - old.keys).forEach { problems.add("added $kind $it") }
+            (old.keys - new.keys).forEach { problems.add("removed $kind $it") }
+
+            old.forEach { (name, access) ->
+                val newAccess = new[name]
+
+                if (newAccess != null && newAccess != access) {
+                    problems.add("modifiers of $kind $name changed from ${modifiers(access, names)} to ${modifiers(newAccess, names)}")
+                }
+            }
+        }
+
+        // Not every flag has a name, so fall back to the raw value
+        private fun modifiers(access: Int, names: (Int) -> String) =
+            "'${names(access)}' (0x${Integer.toHexString(access)})"
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm.agent
+
+import java.io.IOException
+import java.lang.instrument.Instrumentation
+import java.lang.instrument.UnmodifiableClassException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+
+/**
+ * Java agent that patches classes with JASM as they're loaded, and hot-swaps classes when their
+ * source changes.
+ *
+ * The agent's argument is a comma-separated list of directories. A plain directory holds patches,
+ * laid out like classes - `com/example/Foo.jasm` is a patch for `com.example.Foo` (see
+ * [com.roscopeco.jasm.JasmPatcher] for what a patch can contain). Patches are read once, when
+ * the agent starts:
+ *
+ * ```
+ * java -javaagent:jasm-agent.jar=patches -jar app.jar
+ * ```
+ *
+ * A directory given as `watch=<directory>` holds full JASM classes instead, laid out the same way,
+ * and is watched for changes - see [HotSwapper].
+ *
+ * The agent can also be loaded into a running JVM (see [JasmAttach]). Patched classes that are
+ * already loaded are retransformed then, but the JVM only allows existing methods to be replaced
+ * in that case - patches that add members will only apply to classes that are loaded later.
+ */
+object JasmAgent {
+    private const val WATCH = "watch="
+
+    /**
+     * Called when the agent is given on the command line.
+     */
+    @JvmStatic
+    fun premain(args: String?, instrumentation: Instrumentation) {
+        install(args, instrumentation)
+    }
+
+    /**
+     * Called when the agent is loaded into a running JVM.
+     */
+    @JvmStatic
+    fun agentmain(args: String?, instrumentation: Instrumentation) {
+        val transformer = install(args, instrumentation) ?: return
+
+        val loaded = instrumentation.allLoadedClasses.filter {
+            it.name.replace('.', '/') in transformer.classNames && instrumentation.isModifiableClass(it)
+        }
+
+        if (loaded.isNotEmpty()) {
+            try {
+                instrumentation.retransformClasses(*loaded.toTypedArray())
+            } catch (e: UnsupportedOperationException) {
+                log("Failed to patch loaded classes (patches for loaded classes can only replace methods): ${e.message}")
+            } catch (e: UnmodifiableClassException) {
+                log("Failed to patch loaded classes: ${e.message}")
+            } catch (e: LinkageError) {
+                log("Failed to patch loaded classes: $e")
+            }
+        }
+    }
+
+    private fun install(args: String?, instrumentation: Instrumentation): PatchingTransformer? {
+        if (args.isNullOrBlank()) {
+            log("No directory given (use -javaagent:jasm-agent.jar=<patch directory>[,watch=<source directory>])")
+            return null
+        }
+
+        val (watched, patchDirs) = args.split(',').filter { it.isNotBlank() }.partition { it.startsWith(WATCH) }
+
+        // Swappers are set up before patches, so they can compare classes as they were before patching
+        watched.map { Paths.get(it.removePrefix(WATCH)) }.filter(::checkDirectory).forEach { dir ->
+            if (instrumentation.isRedefineClassesSupported && instrumentation.isRetransformClassesSupported) {
+                HotSwapper(instrumentation, dir).start()
+            } else {
+                log("Cannot watch $dir, as this JVM doesn't support redefining classes")
+            }
+        }
+
+        val patches = HashMap<String, PatchingTransformer.Patch>()
+
+        patchDirs.map { Paths.get(it) }.filter(::checkDirectory).forEach { dir ->
+            try {
+                patches.putAll(PatchingTransformer.load(dir))
+            } catch (e: IOException) {
+                log("Failed to read patches: ${e.message}")
+            }
+        }
+
+        if (patches.isEmpty()) {
+            return null
+        }
+
+        return PatchingTransformer(patches).also {
+            instrumentation.addTransformer(it, instrumentation.isRetransformClassesSupported)
+        }
+    }
+
+    private fun checkDirectory(dir: Path) = Files.isDirectory(dir).also { exists ->
+        if (!exists) log("Directory $dir does not exist")
+    }
+
+    private fun log(message: String) = System.err.println(PatchingTransformer.LOG_PREFIX + message)
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm.agent
+
+import com.sun.tools.attach.VirtualMachine
+import java.nio.file.Paths
+import kotlin.system.exitProcess
+
+/**
+ * Loads the agent into a JVM that's already running on this machine:
+ *
+ * ```
+ * java -jar jasm-agent.jar <pid> <agent arguments>
+ * ```
+ *
+ * For example, `java -jar jasm-agent.jar 1234 watch=src/jasm` starts hot-swapping classes from
+ * `src/jasm` into process 1234. Directories are resolved here, as the target JVM may have a
+ * different working directory.
+ */
+object JasmAttach {
+    @JvmStatic
+    fun main(args: Array<String>) {
+        if (args.size != 2) {
+            System.err.println("Usage: java -jar jasm-agent.jar <pid> <patch directory>[,watch=<source directory>]")
+            exitProcess(1)
+        }
+
+        val agentArgs = args[1].split(',').joinToString(",") { arg ->
+            val watch = arg.startsWith("watch=")
+            val dir = Paths.get(arg.removePrefix("watch=")).toAbsolutePath().toString()
+
+            if (watch) "watch=$dir" else dir
+        }
+
+        val jar = Paths.get(JasmAgent::class.java.protectionDomain.codeSource.location.toURI()).toString()
+        val vm = VirtualMachine.attach(args[0])
+
+        try {
+            vm.loadAgent(jar, agentArgs)
+        } finally {
+            vm.detach()
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm.agent
+
+import com.roscopeco.jasm.AssemblerOptions
+import com.roscopeco.jasm.JasmPatcher
+import java.io.PrintStream
+import java.lang.instrument.ClassFileTransformer
+import java.nio.file.Files
+import java.nio.file.Path
+import java.security.ProtectionDomain
+
+/**
+ * Patches classes with JASM members as they're loaded (or retransformed).
+ *
+ * Patches are held in memory, indexed by the internal name of the class they're for, so classes
+ * without a patch cost a single map lookup.
+ *
+ * @param patches The patch source, by internal class name
+ * @param options Optional assembler behaviour, for the patched members
+ * @param log Where to report patches being applied, and any problems with them
+ */
+class PatchingTransformer @JvmOverloads constructor(
+    private val patches: Map<String, Patch>,
+    private val options: AssemblerOptions = AssemblerOptions(),
+    private val log: PrintStream = System.err,
+) : ClassFileTransformer {
+
+    /**
+     * The source for a patch.
+     *
+     * @param unitName The (display) name of the patch
+     * @param source The JASM source
+     */
+    class Patch(val unitName: String, val source: ByteArray)
+
+    /** The internal names of the classes that have patches */
+    val classNames: Set<String> get() = patches.keys
+
+    override fun transform(
+        loader: ClassLoader?,
+        className: String?,
+        classBeingRedefined: Class<*>?,
+        protectionDomain: ProtectionDomain?,
+        classfileBuffer: ByteArray
+    ): ByteArray? {
+        val patch = patches[className ?: return null] ?: return null
+
+        // Anything thrown from here is silently ignored by the JVM, so report it instead
+        return try {
+            // Frames are computed from the class files the class will see, as nothing can be loaded from here
+            val classLoader = loader ?: ClassLoader.getPlatformClassLoader()
+            val patcher = JasmPatcher(patch.unitName, options, classLoader) { patch.source.inputStream() }
+            val patched = patcher.patch(classfileBuffer)
+
+            patcher.warnings.forEach { log.println("$LOG_PREFIX${it.displayMessage}") }
+            log.println("${LOG_PREFIX}Patched $className from ${patch.unitName}")
+
+            patched
+        } catch (e: Exception) {
+            log.println("${LOG_PREFIX}Failed to patch $className from ${patch.unitName}: ${e.message}")
+            null
+        }
+    }
+
+    companion object {
+        internal const val LOG_PREFIX = "[jasm-agent] "
+
+        /**
+         * Read every `.jasm` file under the given directory. Each is taken to be a patch for the
+         * class at the same relative path, so `com/example/Foo.jasm` patches `com.example.Foo`.
+         *
+         * @param dir The patch directory
+         * @return The patches, by internal class name
+         */
+        @JvmStatic
+        fun load(dir: Path): Map<String, Patch> {
+            val patches = HashMap<String, Patch>()
+
+            Files.walk(dir).use { files ->
+                files.filter { Files.isRegularFile(it) && it.fileName.toString().endsWith(".jasm") }.forEach { file ->
+                    val relative = dir.relativize(file).joinToString("/")
+                    patches[relative.removeSuffix(".jasm")] = Patch(relative, Files.readAllBytes(file))
+                }
+            }
+
+            return patches
+        }
+    }
+}
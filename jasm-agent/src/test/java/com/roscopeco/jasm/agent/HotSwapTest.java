@@ -0,0 +1,216 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm.agent;
+
+import com.roscopeco.jasm.JasmAssembler;
+import com.roscopeco.jasm.agent.fixture.GreeterApp;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HotSwapTest {
+    private static final String GREETER = "com/roscopeco/jasm/agent/fixture/Greeter";
+
+    private static final long TIMEOUT_MILLIS = 30_000;
+
+    @TempDir
+    Path temp;
+
+    Path sources;
+
+    @BeforeEach
+    void writeSources() throws IOException {
+        sources = temp.resolve("src");
+        writeGreeter("unused", "");
+    }
+
+    @Test
+    void testSwapsChangedClasses() throws Exception {
+        final var process = start(List.of("-javaagent:" + agentJar() + "=watch=" + sources), "wait");
+
+        try {
+            final var out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            assertThat(out.readLine()).isEqualTo("original");
+
+            writeGreeter("swapped", "");
+            awaitLog("Hot-swapped " + GREETER + " from " + GREETER + ".jasm");
+
+            assertThat(greet(process, out)).isEqualTo("swapped");
+
+            // Adding a method isn't allowed, so the running code shouldn't change
+            writeGreeter("not swapped", "public static extra()I {\n iconst 1\n ireturn\n}\n");
+
+            assertThat(awaitLog("Cannot hot-swap " + GREETER))
+                .contains("only method bodies can change")
+                .contains("added method extra()I");
+
+            assertThat(greet(process, out)).isEqualTo("swapped");
+
+            process.getOutputStream().close();
+            assertThat(process.waitFor(30, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            process.destroyForcibly();
+        }
+    }
+
+    @Test
+    void testSwapsPatchedClasses() throws Exception {
+        final var patch = temp.resolve("patches").resolve(GREETER + ".jasm");
+
+        Files.createDirectories(patch.getParent());
+        Files.writeString(patch, "public class " + GREETER + " {\n"
+            + "    public static extra()I {\n"
+            + "        iconst 1\n"
+            + "        ireturn\n"
+            + "    }\n"
+            + "}\n");
+
+        final var process = start(List.of("-javaagent:" + agentJar() + "=" + temp.resolve("patches") + ",watch=" + sources), "wait");
+
+        try {
+            final var out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            assertThat(out.readLine()).isEqualTo("original");
+
+            // The patched method isn't in the source, but is patched into the new class too
+            writeGreeter("swapped", "");
+            awaitLog("Hot-swapped " + GREETER + " from " + GREETER + ".jasm");
+
+            assertThat(greet(process, out)).isEqualTo("swapped");
+        } finally {
+            process.destroyForcibly();
+        }
+    }
+
+    @Test
+    void testAttachesToRunningJvm() throws Exception {
+        final var process = start(List.of(), "wait");
+
+        try {
+            final var out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            assertThat(out.readLine()).isEqualTo("original");
+
+            final var attach = new ProcessBuilder(java(), "-jar", agentJar(), String.valueOf(process.pid()), "watch=" + sources)
+                .inheritIO()
+                .start();
+
+            assertThat(attach.waitFor(30, TimeUnit.SECONDS)).isTrue();
+            assertThat(attach.exitValue()).isZero();
+
+            writeGreeter("attached", "");
+            awaitLog("Hot-swapped " + GREETER);
+
+            assertThat(greet(process, out)).isEqualTo("attached");
+        } finally {
+            process.destroyForcibly();
+        }
+    }
+
+    @Test
+    void testDescribesSchemaChanges() {
+        final var original = assemble("public class Test {\n"
+            + "  private value I\n"
+            + "  public run()V {\n    return\n  }\n"
+            + "}\n");
+
+        assertThat(HotSwapper.schemaChanges(original, original)).isEmpty();
+
+        assertThat(HotSwapper.schemaChanges(original, assemble("public class Test {\n"
+            + "  private value I\n"
+            + "  public run()V {\n    nop\n    return\n  }\n"
+            + "}\n"))).isEmpty();
+
+        assertThat(HotSwapper.schemaChanges(original, assemble("public final class Test extends java/lang/Number {\n"
+            + "  private other J\n"
+            + "  public static run()V {\n    return\n  }\n"
+            + "  public run(I)V {\n    return\n  }\n"
+            + "}\n"))).containsExactlyInAnyOrder(
+                "superclass changed from java/lang/Object to java/lang/Number",
+                "class modifiers changed from 'public' (0x1) to 'public' (0x11)",
+                "added field other:J",
+                "removed field value:I",
+                "added method run(I)V",
+                "modifiers of method run()V changed from 'public' (0x1) to 'public static' (0x9)"
+            );
+    }
+
+    private void writeGreeter(final String greeting, final String extra) throws IOException {
+        final var file = sources.resolve(GREETER + ".jasm");
+
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, "public class " + GREETER + " {\n"
+            + "    public <init>()V {\n"
+            + "        aload 0\n"
+            + "        invokespecial java/lang/Object.<init>()V\n"
+            + "        return\n"
+            + "    }\n"
+            + "    public static greet()java/lang/String {\n"
+            + "        ldc \"" + greeting + "\"\n"
+            + "        areturn\n"
+            + "    }\n"
+            + extra
+            + "}\n");
+    }
+
+    private String awaitLog(final String expected) throws IOException, InterruptedException {
+        final var deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        final var log = temp.resolve("stderr.txt");
+
+        while (System.currentTimeMillis() < deadline) {
+            final var content = Files.readString(log);
+
+            if (content.contains(expected)) {
+                return content;
+            }
+
+            Thread.sleep(20);
+        }
+
+        throw new AssertionError("Timed out waiting for '" + expected + "' in log:\n" + Files.readString(log));
+    }
+
+    private static String greet(final Process process, final BufferedReader out) throws IOException {
+        process.getOutputStream().write('\n');
+        process.getOutputStream().flush();
+        return out.readLine();
+    }
+
+    private Process start(final List<String> jvmArgs, final String... args) throws IOException {
+        final var command = new ArrayList<String>();
+
+        command.add(java());
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(GreeterApp.class.getName());
+        command.addAll(List.of(args));
+
+        return new ProcessBuilder(command).redirectError(temp.resolve("stderr.txt").toFile()).start();
+    }
+
+    private static String java() {
+        return Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    }
+
+    private static String agentJar() {
+        return System.getProperty("jasm.agent.jar");
+    }
+
+    private static byte[] assemble(final String source) {
+        return new JasmAssembler("Test.jasm", () -> new ByteArrayInputStream(source.getBytes())).assemble();
+    }
+}
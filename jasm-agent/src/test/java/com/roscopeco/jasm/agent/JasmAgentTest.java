@@ -0,0 +1,216 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm.agent;
+
+import com.roscopeco.jasm.AssemblerOptions;
+import com.roscopeco.jasm.JasmAssembler;
+import com.roscopeco.jasm.agent.fixture.Greeter;
+import com.roscopeco.jasm.agent.fixture.GreeterApp;
+import com.sun.tools.attach.VirtualMachine;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class JasmAgentTest {
+    private static final String GREETER = "com/roscopeco/jasm/agent/fixture/Greeter";
+
+    private static final String PATCH = "public class " + GREETER + " {\n"
+        + "    public static greet()java/lang/String {\n"
+        + "        ldc \"patched\"\n"
+        + "        areturn\n"
+        + "    }\n"
+        + "}\n";
+
+    @TempDir
+    Path temp;
+
+    Path patches;
+
+    @BeforeEach
+    void writePatches() throws IOException {
+        patches = temp.resolve("patches");
+        final var patch = patches.resolve(GREETER + ".jasm");
+
+        Files.createDirectories(patch.getParent());
+        Files.writeString(patch, PATCH);
+    }
+
+    @Test
+    void testPatchesClassesWhenLoaded() throws Exception {
+        final var process = start(List.of("-javaagent:" + agentJar() + "=" + patches));
+
+        assertThat(readLines(process)).containsExactly("patched");
+        assertThat(process.waitFor(30, TimeUnit.SECONDS)).isTrue();
+        assertThat(process.exitValue()).isZero();
+        assertThat(Files.readString(temp.resolve("stderr.txt"))).contains("Patched " + GREETER + " from " + GREETER + ".jasm");
+    }
+
+    @Test
+    void testPatchesLoadedClassesWhenAttached() throws Exception {
+        final var process = start(List.of(), "wait");
+
+        try {
+            final var out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            assertThat(out.readLine()).isEqualTo("original");
+
+            final var vm = VirtualMachine.attach(String.valueOf(process.pid()));
+
+            try {
+                vm.loadAgent(agentJar(), patches.toString());
+            } finally {
+                vm.detach();
+            }
+
+            process.getOutputStream().write('\n');
+            process.getOutputStream().flush();
+
+            assertThat(out.readLine()).isEqualTo("patched");
+
+            process.getOutputStream().close();
+            assertThat(process.waitFor(30, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            process.destroyForcibly();
+        }
+    }
+
+    @Test
+    void testPassesUnpatchedClassesThrough() throws Exception {
+        final var transformer = new PatchingTransformer(PatchingTransformer.load(patches));
+        final var bytes = classBytes(GreeterApp.class);
+
+        assertThat(transformer.getClassNames()).containsExactly(GREETER);
+        assertThat(transformer.transform(null, "com/roscopeco/jasm/agent/fixture/GreeterApp", null, null, bytes)).isNull();
+        assertThat(transformer.transform(null, null, null, null, bytes)).isNull();
+        assertThat(transformer.transform(null, GREETER, null, null, classBytes(Greeter.class))).isNotNull();
+    }
+
+    @Test
+    void testReportsBrokenPatches() throws Exception {
+        Files.writeString(patches.resolve(GREETER + ".jasm"), "public class {");
+
+        final var log = new ByteArrayOutputStream();
+        final var transformer = new PatchingTransformer(
+            PatchingTransformer.load(patches),
+            new AssemblerOptions(),
+            new PrintStream(log, true)
+        );
+
+        assertThat(transformer.transform(null, GREETER, null, null, classBytes(Greeter.class))).isNull();
+        assertThat(log.toString()).contains("[jasm-agent] Failed to patch " + GREETER + " from " + GREETER + ".jasm");
+    }
+
+    @Test
+    void testComputesFramesFromTheLoaderOfTheClassBeingPatched() throws Exception {
+        // Picks between two classes that only the loader of the class being patched can see
+        Files.writeString(patches.resolve(GREETER + ".jasm"), "public class " + GREETER + " {\n"
+            + "    public static pick(Z)java/lang/Object {\n"
+            + "        iload 0\n"
+            + "        ifeq second\n"
+            + "        new hidden/First\n"
+            + "        dup\n"
+            + "        invokespecial hidden/First.<init>()V\n"
+            + "        goto done\n"
+            + "    second:\n"
+            + "        new hidden/Second\n"
+            + "        dup\n"
+            + "        invokespecial hidden/Second.<init>()V\n"
+            + "    done:\n"
+            + "        areturn\n"
+            + "    }\n"
+            + "}\n");
+
+        final var loader = new ClassLoader(getClass().getClassLoader()) {
+            private final Map<String, byte[]> classes = Map.of(
+                "hidden/Base.class", hiddenClass("Base", "java/lang/Object"),
+                "hidden/First.class", hiddenClass("First", "hidden/Base"),
+                "hidden/Second.class", hiddenClass("Second", "hidden/Base")
+            );
+
+            @Override
+            public InputStream getResourceAsStream(final String name) {
+                final var bytes = classes.get(name);
+                return bytes == null ? super.getResourceAsStream(name) : new ByteArrayInputStream(bytes);
+            }
+        };
+
+        final var log = new ByteArrayOutputStream();
+        final var transformer = new PatchingTransformer(
+            PatchingTransformer.load(patches),
+            new AssemblerOptions(),
+            new PrintStream(log, true)
+        );
+
+        assertThat(transformer.transform(loader, GREETER, null, null, classBytes(Greeter.class))).isNotNull();
+        assertThat(log.toString()).doesNotContain("Failed");
+
+        assertThat(transformer.transform(null, GREETER, null, null, classBytes(Greeter.class))).isNull();
+        assertThat(log.toString()).contains("[jasm-agent] Failed to patch " + GREETER + " from " + GREETER + ".jasm");
+    }
+
+    private Process start(final List<String> jvmArgs, final String... args) throws IOException {
+        final var command = new ArrayList<String>();
+
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(GreeterApp.class.getName());
+        command.addAll(List.of(args));
+
+        return new ProcessBuilder(command).redirectError(temp.resolve("stderr.txt").toFile()).start();
+    }
+
+    private static List<String> readLines(final Process process) throws IOException {
+        try (var out = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            final var lines = new ArrayList<String>();
+
+            for (var line = out.readLine(); line != null; line = out.readLine()) {
+                lines.add(line);
+            }
+
+            return lines;
+        }
+    }
+
+    private static String agentJar() {
+        return System.getProperty("jasm.agent.jar");
+    }
+
+    private static byte[] hiddenClass(final String name, final String superName) {
+        final var source = "public class hidden/" + name + " extends " + superName + " {\n"
+            + "    public <init>()V {\n"
+            + "        aload 0\n"
+            + "        invokespecial " + superName + ".<init>()V\n"
+            + "        return\n"
+            + "    }\n"
+            + "}\n";
+
+        return new JasmAssembler(name + ".jasm", () -> new ByteArrayInputStream(source.getBytes())).assemble();
+    }
+
+    private static byte[] classBytes(final Class<?> clz) throws IOException {
+        try (var in = clz.getResourceAsStream(clz.getSimpleName() + ".class")) {
+            assertThat(in).isNotNull();
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,12 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm.agent.fixture;
+
+public class Greeter {
+    public static String greet() {
+        return "original";
+    }
+}
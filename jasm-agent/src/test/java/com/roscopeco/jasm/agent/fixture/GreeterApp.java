@@ -0,0 +1,30 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm.agent.fixture;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Run in a separate JVM by the agent tests.
+ *
+ * Prints the greeting, then (when given "wait") prints it again for every line on stdin - so an
+ * agent can be loaded, or classes swapped, while it waits.
+ */
+public class GreeterApp {
+    public static void main(final String[] args) throws IOException {
+        System.out.println(Greeter.greet());
+
+        if (args.length > 0 && args[0].equals("wait")) {
+            final var in = new BufferedReader(new InputStreamReader(System.in));
+
+            while (in.readLine() != null) {
+                System.out.println(Greeter.greet());
+            }
+        }
+    }
+}
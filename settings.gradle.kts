@@ -1 +1,3 @@
 rootProject.name = "jasm"
+
+include("jasm-agent")
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Compares a branchy loop laid out in source order against the same loop with its error
+ * checks hinted {@code @unlikely}, so the hot path falls straight through.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockLayoutBenchmark {
+    private static final String NAME = "com/roscopeco/jasm/bench/BlockLayout";
+
+    private static final String CODE = "public class " + NAME + " implements java/util/function/IntUnaryOperator {\n"
+        + "  public <init>()V {\n"
+        + "    aload 0\n"
+        + "    invokespecial java/lang/Object.<init>()V\n"
+        + "    return\n"
+        + "  }\n"
+        + "  public applyAsInt(I)I {\n"
+        + "    iconst 0\n"
+        + "    istore sum\n"
+        + "    iconst 0\n"
+        + "    istore i\n"
+        + "  loop:\n"
+        + "    iload i\n"
+        + "    iload 1\n"
+        + "    if_icmpge done\n"
+        + "    iload i\n"
+        + "    sipush 7919\n"
+        + "    imul\n"
+        + "    sipush 1000\n"
+        + "    irem\n"
+        + "    istore value\n"
+        + "    iload value\n"
+        + "    ifge notNegative\n"
+        + "  @unlikely negative:\n"
+        + "    new java/lang/IllegalArgumentException\n"
+        + "    dup\n"
+        + "    ldc \"Negative value\"\n"
+        + "    invokespecial java/lang/IllegalArgumentException.<init>(java/lang/String)V\n"
+        + "    athrow\n"
+        + "  notNegative:\n"
+        + "    iload value\n"
+        + "    ldc 1000000\n"
+        + "    if_icmple inRange\n"
+        + "  @unlikely tooBig:\n"
+        + "    new java/lang/IllegalArgumentException\n"
+        + "    dup\n"
+        + "    ldc \"Value too large\"\n"
+        + "    invokespecial java/lang/IllegalArgumentException.<init>(java/lang/String)V\n"
+        + "    athrow\n"
+        + "  inRange:\n"
+        + "    iload value\n"
+        + "    sipush 12345\n"
+        + "    if_icmpne notMagic\n"
+        + "  @unlikely magic:\n"
+        + "    iload sum\n"
+        + "    ineg\n"
+        + "    istore sum\n"
+        + "    goto next\n"
+        + "  notMagic:\n"
+        + "    iload sum\n"
+        + "    iload value\n"
+        + "    iadd\n"
+        + "    istore sum\n"
+        + "  next:\n"
+        + "    iinc i, [1]\n"
+        + "    goto loop\n"
+        + "  done:\n"
+        + "    iload sum\n"
+        + "    ireturn\n"
+        + "  }\n"
+        + "}\n";
+
+    private static final int ITERATIONS = 1024;
+
+    @Param({"source", "hinted"})
+    public String layout;
+
+    private IntUnaryOperator function;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        final var code = layout.equals("hinted") ? CODE : CODE.replace("@unlikely ", "");
+
+        final var bytes = new JasmAssembler(
+            "BlockLayoutBenchmark.jasm",
+            Opcodes.V11,
+            () -> new ByteArrayInputStream(code.getBytes())
+        ).assemble();
+
+        function = (IntUnaryOperator) new BenchLoader(bytes)
+            .loadClass(NAME.replace('/', '.'))
+            .getConstructor()
+            .newInstance();
+    }
+
+    @Benchmark
+    public int compiled() {
+        return function.applyAsInt(ITERATIONS);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Xint")
+    public int interpreted() {
+        return function.applyAsInt(ITERATIONS);
+    }
+
+    private static final class BenchLoader extends ClassLoader {
+        private final byte[] bytes;
+
+        BenchLoader(final byte[] bytes) {
+            super(BlockLayoutBenchmark.class.getClassLoader());
+            this.bytes = bytes;
+        }
+
+        @Override
+        protected Class<?> findClass(final String name) throws ClassNotFoundException {
+            if (name.equals(NAME.replace('/', '.'))) {
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+
+            return super.findClass(name);
+        }
+    }
+}
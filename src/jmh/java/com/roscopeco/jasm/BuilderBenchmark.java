@@ -0,0 +1,130 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Compares generating the same class by assembling source, with {@link JasmClassBuilder}, and
+ * with ASM directly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuilderBenchmark {
+    private static final String NAME = "com/roscopeco/jasm/bench/Scaler";
+
+    private static final String SOURCE = "public class " + NAME + " implements java/util/function/IntUnaryOperator {\n"
+        + "  public <init>()V {\n"
+        + "    aload 0\n"
+        + "    invokespecial java/lang/Object.<init>()V\n"
+        + "    return\n"
+        + "  }\n"
+        + "  public applyAsInt(I)I {\n"
+        + "    iload 1\n"
+        + "    bipush 10\n"
+        + "    imul\n"
+        + "    istore 2\n"
+        + "    iload 2\n"
+        + "    ifge done\n"
+        + "    new java/lang/IllegalStateException\n"
+        + "    dup\n"
+        + "    ldc \"Overflow\"\n"
+        + "    invokespecial java/lang/IllegalStateException.<init>(java/lang/String)V\n"
+        + "    athrow\n"
+        + "  done:\n"
+        + "    iload 2\n"
+        + "    ireturn\n"
+        + "  }\n"
+        + "}\n";
+
+    @Benchmark
+    public byte[] assembleSource() {
+        return new JasmAssembler("Scaler.jasm", () -> new ByteArrayInputStream(SOURCE.getBytes())).assemble();
+    }
+
+    @Benchmark
+    public byte[] buildClass() {
+        return new JasmClassBuilder(NAME, "public", "java/lang/Object", List.of("java/util/function/IntUnaryOperator"), "Scaler.jasm")
+            .method("<init>", "()V", m -> m
+                .aload(0)
+                .invokespecial("java/lang/Object", "<init>", "()V")
+                .vreturn())
+            .method("applyAsInt", "(I)I", m -> m
+                .iload(1)
+                .bipush(10)
+                .imul()
+                .istore(2)
+                .iload(2)
+                .ifge("done")
+                .anew("java/lang/IllegalStateException")
+                .dup()
+                .ldc("Overflow")
+                .invokespecial("java/lang/IllegalStateException", "<init>", "(Ljava/lang/String;)V")
+                .athrow()
+                .label("done")
+                .iload(2)
+                .ireturn())
+            .build();
+    }
+
+    @Benchmark
+    public byte[] rawAsm() {
+        final var writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        writer.visit(V11, ACC_PUBLIC, NAME, null, "java/lang/Object", new String[] { "java/util/function/IntUnaryOperator" });
+        writer.visitSource("Scaler.jasm", "");
+
+        final var init = writer.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        final var apply = writer.visitMethod(ACC_PUBLIC, "applyAsInt", "(I)I", null, null);
+        final var done = new Label();
+        apply.visitCode();
+        apply.visitVarInsn(ILOAD, 1);
+        apply.visitIntInsn(BIPUSH, 10);
+        apply.visitInsn(IMUL);
+        apply.visitVarInsn(ISTORE, 2);
+        apply.visitVarInsn(ILOAD, 2);
+        apply.visitJumpInsn(IFGE, done);
+        apply.visitTypeInsn(NEW, "java/lang/IllegalStateException");
+        apply.visitInsn(DUP);
+        apply.visitLdcInsn("Overflow");
+        apply.visitMethodInsn(INVOKESPECIAL, "java/lang/IllegalStateException", "<init>", "(Ljava/lang/String;)V", false);
+        apply.visitInsn(ATHROW);
+        apply.visitLabel(done);
+        apply.visitVarInsn(ILOAD, 2);
+        apply.visitInsn(IRETURN);
+        apply.visitMaxs(0, 0);
+        apply.visitEnd();
+
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * Compares the two lowerings of the {@code concat} pseudo-instruction: {@code invokedynamic}
+ * (class format 53 and up) against the presized {@code StringBuilder} used for older formats.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConcatBenchmark {
+    private static final String NAME = "com/roscopeco/jasm/bench/Concat";
+
+    private static final String CODE = "public class " + NAME + " implements java/util/function/IntFunction {\n"
+        + "  public <init>()V {\n"
+        + "    aload 0\n"
+        + "    invokespecial java/lang/Object.<init>()V\n"
+        + "    return\n"
+        + "  }\n"
+        + "  public apply(I)java/lang/Object {\n"
+        + "    ldc \"item\"\n"
+        + "    iload 1\n"
+        + "    iload 1\n"
+        + "    i2l\n"
+        + "    ldc 1000000007L\n"
+        + "    lmul\n"
+        + "    iload 1\n"
+        + "    i2d\n"
+        + "    ldc 0.5d\n"
+        + "    dmul\n"
+        + "    concat \"Name: \\u0001, index: \\u0001, hash: \\u0001, weight: \\u0001\"(java/lang/String, I, J, D)\n"
+        + "    areturn\n"
+        + "  }\n"
+        + "}\n";
+
+    @Param({"indy", "builder"})
+    public String lowering;
+
+    private IntFunction<?> function;
+
+    private int counter;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        final var bytes = new JasmAssembler(
+            "ConcatBenchmark.jasm",
+            lowering.equals("indy") ? Opcodes.V11 : Opcodes.V1_8,
+            () -> new ByteArrayInputStream(CODE.getBytes())
+        ).assemble();
+
+        function = (IntFunction<?>) new BenchLoader(bytes)
+            .loadClass(NAME.replace('/', '.'))
+            .getConstructor()
+            .newInstance();
+    }
+
+    @Benchmark
+    public Object concat() {
+        return function.apply(counter++);
+    }
+
+    private static final class BenchLoader extends ClassLoader {
+        private final byte[] bytes;
+
+        BenchLoader(final byte[] bytes) {
+            super(ConcatBenchmark.class.getClassLoader());
+            this.bytes = bytes;
+        }
+
+        @Override
+        protected Class<?> findClass(final String name) throws ClassNotFoundException {
+            if (name.equals(NAME.replace('/', '.'))) {
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+
+            return super.findClass(name);
+        }
+    }
+}
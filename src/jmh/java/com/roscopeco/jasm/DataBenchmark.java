@@ -0,0 +1,116 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares class initialization time for a {@code static final int[]} initialized with
+ * the {@code data} pseudo-instruction against the traditional element-by-element form.
+ *
+ * Each invocation defines the class in a fresh loader so {@code <clinit>} runs every time.
+ * The class-file sizes are printed during setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataBenchmark {
+    private static final String NAME = "com/roscopeco/jasm/bench/DataInit";
+
+    @Param({"256", "4096"})
+    public int size;
+
+    @Param({"data", "elements"})
+    public String form;
+
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        final var values = new Random(42).ints(size, -100000, 100000).toArray();
+        final var code = generate(values, form.equals("data"));
+
+        bytes = new JasmAssembler(
+            "DataBenchmark.jasm",
+            Opcodes.V11,
+            () -> new ByteArrayInputStream(code.getBytes())
+        ).assemble();
+
+        System.out.printf("%n%s form, %d elements: %d bytes%n", form, size, bytes.length);
+    }
+
+    @Benchmark
+    public Class<?> initialize() throws ClassNotFoundException {
+        return Class.forName(NAME.replace('/', '.'), true, new BenchLoader(bytes));
+    }
+
+    private static String generate(final int[] values, final boolean useData) {
+        final var code = new StringBuilder()
+            .append("public class ").append(NAME).append(" {\n")
+            .append("  public static final VALUES [I\n")
+            .append("  private static <clinit>()V {\n");
+
+        if (useData) {
+            code.append("    data int [");
+            for (int i = 0; i < values.length; i++) {
+                code.append(i == 0 ? "" : ", ").append(values[i]);
+            }
+            code.append("]\n");
+        } else {
+            code.append("    ldc ").append(values.length).append("\n")
+                .append("    newarray int\n");
+            for (int i = 0; i < values.length; i++) {
+                code.append("    dup\n")
+                    .append("    sipush ").append(i).append("\n")
+                    .append("    ldc ").append(values[i]).append("\n")
+                    .append("    iastore\n");
+            }
+        }
+
+        return code
+            .append("    putstatic ").append(NAME).append(".VALUES [I\n")
+            .append("    return\n")
+            .append("  }\n")
+            .append("}\n")
+            .toString();
+    }
+
+    private static final class BenchLoader extends ClassLoader {
+        private final byte[] bytes;
+
+        BenchLoader(final byte[] bytes) {
+            super(DataBenchmark.class.getClassLoader());
+            this.bytes = bytes;
+        }
+
+        @Override
+        protected Class<?> findClass(final String name) throws ClassNotFoundException {
+            if (name.equals(NAME.replace('/', '.'))) {
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+
+            return super.findClass(name);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.tree.ClassNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.objectweb.asm.Opcodes.ASM9;
+
+/**
+ * Measures disassembly, and recording a class's code as {@link CompactCode} against ASM's
+ * tree API. Run with {@code -prof gc} and divide {@code gc.alloc.rate.norm} by the number of
+ * instructions (printed at setup) for the allocation per instruction.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DisassemblerBenchmark {
+    private byte[] bytes;
+
+    @Setup
+    public void setup() throws IOException {
+        try (final var input = ClassLoader.getSystemResourceAsStream("com/roscopeco/jasm/antlr/JasmParser.class")) {
+            bytes = input.readAllBytes();
+        }
+
+        final var node = new ClassNode();
+        new ClassReader(bytes).accept(node, ClassReader.SKIP_FRAMES);
+        System.out.println("Instructions: " + node.methods.stream().mapToInt(m -> m.instructions.size()).sum());
+    }
+
+    @Benchmark
+    public String disassemble() {
+        return new JasmDisassembler("JasmParser.class", false, () -> new ByteArrayInputStream(bytes)).disassemble();
+    }
+
+    @Benchmark
+    public void read() {
+        new ClassReader(bytes).accept(new ClassVisitor(ASM9) {
+            @Override
+            public MethodVisitor visitMethod(
+                    final int access,
+                    final String name,
+                    final String descriptor,
+                    final String signature,
+                    final String[] exceptions
+            ) {
+                return new MethodVisitor(ASM9) { };
+            }
+        }, ClassReader.SKIP_FRAMES);
+    }
+
+    @Benchmark
+    public ClassNode recordTree() {
+        final var node = new ClassNode();
+        new ClassReader(bytes).accept(node, ClassReader.SKIP_FRAMES);
+        return node;
+    }
+
+    @Benchmark
+    public List<CompactCode> recordCompact() {
+        final var recorder = new CompactCode.Recorder();
+        final var code = new ArrayList<CompactCode>();
+
+        new ClassReader(bytes).accept(new ClassVisitor(ASM9) {
+            @Override
+            public MethodVisitor visitMethod(
+                    final int access,
+                    final String name,
+                    final String descriptor,
+                    final String signature,
+                    final String[] exceptions
+            ) {
+                return new MethodVisitor(ASM9, recorder) {
+                    @Override
+                    public void visitEnd() {
+                        code.add(recorder.toCompactCode());
+                        recorder.clear();
+                    }
+                };
+            }
+        }, ClassReader.SKIP_FRAMES);
+
+        return code;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Measures assembling the end-to-end test sources from source, against assembling them from
+ * {@link ParsedUnit}s. Sources are read from {@code src/test/resources/jasm} (or the directory
+ * given by the {@code jasm.corpus} system property), and those that don't assemble with the
+ * default options are left out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParsedUnitBenchmark {
+    private final List<byte[]> sources = new ArrayList<>();
+    private final List<byte[]> parsed = new ArrayList<>();
+
+    @Setup
+    public void setup() throws IOException {
+        final List<Path> files;
+
+        try (final var walk = Files.walk(Path.of(System.getProperty("jasm.corpus", "src/test/resources/jasm")))) {
+            files = walk.filter(f -> f.toString().endsWith(".jasm")).sorted().collect(Collectors.toList());
+        }
+
+        for (final var file : files) {
+            final var source = Files.readAllBytes(file);
+
+            try {
+                new JasmAssembler(file.getFileName().toString(), () -> new ByteArrayInputStream(source)).assemble();
+            } catch (RuntimeException e) {
+                continue;
+            }
+
+            sources.add(source);
+            parsed.add(ParsedUnit.parse(file.getFileName().toString(), new ByteArrayInputStream(source)).toByteArray());
+        }
+
+        System.out.println("Units: " + sources.size()
+                + ", source bytes: " + sources.stream().mapToInt(s -> s.length).sum()
+                + ", parsed bytes: " + parsed.stream().mapToInt(s -> s.length).sum());
+    }
+
+    @Benchmark
+    public void assembleSource(final Blackhole blackhole) {
+        assembleAll(sources, blackhole);
+    }
+
+    @Benchmark
+    public void assembleParsed(final Blackhole blackhole) {
+        assembleAll(parsed, blackhole);
+    }
+
+    @Benchmark
+    public void parseSource(final Blackhole blackhole) {
+        for (final var source : sources) {
+            blackhole.consume(ParsedUnit.parse("Benchmark.jasm", new ByteArrayInputStream(source)));
+        }
+    }
+
+    @Benchmark
+    public void readParsed(final Blackhole blackhole) {
+        for (final var unit : parsed) {
+            blackhole.consume(ParsedUnit.read("Benchmark.jasmc", new ByteArrayInputStream(unit)));
+        }
+    }
+
+    private static void assembleAll(final List<byte[]> inputs, final Blackhole blackhole) {
+        for (final var input : inputs) {
+            blackhole.consume(new JasmAssembler("Benchmark.jasm", () -> new ByteArrayInputStream(input)).assemble());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares generating a family of near-identical classes by substituting values into source
+ * text and assembling it, against instantiating a compiled template.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TemplateBenchmark {
+    private static final String SOURCE = "public class ${name:class} implements java/util/function/IntUnaryOperator {\n"
+        + "  private static final SCALE I = ${scale:int}\n"
+        + "  public <init>()V {\n"
+        + "    aload 0\n"
+        + "    invokespecial java/lang/Object.<init>()V\n"
+        + "    return\n"
+        + "  }\n"
+        + "  public applyAsInt(I)I {\n"
+        + "    iload 1\n"
+        + "    ldc ${scale:int}\n"
+        + "    imul\n"
+        + "    ldc ${offset:int}\n"
+        + "    iadd\n"
+        + "    istore result\n"
+        + "    iload result\n"
+        + "    ifge done\n"
+        + "    new java/lang/IllegalStateException\n"
+        + "    dup\n"
+        + "    ldc ${message:string}\n"
+        + "    invokespecial java/lang/IllegalStateException.<init>(java/lang/String)V\n"
+        + "    athrow\n"
+        + "  done:\n"
+        + "    iload result\n"
+        + "    ireturn\n"
+        + "  }\n"
+        + "}\n";
+
+    private JasmTemplate template;
+    private int counter;
+
+    @Setup
+    public void setUp() {
+        template = JasmTemplate.compile("Template.jasm", SOURCE);
+    }
+
+    @Benchmark
+    public byte[] reassembleText() {
+        final var n = counter++;
+        final var source = SOURCE
+            .replace("${name:class}", "com/roscopeco/jasm/bench/Generated" + n)
+            .replace("${scale:int}", String.valueOf(n % 1000))
+            .replace("${offset:int}", String.valueOf(n))
+            .replace("${message:string}", "\"Overflow in #" + n + "\"");
+
+        return new JasmAssembler("Generated.jasm", () -> new ByteArrayInputStream(source.getBytes())).assemble();
+    }
+
+    @Benchmark
+    public byte[] instantiateTemplate() {
+        final var n = counter++;
+
+        return template.instantiate(Map.of(
+            "name", "com/roscopeco/jasm/bench/Generated" + n,
+            "scale", n % 1000,
+            "offset", n,
+            "message", "Overflow in #" + n
+        ));
+    }
+}
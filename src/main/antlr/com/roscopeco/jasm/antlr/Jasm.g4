@@ -5,7 +5,7 @@ grammar Jasm;
 }
 
 class
- : annotation* type_modifier* CLASS classname extends? implements? (LBRACE classbody RBRACE)?
+ : annotation* type_modifier* CLASS classname extends? implements? (nesthost | nestmembers)? (LBRACE classbody RBRACE)?
  ;
 
 annotation
@@ -67,6 +67,14 @@ implements
  : IMPLEMENTS classname (COMMA? classname)*
  ;
 
+nesthost
+ : NESTHOST classname
+ ;
+
+nestmembers
+ : NESTMEMBERS classname (COMMA? classname)*
+ ;
+
 classbody
  : member*
  ;
@@ -74,6 +82,7 @@ classbody
 member
  : field
  | method
+ | macro
  ;
 
 field
@@ -90,6 +99,37 @@ method
  : annotation* method_modifier* membername method_descriptor (LBRACE stat_block RBRACE)?
  ;
 
+macro
+ : MACRO membername LPAREN (macro_param (COMMA macro_param)*)? RPAREN LBRACE macro_body RBRACE
+ ;
+
+macro_param
+ : macro_param_type NAME
+ ;
+
+macro_param_type
+ : NAME
+ | CLASS
+ | TYPE_INT
+ | TYPE_LONG
+ | TYPE_FLOAT
+ | TYPE_DOUBLE
+ ;
+
+// The body is only parsed (as a stat_block) when the macro is expanded, with the arguments in place
+macro_body
+ : macro_token*
+ ;
+
+macro_token
+ : LBRACE macro_token* RBRACE
+ | ~(LBRACE | RBRACE)
+ ;
+
+expanded_macro
+ : stat_block EOF
+ ;
+
 method_descriptor
  : LPAREN method_arguments COMMA? RPAREN type
  ;
@@ -124,6 +164,7 @@ membername
  | CALOAD
  | CASTORE
  | CHECKCAST
+ | CONCAT
  | CONSTDYNAMIC
  | D2F
  | D2I
@@ -131,6 +172,7 @@ membername
  | DADD
  | DALOAD
  | DASTORE
+ | DATA
  | DCMPG
  | DCMPG
  | DCONST
@@ -148,6 +190,7 @@ membername
  | DUP2
  | DUP2_X1
  | DUP2_X2
+ | EXPAND
  | F2D
  | F2I
  | F2L
@@ -241,6 +284,7 @@ membername
  | LSUB
  | LUSHR
  | LXOR
+ | MACRO
  | MONITORENTER
  | MONITOREXIT
  | MULTIANEWARRAY
@@ -249,6 +293,7 @@ membername
  | NOP
  | POP
  | POP2
+ | PUSH
  | PUTFIELD
  | PUTSTATIC
  | RETURN
@@ -359,12 +404,14 @@ instruction
  | insn_caload
  | insn_castore
  | insn_checkcast
+ | insn_concat
  | insn_d2f
  | insn_d2i
  | insn_d2l
  | insn_dadd
  | insn_daload
  | insn_dastore
+ | insn_data
  | insn_dcmpg
  | insn_dcmpl
  | insn_dconst
@@ -482,6 +529,7 @@ instruction
  | insn_nop
  | insn_pop
  | insn_pop2
+ | insn_push
  | insn_putfield
  | insn_putstatic
  | insn_return
@@ -494,6 +542,7 @@ instruction
  | label
  | exception_handler
  | try_catch_block
+ | expand
  ;
 
 insn_aaload
@@ -510,6 +559,7 @@ insn_aconst_null
 
 insn_aload
  : ALOAD int_atom
+ | ALOAD NAME
  ;
 
 insn_anewarray
@@ -526,6 +576,7 @@ insn_arraylength
 
 insn_astore
  : ASTORE int_atom
+ | ASTORE NAME
  ;
 
 insn_athrow
@@ -558,6 +609,10 @@ insn_checkcast
  | CHECKCAST LSQUARE* LITERAL_NAME
  ;
 
+insn_concat
+ : CONCAT string_atom LPAREN method_arguments COMMA? RPAREN
+ ;
+
 insn_d2f
  : D2F
  ;
@@ -582,6 +637,16 @@ insn_dastore
  : DASTORE
  ;
 
+insn_data
+ : DATA prim_type LSQUARE (data_atom (COMMA? data_atom)*)? RSQUARE
+ ;
+
+data_atom
+ : int_atom
+ | float_atom
+ | bool_atom
+ ;
+
 insn_dcmpg
  : DCMPG
  ;
@@ -600,6 +665,7 @@ insn_ddiv
 
 insn_dload
  : DLOAD int_atom
+ | DLOAD NAME
  ;
 
 insn_dmul
@@ -620,6 +686,7 @@ insn_dreturn
 
 insn_dstore
  : DSTORE int_atom
+ | DSTORE NAME
  ;
 
 insn_dsub
@@ -692,6 +759,7 @@ insn_fdiv
 
 insn_fload
  : FLOAD int_atom
+ | FLOAD NAME
  ;
 
 insn_fmul
@@ -716,6 +784,7 @@ insn_fsub
 
 insn_fstore
  : FSTORE int_atom
+ | FSTORE NAME
  ;
 
 insn_getfield
@@ -850,10 +919,12 @@ insn_ifnonnull
 
 insn_iinc
  : IINC int_atom COMMA? LSQUARE int_atom RSQUARE
+ | IINC NAME COMMA? LSQUARE int_atom RSQUARE
  ;
 
 insn_iload
  : ILOAD int_atom
+ | ILOAD NAME
  ;
 
 insn_imul
@@ -965,6 +1036,7 @@ insn_ishr
 
 insn_istore
  : ISTORE int_atom
+ | ISTORE NAME
  ;
 
 insn_isub
@@ -1029,6 +1101,7 @@ insn_ldiv
 
 insn_lload
  : LLOAD int_atom
+ | LLOAD NAME
  ;
 
 insn_lmul
@@ -1069,6 +1142,7 @@ insn_lshr
 
 insn_lstore
  : LSTORE int_atom
+ | LSTORE NAME
  ;
 
 insn_lsub
@@ -1115,6 +1189,12 @@ insn_pop2
  : POP2
  ;
 
+insn_push
+ : PUSH int_atom
+ | PUSH float_atom
+ | PUSH string_atom
+ ;
+
 insn_putfield
  : PUTFIELD owner DOT membername type
  ;
@@ -1152,8 +1232,12 @@ insn_tableswitch
  ;
 
 label
- : LABEL
- | LITERAL_NAME COLON
+ : label_hint? LABEL
+ | label_hint? LITERAL_NAME COLON
+ ;
+
+label_hint
+ : ANNOTATION_NAME
  ;
 
 exception_handler
@@ -1168,6 +1252,21 @@ catch_block
  : CATCH LPAREN ref_type RPAREN LBRACE stat_block RBRACE
  ;
 
+expand
+ : EXPAND membername LPAREN (macro_arg (COMMA macro_arg)*)? RPAREN
+ ;
+
+macro_arg
+ : INT
+ | LONG
+ | FLOAT
+ | DOUBLE
+ | STRING
+ | NAME
+ | QNAME
+ | LITERAL_NAME
+ ;
+
 owner
  : LSQUARE* QNAME
  | LSQUARE* NAME
@@ -1199,6 +1298,8 @@ HIDDEN_ANNOT_INDICATOR: '#';
 CLASS       : 'class';
 EXTENDS     : 'extends';
 IMPLEMENTS  : 'implements';
+NESTHOST    : 'nesthost';
+NESTMEMBERS : 'nestmembers';
 
 ABSTRACT    : 'abstract';
 ANNOTATION  : 'annotation';
@@ -1239,12 +1340,14 @@ BIPUSH          : 'bipush';
 CALOAD          : 'caload';
 CASTORE         : 'castore';
 CHECKCAST       : 'checkcast';
+CONCAT          : 'concat';
 D2F             : 'd2f';
 D2I             : 'd2i';
 D2L             : 'd2l';
 DADD            : 'dadd';
 DALOAD          : 'daload';
 DASTORE         : 'dastore';
+DATA            : 'data';
 DCMPG           : 'dcmpg';
 DCMPL           : 'dcmpl';
 DCONST          : 'dconst';
@@ -1362,6 +1465,7 @@ NEWARRAY        : 'newarray';
 NOP             : 'nop';
 POP             : 'pop';
 POP2            : 'pop2';
+PUSH            : 'push';
 PUTFIELD        : 'putfield';
 PUTSTATIC       : 'putstatic';
 RETURN          : 'return';
@@ -1378,6 +1482,8 @@ CONSTDYNAMIC    : 'constdynamic';
 TRY             : 'try';
 CATCH           : 'catch';
 EXCEPTION       : 'exception';
+MACRO           : 'macro';
+EXPAND          : 'expand';
 
 TYPE_VOID
  : 'V'
@@ -7,6 +7,9 @@ module com.roscopeco.jasm {
     requires kotlin.stdlib;
     requires org.antlr.antlr4.runtime;
     requires transitive org.objectweb.asm;
+    requires org.objectweb.asm.tree;
+    requires org.objectweb.asm.tree.analysis;
+    requires org.objectweb.asm.commons;
     requires com.beust.jcommander;
 
     exports com.roscopeco.jasm;
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import com.roscopeco.jasm.antlr.JasmParser
+import org.objectweb.asm.Opcodes
+
+/**
+ * Support for the `data` pseudo-instruction, which creates a primitive array from a literal.
+ *
+ * Small arrays are filled element-by-element. Larger ones are packed into string constants
+ * (16 bits per char) that are unpacked by a short loop, so the size of the code doesn't
+ * depend on the number of elements.
+ *
+ * Each 16-bit chunk is stored plus one, so that zeroes (the most common value by far) take
+ * a single byte in the constant pool's modified UTF-8 rather than two.
+ */
+internal object ArrayData {
+    /**
+     * Arrays with at most this many elements are filled element-by-element, as that's
+     * smaller than the unpacking loop.
+     */
+    const val INLINE_LIMIT = 8
+
+    private const val MAX_UTF8_LENGTH = 65535
+
+    enum class ElementType(
+        val typeName: String,
+        val newarrayOperand: Int,
+        val storeOpcode: Int,
+        val chars: Int,
+        val min: Long,
+        val max: Long
+    ) {
+        BOOLEAN("boolean", Opcodes.T_BOOLEAN, Opcodes.BASTORE, 1, 0, 1),
+        BYTE("byte", Opcodes.T_BYTE, Opcodes.BASTORE, 1, Byte.MIN_VALUE.toLong(), Byte.MAX_VALUE.toLong()),
+        CHAR("char", Opcodes.T_CHAR, Opcodes.CASTORE, 1, Char.MIN_VALUE.code.toLong(), Char.MAX_VALUE.code.toLong()),
+        SHORT("short", Opcodes.T_SHORT, Opcodes.SASTORE, 1, Short.MIN_VALUE.toLong(), Short.MAX_VALUE.toLong()),
+        INT("int", Opcodes.T_INT, Opcodes.IASTORE, 2, Int.MIN_VALUE.toLong(), Int.MAX_VALUE.toLong()),
+        FLOAT("float", Opcodes.T_FLOAT, Opcodes.FASTORE, 2, Long.MIN_VALUE, Long.MAX_VALUE),
+        LONG("long", Opcodes.T_LONG, Opcodes.LASTORE, 4, Long.MIN_VALUE, Long.MAX_VALUE),
+        DOUBLE("double", Opcodes.T_DOUBLE, Opcodes.DASTORE, 4, Long.MIN_VALUE, Long.MAX_VALUE);
+
+        companion object {
+            fun of(ctx: JasmParser.Prim_typeContext) = when {
+                ctx.TYPE_BOOL() != null     -> BOOLEAN
+                ctx.TYPE_BYTE() != null     -> BYTE
+                ctx.TYPE_CHAR() != null     -> CHAR
+                ctx.TYPE_SHORT() != null    -> SHORT
+                ctx.TYPE_FLOAT() != null    -> FLOAT
+                ctx.TYPE_LONG() != null     -> LONG
+                ctx.TYPE_DOUBLE() != null   -> DOUBLE
+                else                        -> INT
+            }
+        }
+    }
+
+    /**
+     * Get the raw bits for a value in an array of the given type. For `float` and `double` these
+     * are the IEEE 754 bits, for everything else just the (sign-extended) value.
+     *
+     * @return The bits, or `null` if the literal isn't valid for the type
+     */
+    fun bits(type: ElementType, atom: JasmParser.Data_atomContext): Long? = when {
+        atom.bool_atom() != null -> if (type == ElementType.BOOLEAN) (if (atom.bool_atom().TRUE() != null) 1L else 0L) else null
+
+        atom.int_atom() != null -> integer(atom.int_atom())?.let { value ->
+            when (type) {
+                ElementType.FLOAT -> value.toFloat().toRawBits().toLong()
+                ElementType.DOUBLE -> value.toDouble().toRawBits()
+                else -> if (value in type.min..type.max) value else null
+            }
+        }
+
+        atom.float_atom()?.FLOAT() != null -> when (type) {
+            ElementType.FLOAT -> atom.text.toFloat().toRawBits().toLong()
+            ElementType.DOUBLE -> atom.text.toDouble().toRawBits()
+            else -> null
+        }
+
+        atom.float_atom()?.DOUBLE() != null -> when (type) {
+            ElementType.DOUBLE -> atom.text.dropLast(1).toDouble().toRawBits()
+            else -> null
+        }
+
+        else -> null
+    }
+
+    private fun integer(atom: JasmParser.Int_atomContext): Long? = when {
+        atom.LONG() != null -> atom.text.dropLast(1).toLongOrNull()
+        else -> atom.text.toLongOrNull()
+    }
+
+    /**
+     * Pack the given values into strings that each fit in the constant pool.
+     */
+    fun pack(type: ElementType, values: List<Long>): List<String> {
+        val chunks = mutableListOf<String>()
+        val chunk = StringBuilder()
+        var utf8Length = 0
+
+        values.forEach { value ->
+            val chars = (type.chars - 1 downTo 0).map { ((value ushr (it * 16)) + 1).toInt().toChar() }
+            val length = chars.sumOf { utf8Length(it) }
+
+            if (utf8Length + length > MAX_UTF8_LENGTH) {
+                chunks.add(chunk.toString())
+                chunk.clear()
+                utf8Length = 0
+            }
+
+            chars.forEach { chunk.append(it) }
+            utf8Length += length
+        }
+
+        chunks.add(chunk.toString())
+        return chunks
+    }
+
+    // Length in the class file's modified UTF-8
+    private fun utf8Length(char: Char) = when (char.code) {
+        in 0x01..0x7f -> 1
+        0, in 0x80..0x7ff -> 2
+        else -> 3
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+/**
+ * Optional behaviour for the assembler. The defaults produce the same output as
+ * an assembler created without options.
+ *
+ * @param emitLocalVariableTable Emit a `LocalVariableTable` describing named locals
+ * @param splitLargeMethods Split methods with more than [maxMethodSize] bytes of code into helper methods
+ * @param maxMethodSize The largest method (in bytes of code) to allow when [splitLargeMethods] is set
+ * @param inlineConstants Replace `getstatic` of this class's constant `static final` fields with the constant
+ * @param dropInlinedConstants Leave out `private` constant fields that are no longer referenced once inlined
+ * @param layoutProfile Branch hints to lay out code by, in addition to `@likely` / `@unlikely` labels
+ * @param eliminateTailCalls Turn self-recursive tail calls in `static` and `private` methods into loops
+ * @param release Strip debug attributes and rewrite the constant pool to make the class as small as possible
+ * @param instrumentBlocks Count how many times each basic block runs, reporting through [BlockCounters]
+ * @param verify Verify the assembled code (as the JVM would when loading it), reporting problems as errors
+ *
+ * From Java, start from the defaults and set just the options needed with the `with` methods, e.g.
+ * `new AssemblerOptions().withInlineConstants(true).withDropInlinedConstants(true)`.
+ */
+data class AssemblerOptions @JvmOverloads constructor(
+    val emitLocalVariableTable: Boolean = false,
+    val splitLargeMethods: Boolean = false,
+    val maxMethodSize: Int = MAX_METHOD_SIZE,
+    val inlineConstants: Boolean = false,
+    val dropInlinedConstants: Boolean = false,
+    val layoutProfile: LayoutProfile? = null,
+    val eliminateTailCalls: Boolean = false,
+    val release: Boolean = false,
+    val instrumentBlocks: Boolean = false,
+    val verify: Boolean = false,
+) {
+    /** A copy of these options with [emitLocalVariableTable] set to [value] */
+    fun withEmitLocalVariableTable(value: Boolean) = copy(emitLocalVariableTable = value)
+
+    /** A copy of these options with [splitLargeMethods] set to [value] */
+    fun withSplitLargeMethods(value: Boolean) = copy(splitLargeMethods = value)
+
+    /** A copy of these options with [maxMethodSize] set to [value] */
+    fun withMaxMethodSize(value: Int) = copy(maxMethodSize = value)
+
+    /** A copy of these options with [inlineConstants] set to [value] */
+    fun withInlineConstants(value: Boolean) = copy(inlineConstants = value)
+
+    /** A copy of these options with [dropInlinedConstants] set to [value] */
+    fun withDropInlinedConstants(value: Boolean) = copy(dropInlinedConstants = value)
+
+    /** A copy of these options with [layoutProfile] set to [value] */
+    fun withLayoutProfile(value: LayoutProfile?) = copy(layoutProfile = value)
+
+    /** A copy of these options with [eliminateTailCalls] set to [value] */
+    fun withEliminateTailCalls(value: Boolean) = copy(eliminateTailCalls = value)
+
+    /** A copy of these options with [release] set to [value] */
+    fun withRelease(value: Boolean) = copy(release = value)
+
+    /** A copy of these options with [instrumentBlocks] set to [value] */
+    fun withInstrumentBlocks(value: Boolean) = copy(instrumentBlocks = value)
+
+    /** A copy of these options with [verify] set to [value] */
+    fun withVerify(value: Boolean) = copy(verify = value)
+
+    companion object {
+        /** The largest method the JVM allows */
+        const val MAX_METHOD_SIZE = 65535
+
+        /** HotSpot won't JIT-compile methods larger than this (unless `-XX:-DontCompileHugeMethods` is set) */
+        const val HUGE_METHOD_LIMIT = 8000
+    }
+}
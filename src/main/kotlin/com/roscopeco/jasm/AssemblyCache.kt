@@ -0,0 +1,159 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import java.io.IOException
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Cache of assembled classes, keyed by a hash of their source (along with the class format and
+ * options they were assembled with), for use by [JasmClassLoader].
+ *
+ * Classes are kept in memory until the total size of the cached bytecode reaches [maxBytes],
+ * after which the least recently used are dropped. If a [directory] is given, classes are also
+ * written there, so they don't need to be assembled again by later runs - this is best-effort,
+ * and problems reading or writing the directory just mean the class gets assembled.
+ *
+ * A cache can be shared by any number of loaders, and is safe to use from several threads.
+ *
+ * @param maxBytes The most bytecode to keep in memory
+ * @param directory Directory to persist classes to, or `null` to only cache them in memory
+ */
+class AssemblyCache @JvmOverloads constructor(
+    val maxBytes: Long = DEFAULT_MAX_BYTES,
+    val directory: Path? = null,
+) {
+    private val entries = LinkedHashMap<String, ByteArray>(16, 0.75f, true)
+    private var cachedBytes = 0L
+
+    private val hitCount = AtomicLong()
+    private val missCount = AtomicLong()
+
+    /** The number of classes found in the cache (in memory or on disk) */
+    val hits get() = hitCount.get()
+
+    /** The number of classes that had to be assembled */
+    val misses get() = missCount.get()
+
+    /** The total size of the bytecode currently cached in memory */
+    val size get() = synchronized(entries) { cachedBytes }
+
+    /**
+     * Get the cached bytecode for the given source, or assemble and cache it.
+     *
+     * @param source The JASM source
+     * @param classFormat The ASM `Vxx` constant for the class format
+     * @param options The assembler options
+     * @param assemble Function to assemble the source, if it isn't cached
+     * @return The bytecode
+     */
+    fun getOrAssemble(source: ByteArray, classFormat: Int, options: AssemblerOptions, assemble: () -> ByteArray): ByteArray {
+        val key = key(source, classFormat, options)
+
+        val cached = synchronized(entries) { entries[key] } ?: load(key)?.also { put(key, it) }
+
+        if (cached != null) {
+            hitCount.incrementAndGet()
+            return cached
+        }
+
+        missCount.incrementAndGet()
+
+        // Not under the lock, so different classes can be assembled in parallel
+        return assemble().also {
+            put(key, it)
+            store(key, it)
+        }
+    }
+
+    private fun put(key: String, bytes: ByteArray) {
+        if (bytes.size > maxBytes) {
+            return
+        }
+
+        synchronized(entries) {
+            entries.put(key, bytes)?.let { cachedBytes -= it.size }
+            cachedBytes += bytes.size
+
+            val eldest = entries.values.iterator()
+            while (cachedBytes > maxBytes) {
+                cachedBytes -= eldest.next().size
+                eldest.remove()
+            }
+        }
+    }
+
+    private fun load(key: String): ByteArray? {
+        val file = directory?.resolve("$key.class") ?: return null
+
+        return try {
+            Files.readAllBytes(file).takeIf(::looksLikeClass)
+        } catch (e: IOException) {
+            null
+        }
+    }
+
+    private fun store(key: String, bytes: ByteArray) {
+        val dir = directory ?: return
+
+        try {
+            Files.createDirectories(dir)
+
+            // Written to a temporary file first, so other processes never see half a class
+            val temp = Files.createTempFile(dir, key, ".tmp")
+
+            try {
+                Files.write(temp, bytes)
+
+                try {
+                    Files.move(temp, dir.resolve("$key.class"), StandardCopyOption.ATOMIC_MOVE)
+                } catch (e: AtomicMoveNotSupportedException) {
+                    Files.move(temp, dir.resolve("$key.class"), StandardCopyOption.REPLACE_EXISTING)
+                }
+            } finally {
+                Files.deleteIfExists(temp)
+            }
+        } catch (e: IOException) {
+            // The class will just be assembled again next time
+        }
+    }
+
+    private fun looksLikeClass(bytes: ByteArray) =
+        bytes.size > 4 &&
+                bytes[0] == 0xCA.toByte() && bytes[1] == 0xFE.toByte() &&
+                bytes[2] == 0xBA.toByte() && bytes[3] == 0xBE.toByte()
+
+    companion object {
+        /** The default limit for bytecode cached in memory (16MB) */
+        const val DEFAULT_MAX_BYTES = 16L * 1024 * 1024
+
+        // Bump this when a change to the assembler means cached classes shouldn't be used
+        private const val KEY_VERSION = 1
+
+        /**
+         * Compute the key for the given source, class format and options.
+         *
+         * The key is a hex-encoded SHA-256 hash, so is safe to use as a file name.
+         */
+        @JvmStatic
+        fun key(source: ByteArray, classFormat: Int, options: AssemblerOptions): String {
+            val digest = MessageDigest.getInstance("SHA-256")
+
+            // Options (including the layout profile) are all data, so their string form covers everything
+            val fingerprint = "$KEY_VERSION:$classFormat:$options\n"
+
+            digest.update(fingerprint.toByteArray())
+            digest.update(source)
+
+            return digest.digest().joinToString("") { "%02x".format(it) }
+        }
+    }
+}
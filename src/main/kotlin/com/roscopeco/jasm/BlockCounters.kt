@@ -0,0 +1,140 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import java.io.File
+import java.io.PrintStream
+import java.security.PrivilegedAction
+import java.util.WeakHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Runtime registry for the counters in classes assembled with
+ * [AssemblerOptions.instrumentBlocks], so they can be reported on.
+ *
+ * Instrumented classes register their counters when they're initialized. When the JVM exits,
+ * the counts for every block are written (one per line, as `unit:line class.method(descriptor)
+ * label count`) to the file named by the `jasm.blockCounts` system property, or to `System.err`
+ * if it isn't set.
+ *
+ * Registrations are held weakly, by class, so they don't keep piling up as instrumented classes
+ * are loaded and unloaded. The counts for a class are only reported while it's loaded (or until
+ * it's [unregistered][unregister]).
+ *
+ * Counters are updated without synchronization, to keep the overhead down, so counts from
+ * code run concurrently on several threads may be slightly low.
+ */
+object BlockCounters {
+    /** System property naming the file the counts are written to at exit */
+    const val OUTPUT_PROPERTY = "jasm.blockCounts"
+
+    /**
+     * The number of times a basic block was entered.
+     *
+     * @param className The internal name of the class
+     * @param unitName The compilation unit the class came from
+     * @param method The method name and descriptor
+     * @param label The label the block starts at, or `-` if it has none
+     * @param line The source line the block starts at, or `0` if unknown
+     * @param count How many times the block was entered
+     */
+    data class BlockCount(
+        val className: String,
+        val unitName: String,
+        val method: String,
+        val label: String,
+        val line: Int,
+        val count: Long,
+    ) {
+        override fun toString() = "$unitName:${if (line > 0) line else "?"} $className.$method $label $count"
+    }
+
+    private class Registration(val order: Long, val className: String, val unitName: String, val blocks: List<List<String>>) {
+        val counts = LongArray(blocks.size)
+    }
+
+    // Keyed by the instrumented class, which the registration doesn't refer to, so it can still be unloaded
+    private val registrations = WeakHashMap<Class<*>, Registration>()
+    private val nextOrder = AtomicLong()
+    private val walker = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE)
+
+    init {
+        // This is first used from an instrumented class's initializer, which the hook's thread would
+        // otherwise keep reachable (through its access control context and context class loader)
+        @Suppress("DEPRECATION")
+        val hook = java.security.AccessController.doPrivileged(PrivilegedAction {
+            Thread(::dumpAtExit, "jasm-block-counters").apply { contextClassLoader = null }
+        })
+
+        Runtime.getRuntime().addShutdownHook(hook)
+    }
+
+    /**
+     * Called by instrumented classes (from their static initializer) to create their counters.
+     *
+     * @param className The internal name of the class
+     * @param unitName The compilation unit the class came from
+     * @param blocks The blocks, one per line, each as tab-separated method, label and line
+     * @return The counters, one per block
+     */
+    @JvmStatic
+    fun register(className: String, unitName: String, blocks: String): LongArray {
+        val registration = Registration(
+            nextOrder.getAndIncrement(),
+            className,
+            unitName,
+            blocks.lines().filter { it.isNotEmpty() }.map { it.split('\t') }
+        )
+
+        synchronized(registrations) {
+            registrations[walker.callerClass] = registration
+        }
+
+        return registration.counts
+    }
+
+    /**
+     * Stop reporting the counts for an instrumented class.
+     *
+     * @param instrumented The class, as loaded
+     */
+    @JvmStatic
+    fun unregister(instrumented: Class<*>) {
+        synchronized(registrations) {
+            registrations.remove(instrumented)
+        }
+    }
+
+    /**
+     * Get the current counts for every block of every instrumented class.
+     */
+    @JvmStatic
+    fun snapshot(): List<BlockCount> = synchronized(registrations) {
+        registrations.values.sortedBy { it.order }
+    }.flatMap { registration ->
+        registration.blocks.mapIndexed { i, (method, label, line) ->
+            BlockCount(registration.className, registration.unitName, method, label, line.toInt(), registration.counts[i])
+        }
+    }
+
+    /**
+     * Write the current counts, one block per line.
+     */
+    @JvmStatic
+    fun dump(out: Appendable) {
+        snapshot().forEach { out.append(it.toString()).append(System.lineSeparator()) }
+    }
+
+    private fun dumpAtExit() {
+        val file = System.getProperty(OUTPUT_PROPERTY)
+
+        if (file != null) {
+            PrintStream(File(file)).use(::dump)
+        } else {
+            dump(System.err)
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.tree.AbstractInsnNode
+import org.objectweb.asm.tree.FieldInsnNode
+import org.objectweb.asm.tree.InsnList
+import org.objectweb.asm.tree.InsnNode
+import org.objectweb.asm.tree.IntInsnNode
+import org.objectweb.asm.tree.JumpInsnNode
+import org.objectweb.asm.tree.LabelNode
+import org.objectweb.asm.tree.LdcInsnNode
+import org.objectweb.asm.tree.LookupSwitchInsnNode
+import org.objectweb.asm.tree.MethodInsnNode
+import org.objectweb.asm.tree.MethodNode
+import org.objectweb.asm.tree.TableSwitchInsnNode
+
+/**
+ * Instruments a class to count how many times each basic block is entered.
+ *
+ * Each block starts by incrementing its own element of a `long[]` held in a synthetic static
+ * field. The array is created by [BlockCounters.register] at the very start of `<clinit>`
+ * (which is generated if the class doesn't have one), along with a description of each block
+ * so the counts can be mapped back to the source.
+ *
+ * Since `<clinit>` needs to know about every block, it has to be instrumented (and emitted)
+ * last - see [finish].
+ *
+ * @param className The internal name of the class being instrumented
+ * @param unitName The name of the compilation unit (recorded with the counts)
+ * @param isInterface Whether the class is an interface (which only allows public fields)
+ */
+internal class BlockInstrumenter(
+    private val className: String,
+    private val unitName: String,
+    private val isInterface: Boolean
+) {
+    private val blocks = mutableListOf<String>()
+
+    /**
+     * Insert a counter at the start of every basic block in the given method.
+     *
+     * @param method The method to instrument (modified in place)
+     * @param labelNames The names of the method's labels
+     * @param lineOf Function to get the source line of an instruction, if it has one
+     */
+    fun instrument(method: MethodNode, labelNames: Map<LabelNode, String>, lineOf: (AbstractInsnNode) -> Int?) {
+        val insns = method.instructions
+
+        if (insns.size() == 0) {
+            return
+        }
+
+        val leaders = LinkedHashSet<AbstractInsnNode>()
+
+        fun realAt(node: AbstractInsnNode?): AbstractInsnNode? {
+            var insn = node
+            while (insn != null && insn.opcode < 0) insn = insn.next
+            return insn
+        }
+
+        realAt(insns.first)?.let(leaders::add)
+
+        insns.forEach { insn ->
+            when (insn) {
+                is JumpInsnNode -> {
+                    realAt(insn.label)?.let(leaders::add)
+                    if (insn.opcode != Opcodes.GOTO) realAt(insn.next)?.let(leaders::add)
+                }
+                is TableSwitchInsnNode -> (insn.labels + insn.dflt).mapNotNull(::realAt).forEach(leaders::add)
+                is LookupSwitchInsnNode -> (insn.labels + insn.dflt).mapNotNull(::realAt).forEach(leaders::add)
+            }
+        }
+
+        method.tryCatchBlocks.mapNotNull { realAt(it.handler) }.forEach(leaders::add)
+
+        insns.filter { it in leaders }.forEach { leader ->
+            val index = blocks.size
+            blocks.add(describe(method, leader, labelNames, lineOf))
+            insns.insertBefore(leader, increment(index))
+        }
+    }
+
+    /**
+     * Add the counters to the class, once every other method has been instrumented.
+     *
+     * @param clinit The class's `<clinit>`, which will be instrumented, or `null` to generate one
+     * @param labelNames The names of the labels in `<clinit>`
+     * @param lineOf Function to get the source line of an instruction in `<clinit>`, if it has one
+     * @return The `<clinit>` to emit, which creates the counters before anything else
+     */
+    fun finish(clinit: MethodNode?, labelNames: Map<LabelNode, String>, lineOf: (AbstractInsnNode) -> Int?): MethodNode {
+        val method = clinit ?: MethodNode(Opcodes.ASM9, Opcodes.ACC_STATIC, "<clinit>", "()V", null, null).apply {
+            instructions.add(InsnNode(Opcodes.RETURN))
+        }
+
+        if (clinit != null) {
+            instrument(method, labelNames, lineOf)
+        }
+
+        val register = InsnList()
+
+        register.add(LdcInsnNode(className))
+        register.add(LdcInsnNode(unitName))
+
+        // A string constant can only hold 65535 bytes, but a char could take three
+        blocks.joinToString("\n").chunked(MAX_CHUNK).forEachIndexed { i, chunk ->
+            register.add(LdcInsnNode(chunk))
+
+            if (i > 0) {
+                register.add(
+                    MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/String", "concat", "(Ljava/lang/String;)Ljava/lang/String;", false)
+                )
+            }
+        }
+
+        if (blocks.isEmpty()) {
+            register.add(LdcInsnNode(""))
+        }
+
+        register.add(
+            MethodInsnNode(
+                Opcodes.INVOKESTATIC,
+                REGISTRY,
+                "register",
+                "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)[J",
+                false
+            )
+        )
+        register.add(FieldInsnNode(Opcodes.PUTSTATIC, className, FIELD_NAME, "[J"))
+
+        method.instructions.insert(register)
+        return method
+    }
+
+    /**
+     * The access flags for the counters field.
+     */
+    fun fieldAccess() =
+        Opcodes.ACC_STATIC or Opcodes.ACC_FINAL or Opcodes.ACC_SYNTHETIC or
+                if (isInterface) Opcodes.ACC_PUBLIC else Opcodes.ACC_PRIVATE
+
+    private fun increment(index: Int) = InsnList().apply {
+        add(FieldInsnNode(Opcodes.GETSTATIC, className, FIELD_NAME, "[J"))
+        add(pushInt(index))
+        add(InsnNode(Opcodes.DUP2))
+        add(InsnNode(Opcodes.LALOAD))
+        add(InsnNode(Opcodes.LCONST_1))
+        add(InsnNode(Opcodes.LADD))
+        add(InsnNode(Opcodes.LASTORE))
+    }
+
+    private fun pushInt(value: Int): AbstractInsnNode = when {
+        value <= 5                 -> InsnNode(Opcodes.ICONST_0 + value)
+        value <= Byte.MAX_VALUE    -> IntInsnNode(Opcodes.BIPUSH, value)
+        value <= Short.MAX_VALUE   -> IntInsnNode(Opcodes.SIPUSH, value)
+        else                       -> LdcInsnNode(value)
+    }
+
+    private fun describe(
+        method: MethodNode,
+        leader: AbstractInsnNode,
+        labelNames: Map<LabelNode, String>,
+        lineOf: (AbstractInsnNode) -> Int?
+    ): String {
+        // The closest named label before the block, as long as nothing real comes in between
+        var node = leader.previous
+        var label: String? = null
+
+        while (node != null && node.opcode < 0 && label == null) {
+            label = labelNames[node]
+            node = node.previous
+        }
+
+        // Generated code (e.g. a lowered concat) doesn't have a source, but what follows it might
+        var insn: AbstractInsnNode? = leader
+        var line: Int? = null
+
+        while (insn != null && line == null) {
+            line = lineOf(insn)
+            insn = insn.next
+        }
+
+        return listOf(method.name + method.desc, label ?: "-", (line ?: 0).toString())
+            .joinToString("\t") { it.replace('\t', ' ').replace('\n', ' ') }
+    }
+
+    companion object {
+        /** The name of the synthetic field that holds the counters */
+        const val FIELD_NAME = "jasm\$blockCounts"
+
+        private const val REGISTRY = "com/roscopeco/jasm/BlockCounters"
+        private const val MAX_CHUNK = 65535 / 3
+    }
+}
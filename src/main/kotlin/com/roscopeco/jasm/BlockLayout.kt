@@ -0,0 +1,215 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import com.roscopeco.jasm.errors.BaseError
+import com.roscopeco.jasm.errors.CodeError
+import com.roscopeco.jasm.errors.ErrorCollector
+import org.antlr.v4.runtime.ParserRuleContext
+import org.objectweb.asm.Label
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.tree.AbstractInsnNode
+import org.objectweb.asm.tree.JumpInsnNode
+import org.objectweb.asm.tree.LabelNode
+import org.objectweb.asm.tree.MethodNode
+import org.objectweb.asm.tree.TryCatchBlockNode
+
+/**
+ * Reorders the code in a method according to branch hints, so that the likely path falls
+ * through and unlikely code is moved out of the way to the end of the method.
+ *
+ * A cold block runs from an `@unlikely` label (or from the fall-through of a forward conditional
+ * jump to a `@likely` label) to the first `goto`, switch, return or `athrow`. It can be moved if
+ * the code before it doesn't fall through into it, or if that code is a conditional jump - in
+ * which case the jump is inverted to target the cold block, followed by a `goto` to the original
+ * target if that isn't where the code now falls through to.
+ *
+ * Blocks that contain the start or end of an exception range are left where they are. Blocks
+ * covered by a range get an extra exception table entry (with the same handler and priority)
+ * once moved. Methods using `jsr` / `ret` are never changed.
+ *
+ * @param unitName The name of the compilation unit (shows up in warnings)
+ * @param errorCollector Collector that will receive warnings for hints that can't be applied
+ */
+internal class BlockLayout(private val unitName: String, private val errorCollector: ErrorCollector) {
+    enum class Hint { LIKELY, UNLIKELY }
+
+    /**
+     * A hint that code at a label is likely or unlikely to be run.
+     *
+     * @param label The label that was hinted
+     * @param name The name of the label (for warnings)
+     * @param hint Whether the label is likely or unlikely
+     * @param source Where the hint was given, or `null` if it came from a profile
+     */
+    class BlockHint(val label: Label, val name: String, val hint: Hint, val source: ParserRuleContext?) {
+        // MethodNode keeps the node it created for a label here
+        fun labelNode() = label.info as? LabelNode
+    }
+
+    /**
+     * Lay out the given method according to the given hints.
+     *
+     * @param method The method to process (modified in place)
+     * @param hints The hints for the method's labels
+     */
+    fun layout(method: MethodNode, hints: List<BlockHint>) {
+        val insns = method.instructions
+
+        if (hints.isEmpty() || insns.any { it.opcode == Opcodes.JSR || it.opcode == Opcodes.RET }) {
+            return
+        }
+
+        val labelNodes = insns.filterIsInstance<LabelNode>().toSet()
+        val layout = Layout(method)
+
+        hints
+            .filter { it.labelNode() in labelNodes }
+            .sortedBy { insns.indexOf(it.labelNode()) }
+            .forEach { hint ->
+                val label = hint.labelNode()!!
+
+                if (label in layout.moved) {
+                    return@forEach
+                }
+
+                val failure = when (hint.hint) {
+                    Hint.UNLIKELY -> layout.moveCold(label)
+                    Hint.LIKELY -> layout.moveFallThroughs(label)
+                }
+
+                if (failure != null) {
+                    val message = "Block at label ${hint.name} in ${method.name}${method.desc} was not moved ($failure)"
+                    errorCollector.addWarning(
+                        if (hint.source != null) CodeError(unitName, hint.source, message) else BaseError(unitName, message)
+                    )
+                }
+            }
+    }
+
+    private class Layout(private val method: MethodNode) {
+        private val insns = method.instructions
+
+        // Anything after this has already been moved out of the way
+        private val hotEnd = insns.last
+
+        val moved = HashSet<AbstractInsnNode>()
+
+        /**
+         * Move the cold code after every forward conditional jump to the given label.
+         */
+        fun moveFallThroughs(target: LabelNode): String? {
+            val jumps = insns
+                .filterIsInstance<JumpInsnNode>()
+                .filter { it.label == target && isConditional(it.opcode) && it !in moved }
+                .filter { insns.indexOf(it) < insns.indexOf(target) }
+
+            if (jumps.isEmpty()) {
+                return "no conditional jump forward to it"
+            }
+
+            return jumps.mapNotNull { jump ->
+                val start = LabelNode()
+                insns.insert(jump, start)
+
+                moveCold(start)?.also { insns.remove(start) }
+            }.firstOrNull()
+        }
+
+        /**
+         * Move the code from the given label to the end of the method.
+         *
+         * @return Why the code couldn't be moved, or `null` if it was
+         */
+        fun moveCold(start: LabelNode): String? {
+            // Labels etc. just before the block would otherwise fall through into whatever follows it
+            var first: AbstractInsnNode = start
+            while (first.previous != null && first.previous.opcode < 0) first = first.previous
+
+            val pred = first.previous ?: return "it is at the start of the method"
+
+            if (!ControlFlow.isUnconditional(pred.opcode) && !isConditional(pred.opcode)) {
+                return "the code before it falls through into it"
+            }
+
+            val block = mutableListOf<AbstractInsnNode>()
+            var insn: AbstractInsnNode? = first
+
+            while (insn != null && !(insn.opcode >= 0 && ControlFlow.isUnconditional(insn.opcode))) {
+                if (insn == hotEnd) return "it doesn't end with a goto, switch, return or throw"
+                block.add(insn)
+                insn = insn.next
+            }
+
+            if (insn == null) {
+                return "it doesn't end with a goto, switch, return or throw"
+            }
+
+            block.add(insn)
+
+            if (method.tryCatchBlocks.any { tcb -> tcb.start in block || tcb.end in block }) {
+                return "it contains the start or end of an exception range"
+            }
+
+            val firstIndex = insns.indexOf(first)
+            val covering = method.tryCatchBlocks.filter { tcb ->
+                insns.indexOf(tcb.start) < firstIndex && firstIndex < insns.indexOf(tcb.end)
+            }
+
+            block.forEach(insns::remove)
+
+            if (pred is JumpInsnNode && isConditional(pred.opcode)) {
+                val target = pred.label
+                pred.setOpcode(invert(pred.opcode))
+                pred.label = start
+
+                if (!fallsThroughTo(pred, target)) {
+                    insns.insert(pred, JumpInsnNode(Opcodes.GOTO, target))
+                }
+            }
+
+            block.forEach(insns::add)
+            moved.addAll(block)
+
+            if (covering.isNotEmpty()) {
+                val end = LabelNode()
+                insns.add(end)
+                moved.add(end)
+
+                // Immediately after the original entry, so handlers are still searched in the same order
+                covering.forEach { tcb ->
+                    method.tryCatchBlocks.add(
+                        method.tryCatchBlocks.indexOf(tcb) + 1,
+                        TryCatchBlockNode(start, end, tcb.handler, tcb.type)
+                    )
+                }
+            }
+
+            return null
+        }
+
+        private fun fallsThroughTo(insn: AbstractInsnNode, target: LabelNode): Boolean {
+            var next = insn.next
+
+            while (next != null && next.opcode < 0) {
+                if (next == target) return true
+                next = next.next
+            }
+
+            return false
+        }
+
+        private fun isConditional(opcode: Int) =
+            (opcode >= Opcodes.IFEQ && opcode <= Opcodes.IF_ACMPNE) || opcode == Opcodes.IFNULL || opcode == Opcodes.IFNONNULL
+
+        // The conditional jumps come in pairs (ifeq / ifne, iflt / ifge, ...), apart from the null checks
+        private fun invert(opcode: Int) = when (opcode) {
+            Opcodes.IFNULL -> Opcodes.IFNONNULL
+            Opcodes.IFNONNULL -> Opcodes.IFNULL
+            else -> ((opcode - Opcodes.IFEQ) xor 1) + Opcodes.IFEQ
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import com.roscopeco.jasm.errors.CodeError
+import com.roscopeco.jasm.errors.ErrorCollector
+import org.antlr.v4.runtime.ParserRuleContext
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
+import org.objectweb.asm.tree.AbstractInsnNode
+import org.objectweb.asm.tree.MethodNode
+import org.objectweb.asm.tree.analysis.AnalyzerException
+import org.objectweb.asm.tree.analysis.BasicValue
+import org.objectweb.asm.tree.analysis.SimpleVerifier
+import java.util.Optional
+import java.util.stream.Collectors
+
+/**
+ * Verifies the code of assembled methods, so problems that would otherwise only show up as a
+ * `VerifyError` when the class is loaded are reported as errors in the source.
+ *
+ * Methods are collected as they're assembled and then checked together (in parallel) with an ASM
+ * [SimpleVerifier] that knows the class hierarchy. Classes other than the one being assembled are
+ * looked up through [loader] (see [ClassHierarchy.of]), without loading them. Where a class can't be
+ * found, anything is assumed to be assignable to it (so the check is only as strict as the classpath
+ * allows), and as with the JVM's own verifier, anything is assignable to an interface.
+ *
+ * @param unitName The name of the compilation unit (shows up in errors)
+ * @param errorCollector Collector that will receive errors for code that doesn't verify
+ * @param className Internal name of the class being assembled
+ * @param superName Internal name of its superclass
+ * @param interfaces Internal names of the interfaces it implements
+ * @param isInterface Whether the class being assembled is an interface
+ * @param loader Class loader to find other classes in the hierarchy with
+ */
+internal class BytecodeVerifier(
+    private val unitName: String,
+    private val errorCollector: ErrorCollector,
+    private val className: String,
+    private val superName: String,
+    private val interfaces: List<String>,
+    private val isInterface: Boolean,
+    loader: ClassLoader
+) {
+    private val hierarchy = ClassHierarchy.of(loader).also { it.add(className, ClassHierarchy.Entry(superName, isInterface)) }
+    private val methods = mutableListOf<PendingMethod>()
+
+    /**
+     * Add a method to be verified.
+     *
+     * @param method The method, as emitted
+     * @param sources Map of instructions to the source they were generated from
+     * @param declaration Where to report problems with instructions that have no source
+     */
+    fun add(method: MethodNode, sources: Map<AbstractInsnNode, ParserRuleContext>, declaration: ParserRuleContext) {
+        if (method.instructions.size() > 0) {
+            methods.add(PendingMethod(method, sources, declaration))
+        }
+    }
+
+    /**
+     * Verify all the methods that have been added, reporting any problems.
+     */
+    fun verify() {
+        methods.parallelStream()
+            .map { Optional.ofNullable(verify(it)) }
+            .collect(Collectors.toList())
+            .forEach { it.ifPresent(errorCollector::addError) }
+
+        methods.clear()
+    }
+
+    private fun verify(pending: PendingMethod): CodeError? {
+        val method = pending.method
+
+        try {
+            ControlFlow.analyze(className, method, HierarchyVerifier())
+            return null
+        } catch (e: AnalyzerException) {
+            // The analyzer wraps the actual problem with the instruction index, which means nothing in the source
+            val message = if (e.cause is AnalyzerException || e.message?.startsWith("Error at instruction") == true) {
+                e.cause?.message ?: e.message
+            } else {
+                e.message
+            }
+
+            return CodeError(
+                unitName,
+                pending.sources[e.node] ?: pending.declaration,
+                "Verification failed in ${method.name}${method.desc}: $message"
+            )
+        }
+    }
+
+    private class PendingMethod(
+        val method: MethodNode,
+        val sources: Map<AbstractInsnNode, ParserRuleContext>,
+        val declaration: ParserRuleContext
+    )
+
+    private inner class HierarchyVerifier : SimpleVerifier(
+        Opcodes.ASM9,
+        Type.getObjectType(className),
+        Type.getObjectType(superName),
+        interfaces.map(Type::getObjectType),
+        isInterface
+    ) {
+        override fun isSubTypeOf(value: BasicValue, expected: BasicValue): Boolean {
+            val expectedType = expected.type
+            val type = value.type
+
+            return when (expectedType.sort) {
+                Type.INT, Type.FLOAT, Type.LONG, Type.DOUBLE -> type == expectedType
+                Type.ARRAY, Type.OBJECT -> type == NULL_TYPE
+                        || ((type.sort == Type.OBJECT || type.sort == Type.ARRAY) && isAssignableFrom(expectedType, type))
+                else -> throw AssertionError()
+            }
+        }
+
+        override fun isInterface(type: Type) = type.sort == Type.OBJECT && hierarchy[type.internalName]?.isInterface == true
+
+        override fun getSuperClass(type: Type): Type? = when {
+            type == OBJECT_TYPE -> null
+            type.sort == Type.ARRAY -> OBJECT_TYPE
+            else -> hierarchy[type.internalName]?.superName?.let(Type::getObjectType) ?: OBJECT_TYPE
+        }
+
+        override fun isAssignableFrom(type: Type, other: Type): Boolean = when {
+            type == other || type == OBJECT_TYPE -> true
+            type.sort == Type.ARRAY -> other.sort == Type.ARRAY && isAssignableElement(elementOf(type), elementOf(other))
+            other.sort == Type.ARRAY -> type.internalName == "java/lang/Cloneable" || type.internalName == "java/io/Serializable"
+            hierarchy[type.internalName]?.isInterface != false -> true
+            else -> extendsClass(other, type)
+        }
+
+        private fun isAssignableElement(type: Type, other: Type) =
+            if (type.sort == Type.OBJECT || type.sort == Type.ARRAY) {
+                (other.sort == Type.OBJECT || other.sort == Type.ARRAY) && isAssignableFrom(type, other)
+            } else {
+                type == other
+            }
+
+        private fun elementOf(array: Type) = Type.getType(array.descriptor.substring(1))
+
+        // Whether the superclass chain of [type] reaches [superclass], or goes somewhere we can't follow
+        private fun extendsClass(type: Type, superclass: Type): Boolean {
+            var current: String? = type.internalName
+
+            while (current != null) {
+                if (current == superclass.internalName) {
+                    return true
+                }
+
+                current = (hierarchy[current] ?: return true).superName
+            }
+
+            return false
+        }
+    }
+
+    companion object {
+        private val OBJECT_TYPE = Type.getObjectType("java/lang/Object")
+        private val NULL_TYPE = Type.getObjectType("null")
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassVisitor
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Opcodes
+import java.util.Optional
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Superclasses and interface-ness of classes, looked up as they're needed.
+ *
+ * @param lookup Function to find a class by internal name, or return `null` if it can't be found
+ */
+internal class ClassHierarchy(private val lookup: (String) -> Entry?) {
+    private val entries = ConcurrentHashMap<String, Optional<Entry>>()
+
+    operator fun get(name: String): Entry? = entries.computeIfAbsent(name) { Optional.ofNullable(lookup(it)) }.orElse(null)
+
+    /**
+     * Add (or replace) a class, such as one that's being generated and so has no class file yet.
+     */
+    fun add(name: String, entry: Entry) {
+        entries[name] = Optional.of(entry)
+    }
+
+    data class Entry(val superName: String?, val isInterface: Boolean)
+
+    companion object {
+        /**
+         * The hierarchy of classes visible to the given loader, read from their class files without
+         * loading them. A [JasmClassLoader] also finds classes on its source path.
+         */
+        fun of(loader: ClassLoader) = ClassHierarchy(
+            if (loader is JasmClassLoader) loader::hierarchyEntry else { name -> readClassFile(loader, name) }
+        )
+
+        /**
+         * Read the entry for a class from its class file, if the loader can find it.
+         */
+        fun readClassFile(loader: ClassLoader, name: String) = try {
+            loader.getResourceAsStream("$name.class")?.use { ClassReader(it) }?.let {
+                Entry(it.superName, it.access and Opcodes.ACC_INTERFACE != 0)
+            }
+        } catch (e: Exception) {
+            null
+        }
+    }
+}
+
+/**
+ * A `ClassWriter` that finds common superclasses (when computing frames) in [hierarchy] (see
+ * [ClassHierarchy.of]), rather than by loading the classes with its own class loader. That makes it safe
+ * to use where the classes can't (or mustn't) be loaded yet, such as in a class file transformer.
+ *
+ * Classes must be written through [visitor]. As with `ClassWriter`, a `TypeNotPresentException`
+ * is thrown for classes that can't be found.
+ */
+internal class HierarchyClassWriter(flags: Int, private val hierarchy: ClassHierarchy) : ClassWriter(flags) {
+
+    /**
+     * The visitor to write the class through. The class being written has no class file to read,
+     * so this records where it fits in the hierarchy as it's visited.
+     */
+    val visitor: ClassVisitor = object : ClassVisitor(Opcodes.ASM9, this) {
+        override fun visit(
+            version: Int,
+            access: Int,
+            name: String,
+            signature: String?,
+            superName: String?,
+            interfaces: Array<out String>?
+        ) {
+            hierarchy.add(name, ClassHierarchy.Entry(superName, access and Opcodes.ACC_INTERFACE != 0))
+            super.visit(version, access, name, signature, superName, interfaces)
+        }
+    }
+
+    override fun getCommonSuperClass(type1: String, type2: String): String {
+        if (type1 == OBJECT || type2 == OBJECT || entry(type1).isInterface || entry(type2).isInterface) {
+            return OBJECT
+        }
+
+        val supers2 = superclasses(type2)
+        return superclasses(type1).firstOrNull { it in supers2 } ?: OBJECT
+    }
+
+    // The class and its superclasses, ending with java/lang/Object
+    private fun superclasses(type: String): List<String> {
+        val result = mutableListOf<String>()
+        var current: String? = type
+
+        while (current != null) {
+            result.add(current)
+            current = if (current == OBJECT) null else entry(current).superName
+        }
+
+        return result
+    }
+
+    private fun entry(type: String) = hierarchy[type] ?: throw TypeNotPresentException(type, null)
+
+    companion object {
+        private const val OBJECT = "java/lang/Object"
+    }
+}
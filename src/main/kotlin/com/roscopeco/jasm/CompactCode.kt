@@ -0,0 +1,396 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import org.objectweb.asm.Handle
+import org.objectweb.asm.Label
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.tree.MethodNode
+
+/**
+ * A compact, array-backed form of a method's code.
+ *
+ * Rather than an object per instruction (as with ASM's tree API), the code is held in a few
+ * flat arrays: an opcode per element, the elements' operands as `int`s, a table of interned
+ * symbols (names, descriptors and constants) that operands refer to by index, and labels
+ * numbered in the order they're first referred to. That makes it cheap to keep around, compare,
+ * and walk, whether to render it (as the disassembler does) or to replay it to a `MethodVisitor`.
+ * The assembler can record each method it emits in this form (see [JasmAssembler.recordMethodCode]),
+ * so both sides work from the same representation.
+ *
+ * As well as JVM opcodes, elements can be a [LABEL], [LINE_NUMBER] or [TRY_CATCH]. The operands
+ * of each element are:
+ *
+ * * No operands - instructions without operands
+ * * `value` - `bipush`, `sipush`, `newarray` (the `T_xx` type) and `ret`
+ * * `slot` - loads and stores
+ * * `slot, increment` - `iinc`
+ * * `type` - `new`, `anewarray`, `checkcast` and `instanceof`
+ * * `owner, name, descriptor` - field instructions
+ * * `owner, name, descriptor, isInterface` - method instructions (`isInterface` is `0` or `1`)
+ * * `name, descriptor, bootstrap, count, arguments...` - `invokedynamic`
+ * * `label` - jumps, and [LABEL]
+ * * `constant` - `ldc`
+ * * `min, max, default, labels...` - `tableswitch`
+ * * `default, count, keys..., labels...` - `lookupswitch`
+ * * `descriptor, dimensions` - `multianewarray`
+ * * `line, label` - [LINE_NUMBER]
+ * * `start, end, handler, type` - [TRY_CATCH] (`type` is `-1` to catch anything)
+ *
+ * Names, descriptors, constants and bootstrap methods are indices into the symbols. Frames and
+ * local variable tables aren't kept, as they're recomputed (or not needed) wherever the code
+ * ends up.
+ *
+ * Instances are immutable, and are equal if they hold the same code.
+ *
+ * @see Recorder
+ */
+class CompactCode private constructor(
+    private val ops: ByteArray,
+    private val offsets: IntArray,
+    private val operands: IntArray,
+    private val symbols: Array<Any>,
+
+    /** The number of labels */
+    val labelCount: Int,
+) {
+    /** The number of elements (instructions, labels, line numbers and exception handlers) */
+    val size get() = ops.size
+
+    /** The number of interned symbols */
+    val symbolCount get() = symbols.size
+
+    /**
+     * The opcode of an element, or [LABEL], [LINE_NUMBER] or [TRY_CATCH].
+     */
+    fun opcode(index: Int): Int {
+        val op = ops[index].toInt() and 0xFF
+        return if (op > MAX_OPCODE) op - 0x100 else op
+    }
+
+    /** The number of operands of an element */
+    fun operandCount(index: Int) = offsets[index + 1] - offsets[index]
+
+    /** An operand of an element */
+    fun operand(index: Int, operand: Int) = operands[offsets[index] + operand]
+
+    /** An interned symbol (a `String`, boxed number, `Type`, `Handle` or `ConstantDynamic`) */
+    fun symbol(id: Int) = symbols[id]
+
+    /**
+     * Replay the code to a `MethodVisitor`, between its `visitCode` and `visitMaxs`.
+     */
+    fun accept(visitor: MethodVisitor) {
+        val labels = Array(labelCount) { Label() }
+
+        for (i in ops.indices) {
+            val at = offsets[i]
+
+            fun op(n: Int) = operands[at + n]
+            fun sym(n: Int) = symbols[operands[at + n]]
+            fun str(n: Int) = symbols[operands[at + n]] as String
+
+            when (val opcode = opcode(i)) {
+                LABEL -> visitor.visitLabel(labels[op(0)])
+                LINE_NUMBER -> visitor.visitLineNumber(op(0), labels[op(1)])
+                TRY_CATCH -> visitor.visitTryCatchBlock(labels[op(0)], labels[op(1)], labels[op(2)], if (op(3) < 0) null else str(3))
+                Opcodes.BIPUSH, Opcodes.SIPUSH, Opcodes.NEWARRAY -> visitor.visitIntInsn(opcode, op(0))
+                Opcodes.ILOAD, Opcodes.LLOAD, Opcodes.FLOAD, Opcodes.DLOAD, Opcodes.ALOAD,
+                Opcodes.ISTORE, Opcodes.LSTORE, Opcodes.FSTORE, Opcodes.DSTORE, Opcodes.ASTORE,
+                Opcodes.RET -> visitor.visitVarInsn(opcode, op(0))
+                Opcodes.IINC -> visitor.visitIincInsn(op(0), op(1))
+                Opcodes.NEW, Opcodes.ANEWARRAY, Opcodes.CHECKCAST, Opcodes.INSTANCEOF -> visitor.visitTypeInsn(opcode, str(0))
+                Opcodes.GETSTATIC, Opcodes.PUTSTATIC, Opcodes.GETFIELD, Opcodes.PUTFIELD ->
+                    visitor.visitFieldInsn(opcode, str(0), str(1), str(2))
+                Opcodes.INVOKEVIRTUAL, Opcodes.INVOKESPECIAL, Opcodes.INVOKESTATIC, Opcodes.INVOKEINTERFACE ->
+                    visitor.visitMethodInsn(opcode, str(0), str(1), str(2), op(3) != 0)
+                Opcodes.INVOKEDYNAMIC -> visitor.visitInvokeDynamicInsn(
+                    str(0), str(1), sym(2) as Handle, *Array(op(3)) { sym(4 + it) }
+                )
+                Opcodes.LDC -> visitor.visitLdcInsn(sym(0))
+                Opcodes.TABLESWITCH -> visitor.visitTableSwitchInsn(
+                    op(0), op(1), labels[op(2)], *Array(operandCount(i) - 3) { labels[op(3 + it)] }
+                )
+                Opcodes.LOOKUPSWITCH -> {
+                    val count = op(1)
+                    visitor.visitLookupSwitchInsn(
+                        labels[op(0)], IntArray(count) { op(2 + it) }, Array(count) { labels[op(2 + count + it)] }
+                    )
+                }
+                Opcodes.MULTIANEWARRAY -> visitor.visitMultiANewArrayInsn(str(0), op(1))
+                in Opcodes.IFEQ..Opcodes.JSR, Opcodes.IFNULL, Opcodes.IFNONNULL -> visitor.visitJumpInsn(opcode, labels[op(0)])
+                else -> visitor.visitInsn(opcode)
+            }
+        }
+    }
+
+    override fun equals(other: Any?) = other is CompactCode &&
+            labelCount == other.labelCount &&
+            ops.contentEquals(other.ops) &&
+            offsets.contentEquals(other.offsets) &&
+            operands.contentEquals(other.operands) &&
+            symbols.contentEquals(other.symbols)
+
+    override fun hashCode() = (ops.contentHashCode() * 31 + operands.contentHashCode()) * 31 + symbols.contentHashCode()
+
+    /**
+     * Records the code visited into a [CompactCode]. Anything other than code (annotations,
+     * frames, local variables and so on) is ignored.
+     *
+     * A recorder can be [cleared][clear] and reused for the next method, which saves growing
+     * its buffers again when recording many methods (e.g. all those in a class).
+     */
+    class Recorder : MethodVisitor(Opcodes.ASM9) {
+        private var ops = ByteArray(INITIAL_SIZE)
+        private var offsets = IntArray(INITIAL_SIZE + 1)
+        private var operands = IntArray(INITIAL_SIZE * 2)
+        private var size = 0
+        private var operandCount = 0
+        private val symbols = IdTable(false)
+        private val labels = IdTable(true)
+
+        /**
+         * The code recorded so far.
+         */
+        fun toCompactCode(): CompactCode {
+            return CompactCode(
+                ops.copyOf(size),
+                offsets.copyOf(size + 1),
+                operands.copyOf(operandCount),
+                symbols.toArray(),
+                labels.size
+            )
+        }
+
+        /**
+         * Forget the code recorded so far, ready to record another method.
+         */
+        fun clear() {
+            size = 0
+            operandCount = 0
+            offsets[0] = 0
+            symbols.clear()
+            labels.clear()
+        }
+
+        override fun visitInsn(opcode: Int) = element(opcode)
+
+        override fun visitIntInsn(opcode: Int, operand: Int) = element(opcode, operand)
+
+        override fun visitVarInsn(opcode: Int, varIndex: Int) = element(opcode, varIndex)
+
+        override fun visitTypeInsn(opcode: Int, type: String) = element(opcode, symbol(type))
+
+        override fun visitFieldInsn(opcode: Int, owner: String, name: String, descriptor: String) =
+            element(opcode, symbol(owner), symbol(name), symbol(descriptor))
+
+        override fun visitMethodInsn(opcode: Int, owner: String, name: String, descriptor: String, isInterface: Boolean) =
+            element(opcode, symbol(owner), symbol(name), symbol(descriptor), if (isInterface) 1 else 0)
+
+        override fun visitInvokeDynamicInsn(
+            name: String,
+            descriptor: String,
+            bootstrapMethodHandle: Handle,
+            vararg bootstrapMethodArguments: Any
+        ) {
+            start(Opcodes.INVOKEDYNAMIC)
+            operand(symbol(name))
+            operand(symbol(descriptor))
+            operand(symbol(bootstrapMethodHandle))
+            operand(bootstrapMethodArguments.size)
+            bootstrapMethodArguments.forEach { operand(symbol(it)) }
+        }
+
+        override fun visitJumpInsn(opcode: Int, label: Label) = element(opcode, label(label))
+
+        override fun visitLabel(label: Label) = element(LABEL, label(label))
+
+        override fun visitLdcInsn(value: Any) = element(Opcodes.LDC, symbol(value))
+
+        override fun visitIincInsn(varIndex: Int, increment: Int) = element(Opcodes.IINC, varIndex, increment)
+
+        override fun visitTableSwitchInsn(min: Int, max: Int, dflt: Label, vararg labels: Label) {
+            start(Opcodes.TABLESWITCH)
+            operand(min)
+            operand(max)
+            operand(label(dflt))
+            labels.forEach { operand(label(it)) }
+        }
+
+        override fun visitLookupSwitchInsn(dflt: Label, keys: IntArray, labels: Array<out Label>) {
+            start(Opcodes.LOOKUPSWITCH)
+            operand(label(dflt))
+            operand(keys.size)
+            keys.forEach(::operand)
+            labels.forEach { operand(label(it)) }
+        }
+
+        override fun visitMultiANewArrayInsn(descriptor: String, numDimensions: Int) =
+            element(Opcodes.MULTIANEWARRAY, symbol(descriptor), numDimensions)
+
+        override fun visitTryCatchBlock(start: Label, end: Label, handler: Label, type: String?) =
+            element(TRY_CATCH, label(start), label(end), label(handler), if (type == null) -1 else symbol(type))
+
+        override fun visitLineNumber(line: Int, start: Label) = element(LINE_NUMBER, line, label(start))
+
+        private fun element(opcode: Int) = start(opcode)
+
+        private fun element(opcode: Int, a: Int) {
+            start(opcode)
+            operand(a)
+        }
+
+        private fun element(opcode: Int, a: Int, b: Int) {
+            element(opcode, a)
+            operand(b)
+        }
+
+        private fun element(opcode: Int, a: Int, b: Int, c: Int) {
+            element(opcode, a, b)
+            operand(c)
+        }
+
+        private fun element(opcode: Int, a: Int, b: Int, c: Int, d: Int) {
+            element(opcode, a, b, c)
+            operand(d)
+        }
+
+        private fun start(opcode: Int) {
+            if (size == ops.size) {
+                ops = ops.copyOf(size * 2)
+                offsets = offsets.copyOf(size * 2 + 1)
+            }
+
+            ops[size++] = opcode.toByte()
+            offsets[size - 1] = operandCount
+            offsets[size] = operandCount
+        }
+
+        private fun operand(value: Int) {
+            if (operandCount == operands.size) {
+                operands = operands.copyOf(operandCount * 2)
+            }
+
+            operands[operandCount++] = value
+            offsets[size] = operandCount
+        }
+
+        private fun symbol(value: Any) = symbols.id(value)
+
+        private fun label(label: Label) = labels.id(label)
+    }
+
+    /*
+     * Numbers keys in the order they're added. This is an open-addressed table rather than
+     * a HashMap, so there are no entries or boxed ids to allocate. Labels are compared by
+     * identity (as they are by ASM).
+     */
+    private class IdTable(private val identity: Boolean) {
+        private var keys = arrayOfNulls<Any>(INITIAL_SIZE)
+        private var ids = IntArray(INITIAL_SIZE)
+        private var slots = IntArray(INITIAL_SIZE / 2)
+
+        var size = 0
+            private set
+
+        fun id(key: Any): Int {
+            var i = slot(key)
+
+            while (true) {
+                val existing = keys[i] ?: break
+
+                if (if (identity) existing === key else existing == key) {
+                    return ids[i]
+                }
+
+                i = (i + 1) and (keys.size - 1)
+            }
+
+            keys[i] = key
+            ids[i] = size
+            slots[size] = i
+
+            if (++size * 2 == keys.size) {
+                grow()
+            }
+
+            return size - 1
+        }
+
+        // Only the slots in use are cleared, and a table that's grown large for one big method
+        // starts again small, as it would otherwise make lookups for every method after it
+        // miss the cache
+        fun clear() {
+            if (keys.size > MAX_RETAINED_SIZE) {
+                keys = arrayOfNulls(INITIAL_SIZE)
+                ids = IntArray(INITIAL_SIZE)
+                slots = IntArray(INITIAL_SIZE / 2)
+            } else {
+                for (id in 0 until size) {
+                    keys[slots[id]] = null
+                }
+            }
+
+            size = 0
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        fun toArray() = Array(size) { keys[slots[it]] } as Array<Any>
+
+        private fun slot(key: Any): Int {
+            val hash = if (identity) System.identityHashCode(key) else key.hashCode()
+            return (hash xor (hash ushr 16)) and (keys.size - 1)
+        }
+
+        private fun grow() {
+            val oldKeys = keys
+
+            keys = arrayOfNulls(oldKeys.size * 2)
+            ids = IntArray(keys.size)
+            slots = slots.copyOf(keys.size / 2)
+
+            for (id in 0 until size) {
+                val key = oldKeys[slots[id]]!!
+                var slot = slot(key)
+
+                while (keys[slot] != null) {
+                    slot = (slot + 1) and (keys.size - 1)
+                }
+
+                keys[slot] = key
+                ids[slot] = id
+                slots[id] = slot
+            }
+        }
+    }
+
+    companion object {
+        /** A label, with the label number as its operand */
+        const val LABEL = -1
+
+        /** A line number, with the line and the label it starts at as its operands */
+        const val LINE_NUMBER = -2
+
+        /** An exception handler, with its start, end and handler labels and the exception type as its operands */
+        const val TRY_CATCH = -3
+
+        private const val MAX_OPCODE = Opcodes.IFNONNULL
+        private const val INITIAL_SIZE = 16
+        private const val MAX_RETAINED_SIZE = 1024
+
+        /**
+         * Record the code of a method.
+         */
+        @JvmStatic
+        fun of(method: MethodNode): CompactCode {
+            val recorder = Recorder()
+            method.instructions.accept(recorder)
+            method.tryCatchBlocks.forEach { it.accept(recorder) }
+            return recorder.toCompactCode()
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import com.roscopeco.jasm.antlr.JasmParser
+import org.antlr.v4.runtime.tree.TerminalNode
+import org.antlr.v4.runtime.tree.Trees
+import org.objectweb.asm.Opcodes
+
+/**
+ * Finds the `static final` fields in a class that have a constant initializer, so that
+ * `getstatic` of those fields from within the class can be replaced with the constant.
+ *
+ * Fields that are assigned anywhere in the class (e.g. in `<clinit>`) are left alone, as
+ * the constant might not be the value that's read. So are fields named anywhere in a macro,
+ * as what the macro does with them isn't known until it's expanded.
+ *
+ * A constant field can be dropped entirely once it's inlined if it's `private` (so no other
+ * class can refer to it) and nothing in the class refers to it in a way we can't inline,
+ * such as a field handle. Nothing is dropped from classes in a nest, as their nestmates can
+ * refer to their `private` fields too.
+ *
+ * @param className The internal name of the class being assembled
+ * @param ctx The class being assembled
+ * @param typeVisitor Type visitor, for field types and owners
+ * @param modifiers Modifiers, for field access
+ * @param valueOf Function to get the constant value of a field initializer
+ */
+internal class ConstantInliner(
+    private val className: String,
+    ctx: JasmParser.ClassContext,
+    typeVisitor: TypeVisitor,
+    modifiers: Modifiers,
+    valueOf: (JasmParser.Field_initializerContext) -> Any?
+) {
+    private val constants = HashMap<String, Any>()
+    private val droppable = HashSet<String>()
+
+    init {
+        val privateConstants = HashSet<String>()
+
+        ctx.classbody()?.member()?.mapNotNull { it.field() }?.forEach { field ->
+            val access = modifiers.mapModifiers(field.field_modifier())
+            val value = field.field_initializer()?.let(valueOf)
+            val key = key(typeVisitor.visitMembername(field.membername()), typeVisitor.visitType(field.type()))
+
+            if (access and STATIC_FINAL == STATIC_FINAL && value != null && isCompatible(value, key.substringAfter(':'))) {
+                constants[key] = narrow(value, key.substringAfter(':'))
+
+                if (access and Opcodes.ACC_PRIVATE != 0) {
+                    privateConstants.add(key)
+                }
+            }
+        }
+
+        fun ownKey(owner: JasmParser.OwnerContext, name: JasmParser.MembernameContext, type: JasmParser.TypeContext) =
+            if (typeVisitor.visitOwner(owner) == className) key(typeVisitor.visitMembername(name), typeVisitor.visitType(type)) else null
+
+        Trees.findAllRuleNodes(ctx, JasmParser.RULE_insn_putstatic)
+            .map { it as JasmParser.Insn_putstaticContext }
+            .mapNotNull { ownKey(it.owner(), it.membername(), it.type()) }
+            .forEach { constants.remove(it) }
+
+        // Macro bodies aren't parsed until they're expanded, so leave alone anything they (or their arguments) name
+        val macroNames = (Trees.findAllRuleNodes(ctx, JasmParser.RULE_macro_body) + Trees.findAllRuleNodes(ctx, JasmParser.RULE_macro_arg))
+            .flatMap { Trees.getDescendants(it) }
+            .filterIsInstance<TerminalNode>()
+            .map { LiteralNames.unescape(it.text) }
+            .toSet()
+
+        constants.keys.removeIf { it.substringBeforeLast(':') in macroNames }
+
+        val handleRefs = Trees.findAllRuleNodes(ctx, JasmParser.RULE_field_spec)
+            .map { it as JasmParser.Field_specContext }
+            .mapNotNull { ownKey(it.owner(), it.membername(), it.type()) }
+            .toSet()
+
+        // Nestmates can read private fields, and we can't see what they do with them
+        if (ctx.nesthost() == null && ctx.nestmembers() == null) {
+            droppable.addAll(privateConstants.filter { it in constants && it !in handleRefs })
+        }
+    }
+
+    /**
+     * Get the constant value of the given field, if it can be inlined.
+     *
+     * @return The value (an `Int`, `Long`, `Float`, `Double` or `String`), or `null`
+     */
+    fun constantFor(owner: String, name: String, descriptor: String): Any? =
+        if (owner == className) constants[key(name, descriptor)] else null
+
+    /**
+     * Determine whether the given field can be left out of the class, as every use is inlined.
+     */
+    fun canDrop(name: String, descriptor: String) = key(name, descriptor) in droppable
+
+    // The JVM only accepts a ConstantValue of the matching type, anything else isn't really a constant
+    private fun isCompatible(value: Any, descriptor: String) = when (value) {
+        is Int -> descriptor in listOf("I", "S", "C", "B", "Z")
+        is Long -> descriptor == "J"
+        is Float -> descriptor == "F"
+        is Double -> descriptor == "D"
+        is String -> descriptor == "Ljava/lang/String;"
+        else -> false
+    }
+
+    // The JVM truncates an int ConstantValue to the type of the field, so the inlined value must match
+    private fun narrow(value: Any, descriptor: String) = when (descriptor) {
+        "Z" -> (value as Int) and 1
+        "B" -> (value as Int).toByte().toInt()
+        "C" -> (value as Int).toChar().code
+        "S" -> (value as Int).toShort().toInt()
+        else -> value
+    }
+
+    private fun key(name: String, descriptor: String) = "$name:$descriptor"
+
+    companion object {
+        private const val STATIC_FINAL = Opcodes.ACC_STATIC or Opcodes.ACC_FINAL
+    }
+}
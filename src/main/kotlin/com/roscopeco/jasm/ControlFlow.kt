@@ -0,0 +1,159 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
+import org.objectweb.asm.tree.AbstractInsnNode
+import org.objectweb.asm.tree.IincInsnNode
+import org.objectweb.asm.tree.JumpInsnNode
+import org.objectweb.asm.tree.InsnList
+import org.objectweb.asm.tree.LookupSwitchInsnNode
+import org.objectweb.asm.tree.MethodNode
+import org.objectweb.asm.tree.TableSwitchInsnNode
+import org.objectweb.asm.tree.VarInsnNode
+import org.objectweb.asm.tree.analysis.Analyzer
+import org.objectweb.asm.tree.analysis.AnalyzerException
+import org.objectweb.asm.tree.analysis.Frame
+import org.objectweb.asm.tree.analysis.Interpreter
+import org.objectweb.asm.tree.analysis.Value
+import java.util.BitSet
+
+/**
+ * Control-flow helpers shared by the passes that analyse buffered method code.
+ */
+internal object ControlFlow {
+    private const val MAX_STACK = 65535
+
+    /**
+     * The (normal, non-exceptional) successors of the given instruction.
+     */
+    fun successors(insn: AbstractInsnNode): List<AbstractInsnNode> = when {
+        insn is JumpInsnNode && insn.opcode == Opcodes.GOTO -> listOf(insn.label)
+        insn is JumpInsnNode                                -> listOfNotNull(insn.label, insn.next)
+        insn is TableSwitchInsnNode                         -> insn.labels + insn.dflt
+        insn is LookupSwitchInsnNode                        -> insn.labels + insn.dflt
+        isTerminal(insn.opcode)                             -> emptyList()
+        else                                                -> listOfNotNull(insn.next)
+    }
+
+    /**
+     * Whether the given opcode ends a path through the method (a return or `athrow`).
+     */
+    fun isTerminal(opcode: Int) = (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) || opcode == Opcodes.ATHROW
+
+    /**
+     * Whether the given opcode never falls through to the next instruction (a `goto`, switch, return or `athrow`).
+     */
+    fun isUnconditional(opcode: Int) =
+        opcode == Opcodes.GOTO || opcode == Opcodes.TABLESWITCH || opcode == Opcodes.LOOKUPSWITCH || isTerminal(opcode)
+
+    /**
+     * The number of local slots used by a load or store instruction.
+     */
+    fun slotSize(opcode: Int) = when (opcode) {
+        Opcodes.LLOAD, Opcodes.DLOAD, Opcodes.LSTORE, Opcodes.DSTORE -> 2
+        else -> 1
+    }
+
+    /**
+     * Run an ASM analysis over the method, setting its max locals and stack as needed. Slots
+     * must already have been allocated for named locals.
+     *
+     * @return The frame before each instruction, or `null` if the code couldn't be analysed
+     */
+    fun <V : Value> frames(owner: String, method: MethodNode, interpreter: Interpreter<V>): Array<Frame<V>?>? = try {
+        analyze(owner, method, interpreter)
+    } catch (e: AnalyzerException) {
+        null
+    }
+
+    /**
+     * As [frames], but throws the analyzer's exception if the code couldn't be analysed.
+     */
+    fun <V : Value> analyze(owner: String, method: MethodNode, interpreter: Interpreter<V>): Array<Frame<V>?> {
+        method.maxLocals = maxLocals(method)
+        var maxStack = 16
+
+        while (true) {
+            method.maxStack = maxStack
+
+            try {
+                return Analyzer(interpreter).analyze(owner, method)
+            } catch (e: AnalyzerException) {
+                // Rather than computing the max stack size up front, just retry with more until it fits
+                if (e.cause !is IndexOutOfBoundsException || maxStack >= MAX_STACK) {
+                    throw e
+                }
+
+                maxStack = minOf(maxStack * 2, MAX_STACK)
+            }
+        }
+    }
+
+    private fun maxLocals(method: MethodNode): Int {
+        var max = Type.getArgumentsAndReturnSizes(method.desc) shr 2
+        if (method.access and Opcodes.ACC_STATIC != 0) max--
+
+        method.instructions.forEach { insn ->
+            when (insn) {
+                is VarInsnNode -> max = maxOf(max, insn.`var` + slotSize(insn.opcode))
+                is IincInsnNode -> max = maxOf(max, insn.`var` + 1)
+            }
+        }
+
+        return max
+    }
+
+    /**
+     * Backwards liveness analysis over the whole method. Values live on entry to a handler are
+     * considered live throughout the range it covers, since an exception can be thrown at any point in it.
+     *
+     * @param method The method to analyse
+     * @param transfer Turns the set live after an instruction into the set live before it (in place)
+     *
+     * @return The set live before each node in the method's instruction list
+     */
+    fun liveness(method: MethodNode, transfer: (AbstractInsnNode, BitSet) -> Unit): Array<BitSet> {
+        val insns = method.instructions
+        val size = insns.size()
+        val liveIn = Array(size) { BitSet() }
+        val handlers = Array(size) { mutableListOf<Int>() }
+
+        method.tryCatchBlocks.forEach { tcb ->
+            val handler = insns.indexOf(tcb.handler)
+            (insns.indexOf(tcb.start) until insns.indexOf(tcb.end)).forEach { handlers[it].add(handler) }
+        }
+
+        do {
+            var changed = false
+
+            for (i in size - 1 downTo 0) {
+                val insn = insns.get(i)
+                val live = liveOut(insn, insns, liveIn)
+
+                transfer(insn, live)
+                handlers[i].forEach { live.or(liveIn[it]) }
+
+                if (live != liveIn[i]) {
+                    liveIn[i] = live
+                    changed = true
+                }
+            }
+        } while (changed)
+
+        return liveIn
+    }
+
+    /**
+     * The set live after the given instruction, from the results of [liveness].
+     */
+    fun liveOut(insn: AbstractInsnNode, insns: InsnList, liveIn: Array<BitSet>): BitSet {
+        val live = BitSet()
+        successors(insn).forEach { live.or(liveIn[insns.indexOf(it)]) }
+        return live
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import com.roscopeco.jasm.antlr.JasmParser
+import com.roscopeco.jasm.errors.BaseError
+import com.roscopeco.jasm.errors.CodeError
+import com.roscopeco.jasm.errors.ErrorCollector
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.tree.AbstractInsnNode
+import org.objectweb.asm.tree.JumpInsnNode
+import org.objectweb.asm.tree.LabelNode
+import org.objectweb.asm.tree.LookupSwitchInsnNode
+import org.objectweb.asm.tree.MethodNode
+import org.objectweb.asm.tree.TableSwitchInsnNode
+
+/**
+ * Removes unreachable code from a method before it is serialized.
+ *
+ * Left alone, ASM's frame computation replaces unreachable code with `nop ... athrow`
+ * but still emits it, which bloats the method. Instead we do a simple reachability
+ * analysis over the control-flow graph (including exception handlers) and drop
+ * anything we can't get to, reporting it as a warning.
+ *
+ * Methods using `jsr` / `ret` are left untouched, as the targets of `ret` can't be
+ * determined without a much more involved analysis.
+ *
+ * @param unitName The name of the compilation unit (shows up in warnings)
+ * @param errorCollector Collector that will receive warnings for removed code
+ */
+internal class DeadCodeEliminator(private val unitName: String, private val errorCollector: ErrorCollector) {
+
+    /**
+     * Eliminate unreachable code in the given method.
+     *
+     * @param method The method to process (modified in place)
+     * @param sources Map of instructions to the source instruction they were generated from
+     */
+    fun eliminate(method: MethodNode, sources: Map<AbstractInsnNode, JasmParser.InstructionContext>) {
+        val insns = method.instructions
+
+        if (insns.size() == 0 || insns.any { it.opcode == Opcodes.JSR || it.opcode == Opcodes.RET }) {
+            return
+        }
+
+        if (!mayHaveDeadCode(method)) {
+            return
+        }
+
+        val reachable = findReachable(method)
+
+        var block = mutableListOf<AbstractInsnNode>()
+        val blocks = mutableListOf<List<AbstractInsnNode>>()
+
+        insns.forEach { insn ->
+            if (insn.opcode >= 0) {
+                if (reachable[insns.indexOf(insn)]) {
+                    if (block.isNotEmpty()) {
+                        blocks.add(block)
+                        block = mutableListOf()
+                    }
+                } else {
+                    block.add(insn)
+                }
+            }
+        }
+
+        if (block.isNotEmpty()) blocks.add(block)
+
+        blocks.forEach { dead ->
+            reportUnreachable(method, dead, sources)
+            dead.forEach(insns::remove)
+        }
+
+        if (blocks.isNotEmpty()) {
+            method.tryCatchBlocks.removeIf { tcb -> !hasRealInsns(tcb.start, tcb.end) }
+        }
+    }
+
+    /*
+     * Code can only be unreachable if it follows an instruction that doesn't fall through, and
+     * nothing before it jumps to it (or handles exceptions for it). That's quick to check without
+     * building the control-flow graph, and rules out most methods.
+     */
+    private fun mayHaveDeadCode(method: MethodNode): Boolean {
+        val targets = HashSet<LabelNode>()
+        val tcbs = method.tryCatchBlocks
+        val open = BooleanArray(tcbs.size)
+        val covered = BooleanArray(tcbs.size)
+        var reachable = true
+
+        method.instructions.forEach { insn ->
+            if (insn is LabelNode) {
+                tcbs.forEachIndexed { i, tcb ->
+                    if (tcb.start == insn) open[i] = true
+                    if (tcb.end == insn) open[i] = false
+                    if (tcb.handler == insn && covered[i]) reachable = true
+                }
+
+                if (insn in targets) reachable = true
+            } else if (insn.opcode >= 0) {
+                if (!reachable) return true
+
+                open.forEachIndexed { i, isOpen -> if (isOpen) covered[i] = true }
+
+                when (insn) {
+                    is JumpInsnNode -> targets.add(insn.label)
+                    is TableSwitchInsnNode -> { targets.addAll(insn.labels); targets.add(insn.dflt) }
+                    is LookupSwitchInsnNode -> { targets.addAll(insn.labels); targets.add(insn.dflt) }
+                }
+
+                reachable = !ControlFlow.isUnconditional(insn.opcode)
+            }
+        }
+
+        return false
+    }
+
+    private fun findReachable(method: MethodNode): BooleanArray {
+        val insns = method.instructions
+        val reachable = BooleanArray(insns.size())
+        val worklist = ArrayDeque<Int>()
+
+        fun mark(idx: Int) {
+            if (idx < reachable.size && !reachable[idx]) {
+                reachable[idx] = true
+                worklist.add(idx)
+            }
+        }
+
+        mark(0)
+
+        do {
+            while (worklist.isNotEmpty()) {
+                ControlFlow.successors(insns.get(worklist.removeLast())).forEach { mark(insns.indexOf(it)) }
+            }
+
+            // A handler is reachable if any instruction it covers is
+            method.tryCatchBlocks
+                .filter { tcb -> !reachable[insns.indexOf(tcb.handler)] }
+                .filter { tcb -> (insns.indexOf(tcb.start) until insns.indexOf(tcb.end)).any { reachable[it] } }
+                .forEach { tcb -> mark(insns.indexOf(tcb.handler)) }
+        } while (worklist.isNotEmpty())
+
+        return reachable
+    }
+
+    private fun hasRealInsns(start: AbstractInsnNode, end: AbstractInsnNode): Boolean {
+        var insn: AbstractInsnNode? = start
+
+        while (insn != null && insn != end) {
+            if (insn.opcode >= 0) return true
+            insn = insn.next
+        }
+
+        return false
+    }
+
+    private fun reportUnreachable(
+        method: MethodNode,
+        dead: List<AbstractInsnNode>,
+        sources: Map<AbstractInsnNode, JasmParser.InstructionContext>
+    ) {
+        // Instructions attributed directly to a try/catch block were generated by the sugar
+        // (e.g. the jump over the handlers) rather than written by the user, so don't warn about them.
+        val source = dead
+            .mapNotNull { sources[it] }
+            .firstOrNull { it.try_catch_block() == null }
+            ?: return
+
+        val message = "Unreachable code removed from ${method.name}${method.desc} " +
+                "(${dead.size} instruction${if (dead.size == 1) "" else "s"})"
+
+        errorCollector.addWarning(
+            if (source.start != null) CodeError(unitName, source, message) else BaseError(unitName, message)
+        )
+    }
+}
@@ -13,7 +13,9 @@ abstract class NStringIndenter(private val indentWith: String, private val curre
 class SpaceIndenter(private val baseIndent: Int, private val currentIndent: Int) : NStringIndenter(" ", currentIndent) {
     constructor(baseIndent: Int) : this(baseIndent, 0)
 
-    override fun indented(s: String): String = "${(0 until currentIndent).map { " " }.joinToString(separator = "")}$s"
+    private val prefix = " ".repeat(currentIndent)
+
+    override fun indented(s: String): String = prefix + s
     override fun indent(): Indenter = SpaceIndenter(baseIndent, currentIndent + baseIndent)
     override fun outdent(): Indenter = if (currentIndent > 0) SpaceIndenter(baseIndent, currentIndent - baseIndent) else this
 }
@@ -5,37 +5,61 @@
  */
 package com.roscopeco.jasm
 
-import com.roscopeco.jasm.antlr.JasmLexer
-import com.roscopeco.jasm.antlr.JasmParser
-import com.roscopeco.jasm.errors.CollectingErrorListener
-import com.roscopeco.jasm.errors.ErrorCollector
+import com.roscopeco.jasm.errors.BaseError
 import com.roscopeco.jasm.errors.StandardErrorCollector
-import org.antlr.v4.runtime.CharStream
-import org.antlr.v4.runtime.CharStreams
-import org.antlr.v4.runtime.CommonTokenStream
-import org.antlr.v4.runtime.TokenStream
 import org.objectweb.asm.ClassWriter
 import org.objectweb.asm.Opcodes
 import java.io.IOException
 import java.io.InputStream
 import java.io.UncheckedIOException
-import java.util.Objects
 import java.util.function.Supplier
 
 /**
  * The JASM assembler
  *
+ * The source may also be a unit in binary form (see [ParsedUnit]), in which case it is
+ * assembled without being parsed again, and the unit name recorded in it is used in place
+ * of the one given here.
+ *
  * **Note**: The assembler **will** close the stream returned by the supplier when it is done!
  *
  * @param unitName The (display) name of the compilation unit
+ * @param classFormat One of the ASM `Vxx` constants from the `org.objectweb.asm.Opcodes` class
+ * @param options Optional assembler behaviour
+ * @param classLoader Where to find the class files of other classes when computing frames and verifying.
+ *                    If `null`, frames are computed by loading the classes with the assembler's own class
+ *                    loader, and verification uses the thread's context class loader.
  * @param source A supplier of `InputStream`
  */
 class JasmAssembler(
     private val unitName: String,
     private val classFormat: Int,
+    private val options: AssemblerOptions,
+    private val classLoader: ClassLoader?,
     private val source: Supplier<InputStream>,
 ) {
 
+    /**
+     * Convenience constructor which will compute frames using the assembler's own class loader.
+     *
+     * @param unitName The (display) name of the compilation unit
+     * @param classFormat One of the ASM `Vxx` constants from the `org.objectweb.asm.Opcodes` class
+     * @param options Optional assembler behaviour
+     * @param source A supplier of `InputStream`
+     */
+    constructor(unitName: String, classFormat: Int, options: AssemblerOptions, source: Supplier<InputStream>)
+            : this(unitName, classFormat, options, null, source)
+
+    /**
+     * Convenience constructor which will use default options.
+     *
+     * @param unitName The name of the compilation unit (shows up in com.roscopeco.jasm.errors and as an attribute in the class)
+     * @param classFormat One of the ASM `Vxx` constants from the `org.objectweb.asm.Opcodes` class
+     * @param source A supplier of `InputStream`
+     */
+    constructor(unitName: String, classFormat: Int, source: Supplier<InputStream>)
+            : this(unitName, classFormat, AssemblerOptions(), source)
+
     /**
      * Convenience constructor which will use the class format for Java 11 (55.0).
      *
@@ -45,54 +69,133 @@ class JasmAssembler(
     constructor(unitName: String, source: Supplier<InputStream>)
             : this(unitName, Opcodes.V11, source)
 
+    /**
+     * Non-fatal diagnostics (for example, unreachable code that was removed) produced by
+     * the most recent call to [assemble].
+     */
+    var warnings: List<BaseError> = emptyList()
+        private set
+
+    /**
+     * How much smaller the class from the most recent call to [assemble] was made, if
+     * [AssemblerOptions.release] is set. When assembling for several class formats, this is
+     * the total for all of them.
+     */
+    var sizeReport: SizeReport? = null
+        private set
+
+    /**
+     * The macros expanded by the most recent call to [assemble], and how much code each added
+     * to its method.
+     */
+    var macroExpansions: List<MacroExpansion> = emptyList()
+        private set
+
+    /**
+     * Whether [assemble] should record the code of each method in [methodCode]. Off by default,
+     * as it copies every instruction.
+     */
+    var recordMethodCode = false
+
+    /**
+     * The code of each method assembled by the most recent call to [assemble] (for the first
+     * class format, when assembling for several), keyed by name and descriptor, if
+     * [recordMethodCode] is set. This is the same representation the disassembler works from.
+     */
+    var methodCode: Map<String, CompactCode> = emptyMap()
+        private set
+
+    /**
+     * Where frames find classes, in place of [classLoader] (templates use this for their
+     * placeholder classes, which have no class files).
+     */
+    internal var classHierarchy: ClassHierarchy? = null
+
     /**
      * Assemble to Java bytecode.
      *
      * @return bytecode, suitable for passing to `MethodHandles.Lookup#defineClass`
      */
-    fun assemble(): ByteArray {
+    fun assemble(): ByteArray = assemble(listOf(classFormat)).getValue(classFormat)
+
+    /**
+     * Assemble to Java bytecode for several class formats, parsing the source only once.
+     *
+     * Each class is generated separately from the parse tree, so frames and maxs are computed
+     * to suit its format, code that depends on the format (such as `concat`) is lowered for it,
+     * and code the format can't support (such as `invokedynamic` before Java 7) is an error.
+     *
+     * @param classFormats The ASM `Vxx` constants for the class formats to assemble for
+     * @return bytecode for each class format, in the order given
+     */
+    fun assemble(classFormats: Collection<Int>): Map<Int, ByteArray> {
         try {
-            source.get().use { input ->
-                val errorCollector = StandardErrorCollector()
-
-                val parser = buildParser(
-                    CommonTokenStream(
-                        buildLexer(
-                            Objects.requireNonNull(CharStreams.fromStream(input),
-                                "Failed to open stream for $unitName"),
-                            errorCollector
-                        )
-                    ),
-                    errorCollector
-                )
-                val classWriter =
-                    ClassWriter(if (classFormat >= Opcodes.V1_6) ClassWriter.COMPUTE_FRAMES else ClassWriter.COMPUTE_MAXS)
-                val assembler = JasmAssemblingVisitor(classWriter, unitName, classFormat, errorCollector)
-
-                parser.class_().accept(assembler)
-
-                if (errorCollector.hasErrors()) {
-                    throw AssemblyException(errorCollector.getErrors())
+            source.get().buffered().use { input ->
+                val parseErrors = StandardErrorCollector()
+
+                // Units in binary form are assembled from the tree they hold, as if from their source
+                val unit = if (ParsedUnit.isParsedUnit(input)) {
+                    ParsedUnit.read(unitName, input)
                 } else {
-                    return classWriter.toByteArray()
+                    ParsedUnit.parse(unitName, input, parseErrors)
                 }
+
+                val tree = unit.tree
+                val errors = ArrayList<BaseError>()
+                val allWarnings = ArrayList<BaseError>()
+                val classes = LinkedHashMap<Int, ByteArray>()
+
+                val hierarchy = classHierarchy ?: classLoader?.let(ClassHierarchy::of)
+
+                classFormats.distinct().forEachIndexed { i, format ->
+                    val errorCollector = StandardErrorCollector()
+                    parseErrors.getErrors().forEach(errorCollector::addError)
+                    parseErrors.getWarnings().forEach(errorCollector::addWarning)
+
+                    val classWriter = when {
+                        format < Opcodes.V1_6 -> ClassWriter(ClassWriter.COMPUTE_MAXS)
+                        hierarchy != null -> HierarchyClassWriter(ClassWriter.COMPUTE_FRAMES, hierarchy)
+                        else -> ClassWriter(ClassWriter.COMPUTE_FRAMES)
+                    }
+
+                    val target = if (classWriter is HierarchyClassWriter) classWriter.visitor else classWriter
+                    val visitor = JasmAssemblingVisitor(target, Modifiers(), unit.unitName, format, errorCollector, options, classLoader)
+                    visitor.recordMethodCode = recordMethodCode && i == 0
+                    tree.accept(visitor)
+
+                    // Expansions are the same for every format
+                    if (i == 0) {
+                        macroExpansions = visitor.macroExpansions
+                        methodCode = visitor.methodCode
+                    }
+
+                    errors.addAll(errorCollector.getErrors())
+                    allWarnings.addAll(errorCollector.getWarnings())
+
+                    if (!errorCollector.hasErrors()) {
+                        classes[format] = classWriter.toByteArray()
+                    }
+                }
+
+                // Most diagnostics are the same for every format
+                warnings = allWarnings.distinctBy { it.toString() }
+
+                if (errors.isNotEmpty()) {
+                    throw AssemblyException(errors.distinctBy { it.toString() })
+                }
+
+                return if (options.release) release(unit.unitName, classes) else classes
             }
         } catch (e: IOException) {
             throw UncheckedIOException(e)
         }
     }
 
-    private fun buildLexer(input: CharStream, errorCollector: ErrorCollector): JasmLexer {
-        val lexer = JasmLexer(input)
-        lexer.removeErrorListeners()
-        lexer.addErrorListener(CollectingErrorListener(unitName, errorCollector))
-        return lexer
-    }
+    private fun release(unitName: String, classes: Map<Int, ByteArray>): Map<Int, ByteArray> {
+        val optimized = classes.mapValues { (_, bytes) -> ReleaseOptimizer.optimize(bytes) }
+        val reports = classes.keys.map { SizeReport.of(unitName, classes.getValue(it), optimized.getValue(it)) }
 
-    private fun buildParser(tokens: TokenStream, errorCollector: ErrorCollector): JasmParser {
-        val parser = JasmParser(tokens)
-        parser.removeErrorListeners()
-        parser.addErrorListener(CollectingErrorListener(unitName, errorCollector))
-        return parser
+        sizeReport = if (reports.size == 1) reports.single() else SizeReport.total(reports).copy(unitName = unitName)
+        return optimized
     }
-}
\ No newline at end of file
+}
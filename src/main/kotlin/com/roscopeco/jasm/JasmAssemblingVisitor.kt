@@ -8,8 +8,11 @@ package com.roscopeco.jasm
 import com.roscopeco.jasm.antlr.JasmBaseVisitor
 import com.roscopeco.jasm.antlr.JasmParser
 import com.roscopeco.jasm.antlr.JasmParser.Visible_annotationContext
+import com.roscopeco.jasm.errors.BaseError
 import com.roscopeco.jasm.errors.CodeError
 import com.roscopeco.jasm.errors.ErrorCollector
+import org.antlr.v4.runtime.ParserRuleContext
+import org.antlr.v4.runtime.tree.TerminalNode
 import org.objectweb.asm.AnnotationVisitor
 import org.objectweb.asm.ClassVisitor
 import org.objectweb.asm.ConstantDynamic
@@ -18,6 +21,9 @@ import org.objectweb.asm.Label
 import org.objectweb.asm.MethodVisitor
 import org.objectweb.asm.Opcodes
 import org.objectweb.asm.Type
+import org.objectweb.asm.tree.AbstractInsnNode
+import org.objectweb.asm.tree.LabelNode
+import org.objectweb.asm.tree.MethodNode
 import java.util.stream.Collectors
 import java.util.stream.IntStream
 
@@ -28,15 +34,58 @@ import java.util.stream.IntStream
  * @param modifiers An instance of the {@link Modifiers} class to handle modifier-related stuff
  * @param unitName The name of the compilation unit (shows up in com.roscopeco.jasm.errors and as an attribute in the class)
  * @param classFormat One of the ASM {@code Vxx} constants from the {@code org.objectweb.asm. class
+ * @param options Optional assembler behaviour
+ * @param classLoader Where to find the class files of other classes when verifying (see [AssemblerOptions.verify]).
+ *                    If `null`, the thread's context class loader is used.
  */
-class JasmAssemblingVisitor(
+class JasmAssemblingVisitor @JvmOverloads constructor(
     private val visitor: ClassVisitor,
     private val modifiers: Modifiers,
     private val unitName: String,
     private val classFormat: Int,
-    private val errorCollector: ErrorCollector
+    errorCollector: ErrorCollector,
+    private val options: AssemblerOptions = AssemblerOptions(),
+    private val classLoader: ClassLoader? = null
 ) : JasmBaseVisitor<Unit>() {
-    private val typeVisitor = TypeVisitor(unitName, errorCollector)
+    private val macroExpander = MacroExpander(unitName, errorCollector)
+
+    // Everything reports through the expander, so errors in expanded code say where the macro was expanded
+    private val errorCollector = macroExpander.errorCollector
+
+    private val typeVisitor = TypeVisitor(unitName, this.errorCollector)
+    private val deadCodeEliminator = DeadCodeEliminator(unitName, this.errorCollector)
+    private val localAllocator = LocalAllocator(unitName, this.errorCollector, options.emitLocalVariableTable)
+    private val blockLayout = BlockLayout(unitName, this.errorCollector)
+    private var className = ""
+    private var syntaxErrors = false
+    private var methodSplitter: MethodSplitter? = null
+    private var tailCallEliminator: TailCallEliminator? = null
+    private var constantInliner: ConstantInliner? = null
+    private var blockInstrumenter: BlockInstrumenter? = null
+    private var bytecodeVerifier: BytecodeVerifier? = null
+
+    // When instrumenting, <clinit> is held back until the end of the class
+    private var pendingClinit: JasmMethodVisitor? = null
+
+    /**
+     * The macros expanded into each method, and how much code they added.
+     */
+    var macroExpansions: List<MacroExpansion> = emptyList()
+        private set
+
+    /**
+     * Whether to record the code of each method as it's emitted, in [methodCode]. Off by default, as
+     * it copies every instruction.
+     */
+    var recordMethodCode = false
+
+    /**
+     * The code of each method as emitted, keyed by name and descriptor, if [recordMethodCode] is set.
+     */
+    val methodCode: Map<String, CompactCode>
+        get() = emittedCode
+
+    private val emittedCode = LinkedHashMap<String, CompactCode>()
 
     /**
      * Convenience constructor which will use the class format for Java 11 (55.0) and a default
@@ -59,27 +108,112 @@ class JasmAssemblingVisitor(
             : this(visitor, Modifiers(), unitName, classFormat, errorCollector)
 
     override fun visitClass(ctx: JasmParser.ClassContext) {
+        // Errors at this point came from the parser, so the tree can't be trusted for analysis
+        syntaxErrors = errorCollector.hasErrors()
+        className = LiteralNames.unescape(ctx.classname().text)
+
+        if (options.eliminateTailCalls) {
+            tailCallEliminator = TailCallEliminator(className)
+        }
+
+        val access = modifiers.mapModifiers(ctx.type_modifier())
+        val isInterface = access and Opcodes.ACC_INTERFACE != 0
+
+        // Helpers are private static methods, which interfaces can only have since Java 9
+        if (options.splitLargeMethods && (!isInterface || classFormat >= Opcodes.V9)) {
+            methodSplitter = MethodSplitter(
+                unitName,
+                errorCollector,
+                LiteralNames.unescape(ctx.classname().text),
+                isInterface,
+                options.maxMethodSize,
+                ctx.classbody()?.member()?.mapNotNull { it.method()?.membername() }?.map(typeVisitor::visitMembername)
+                    ?: emptyList()
+            )
+        }
+
+        if (options.instrumentBlocks) {
+            blockInstrumenter = BlockInstrumenter(className, unitName, isInterface)
+        }
+
+        if (options.inlineConstants && !syntaxErrors) {
+            constantInliner = ConstantInliner(
+                LiteralNames.unescape(ctx.classname().text),
+                ctx,
+                typeVisitor,
+                modifiers,
+                ::generateFieldInitializer
+            )
+        }
+
+        val superName = LiteralNames.unescape(ctx.extends_()?.classname()?.QNAME()?.text ?: "java/lang/Object")
+        val interfaces = ctx.implements_()?.classname()?.map { LiteralNames.unescape(it.QNAME().text) } ?: emptyList()
+
+        if (options.verify && !syntaxErrors) {
+            bytecodeVerifier = BytecodeVerifier(
+                unitName,
+                errorCollector,
+                className,
+                superName,
+                interfaces,
+                isInterface,
+                classLoader ?: Thread.currentThread().contextClassLoader ?: ClassLoader.getSystemClassLoader()
+            )
+        }
+
         visitor.visit(
             classFormat,
-            modifiers.mapModifiers(ctx.type_modifier()),
+            access,
             LiteralNames.unescape(ctx.classname().text),
             null,
-            LiteralNames.unescape(ctx.extends_()?.classname()?.QNAME()?.text ?: "java/lang/Object"),
-            ctx.implements_()?.classname()
-                ?.map { LiteralNames.unescape(it.QNAME().text) }
-                ?.toTypedArray()
-                    ?: emptyArray<String>()
+            superName,
+            interfaces.toTypedArray()
         )
 
         visitor.visitSource(unitName, "")
 
+        // Macros can be used before they're declared
+        ctx.classbody()?.member()?.mapNotNull { it.macro() }?.forEach(macroExpander::define)
+
+        ctx.nesthost()?.let { visitor.visitNestHost(LiteralNames.unescape(it.classname().text)) }
+
+        if ((ctx.nesthost() != null || ctx.nestmembers() != null) && classFormat < Opcodes.V11) {
+            errorCollector.addWarning(
+                CodeError(unitName, ctx.nesthost() ?: ctx.nestmembers(), "Nests require class format 55 (Java 11) or later, and will be ignored by the JVM")
+            )
+        }
+
         super.visitClass(ctx)
+
+        blockInstrumenter?.let { instrumenter ->
+            visitor.visitField(instrumenter.fieldAccess(), BlockInstrumenter.FIELD_NAME, "[J", null, null).visitEnd()
+
+            val clinit = pendingClinit
+            if (clinit != null) {
+                clinit.finishInstrumentedClinit(instrumenter)
+            } else if (!syntaxErrors) {
+                val clinit = instrumenter.finish(null, emptyMap()) { null }
+                clinit.accept(visitor)
+                bytecodeVerifier?.add(clinit, emptyMap(), ctx)
+            }
+        }
+
+        // Only worth verifying if the class is otherwise good
+        if (!errorCollector.hasErrors()) {
+            bytecodeVerifier?.verify()
+        }
+
         visitor.visitEnd()
     }
 
     private fun getAnnotationClassname(annotationName: String) =
         "L" + LiteralNames.unescape(annotationName.substring(1)) + ";"
 
+    // Visited after the class annotations, as nest members must be
+    override fun visitNestmembers(ctx: JasmParser.NestmembersContext) {
+        ctx.classname().forEach { visitor.visitNestMember(LiteralNames.unescape(it.text)) }
+    }
+
     override fun visitAnnotation(ctx: JasmParser.AnnotationContext) {
         val visible = ctx.visible_annotation() != null
         val name = (if (visible) {ctx.visible_annotation()} else {ctx.invisible_annotation().visible_annotation()}).ANNOTATION_NAME().text
@@ -110,6 +244,10 @@ class JasmAssemblingVisitor(
             } cannot have void type"))
         }
 
+        if (options.dropInlinedConstants && constantInliner?.canDrop(typeVisitor.visitMembername(ctx.membername()), type) == true) {
+            return
+        }
+
         val fv = visitor.visitField(
             modifiers.mapModifiers(ctx.field_modifier()),
             typeVisitor.visitMembername(ctx.membername()),
@@ -177,6 +315,10 @@ class JasmAssemblingVisitor(
         return JasmMethodVisitor(ctx).visitMethod(ctx)
     }
 
+    override fun visitMacro(ctx: JasmParser.MacroContext) {
+        // Already defined, the body is only visited when it's expanded
+    }
+
     private inner class JasmAnnotationVisitor(val visitor: AnnotationVisitor) : JasmBaseVisitor<Unit>() {
 
         override fun visitAnnotation_param(ctx: JasmParser.Annotation_paramContext) {
@@ -252,24 +394,38 @@ class JasmAssemblingVisitor(
         }
     }
 
-    private inner class JasmMethodVisitor(ctx: JasmParser.MethodContext) : JasmBaseVisitor<Unit>() {
+    private inner class JasmMethodVisitor(private val declaration: JasmParser.MethodContext) : JasmBaseVisitor<Unit>() {
         private val labels = HashMap<String, LabelHolder>()
-
-        // Cheating slightly, but prevents us having to have an apparently-mutable visitor...
-        private val methodVisitor: MethodVisitor = visitor.visitMethod(
-            modifiers.mapModifiers(ctx.method_modifier()),
-            typeVisitor.visitMembername(ctx.membername()),
-            typeVisitor.visitMethod_descriptor(ctx.method_descriptor()),
+        private val sources = HashMap<AbstractInsnNode, JasmParser.InstructionContext>()
+        private val localNames = LinkedHashMap<AbstractInsnNode, String>()
+        private val blockHints = mutableListOf<BlockLayout.BlockHint>()
+        private val expansions = mutableListOf<Pair<JasmParser.ExpandContext, Set<AbstractInsnNode>>>()
+        private var dataCount = 0
+        private var concatCount = 0
+        private var expansionCount = 0
+
+        // Code is buffered in a MethodNode so we can analyse it before it's passed on to the ClassVisitor.
+        private val methodNode = MethodNode(
+            Opcodes.ASM9,
+            modifiers.mapModifiers(declaration.method_modifier()),
+            typeVisitor.visitMembername(declaration.membername()),
+            typeVisitor.visitMethod_descriptor(declaration.method_descriptor()),
             null,
             null
         )
 
+        // Cheating slightly, but prevents us having to have an apparently-mutable visitor...
+        private val methodVisitor: MethodVisitor = methodNode
+
         override fun visitAnnotation(ctx: JasmParser.AnnotationContext) {
             // Intentionally do nothing here, we can't differentiate between method and parameter annotations,
             // so we'll manually drive visiting of those in visitMethod instead...
         }
 
         override fun visitMethod(ctx: JasmParser.MethodContext) {
+            val errorCount = errorCollector.getErrors().size
+            fun hasNewErrors() = syntaxErrors || errorCollector.getErrors().size != errorCount
+
             ctx.annotation()?.forEach { annotation ->
                 val visible = annotation.visible_annotation() != null
                 val name = (if (visible) {annotation.visible_annotation()} else {annotation.invisible_annotation().visible_annotation()}).ANNOTATION_NAME().text
@@ -297,11 +453,183 @@ class JasmAssemblingVisitor(
 
             methodVisitor.visitMaxs(0, 0)
             methodVisitor.visitEnd()
+
+            // No point analysing (or emitting) broken code, the class will be discarded anyway.
+            // Errors in other methods don't stop this one being checked, though.
+            if (!hasNewErrors()) {
+                deadCodeEliminator.eliminate(methodNode, sources)
+                blockLayout.layout(methodNode, collectBlockHints())
+                localAllocator.allocate(methodNode, localNames, sources)
+
+                if (!hasNewErrors()) {
+                    reportExpansions()
+                    tailCallEliminator?.eliminate(methodNode)
+
+                    if (blockInstrumenter != null && methodNode.name == "<clinit>") {
+                        pendingClinit = this
+                        return
+                    }
+
+                    blockInstrumenter?.instrument(methodNode, labelNames(), ::lineOf)
+                    emit()
+                }
+            }
+        }
+
+        fun finishInstrumentedClinit(instrumenter: BlockInstrumenter) {
+            instrumenter.finish(methodNode, labelNames(), ::lineOf)
+            emit()
+        }
+
+        private fun emit() {
+            val helpers = methodSplitter?.split(methodNode) ?: emptyList()
+
+            methodNode.accept(visitor)
+            helpers.forEach { it.accept(visitor) }
+
+            if (recordMethodCode) {
+                emittedCode[methodNode.name + methodNode.desc] = CompactCode.of(methodNode)
+                helpers.forEach { emittedCode[it.name + it.desc] = CompactCode.of(it) }
+            }
+
+            bytecodeVerifier?.let { verifier ->
+                verifier.add(methodNode, sources, declaration)
+                helpers.forEach { verifier.add(it, sources, declaration) }
+            }
+        }
+
+        // After dead code is removed and locals are allocated, so the sizes are close to what's emitted
+        private fun reportExpansions() {
+            if (expansions.isEmpty()) return
+
+            val emitted = methodNode.instructions.toSet()
+
+            macroExpansions = macroExpansions + expansions.map { (ctx, insns) ->
+                MacroExpansion(
+                    unitName,
+                    LiteralNames.unescape(ctx.membername().text),
+                    methodNode.name + methodNode.desc,
+                    ctx.start.line,
+                    ctx.start.charPositionInLine,
+                    insns.filter { it in emitted }.sumOf { MethodSplitter.insnSize(it, false) }
+                )
+            }
+        }
+
+        private fun labelNames() = labels.entries
+            .mapNotNull { (name, holder) -> (holder.label.info as? LabelNode)?.let { it to name } }
+            .toMap()
+
+        private fun lineOf(insn: AbstractInsnNode) = sources[insn]?.start?.line
+
+        override fun visitInstruction(ctx: JasmParser.InstructionContext) {
+            val last = methodNode.instructions.last
+
+            super.visitInstruction(ctx)
+
+            // Nested instructions (e.g. in try/catch blocks) are visited first, so keep the innermost source
+            var insn = if (last == null) methodNode.instructions.first else last.next
+            while (insn != null) {
+                sources.putIfAbsent(insn, ctx)
+                insn = insn.next
+            }
+        }
+
+        // Named locals are emitted with a placeholder slot; the real one is assigned once the whole method is known
+        private fun visitVarInsn(opcode: Int, slot: JasmParser.Int_atomContext?, name: TerminalNode?) {
+            if (name != null) {
+                visitNamedVarInsn(opcode, name.text)
+            } else {
+                methodVisitor.visitVarInsn(opcode, slot!!.text.toInt())
+            }
+        }
+
+        /*
+         * The arguments are already on the stack, so they're stashed in temporaries while the
+         * StringBuilder is created, then appended in order with the literal text between them.
+         */
+        private fun visitStringBuilderConcat(segments: List<String>, args: List<Type>) {
+            val prefix = "concat#${concatCount++}"
+
+            args.indices.reversed().forEach { i -> visitNamedVarInsn(args[i].getOpcode(Opcodes.ISTORE), "$prefix.$i") }
+
+            methodVisitor.visitTypeInsn(Opcodes.NEW, "java/lang/StringBuilder")
+            methodVisitor.visitInsn(Opcodes.DUP)
+            visitPushInt(StringConcat.capacity(segments, args))
+            methodVisitor.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "(I)V", false)
+
+            segments.forEachIndexed { i, segment ->
+                if (segment.isNotEmpty()) {
+                    methodVisitor.visitLdcInsn(segment)
+                    methodVisitor.visitMethodInsn(
+                        Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false
+                    )
+                }
+
+                if (i < args.size) {
+                    visitNamedVarInsn(args[i].getOpcode(Opcodes.ILOAD), "$prefix.$i")
+                    methodVisitor.visitMethodInsn(
+                        Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append", StringConcat.appendDescriptor(args[i]), false
+                    )
+                }
+            }
+
+            methodVisitor.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", false)
+        }
+
+        private fun visitNamedVarInsn(opcode: Int, name: String) {
+            methodVisitor.visitVarInsn(opcode, 0)
+            localNames[methodNode.instructions.last] = name
+        }
+
+        override fun visitExpand(ctx: JasmParser.ExpandContext) {
+            val last = methodNode.instructions.last
+
+            if (macroExpander.expand(ctx, expansionCount++) { visitStat_block(it) }) {
+                val insns = HashSet<AbstractInsnNode>()
+
+                var insn = if (last == null) methodNode.instructions.first else last.next
+                while (insn != null) {
+                    insns.add(insn)
+                    insn = insn.next
+                }
+
+                expansions.add(ctx to insns)
+            }
         }
 
         override fun visitLabel(ctx: JasmParser.LabelContext) {
-            val label = declareLabel(ctx.LABEL()?.text ?: LiteralNames.unescape(ctx.LITERAL_NAME().text))
+            val name = normaliseLabelName(ctx.LABEL()?.text ?: LiteralNames.unescape(ctx.LITERAL_NAME().text))
+            val label = declareLabel(name)
             methodVisitor.visitLabel(label.label)
+
+            ctx.label_hint()?.let { hint ->
+                when (hint.text) {
+                    "@likely" -> blockHints.add(BlockLayout.BlockHint(label.label, name, BlockLayout.Hint.LIKELY, hint))
+                    "@unlikely" -> blockHints.add(BlockLayout.BlockHint(label.label, name, BlockLayout.Hint.UNLIKELY, hint))
+                    else -> errorCollector.addError(
+                        CodeError(unitName, hint, "Unknown label hint ${hint.text} (expected @likely or @unlikely)")
+                    )
+                }
+            }
+        }
+
+        // Hints from the layout profile replace any given in the source for the same label
+        private fun collectBlockHints(): List<BlockLayout.BlockHint> {
+            val profiled = options.layoutProfile?.hintsFor(className, methodNode.name, methodNode.desc) ?: emptyMap()
+
+            return blockHints.filter { it.name !in profiled } + profiled.mapNotNull { (name, likely) ->
+                val label = labels[name]
+
+                if (label == null) {
+                    errorCollector.addWarning(
+                        BaseError(unitName, "Layout profile refers to unknown label $name in ${methodNode.name}${methodNode.desc}")
+                    )
+                    null
+                } else {
+                    BlockLayout.BlockHint(label.label, name, if (likely) BlockLayout.Hint.LIKELY else BlockLayout.Hint.UNLIKELY, null)
+                }
+            }
         }
 
         override fun visitInsn_aaload(ctx: JasmParser.Insn_aaloadContext) = methodVisitor.visitInsn(Opcodes.AALOAD)
@@ -312,7 +640,7 @@ class JasmAssemblingVisitor(
                 = methodVisitor.visitInsn(Opcodes.ACONST_NULL)
 
         override fun visitInsn_aload(ctx: JasmParser.Insn_aloadContext)
-                = methodVisitor.visitVarInsn(Opcodes.ALOAD, ctx.int_atom().text.toInt())
+                = visitVarInsn(Opcodes.ALOAD, ctx.int_atom(), ctx.NAME())
 
         override fun visitInsn_anewarray(ctx: JasmParser.Insn_anewarrayContext)
                 = methodVisitor.visitTypeInsn(Opcodes.ANEWARRAY, LiteralNames.unescape(ctx.QNAME().text))
@@ -323,7 +651,7 @@ class JasmAssemblingVisitor(
                 = methodVisitor.visitInsn(Opcodes.ARRAYLENGTH)
 
         override fun visitInsn_astore(ctx: JasmParser.Insn_astoreContext)
-                = methodVisitor.visitVarInsn(Opcodes.ASTORE, ctx.int_atom().text.toInt())
+                = visitVarInsn(Opcodes.ASTORE, ctx.int_atom(), ctx.NAME())
 
         override fun visitInsn_athrow(ctx: JasmParser.Insn_athrowContext) = methodVisitor.visitInsn(Opcodes.ATHROW)
 
@@ -332,7 +660,7 @@ class JasmAssemblingVisitor(
         override fun visitInsn_bastore(ctx: JasmParser.Insn_bastoreContext) = methodVisitor.visitInsn(Opcodes.BASTORE)
 
         override fun visitInsn_bipush(ctx: JasmParser.Insn_bipushContext)
-                = methodVisitor.visitIntInsn(Opcodes.BIPUSH, ctx.int_atom().text.toInt() and 0xff)
+                = methodVisitor.visitIntInsn(Opcodes.BIPUSH, checkedIntOperand("BIPUSH", ctx.int_atom(), Byte.MIN_VALUE..Byte.MAX_VALUE))
 
         override fun visitInsn_caload(ctx: JasmParser.Insn_caloadContext) = methodVisitor.visitInsn(Opcodes.CALOAD)
 
@@ -342,6 +670,34 @@ class JasmAssemblingVisitor(
                 = methodVisitor.visitTypeInsn(Opcodes.CHECKCAST,
                     typeVisitor.visitInsn_checkcast(ctx))
 
+        override fun visitInsn_concat(ctx: JasmParser.Insn_concatContext) {
+            val recipe = unescapeConstantString(StringConcat.unescapeTags(ctx.string_atom().text))
+            val args = ctx.method_arguments().method_argument().map { Type.getType(typeVisitor.visitMethod_argument(it)) }
+            val segments = StringConcat.segments(recipe)
+
+            when {
+                StringConcat.TAG_CONST in recipe -> errorCollector.addError(
+                    CodeError(unitName, ctx.string_atom(), "Constant tags (\\u0002) are not supported in CONCAT recipes")
+                )
+
+                segments.size - 1 != args.size -> errorCollector.addError(
+                    CodeError(unitName, ctx, "CONCAT recipe has ${segments.size - 1} argument(s) but ${args.size} type(s) were given")
+                )
+
+                args.isEmpty() -> methodVisitor.visitLdcInsn(recipe)
+
+                classFormat >= Opcodes.V9 && args.sumOf { it.size } <= StringConcat.MAX_INDY_SLOTS ->
+                    methodVisitor.visitInvokeDynamicInsn(
+                        "makeConcatWithConstants",
+                        Type.getMethodDescriptor(Type.getType(String::class.java), *args.toTypedArray()),
+                        StringConcat.BOOTSTRAP,
+                        recipe
+                    )
+
+                else -> visitStringBuilderConcat(segments, args)
+            }
+        }
+
         override fun visitInsn_d2f(ctx: JasmParser.Insn_d2fContext) = methodVisitor.visitInsn(Opcodes.D2F)
 
         override fun visitInsn_d2i(ctx: JasmParser.Insn_d2iContext) = methodVisitor.visitInsn(Opcodes.D2I)
@@ -354,6 +710,36 @@ class JasmAssemblingVisitor(
 
         override fun visitInsn_dastore(ctx: JasmParser.Insn_dastoreContext) = methodVisitor.visitInsn(Opcodes.DASTORE)
 
+        override fun visitInsn_data(ctx: JasmParser.Insn_dataContext) {
+            val type = ArrayData.ElementType.of(ctx.prim_type())
+
+            val values = ctx.data_atom().map { atom ->
+                ArrayData.bits(type, atom) ?: run {
+                    errorCollector.addError(
+                        CodeError(unitName, atom, "Invalid value for ${type.typeName} data: ${atom.text}")
+                    )
+                    0L
+                }
+            }
+
+            visitPushInt(values.size)
+            methodVisitor.visitIntInsn(Opcodes.NEWARRAY, type.newarrayOperand)
+
+            if (values.size <= ArrayData.INLINE_LIMIT) {
+                // Arrays start zeroed, so only the non-zero elements need storing
+                values.forEachIndexed { i, bits ->
+                    if (bits != 0L) {
+                        methodVisitor.visitInsn(Opcodes.DUP)
+                        visitPushInt(i)
+                        visitPushBits(type, bits)
+                        methodVisitor.visitInsn(type.storeOpcode)
+                    }
+                }
+            } else {
+                visitDataUnpackLoop(type, ArrayData.pack(type, values))
+            }
+        }
+
         override fun visitInsn_dcmpg(ctx: JasmParser.Insn_dcmpgContext) = methodVisitor.visitInsn(Opcodes.DCMPG)
 
         override fun visitInsn_dcmpl(ctx: JasmParser.Insn_dcmplContext) = methodVisitor.visitInsn(Opcodes.DCMPL)
@@ -372,7 +758,7 @@ class JasmAssemblingVisitor(
         override fun visitInsn_ddiv(ctx: JasmParser.Insn_ddivContext) = methodVisitor.visitInsn(Opcodes.DDIV)
 
         override fun visitInsn_dload(ctx: JasmParser.Insn_dloadContext)
-                = methodVisitor.visitVarInsn(Opcodes.DLOAD, ctx.int_atom().text.toInt())
+                = visitVarInsn(Opcodes.DLOAD, ctx.int_atom(), ctx.NAME())
 
         override fun visitInsn_dmul(ctx: JasmParser.Insn_dmulContext) = methodVisitor.visitInsn(Opcodes.DMUL)
 
@@ -383,7 +769,7 @@ class JasmAssemblingVisitor(
         override fun visitInsn_dreturn(ctx: JasmParser.Insn_dreturnContext) = methodVisitor.visitInsn(Opcodes.DRETURN)
 
         override fun visitInsn_dstore(ctx: JasmParser.Insn_dstoreContext)
-                = methodVisitor.visitVarInsn(Opcodes.DSTORE, ctx.int_atom().text.toInt())
+                = visitVarInsn(Opcodes.DSTORE, ctx.int_atom(), ctx.NAME())
 
         override fun visitInsn_dsub(ctx: JasmParser.Insn_dsubContext) = methodVisitor.visitInsn(Opcodes.DSUB)
 
@@ -428,7 +814,7 @@ class JasmAssemblingVisitor(
         override fun visitInsn_fdiv(ctx: JasmParser.Insn_fdivContext) = methodVisitor.visitInsn(Opcodes.FDIV)
 
         override fun visitInsn_fload(ctx: JasmParser.Insn_floadContext)
-                = methodVisitor.visitVarInsn(Opcodes.FLOAD, ctx.int_atom().text.toInt())
+                = visitVarInsn(Opcodes.FLOAD, ctx.int_atom(), ctx.NAME())
 
         override fun visitInsn_fmul(ctx: JasmParser.Insn_fmulContext) = methodVisitor.visitInsn(Opcodes.FMUL)
 
@@ -441,7 +827,7 @@ class JasmAssemblingVisitor(
         override fun visitInsn_fsub(ctx: JasmParser.Insn_fsubContext) = methodVisitor.visitInsn(Opcodes.FSUB)
 
         override fun visitInsn_fstore(ctx: JasmParser.Insn_fstoreContext)
-                = methodVisitor.visitVarInsn(Opcodes.FSTORE, ctx.int_atom().text.toInt())
+                = visitVarInsn(Opcodes.FSTORE, ctx.int_atom(), ctx.NAME())
 
         override fun visitInsn_getfield(ctx: JasmParser.Insn_getfieldContext) {
             var type = typeVisitor.visitType(ctx.type())
@@ -469,6 +855,16 @@ class JasmAssemblingVisitor(
             // https://github.com/roscopeco/jasm/issues/20
             if (type.isEmpty()) type = "I"
 
+            val constant = constantInliner?.constantFor(
+                typeVisitor.visitOwner(ctx.owner()),
+                typeVisitor.visitMembername(ctx.membername()),
+                type
+            )
+
+            if (constant != null) {
+                return visitPushConstant(constant)
+            }
+
             methodVisitor.visitFieldInsn(
                 Opcodes.GETSTATIC,
                 typeVisitor.visitOwner(ctx.owner()),
@@ -553,11 +949,17 @@ class JasmAssemblingVisitor(
         override fun visitInsn_ifnonnull(ctx: JasmParser.Insn_ifnonnullContext)
                 = methodVisitor.visitJumpInsn(Opcodes.IFNONNULL, getLabel(ctx.NAME().text).label)
 
-        override fun visitInsn_iinc(ctx: JasmParser.Insn_iincContext)
-                = methodVisitor.visitIincInsn(ctx.int_atom(0).text.toInt(), ctx.int_atom(1).text.toInt())
+        override fun visitInsn_iinc(ctx: JasmParser.Insn_iincContext) {
+            if (ctx.NAME() != null) {
+                methodVisitor.visitIincInsn(0, ctx.int_atom(0).text.toInt())
+                localNames[methodNode.instructions.last] = ctx.NAME().text
+            } else {
+                methodVisitor.visitIincInsn(ctx.int_atom(0).text.toInt(), ctx.int_atom(1).text.toInt())
+            }
+        }
 
         override fun visitInsn_iload(ctx: JasmParser.Insn_iloadContext)
-                = methodVisitor.visitVarInsn(Opcodes.ILOAD, ctx.int_atom().text.toInt())
+                = visitVarInsn(Opcodes.ILOAD, ctx.int_atom(), ctx.NAME())
 
         override fun visitInsn_imul(ctx: JasmParser.Insn_imulContext) = methodVisitor.visitInsn(Opcodes.IMUL)
 
@@ -566,13 +968,16 @@ class JasmAssemblingVisitor(
         override fun visitInsn_instanceof(ctx: JasmParser.Insn_instanceofContext)
                 = methodVisitor.visitTypeInsn(Opcodes.INSTANCEOF, typeVisitor.visitInsn_instanceof(ctx))
 
-        override fun visitInsn_invokedynamic(ctx: JasmParser.Insn_invokedynamicContext)
-                 = methodVisitor.visitInvokeDynamicInsn(
-                    typeVisitor.visitMembername(ctx.membername()),
-                    typeVisitor.visitMethod_descriptor(ctx.method_descriptor()),
-                    buildBootstrapHandle(ctx.invokedynamic_body().method_handle()),
-                    *generateConstArgs(ctx.invokedynamic_body().const_args().const_arg())
-                )
+        override fun visitInsn_invokedynamic(ctx: JasmParser.Insn_invokedynamicContext) {
+            requireClassFormat(ctx, Opcodes.V1_7, "invokedynamic")
+
+            methodVisitor.visitInvokeDynamicInsn(
+                typeVisitor.visitMembername(ctx.membername()),
+                typeVisitor.visitMethod_descriptor(ctx.method_descriptor()),
+                buildBootstrapHandle(ctx.invokedynamic_body().method_handle()),
+                *generateConstArgs(ctx.invokedynamic_body().const_args().const_arg())
+            )
+        }
 
         override fun visitInsn_invokeinterface(ctx: JasmParser.Insn_invokeinterfaceContext)
                 = visitNonDynamicInvoke(
@@ -621,7 +1026,7 @@ class JasmAssemblingVisitor(
         override fun visitInsn_ishr(ctx: JasmParser.Insn_ishrContext) = methodVisitor.visitInsn(Opcodes.ISHR)
 
         override fun visitInsn_istore(ctx: JasmParser.Insn_istoreContext)
-                = methodVisitor.visitVarInsn(Opcodes.ISTORE, ctx.int_atom().text.toInt())
+                = visitVarInsn(Opcodes.ISTORE, ctx.int_atom(), ctx.NAME())
 
         override fun visitInsn_isub(ctx: JasmParser.Insn_isubContext) = methodVisitor.visitInsn(Opcodes.ISUB)
 
@@ -658,13 +1063,19 @@ class JasmAssemblingVisitor(
             )
         }
 
-        override fun visitInsn_ldc(ctx: JasmParser.Insn_ldcContext)
-                = methodVisitor.visitLdcInsn(generateSingleConstArg(0, ctx.const_arg()))
+        override fun visitInsn_ldc(ctx: JasmParser.Insn_ldcContext) {
+            when {
+                ctx.const_arg().method_handle() != null     -> requireClassFormat(ctx, Opcodes.V1_7, "Loading a method handle")
+                ctx.const_arg().method_descriptor() != null -> requireClassFormat(ctx, Opcodes.V1_7, "Loading a method type")
+            }
+
+            methodVisitor.visitLdcInsn(generateSingleConstArg(0, ctx.const_arg()))
+        }
 
         override fun visitInsn_ldiv(ctx: JasmParser.Insn_ldivContext) = methodVisitor.visitInsn(Opcodes.LDIV)
 
         override fun visitInsn_lload(ctx: JasmParser.Insn_lloadContext)
-                = methodVisitor.visitVarInsn(Opcodes.LLOAD, ctx.int_atom().text.toInt())
+                = visitVarInsn(Opcodes.LLOAD, ctx.int_atom(), ctx.NAME())
 
         override fun visitInsn_lmul(ctx: JasmParser.Insn_lmulContext) = methodVisitor.visitInsn(Opcodes.LMUL)
 
@@ -692,7 +1103,7 @@ class JasmAssemblingVisitor(
         override fun visitInsn_lshr(ctx: JasmParser.Insn_lshrContext) = methodVisitor.visitInsn(Opcodes.LSHR)
 
         override fun visitInsn_lstore(ctx: JasmParser.Insn_lstoreContext)
-                = methodVisitor.visitVarInsn(Opcodes.LSTORE, ctx.int_atom().text.toInt())
+                = visitVarInsn(Opcodes.LSTORE, ctx.int_atom(), ctx.NAME())
 
         override fun visitInsn_lsub(ctx: JasmParser.Insn_lsubContext) = methodVisitor.visitInsn(Opcodes.LSUB)
 
@@ -727,6 +1138,29 @@ class JasmAssemblingVisitor(
         override fun visitInsn_ret(ctx: JasmParser.Insn_retContext)
             = methodVisitor.visitIntInsn(Opcodes.RET, ctx.int_atom().text.toInt())
 
+        override fun visitInsn_push(ctx: JasmParser.Insn_pushContext) {
+            when {
+                ctx.int_atom()?.INT() != null -> {
+                    val value = ctx.int_atom().text.toIntOrNull()
+                    if (value != null) visitPushInt(value) else invalidPushOperand(ctx.int_atom(), "int")
+                }
+                ctx.int_atom()?.LONG() != null -> {
+                    val value = ctx.int_atom().text.dropLast(1).toLongOrNull()
+                    if (value != null) visitPushLong(value) else invalidPushOperand(ctx.int_atom(), "long")
+                }
+                ctx.float_atom()?.FLOAT() != null -> {
+                    val value = ctx.float_atom().text.toFloat()
+                    if (value.isFinite()) visitPushFloat(value) else invalidPushOperand(ctx.float_atom(), "float")
+                }
+                ctx.float_atom()?.DOUBLE() != null -> {
+                    val value = ctx.float_atom().text.dropLast(1).toDouble()
+                    if (value.isFinite()) visitPushDouble(value) else invalidPushOperand(ctx.float_atom(), "double")
+                }
+                ctx.string_atom() != null -> methodVisitor.visitLdcInsn(unescapeConstantString(ctx.string_atom().text))
+                else -> errorCollector.addError(CodeError(unitName, ctx, "Invalid operand to PUSH: ${ctx.text}"))
+            }
+        }
+
         override fun visitInsn_putfield(ctx: JasmParser.Insn_putfieldContext) {
             var type = typeVisitor.visitType(ctx.type())
 
@@ -770,7 +1204,7 @@ class JasmAssemblingVisitor(
                 = methodVisitor.visitInsn(Opcodes.SASTORE)
 
         override fun visitInsn_sipush(ctx: JasmParser.Insn_sipushContext)
-                = methodVisitor.visitIntInsn(Opcodes.SIPUSH, ctx.int_atom().text.toInt() and 0xffff)
+                = methodVisitor.visitIntInsn(Opcodes.SIPUSH, checkedIntOperand("SIPUSH", ctx.int_atom(), Short.MIN_VALUE..Short.MAX_VALUE))
 
         override fun visitInsn_swap(ctx: JasmParser.Insn_swapContext)
                 = methodVisitor.visitInsn(Opcodes.SWAP)
@@ -847,6 +1281,167 @@ class JasmAssemblingVisitor(
         private fun getOrComputeArrayDims(ctx: JasmParser.Insn_multianewarrayContext)
                 = ctx.int_atom()?.text?.toInt() ?: ctx.array_type().text.count { c -> '[' == c }
 
+        /*
+         * Fills the array on top of the stack from the packed strings, leaving it on the stack.
+         * Equivalent to:
+         *
+         *   for (int i = 0; i < arr.length; i++) arr[i] = decode(str, i << shift);
+         *
+         * The temporaries are named locals with names that can't clash with the user's.
+         */
+        private fun visitDataUnpackLoop(type: ArrayData.ElementType, chunks: List<String>) {
+            val prefix = "data#${dataCount++}"
+            val arr = "$prefix.arr"
+            val str = "$prefix.str"
+            val idx = "$prefix.i"
+            val loop = Label()
+            val done = Label()
+
+            visitNamedVarInsn(Opcodes.ASTORE, arr)
+
+            methodVisitor.visitLdcInsn(chunks.first())
+            chunks.drop(1).forEach { chunk ->
+                methodVisitor.visitLdcInsn(chunk)
+                methodVisitor.visitMethodInsn(
+                    Opcodes.INVOKEVIRTUAL, "java/lang/String", "concat", "(Ljava/lang/String;)Ljava/lang/String;", false
+                )
+            }
+            visitNamedVarInsn(Opcodes.ASTORE, str)
+
+            methodVisitor.visitInsn(Opcodes.ICONST_0)
+            visitNamedVarInsn(Opcodes.ISTORE, idx)
+
+            methodVisitor.visitLabel(loop)
+            visitNamedVarInsn(Opcodes.ILOAD, idx)
+            visitNamedVarInsn(Opcodes.ALOAD, arr)
+            methodVisitor.visitInsn(Opcodes.ARRAYLENGTH)
+            methodVisitor.visitJumpInsn(Opcodes.IF_ICMPGE, done)
+
+            visitNamedVarInsn(Opcodes.ALOAD, arr)
+            visitNamedVarInsn(Opcodes.ILOAD, idx)
+
+            // Pushes the 16-bit chunk at (i << shift) + offset, masked if the upper bits matter
+            fun visitChunk(offset: Int, mask: Boolean) {
+                visitNamedVarInsn(Opcodes.ALOAD, str)
+                visitNamedVarInsn(Opcodes.ILOAD, idx)
+                if (type.chars > 1) {
+                    visitPushInt(Integer.numberOfTrailingZeros(type.chars))
+                    methodVisitor.visitInsn(Opcodes.ISHL)
+                }
+                if (offset > 0) {
+                    visitPushInt(offset)
+                    methodVisitor.visitInsn(Opcodes.IADD)
+                }
+                methodVisitor.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "charAt", "(I)C", false)
+                methodVisitor.visitInsn(Opcodes.ICONST_1)
+                methodVisitor.visitInsn(Opcodes.ISUB)
+                if (mask) {
+                    methodVisitor.visitInsn(Opcodes.I2C)
+                }
+            }
+
+            // Pushes the 32-bit int made of the two chunks starting at offset
+            fun visitInt(offset: Int) {
+                visitChunk(offset, false)
+                visitPushInt(16)
+                methodVisitor.visitInsn(Opcodes.ISHL)
+                visitChunk(offset + 1, true)
+                methodVisitor.visitInsn(Opcodes.IOR)
+            }
+
+            when (type.chars) {
+                // The store truncates, so there's no need to mask or narrow
+                1 -> visitChunk(0, false)
+                2 -> visitInt(0)
+                else -> {
+                    visitInt(0)
+                    methodVisitor.visitInsn(Opcodes.I2L)
+                    visitPushInt(32)
+                    methodVisitor.visitInsn(Opcodes.LSHL)
+                    visitInt(2)
+                    methodVisitor.visitInsn(Opcodes.I2L)
+                    methodVisitor.visitLdcInsn(0xffffffffL)
+                    methodVisitor.visitInsn(Opcodes.LAND)
+                    methodVisitor.visitInsn(Opcodes.LOR)
+                }
+            }
+
+            when (type) {
+                ArrayData.ElementType.FLOAT -> methodVisitor.visitMethodInsn(
+                    Opcodes.INVOKESTATIC, "java/lang/Float", "intBitsToFloat", "(I)F", false
+                )
+                ArrayData.ElementType.DOUBLE -> methodVisitor.visitMethodInsn(
+                    Opcodes.INVOKESTATIC, "java/lang/Double", "longBitsToDouble", "(J)D", false
+                )
+                else -> { /* already the right type */ }
+            }
+
+            methodVisitor.visitInsn(type.storeOpcode)
+            methodVisitor.visitIincInsn(0, 1)
+            localNames[methodNode.instructions.last] = idx
+            methodVisitor.visitJumpInsn(Opcodes.GOTO, loop)
+
+            methodVisitor.visitLabel(done)
+            visitNamedVarInsn(Opcodes.ALOAD, arr)
+        }
+
+        private fun invalidPushOperand(atom: ParserRuleContext, type: String) = errorCollector.addError(
+            CodeError(unitName, atom, "Invalid operand to PUSH: ${atom.text} (out of range for $type)")
+        )
+
+        private fun checkedIntOperand(insn: String, atom: JasmParser.Int_atomContext, range: IntRange): Int {
+            val value = atom.INT()?.text?.toIntOrNull()
+
+            return if (value != null && value in range) {
+                value
+            } else {
+                errorCollector.addError(
+                    CodeError(unitName, atom,
+                        "Invalid operand to $insn: ${atom.text} (must be in range ${range.first} to ${range.last})")
+                )
+                0
+            }
+        }
+
+        // Push a constant using the smallest available encoding
+        private fun visitPushInt(value: Int) = when (value) {
+            in -1..5 -> methodVisitor.visitInsn(Opcodes.ICONST_0 + value)
+            in Byte.MIN_VALUE..Byte.MAX_VALUE -> methodVisitor.visitIntInsn(Opcodes.BIPUSH, value)
+            in Short.MIN_VALUE..Short.MAX_VALUE -> methodVisitor.visitIntInsn(Opcodes.SIPUSH, value)
+            else -> methodVisitor.visitLdcInsn(value)
+        }
+
+        private fun visitPushLong(value: Long) = when (value) {
+            0L, 1L -> methodVisitor.visitInsn(Opcodes.LCONST_0 + value.toInt())
+            else -> methodVisitor.visitLdcInsn(value)
+        }
+
+        // Compare bits rather than values so -0.0 isn't pushed as 0.0
+        private fun visitPushFloat(value: Float) = when (value.toRawBits()) {
+            0.0f.toRawBits(), 1.0f.toRawBits(), 2.0f.toRawBits() -> methodVisitor.visitInsn(Opcodes.FCONST_0 + value.toInt())
+            else -> methodVisitor.visitLdcInsn(value)
+        }
+
+        private fun visitPushDouble(value: Double) = when (value.toRawBits()) {
+            0.0.toRawBits(), 1.0.toRawBits() -> methodVisitor.visitInsn(Opcodes.DCONST_0 + value.toInt())
+            else -> methodVisitor.visitLdcInsn(value)
+        }
+
+        private fun visitPushConstant(value: Any) = when (value) {
+            is Int -> visitPushInt(value)
+            is Long -> visitPushLong(value)
+            is Float -> visitPushFloat(value)
+            is Double -> visitPushDouble(value)
+            else -> methodVisitor.visitLdcInsn(value)
+        }
+
+        private fun visitPushBits(type: ArrayData.ElementType, bits: Long) = when (type) {
+            ArrayData.ElementType.LONG -> visitPushLong(bits)
+            ArrayData.ElementType.FLOAT -> visitPushFloat(Float.fromBits(bits.toInt()))
+            ArrayData.ElementType.DOUBLE -> visitPushDouble(Double.fromBits(bits))
+            else -> visitPushInt(bits.toInt())
+        }
+
         private fun typeForNewarray(ctx: JasmParser.Prim_typeContext) = when {
             ctx.TYPE_BOOL() != null     -> Opcodes.T_BOOLEAN
             ctx.TYPE_BYTE() != null     -> Opcodes.T_BYTE
@@ -927,12 +1522,7 @@ class JasmAssemblingVisitor(
                 ctx.QNAME() != null             -> Type.getType("L" + ctx.QNAME().text + ";")
                 ctx.method_handle() != null     -> buildBootstrapHandle(ctx.method_handle())
                 ctx.method_descriptor() != null -> Type.getMethodType(typeVisitor.visitMethod_descriptor(ctx.method_descriptor()))
-                ctx.constdynamic() != null      -> ConstantDynamic(
-                    typeVisitor.visitMembername(ctx.constdynamic().membername()),
-                    typeVisitor.visitType(ctx.constdynamic().type()),
-                    buildBootstrapHandle(ctx.constdynamic().method_handle()),
-                    *generateConstArgs(ctx.constdynamic().const_arg())
-                )
+                ctx.constdynamic() != null      -> generateConstDynamic(ctx.constdynamic())
                 else -> {
                     errorCollector.addError(CodeError(unitName, ctx, "Unsupported constant arg at #${idx}: " + ctx.text))
 
@@ -941,6 +1531,26 @@ class JasmAssemblingVisitor(
             }
         }
 
+        private fun generateConstDynamic(ctx: JasmParser.ConstdynamicContext): ConstantDynamic {
+            requireClassFormat(ctx, Opcodes.V11, "constdynamic")
+
+            return ConstantDynamic(
+                typeVisitor.visitMembername(ctx.membername()),
+                typeVisitor.visitType(ctx.type()),
+                buildBootstrapHandle(ctx.method_handle()),
+                *generateConstArgs(ctx.const_arg())
+            )
+        }
+
+        private fun requireClassFormat(ctx: ParserRuleContext, minimum: Int, feature: String) {
+            // The Vxx constants for Java 1.1 and earlier have a minor version in the upper half
+            if (classFormat and 0xFFFF < minimum) {
+                errorCollector.addError(
+                    CodeError(unitName, ctx, "$feature requires class format $minimum (Java ${minimum - 44}) or later")
+                )
+            }
+        }
+
         private fun generateIconstOpcode(ctx: JasmParser.Ilconst_atomContext): Int = when (ctx.text) {
             "-1"        -> Opcodes.ICONST_M1
             "0", "false"-> Opcodes.ICONST_0
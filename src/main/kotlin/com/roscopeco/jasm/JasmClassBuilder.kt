@@ -0,0 +1,168 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import com.roscopeco.jasm.errors.StandardErrorCollector
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Opcodes
+import java.util.function.Consumer
+
+/**
+ * Build a class in code, without writing (or parsing) any JASM source.
+ *
+ * ```
+ * val bytes = jasmClass("com/example/Adder") {
+ *     method("add", "(II)I", "public static") {
+ *         iload(0)
+ *         iload(1)
+ *         iadd()
+ *         ireturn()
+ *     }
+ * }
+ * ```
+ *
+ * @see JasmClassBuilder
+ */
+@JvmSynthetic
+fun jasmClass(
+    name: String,
+    modifiers: String = "public",
+    superName: String = "java/lang/Object",
+    interfaces: List<String> = emptyList(),
+    unitName: String = JasmClassBuilder.defaultUnitName(name),
+    classFormat: Int = Opcodes.V11,
+    options: AssemblerOptions = AssemblerOptions(),
+    body: JasmClassBuilder.() -> Unit
+): ByteArray = JasmClassBuilder(name, modifiers, superName, interfaces, unitName, classFormat, options).apply(body).build()
+
+/**
+ * Builds a class in code, with the same semantics as the equivalent JASM source.
+ *
+ * Names are used as they are (so there's no need for literal names), modifiers are written
+ * as they would be in source, and types are JVM descriptors (e.g. `(ILjava/lang/String;)V`).
+ * Methods support the same labels, named locals and `try` / `catch` sugar as source, and go
+ * through the same dead code elimination, local allocation and (if enabled) tail call
+ * elimination, so a class built from the equivalent of some source is byte-for-byte the same
+ * as assembling it.
+ *
+ * Code goes straight to ASM as it's built, with no source to lex or parse. Each method is
+ * buffered (as it is when assembling) so that it can be analysed, but otherwise the cost is
+ * close to that of using ASM by hand.
+ *
+ * Of the [AssemblerOptions], [AssemblerOptions.emitLocalVariableTable], [AssemblerOptions.eliminateTailCalls]
+ * and [AssemblerOptions.release] are supported. The others need the source, and are rejected.
+ *
+ * @param name The internal name of the class (e.g. `com/example/Foo`)
+ * @param modifiers The class modifiers (e.g. `"public final"`)
+ * @param superName The internal name of the superclass
+ * @param interfaces The internal names of the interfaces the class implements
+ * @param unitName The (display) name of the compilation unit, recorded as the source file
+ * @param classFormat One of the ASM `Vxx` constants from the `org.objectweb.asm.Opcodes` class
+ * @param options Optional assembler behaviour
+ *
+ * @throws IllegalArgumentException if the modifiers or options aren't supported
+ */
+class JasmClassBuilder @JvmOverloads constructor(
+    private val name: String,
+    modifiers: String = "public",
+    superName: String = "java/lang/Object",
+    interfaces: List<String> = emptyList(),
+    internal val unitName: String = defaultUnitName(name),
+    private val classFormat: Int = Opcodes.V11,
+    private val options: AssemblerOptions = AssemblerOptions(),
+) {
+    internal val modifiers = MODIFIERS
+    internal val errorCollector = StandardErrorCollector()
+    internal val deadCodeEliminator = DeadCodeEliminator(unitName, errorCollector)
+    internal val localAllocator = LocalAllocator(unitName, errorCollector, options.emitLocalVariableTable)
+    internal val tailCallEliminator = if (options.eliminateTailCalls) TailCallEliminator(name) else null
+
+    internal val writer = ClassWriter(if (classFormat >= Opcodes.V1_6) ClassWriter.COMPUTE_FRAMES else ClassWriter.COMPUTE_MAXS)
+
+    private var built = false
+
+    init {
+        require(!options.splitLargeMethods && !options.inlineConstants && options.layoutProfile == null
+                && !options.instrumentBlocks && !options.verify) {
+            "Only the emitLocalVariableTable, eliminateTailCalls and release options are supported when building classes"
+        }
+
+        writer.visit(classFormat, this.modifiers.mapModifiers(modifiers), name, null, superName, interfaces.toTypedArray())
+        writer.visitSource(unitName, "")
+    }
+
+    /**
+     * Add a field.
+     *
+     * @param name The field name
+     * @param descriptor The field type (e.g. `I`, or `Ljava/lang/String;`)
+     * @param modifiers The field modifiers (e.g. `"private static final"`)
+     * @param value The initial value, for `static` fields
+     */
+    @JvmOverloads
+    fun field(name: String, descriptor: String, modifiers: String = "public", value: Any? = null): JasmClassBuilder {
+        val access = this.modifiers.mapModifiers(modifiers)
+
+        require(value == null || access and Opcodes.ACC_STATIC != 0) { "Unexpected initializer value for non-static field $name" }
+        require(descriptor != "V") { "Field $name cannot have void type" }
+
+        writer.visitField(access, name, descriptor, null, value).visitEnd()
+        return this
+    }
+
+    /**
+     * Add a method.
+     *
+     * @param name The method name
+     * @param descriptor The method descriptor (e.g. `(I)I`)
+     * @param modifiers The method modifiers (e.g. `"public static"`)
+     * @param body Generates the code (left out for `abstract` and `native` methods)
+     */
+    fun method(name: String, descriptor: String, modifiers: String, body: Consumer<JasmMethodBuilder>?): JasmClassBuilder {
+        val method = JasmMethodBuilder(this, name, descriptor, this.modifiers.mapModifiers(modifiers))
+        body?.accept(method)
+        method.finish()
+        return this
+    }
+
+    /**
+     * Add a public method.
+     *
+     * @see method
+     */
+    fun method(name: String, descriptor: String, body: Consumer<JasmMethodBuilder>?) = method(name, descriptor, "public", body)
+
+    @JvmSynthetic
+    fun method(name: String, descriptor: String, modifiers: String = "public", body: (JasmMethodBuilder.() -> Unit)? = null) =
+        method(name, descriptor, modifiers, body?.let { Consumer(it) })
+
+    /**
+     * Finish the class.
+     *
+     * @return The bytecode
+     *
+     * @throws AssemblyException if any of the methods had errors
+     */
+    fun build(): ByteArray {
+        check(!built) { "Class $name has already been built" }
+        built = true
+
+        if (errorCollector.hasErrors()) {
+            throw AssemblyException(errorCollector.getErrors())
+        }
+
+        writer.visitEnd()
+        val bytes = writer.toByteArray()
+
+        return if (options.release) ReleaseOptimizer.optimize(bytes) else bytes
+    }
+
+    companion object {
+        private val MODIFIERS = Modifiers()
+
+        internal fun defaultUnitName(name: String) = name.substringAfterLast('/') + ".jasm"
+    }
+}
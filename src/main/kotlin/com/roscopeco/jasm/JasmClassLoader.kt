@@ -0,0 +1,141 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import org.objectweb.asm.Opcodes
+import java.io.Closeable
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.zip.ZipFile
+
+/**
+ * A `ClassLoader` that loads classes straight from JASM source.
+ *
+ * When asked for a class its parent can't find, the loader looks for the source on its source
+ * path - for `com.example.Foo`, that's `com/example/Foo.jasm` under any of the directories or
+ * jars on the path, with the first match winning. Classes are only assembled when they're
+ * needed, and the results are kept in an [AssemblyCache] (which may be shared with other
+ * loaders, and may persist classes to disk).
+ *
+ * Classes can be loaded in parallel. The loader holds jars open until it's closed.
+ *
+ * @param sourcePath Directories and jars to find source in
+ * @param parent The parent loader
+ * @param classFormat The ASM `Vxx` constant for the class format to assemble for
+ * @param options Optional assembler behaviour
+ * @param cache The cache for assembled classes
+ */
+class JasmClassLoader @JvmOverloads constructor(
+    sourcePath: List<Path>,
+    parent: ClassLoader? = getSystemClassLoader(),
+    private val classFormat: Int = Opcodes.V11,
+    private val options: AssemblerOptions = AssemblerOptions(),
+    val cache: AssemblyCache = AssemblyCache(),
+) : ClassLoader(parent), Closeable {
+
+    private val roots = sourcePath.mapNotNull { path ->
+        when {
+            Files.isDirectory(path) -> DirectoryRoot(path)
+            Files.isRegularFile(path) -> JarRoot(ZipFile(path.toFile()))
+            else -> null
+        }
+    }
+
+    override fun findClass(name: String): Class<*> {
+        val resource = name.replace('.', '/') + ".jasm"
+        val source = roots.firstNotNullOfOrNull { it.read(resource) } ?: throw ClassNotFoundException(name)
+
+        // Frames are computed through this loader, so they can merge classes that are only on the source path
+        val bytes = try {
+            cache.getOrAssemble(source, classFormat, options) {
+                JasmAssembler(resource, classFormat, options, this) { source.inputStream() }.assemble()
+            }
+        } catch (e: RuntimeException) {
+            throw ClassNotFoundException("Failed to assemble $resource", e)
+        }
+
+        return defineClass(name, bytes, 0, bytes.size)
+    }
+
+    /**
+     * Find where a class fits in the hierarchy without loading it, from its class file if the
+     * parent can find one (as that's what would be loaded), or otherwise from the declaration in
+     * its source. Loading classes here instead would go round in circles for classes whose code
+     * refers to each other.
+     */
+    internal fun hierarchyEntry(name: String): ClassHierarchy.Entry? {
+        ClassHierarchy.readClassFile(this, name)?.let { return it }
+
+        val resource = "$name.jasm"
+        val source = roots.firstNotNullOfOrNull { it.read(resource) } ?: return null
+
+        return try {
+            val unit = if (ParsedUnit.isParsedUnit(source)) {
+                ParsedUnit.read(resource, source.inputStream())
+            } else {
+                ParsedUnit.parse(resource, source.inputStream())
+            }
+
+            val declaration = unit.tree
+            val access = Modifiers().mapModifiers(declaration.type_modifier())
+
+            ClassHierarchy.Entry(
+                LiteralNames.unescape(declaration.extends_()?.classname()?.QNAME()?.text ?: "java/lang/Object"),
+                access and Opcodes.ACC_INTERFACE != 0
+            )
+        } catch (e: RuntimeException) {
+            null
+        }
+    }
+
+    /**
+     * Close any jars on the source path. Classes that have already been loaded can still be used,
+     * but new classes can only be loaded from directories.
+     */
+    override fun close() {
+        roots.forEach(SourceRoot::close)
+    }
+
+    private interface SourceRoot : Closeable {
+        fun read(resource: String): ByteArray?
+    }
+
+    private class DirectoryRoot(private val dir: Path) : SourceRoot {
+        override fun read(resource: String): ByteArray? {
+            val file = dir.resolve(resource)
+
+            return try {
+                if (Files.isRegularFile(file)) Files.readAllBytes(file) else null
+            } catch (e: IOException) {
+                null
+            }
+        }
+
+        override fun close() = Unit
+    }
+
+    private class JarRoot(private val jar: ZipFile) : SourceRoot {
+        override fun read(resource: String): ByteArray? {
+            return try {
+                jar.getEntry(resource)?.let { entry -> jar.getInputStream(entry).use { it.readBytes() } }
+            } catch (e: IllegalStateException) {
+                // Closed
+                null
+            } catch (e: IOException) {
+                null
+            }
+        }
+
+        override fun close() = jar.close()
+    }
+
+    companion object {
+        init {
+            registerAsParallelCapable()
+        }
+    }
+}
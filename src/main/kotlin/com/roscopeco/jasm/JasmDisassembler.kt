@@ -41,10 +41,17 @@ class JasmDisassembler(
                 val visitor = JasmDisassemblingVisitor(unitName, lineNumbers, errorCollector)
                 classReader.accept(visitor, ClassReader.SKIP_FRAMES)
 
+                if (errorCollector.hasErrors()) {
+                    throw AssemblyException(errorCollector.getErrors())
+                }
+
+                // Code is rendered on output, so some errors aren't known until then
+                val output = visitor.output()
+
                 if (errorCollector.hasErrors()) {
                     throw AssemblyException(errorCollector.getErrors())
                 } else {
-                    return visitor.output()
+                    return output
                 }
             }
         } catch (e: IOException) {
@@ -12,7 +12,6 @@ import org.objectweb.asm.ClassVisitor
 import org.objectweb.asm.ConstantDynamic
 import org.objectweb.asm.FieldVisitor
 import org.objectweb.asm.Handle
-import org.objectweb.asm.Label
 import org.objectweb.asm.MethodVisitor
 import org.objectweb.asm.Opcodes
 import org.objectweb.asm.Type
@@ -25,6 +24,7 @@ class JasmDisassemblingVisitor(
 ) : ClassVisitor(Opcodes.ASM9) {
     companion object {
         private val LINE_SEPARATOR = System.lineSeparator()
+        private const val EXPECTED_LINE_LENGTH = 32
 
         private val OPCODE_NAMES = mapOf(
             Opcodes.AALOAD to "aaload",
@@ -225,6 +225,11 @@ class JasmDisassemblingVisitor(
     private var signature = "<no signature>"
     private var supername = ""
     private val interfaces = mutableListOf<String>()
+    private var nestHost: String? = null
+    private val nestMembers = mutableListOf<String>()
+    private val methodDescriptors = HashMap<String, String>()
+    private val typeDescriptors = HashMap<String, String>()
+    private val recorder = CompactCode.Recorder()
 
     constructor(unitName: String, errorCollector: ErrorCollector) : this(unitName, false, errorCollector)
     constructor(unitName: String, lineNumbers: Boolean, errorCollector: ErrorCollector) : this(Modifiers(), unitName, lineNumbers, errorCollector)
@@ -256,7 +261,7 @@ class JasmDisassemblingVisitor(
 
     private fun classHeader(indenter: Indenter) = indenter.indented("${formattedModifiers(this.access)}class ${
         LiteralNames.escape(this.name)
-    }${extends()}${implements()}")
+    }${extends()}${implements()}${nest()}")
 
     private fun extends(): String {
         if (this.supername.isEmpty() || this.supername.isBlank() || this.supername == "java/lang/Object") {
@@ -274,6 +279,16 @@ class JasmDisassemblingVisitor(
         }
     }
 
+    private fun nest(): String {
+        val host = this.nestHost
+
+        return when {
+            host != null -> " nesthost ${LiteralNames.escape(host)}"
+            this.nestMembers.isNotEmpty() -> " nestmembers ${this.nestMembers.joinToString(", ") { LiteralNames.escape(it) }}"
+            else -> ""
+        }
+    }
+
     private fun classBody(indenter: Indenter): String {
         return if (methods.isEmpty() && fields.isEmpty()) {
             ""
@@ -309,6 +324,14 @@ class JasmDisassemblingVisitor(
         this.interfaces.addAll(interfaces ?: emptyArray())
     }
 
+    override fun visitNestHost(nestHost: String) {
+        this.nestHost = nestHost
+    }
+
+    override fun visitNestMember(nestMember: String) {
+        this.nestMembers.add(nestMember)
+    }
+
     override fun visitSource(source: String?, debug: String?) {
         this.originalSourceName = source ?: "<unknown>"
         this.debug = debug ?: ""
@@ -437,11 +460,12 @@ class JasmDisassemblingVisitor(
         return "(${params.joinToString(", ")})${if (ctx.return_() != null) disassembleSingleType(ctx.return_().type()) else ""}"
     }
 
-    private fun disassembleMethodDescriptor(descriptor: String) = disassembleMethodDescriptor(descriptor, emptyList())
+    // Descriptors repeat a lot within a class, and each one needs a parser, so keep them
+    private fun disassembleMethodDescriptor(descriptor: String) =
+        methodDescriptors.getOrPut(descriptor) { disassembleMethodDescriptor(descriptor, emptyList()) }
 
-    private fun disassembleTypeDescriptor(type: String): String {
-        val ctx = JvmTypesParser(CommonTokenStream(JvmTypesLexer(CharStreams.fromString(type)))).type()
-        return disassembleSingleType(ctx)
+    private fun disassembleTypeDescriptor(type: String) = typeDescriptors.getOrPut(type) {
+        disassembleSingleType(JvmTypesParser(CommonTokenStream(JvmTypesLexer(CharStreams.fromString(type)))).type())
     }
 
     private fun disassembleSingleType(ctx: JvmTypesParser.TypeContext): String {
@@ -462,59 +486,6 @@ class JasmDisassemblingVisitor(
 
     private fun escapeString(value: String) = value.replace("\"", "\"\"")
 
-    private interface CodeElement {
-        fun generate(indenter: Indenter): String
-    }
-
-    private inner class Line(val line: String) : CodeElement {
-        override fun generate(indenter: Indenter): String {
-            return indenter.indented(line)
-        }
-    }
-
-    private inner class LookupSwitch(val default: String, val keys: IntArray, val labels: List<String>) : CodeElement {
-        override fun generate(indenter: Indenter): String {
-            val blockIndent = indenter.indent()
-
-            return indenter.indented("${OPCODE_NAMES[Opcodes.LOOKUPSWITCH]!!} $default {$LINE_SEPARATOR") +
-                    keys.zip(labels).joinToString(",$LINE_SEPARATOR") { (key, label) -> blockIndent.indented("$key: $label") } +
-                    LINE_SEPARATOR +
-                    indenter.indented("}")
-        }
-    }
-
-    private inner class TableSwitch(val default: String, val min: Int, val max: Int, val labels: List<String>) : CodeElement {
-        override fun generate(indenter: Indenter): String {
-            val blockIndent = indenter.indent()
-
-            return indenter.indented("${OPCODE_NAMES[Opcodes.TABLESWITCH]!!} $default {$LINE_SEPARATOR") +
-                    (min..max).zip(labels).joinToString(",$LINE_SEPARATOR") { (key, label) -> blockIndent.indented("$key: $label") } +
-                    LINE_SEPARATOR +
-                    indenter.indented("}")
-        }
-    }
-
-    private inner class InvokeDynamic(
-        val name: String,
-        val descriptor: String,
-        val bootstrapMethodHandle: Handle,
-        val bootstrapMethodArguments: Array<out Any?>
-    ) : CodeElement {
-        override fun generate(indenter: Indenter): String {
-            val blockIndent = indenter.indent()
-
-            return indenter.indented("${OPCODE_NAMES[Opcodes.INVOKEDYNAMIC]!!} ${LiteralNames.escapeMethodName(name)}${disassembleMethodDescriptor(descriptor)} {$LINE_SEPARATOR") +
-                    blockIndent.indented("${disassembleMethodHandle(bootstrapMethodHandle)}$LINE_SEPARATOR") +
-                    disassembleBootstrapArguments(blockIndent, bootstrapMethodArguments) +
-                    indenter.indented("}$LINE_SEPARATOR")
-        }
-    }
-
-    private inner class Ldc(val value: Any): CodeElement {
-        override fun generate(indenter: Indenter): String
-                = indenter.indented("${OPCODE_NAMES[Opcodes.LDC]!!} ${disassembleConstArg(value, indenter)}")
-    }
-
     private open inner class JasmDisassemblingAnnotationVisitor(
         private val descriptor: String
     ) : AnnotationVisitor(Opcodes.ASM9) {
@@ -642,12 +613,10 @@ class JasmDisassemblingVisitor(
         val descriptor: String,
         val signature: String?,
         val exceptions: Array<out String>?
-    ) : MethodVisitor(Opcodes.ASM9) {
+    ) : MethodVisitor(Opcodes.ASM9, recorder) {
         private val annotations = mutableListOf<JasmDisassemblingAnnotationVisitor>()
         private val parameterAnnotations = mutableListOf<MutableList<JasmDisassemblingAnnotationVisitor>?>()
-        private val labels = mutableMapOf<Label, String>()
-        private var nextLabelNum = 0
-        private val blocks = mutableListOf<CodeElement>()
+        private lateinit var code: CompactCode
 
         fun output(indenter: Indenter) =
                 methodComment(indenter) +
@@ -673,8 +642,8 @@ class JasmDisassemblingVisitor(
                 }")
 
         fun methodBody(indenter: Indenter): String {
-            return if (blocks.isNotEmpty())
-                " {$LINE_SEPARATOR${blocks.joinToString(LINE_SEPARATOR) { it.generate(indenter) }}$LINE_SEPARATOR${indenter.outdent().indented("}")}$LINE_SEPARATOR"
+            return if (code.size > 0)
+                " {$LINE_SEPARATOR${CodeRenderer(indenter, code).render()}$LINE_SEPARATOR${indenter.outdent().indented("}")}$LINE_SEPARATOR"
             else
                 LINE_SEPARATOR
         }
@@ -705,122 +674,137 @@ class JasmDisassemblingVisitor(
             }
         }
 
-        override fun visitTryCatchBlock(start: Label, end: Label, handler: Label, type: String?) {
-            blocks.add(Line("exception ${getLabelName(start)}, ${getLabelName(end)}, ${getLabelName(handler)}${
-                if (type != null) ", ${handleBareType(type)}" else ""
-            }"))
-        }
-
-        override fun visitLineNumber(line: Int, start: Label?) {
-            if (lineNumbers) {
-                blocks.add(Line("// Line $line"))
-            }
-        }
-
-        override fun visitInsn(opcode: Int) {
-            blocks.add(Line(OPCODE_NAMES[opcode]!!))
+        // Methods are visited one at a time, so they share the class's recorder
+        override fun visitEnd() {
+            code = recorder.toCompactCode()
+            recorder.clear()
         }
 
-        override fun visitIntInsn(opcode: Int, operand: Int) {
-            if (opcode == Opcodes.NEWARRAY) {
-                // Handle this specially
-                blocks.add(Line("${OPCODE_NAMES[opcode]!!} ${NEWARRAY_TYPES[operand]}"))
-            } else {
-                blocks.add(Line("${OPCODE_NAMES[opcode]!!} $operand"))
-            }
-        }
+        private fun formattedModifiers(modifierBitmap: Int): String {
+            val modsStr = modifiers.disassembleMethodModifiers(modifierBitmap)
 
-        override fun visitTypeInsn(opcode: Int, type: String) {
-            blocks.add(Line("${OPCODE_NAMES[opcode]!!} ${handleBareType(type)}"))
+            return if (modsStr.isNotEmpty())
+                "$modsStr "
+            else
+                ""
         }
 
-        override fun visitFieldInsn(opcode: Int, owner: String, name: String, descriptor: String) {
-            blocks.add(Line("${OPCODE_NAMES[opcode]!!} ${handleBareType(owner)}.${LiteralNames.escape(name)} ${disassembleTypeDescriptor(descriptor)}"))
-        }
+    }
 
-        override fun visitMethodInsn(
-            opcode: Int,
-            owner: String,
-            name: String,
-            descriptor: String,
-            isInterface: Boolean
-        ) {
-            if (opcode == Opcodes.INVOKEVIRTUAL || opcode == Opcodes.INVOKESTATIC) {
-                blocks.add(
-                    Line(
-                        "${OPCODE_NAMES[opcode]!!}${if (isInterface) "*" else ""} ${handleBareType(owner)}.${
-                            LiteralNames.escapeMethodName(name)
-                        }${
-                            disassembleMethodDescriptor(
-                                descriptor
-                            )
-                        }"
-                    )
-                )
-            } else {
-                blocks.add(
-                    Line(
-                        "${OPCODE_NAMES[opcode]!!} ${handleBareType(owner)}.${LiteralNames.escapeMethodName(name)}${
-                            disassembleMethodDescriptor(
-                                descriptor
-                            )
-                        }"
-                    )
-                )
+    /*
+     * Renders code into a single builder, one line per element (plus a blank line before
+     * each label). Labels are numbered in the order they're first referred to, which is
+     * the order the code records them in.
+     */
+    private inner class CodeRenderer(private val indenter: Indenter, private val code: CompactCode) {
+        private val prefix = indenter.indented("")
+        private val blockPrefix = indenter.indent().indented("")
+        private val out = StringBuilder(code.size * EXPECTED_LINE_LENGTH)
+        private var first = true
+
+        fun render(): String {
+            for (i in 0 until code.size) {
+                fun op(n: Int) = code.operand(i, n)
+                fun str(n: Int) = code.symbol(code.operand(i, n)) as String
+
+                when (val opcode = code.opcode(i)) {
+                    CompactCode.LABEL -> {
+                        line()
+                        line().append("label").append(op(0)).append(':')
+                    }
+                    CompactCode.LINE_NUMBER -> if (lineNumbers) {
+                        line().append("// Line ").append(op(0))
+                    }
+                    CompactCode.TRY_CATCH -> {
+                        line().append("exception label").append(op(0)).append(", label").append(op(1)).append(", label").append(op(2))
+                        if (op(3) >= 0) {
+                            out.append(", ").append(handleBareType(str(3)))
+                        }
+                    }
+                    Opcodes.NEWARRAY -> line().append(OPCODE_NAMES[opcode]!!).append(' ').append(NEWARRAY_TYPES[op(0)])
+                    Opcodes.BIPUSH, Opcodes.SIPUSH, Opcodes.RET,
+                    Opcodes.ILOAD, Opcodes.LLOAD, Opcodes.FLOAD, Opcodes.DLOAD, Opcodes.ALOAD,
+                    Opcodes.ISTORE, Opcodes.LSTORE, Opcodes.FSTORE, Opcodes.DSTORE, Opcodes.ASTORE ->
+                        line().append(OPCODE_NAMES[opcode]!!).append(' ').append(op(0))
+                    Opcodes.IINC -> line().append(OPCODE_NAMES[opcode]!!).append(' ').append(op(0)).append(", [").append(op(1)).append(']')
+                    Opcodes.NEW, Opcodes.ANEWARRAY, Opcodes.CHECKCAST, Opcodes.INSTANCEOF ->
+                        line().append(OPCODE_NAMES[opcode]!!).append(' ').append(handleBareType(str(0)))
+                    Opcodes.GETSTATIC, Opcodes.PUTSTATIC, Opcodes.GETFIELD, Opcodes.PUTFIELD ->
+                        line().append(OPCODE_NAMES[opcode]!!).append(' ').append(handleBareType(str(0))).append('.')
+                            .append(LiteralNames.escape(str(1))).append(' ').append(disassembleTypeDescriptor(str(2)))
+                    Opcodes.INVOKEVIRTUAL, Opcodes.INVOKESPECIAL, Opcodes.INVOKESTATIC, Opcodes.INVOKEINTERFACE -> {
+                        line().append(OPCODE_NAMES[opcode]!!)
+                        if (op(3) != 0 && (opcode == Opcodes.INVOKEVIRTUAL || opcode == Opcodes.INVOKESTATIC)) {
+                            out.append('*')
+                        }
+                        out.append(' ').append(handleBareType(str(0))).append('.')
+                            .append(LiteralNames.escapeMethodName(str(1))).append(disassembleMethodDescriptor(str(2)))
+                    }
+                    Opcodes.INVOKEDYNAMIC -> invokeDynamic(i)
+                    Opcodes.LDC -> line().append(OPCODE_NAMES[opcode]!!).append(' ').append(disassembleConstArg(code.symbol(op(0)), indenter))
+                    Opcodes.TABLESWITCH -> {
+                        switchHeader(opcode, op(2))
+                        for (key in 0 until code.operandCount(i) - 3) {
+                            switchCase(key == 0, op(0) + key, op(3 + key))
+                        }
+                        switchFooter()
+                    }
+                    Opcodes.LOOKUPSWITCH -> {
+                        val count = op(1)
+
+                        switchHeader(opcode, op(0))
+                        for (key in 0 until count) {
+                            switchCase(key == 0, op(2 + key), op(2 + count + key))
+                        }
+                        switchFooter()
+                    }
+                    Opcodes.MULTIANEWARRAY ->
+                        line().append(OPCODE_NAMES[opcode]!!).append(' ').append(disassembleTypeDescriptor(str(0))).append(", ").append(op(1))
+                    in Opcodes.IFEQ..Opcodes.JSR, Opcodes.IFNULL, Opcodes.IFNONNULL ->
+                        line().append(OPCODE_NAMES[opcode]!!).append(" label").append(op(0))
+                    else -> line().append(OPCODE_NAMES[opcode]!!)
+                }
             }
-        }
 
-        override fun visitInvokeDynamicInsn(
-            name: String,
-            descriptor: String,
-            bootstrapMethodHandle: Handle,
-            vararg bootstrapMethodArguments: Any?
-        ) {
-            blocks.add(InvokeDynamic(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments))
-        }
-
-        override fun visitJumpInsn(opcode: Int, label: Label) {
-            blocks.add(Line("${OPCODE_NAMES[opcode]!!} ${getLabelName(label)}"))
-        }
-
-        override fun visitLabel(label: Label) {
-            blocks.add(Line(""))
-            blocks.add(Line("${getLabelName(label)}:"))
+            return out.toString()
         }
 
-        override fun visitLdcInsn(value: Any) {
-            blocks.add(Ldc(value))
-        }
+        private fun line(): StringBuilder {
+            if (!first) {
+                out.append(LINE_SEPARATOR)
+            }
 
-        override fun visitIincInsn(varIndex: Int, increment: Int) {
-            blocks.add(Line("${OPCODE_NAMES[Opcodes.IINC]!!} $varIndex, [$increment]"))
+            first = false
+            return out.append(prefix)
         }
 
-        override fun visitTableSwitchInsn(min: Int, max: Int, dflt: Label, vararg labels: Label) {
-            blocks.add(TableSwitch(getLabelName(dflt), min, max, labels.map { getLabelName(it) }))
+        private fun switchHeader(opcode: Int, default: Int) {
+            line().append(OPCODE_NAMES[opcode]!!).append(" label").append(default).append(" {").append(LINE_SEPARATOR)
         }
 
-        override fun visitLookupSwitchInsn(dflt: Label, keys: IntArray, labels: Array<out Label>) {
-            blocks.add(LookupSwitch(getLabelName(dflt), keys, labels.map { getLabelName(it) }))
-        }
+        private fun switchCase(first: Boolean, key: Int, label: Int) {
+            if (!first) {
+                out.append(',').append(LINE_SEPARATOR)
+            }
 
-        override fun visitMultiANewArrayInsn(descriptor: String, numDimensions: Int) {
-            blocks.add(Line("${OPCODE_NAMES[Opcodes.MULTIANEWARRAY]!!} ${disassembleTypeDescriptor(descriptor)}, $numDimensions"))
+            out.append(blockPrefix).append(key).append(": label").append(label)
         }
 
-        override fun visitVarInsn(opcode: Int, varIndex: Int) {
-            blocks.add(Line("${OPCODE_NAMES[opcode]} $varIndex"))
+        private fun switchFooter() {
+            out.append(LINE_SEPARATOR).append(prefix).append('}')
         }
 
-        private fun formattedModifiers(modifierBitmap: Int): String {
-            val modsStr = modifiers.disassembleMethodModifiers(modifierBitmap)
+        private fun invokeDynamic(i: Int) {
+            val blockIndent = indenter.indent()
+            val arguments = Array(code.operand(i, 3)) { code.symbol(code.operand(i, 4 + it)) }
 
-            return if (modsStr.isNotEmpty())
-                "$modsStr "
-            else
-                ""
+            line().append(OPCODE_NAMES[Opcodes.INVOKEDYNAMIC]!!).append(' ')
+                .append(LiteralNames.escapeMethodName(code.symbol(code.operand(i, 0)) as String))
+                .append(disassembleMethodDescriptor(code.symbol(code.operand(i, 1)) as String))
+                .append(" {").append(LINE_SEPARATOR)
+                .append(blockPrefix).append(disassembleMethodHandle(code.symbol(code.operand(i, 2)) as Handle)).append(LINE_SEPARATOR)
+                .append(disassembleBootstrapArguments(blockIndent, arguments))
+                .append(prefix).append('}').append(LINE_SEPARATOR)
         }
-
-        private fun getLabelName(label: Label) = labels.getOrPut(label) { "label${nextLabelNum++}" }
     }
 }
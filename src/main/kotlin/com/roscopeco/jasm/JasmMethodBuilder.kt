@@ -0,0 +1,503 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import com.roscopeco.jasm.errors.BaseError
+import org.objectweb.asm.Handle
+import org.objectweb.asm.Label
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.tree.AbstractInsnNode
+import org.objectweb.asm.tree.MethodNode
+import java.util.function.Consumer
+
+/**
+ * Generates the code for a method built with [JasmClassBuilder].
+ *
+ * There's a function for each JASM instruction, taking the same operands. Jumps, switches and
+ * exception handlers refer to labels by name, and labels are declared with [label]. Locals can
+ * be referred to by slot or by name, exactly as in source. Instructions whose names are Java
+ * keywords are renamed: `new` is [anew], `goto` is [goTo], `instanceof` is [instanceOf] and
+ * `return` is [vreturn].
+ *
+ * Invalid operands (e.g. `fconst(3)`) throw `IllegalArgumentException` straight away, while
+ * errors that need the whole method (e.g. labels that are never declared) are reported when
+ * the class is built.
+ */
+class JasmMethodBuilder internal constructor(
+    private val owner: JasmClassBuilder,
+    name: String,
+    descriptor: String,
+    access: Int
+) {
+    private val labels = HashMap<String, LabelHolder>()
+    private val localNames = LinkedHashMap<AbstractInsnNode, String>()
+
+    // As in the assembler, code is buffered so it can be analysed before it's passed on to the ClassWriter.
+    private val methodNode = MethodNode(Opcodes.ASM9, access, name, descriptor, null, null)
+
+    /**
+     * A `catch` block for [tryCatch].
+     *
+     * @param type The internal name of the exception type to catch
+     * @param body Generates the handler, which starts with the exception on the stack
+     */
+    class CatchBlock(internal val type: String, internal val body: Consumer<JasmMethodBuilder>)
+
+    /**
+     * Declare a label at this point in the code.
+     */
+    fun label(name: String): JasmMethodBuilder {
+        methodNode.visitLabel(declareLabel(name).label)
+        return this
+    }
+
+    /**
+     * Generate a `try` block, with a `catch` block for each exception type, as the `try` / `catch`
+     * sugar in source does.
+     */
+    fun tryCatch(body: Consumer<JasmMethodBuilder>, vararg catches: CatchBlock): JasmMethodBuilder {
+        require(catches.isNotEmpty()) { "A try block needs at least one catch block" }
+
+        val start = Label()
+        val end = Label()
+        val handlers = catches.map { Label() }
+        val skip = Label()
+
+        methodNode.visitLabel(start)
+        body.accept(this)
+        methodNode.visitLabel(end)
+        methodNode.visitJumpInsn(Opcodes.GOTO, skip)
+
+        catches.forEachIndexed { i, block ->
+            methodNode.visitLabel(handlers[i])
+            block.body.accept(this)
+
+            if (catches.size > 1 && i < catches.size - 1) {
+                methodNode.visitJumpInsn(Opcodes.GOTO, skip)
+            }
+        }
+
+        methodNode.visitLabel(skip)
+
+        catches.forEachIndexed { i, block -> methodNode.visitTryCatchBlock(start, end, handlers[i], block.type) }
+        return this
+    }
+
+    @JvmSynthetic
+    fun tryCatch(body: JasmMethodBuilder.() -> Unit, vararg catches: CatchBlock) = tryCatch(Consumer(body), *catches)
+
+    /**
+     * Create a `catch` block for [tryCatch].
+     */
+    fun catching(type: String, body: Consumer<JasmMethodBuilder>) = CatchBlock(type, body)
+
+    @JvmSynthetic
+    fun catching(type: String, body: JasmMethodBuilder.() -> Unit) = CatchBlock(type, Consumer(body))
+
+    /**
+     * Register an exception handler covering the code between two labels, as `exception` does in source.
+     *
+     * @param type The internal name of the exception type, or `null` to catch anything
+     */
+    @JvmOverloads
+    fun exception(start: String, end: String, handler: String, type: String? = null): JasmMethodBuilder {
+        methodNode.visitTryCatchBlock(getLabel(start).label, getLabel(end).label, getLabel(handler).label, type)
+        return this
+    }
+
+    fun aaload() = insn(Opcodes.AALOAD)
+    fun aastore() = insn(Opcodes.AASTORE)
+    fun aconst_null() = insn(Opcodes.ACONST_NULL)
+    fun aload(slot: Int) = varInsn(Opcodes.ALOAD, slot)
+    fun aload(name: String) = namedVarInsn(Opcodes.ALOAD, name)
+    fun anewarray(type: String) = typeInsn(Opcodes.ANEWARRAY, type)
+    fun areturn() = insn(Opcodes.ARETURN)
+    fun arraylength() = insn(Opcodes.ARRAYLENGTH)
+    fun astore(slot: Int) = varInsn(Opcodes.ASTORE, slot)
+    fun astore(name: String) = namedVarInsn(Opcodes.ASTORE, name)
+    fun athrow() = insn(Opcodes.ATHROW)
+    fun baload() = insn(Opcodes.BALOAD)
+    fun bastore() = insn(Opcodes.BASTORE)
+    fun bipush(value: Int) = intInsn("BIPUSH", Opcodes.BIPUSH, value, Byte.MIN_VALUE..Byte.MAX_VALUE)
+    fun caload() = insn(Opcodes.CALOAD)
+    fun castore() = insn(Opcodes.CASTORE)
+    fun checkcast(type: String) = typeInsn(Opcodes.CHECKCAST, type)
+    fun d2f() = insn(Opcodes.D2F)
+    fun d2i() = insn(Opcodes.D2I)
+    fun d2l() = insn(Opcodes.D2L)
+    fun dadd() = insn(Opcodes.DADD)
+    fun daload() = insn(Opcodes.DALOAD)
+    fun dastore() = insn(Opcodes.DASTORE)
+    fun dcmpg() = insn(Opcodes.DCMPG)
+    fun dcmpl() = insn(Opcodes.DCMPL)
+    fun dconst(value: Int) = constInsn("DCONST", Opcodes.DCONST_0, value, 0..1)
+    fun ddiv() = insn(Opcodes.DDIV)
+    fun dload(slot: Int) = varInsn(Opcodes.DLOAD, slot)
+    fun dload(name: String) = namedVarInsn(Opcodes.DLOAD, name)
+    fun dmul() = insn(Opcodes.DMUL)
+    fun dneg() = insn(Opcodes.DNEG)
+    fun drem() = insn(Opcodes.DREM)
+    fun dreturn() = insn(Opcodes.DRETURN)
+    fun dstore(slot: Int) = varInsn(Opcodes.DSTORE, slot)
+    fun dstore(name: String) = namedVarInsn(Opcodes.DSTORE, name)
+    fun dsub() = insn(Opcodes.DSUB)
+    fun dup() = insn(Opcodes.DUP)
+    fun dup_x1() = insn(Opcodes.DUP_X1)
+    fun dup_x2() = insn(Opcodes.DUP_X2)
+    fun dup2() = insn(Opcodes.DUP2)
+    fun dup2_x1() = insn(Opcodes.DUP2_X1)
+    fun dup2_x2() = insn(Opcodes.DUP2_X2)
+    fun f2d() = insn(Opcodes.F2D)
+    fun f2i() = insn(Opcodes.F2I)
+    fun f2l() = insn(Opcodes.F2L)
+    fun fadd() = insn(Opcodes.FADD)
+    fun faload() = insn(Opcodes.FALOAD)
+    fun fastore() = insn(Opcodes.FASTORE)
+    fun fcmpg() = insn(Opcodes.FCMPG)
+    fun fcmpl() = insn(Opcodes.FCMPL)
+    fun fconst(value: Int) = constInsn("FCONST", Opcodes.FCONST_0, value, 0..2)
+    fun fdiv() = insn(Opcodes.FDIV)
+    fun fload(slot: Int) = varInsn(Opcodes.FLOAD, slot)
+    fun fload(name: String) = namedVarInsn(Opcodes.FLOAD, name)
+    fun fmul() = insn(Opcodes.FMUL)
+    fun fneg() = insn(Opcodes.FNEG)
+    fun frem() = insn(Opcodes.FREM)
+    fun freturn() = insn(Opcodes.FRETURN)
+    fun fstore(slot: Int) = varInsn(Opcodes.FSTORE, slot)
+    fun fstore(name: String) = namedVarInsn(Opcodes.FSTORE, name)
+    fun fsub() = insn(Opcodes.FSUB)
+    fun getfield(owner: String, name: String, descriptor: String) = fieldInsn(Opcodes.GETFIELD, owner, name, descriptor)
+    fun getstatic(owner: String, name: String, descriptor: String) = fieldInsn(Opcodes.GETSTATIC, owner, name, descriptor)
+    fun goTo(label: String) = jumpInsn(Opcodes.GOTO, label)
+    fun i2b() = insn(Opcodes.I2B)
+    fun i2c() = insn(Opcodes.I2C)
+    fun i2d() = insn(Opcodes.I2D)
+    fun i2f() = insn(Opcodes.I2F)
+    fun i2l() = insn(Opcodes.I2L)
+    fun i2s() = insn(Opcodes.I2S)
+    fun iadd() = insn(Opcodes.IADD)
+    fun iaload() = insn(Opcodes.IALOAD)
+    fun iand() = insn(Opcodes.IAND)
+    fun iastore() = insn(Opcodes.IASTORE)
+    fun iconst(value: Int) = constInsn("ICONST", Opcodes.ICONST_0, value, -1..5)
+    fun iconst(value: Boolean) = iconst(if (value) 1 else 0)
+    fun idiv() = insn(Opcodes.IDIV)
+    fun if_acmpeq(label: String) = jumpInsn(Opcodes.IF_ACMPEQ, label)
+    fun if_acmpne(label: String) = jumpInsn(Opcodes.IF_ACMPNE, label)
+    fun if_icmpeq(label: String) = jumpInsn(Opcodes.IF_ICMPEQ, label)
+    fun if_icmpge(label: String) = jumpInsn(Opcodes.IF_ICMPGE, label)
+    fun if_icmpgt(label: String) = jumpInsn(Opcodes.IF_ICMPGT, label)
+    fun if_icmple(label: String) = jumpInsn(Opcodes.IF_ICMPLE, label)
+    fun if_icmplt(label: String) = jumpInsn(Opcodes.IF_ICMPLT, label)
+    fun if_icmpne(label: String) = jumpInsn(Opcodes.IF_ICMPNE, label)
+    fun ifeq(label: String) = jumpInsn(Opcodes.IFEQ, label)
+    fun ifge(label: String) = jumpInsn(Opcodes.IFGE, label)
+    fun ifgt(label: String) = jumpInsn(Opcodes.IFGT, label)
+    fun ifle(label: String) = jumpInsn(Opcodes.IFLE, label)
+    fun iflt(label: String) = jumpInsn(Opcodes.IFLT, label)
+    fun ifne(label: String) = jumpInsn(Opcodes.IFNE, label)
+    fun ifnonnull(label: String) = jumpInsn(Opcodes.IFNONNULL, label)
+    fun ifnull(label: String) = jumpInsn(Opcodes.IFNULL, label)
+
+    fun iinc(slot: Int, increment: Int): JasmMethodBuilder {
+        methodNode.visitIincInsn(slot, increment)
+        return this
+    }
+
+    fun iinc(name: String, increment: Int): JasmMethodBuilder {
+        methodNode.visitIincInsn(0, increment)
+        localNames[methodNode.instructions.last] = name
+        return this
+    }
+
+    fun iload(slot: Int) = varInsn(Opcodes.ILOAD, slot)
+    fun iload(name: String) = namedVarInsn(Opcodes.ILOAD, name)
+    fun imul() = insn(Opcodes.IMUL)
+    fun ineg() = insn(Opcodes.INEG)
+    fun instanceOf(type: String) = typeInsn(Opcodes.INSTANCEOF, type)
+
+    fun invokedynamic(name: String, descriptor: String, bootstrap: Handle, vararg arguments: Any): JasmMethodBuilder {
+        methodNode.visitInvokeDynamicInsn(name, descriptor, bootstrap, *arguments)
+        return this
+    }
+
+    fun invokeinterface(owner: String, name: String, descriptor: String) =
+        methodInsn(Opcodes.INVOKEINTERFACE, owner, name, descriptor, true)
+
+    fun invokespecial(owner: String, name: String, descriptor: String) =
+        methodInsn(Opcodes.INVOKESPECIAL, owner, name, descriptor, false)
+
+    /**
+     * @param isInterface `true` if the owner is an interface (written `invokestatic* ...` in source)
+     */
+    @JvmOverloads
+    fun invokestatic(owner: String, name: String, descriptor: String, isInterface: Boolean = false) =
+        methodInsn(Opcodes.INVOKESTATIC, owner, name, descriptor, isInterface)
+
+    /**
+     * @param isInterface `true` if the owner is an interface (written `invokevirtual* ...` in source)
+     */
+    @JvmOverloads
+    fun invokevirtual(owner: String, name: String, descriptor: String, isInterface: Boolean = false) =
+        methodInsn(Opcodes.INVOKEVIRTUAL, owner, name, descriptor, isInterface)
+
+    fun ior() = insn(Opcodes.IOR)
+    fun irem() = insn(Opcodes.IREM)
+    fun ireturn() = insn(Opcodes.IRETURN)
+    fun ishl() = insn(Opcodes.ISHL)
+    fun ishr() = insn(Opcodes.ISHR)
+    fun istore(slot: Int) = varInsn(Opcodes.ISTORE, slot)
+    fun istore(name: String) = namedVarInsn(Opcodes.ISTORE, name)
+    fun isub() = insn(Opcodes.ISUB)
+    fun iushr() = insn(Opcodes.IUSHR)
+    fun ixor() = insn(Opcodes.IXOR)
+    fun jsr(label: String) = jumpInsn(Opcodes.JSR, label)
+    fun l2d() = insn(Opcodes.L2D)
+    fun l2f() = insn(Opcodes.L2F)
+    fun l2i() = insn(Opcodes.L2I)
+    fun ladd() = insn(Opcodes.LADD)
+    fun laload() = insn(Opcodes.LALOAD)
+    fun land() = insn(Opcodes.LAND)
+    fun lastore() = insn(Opcodes.LASTORE)
+    fun lcmp() = insn(Opcodes.LCMP)
+    fun lconst(value: Int) = constInsn("LCONST", Opcodes.LCONST_0, value, 0..1)
+
+    /**
+     * Load a constant (e.g. an `Integer`, `String`, `Type`, `Handle` or `ConstantDynamic`) with
+     * `ldc`, as it is. Use [push] to load a number with the smallest instruction.
+     */
+    fun ldc(value: Any): JasmMethodBuilder {
+        methodNode.visitLdcInsn(value)
+        return this
+    }
+
+    fun ldiv() = insn(Opcodes.LDIV)
+    fun lload(slot: Int) = varInsn(Opcodes.LLOAD, slot)
+    fun lload(name: String) = namedVarInsn(Opcodes.LLOAD, name)
+    fun lmul() = insn(Opcodes.LMUL)
+    fun lneg() = insn(Opcodes.LNEG)
+
+    /**
+     * @param cases The label to jump to for each key, in the order they should appear
+     */
+    fun lookupswitch(default: String, cases: Map<Int, String>): JasmMethodBuilder {
+        methodNode.visitLookupSwitchInsn(
+            getLabel(default).label,
+            cases.keys.toIntArray(),
+            cases.values.map { getLabel(it).label }.toTypedArray()
+        )
+        return this
+    }
+
+    fun lor() = insn(Opcodes.LOR)
+    fun lrem() = insn(Opcodes.LREM)
+    fun lreturn() = insn(Opcodes.LRETURN)
+    fun lshl() = insn(Opcodes.LSHL)
+    fun lshr() = insn(Opcodes.LSHR)
+    fun lstore(slot: Int) = varInsn(Opcodes.LSTORE, slot)
+    fun lstore(name: String) = namedVarInsn(Opcodes.LSTORE, name)
+    fun lsub() = insn(Opcodes.LSUB)
+    fun lushr() = insn(Opcodes.LUSHR)
+    fun lxor() = insn(Opcodes.LXOR)
+    fun monitorenter() = insn(Opcodes.MONITORENTER)
+    fun monitorexit() = insn(Opcodes.MONITOREXIT)
+
+    /**
+     * @param dimensions The number of dimensions to create (defaults to all of them, as in source)
+     */
+    @JvmOverloads
+    fun multianewarray(type: String, dimensions: Int = type.count { it == '[' }): JasmMethodBuilder {
+        methodNode.visitMultiANewArrayInsn(type, dimensions)
+        return this
+    }
+
+    fun anew(type: String) = typeInsn(Opcodes.NEW, type)
+
+    /**
+     * @param type The descriptor of the (primitive) element type, e.g. `I`
+     */
+    fun newarray(type: String): JasmMethodBuilder {
+        methodNode.visitIntInsn(Opcodes.NEWARRAY, when (type) {
+            "Z" -> Opcodes.T_BOOLEAN
+            "B" -> Opcodes.T_BYTE
+            "C" -> Opcodes.T_CHAR
+            "D" -> Opcodes.T_DOUBLE
+            "F" -> Opcodes.T_FLOAT
+            "I" -> Opcodes.T_INT
+            "J" -> Opcodes.T_LONG
+            "S" -> Opcodes.T_SHORT
+            else -> throw IllegalArgumentException("Unknown primitive type for newarray $type")
+        })
+        return this
+    }
+
+    fun nop() = insn(Opcodes.NOP)
+    fun pop() = insn(Opcodes.POP)
+    fun pop2() = insn(Opcodes.POP2)
+
+    /**
+     * Push an `Integer`, `Long`, `Float` or `Double` using the smallest available encoding,
+     * or a `String` with `ldc`.
+     */
+    fun push(value: Any): JasmMethodBuilder {
+        when (value) {
+            is Int -> when (value) {
+                in -1..5 -> methodNode.visitInsn(Opcodes.ICONST_0 + value)
+                in Byte.MIN_VALUE..Byte.MAX_VALUE -> methodNode.visitIntInsn(Opcodes.BIPUSH, value)
+                in Short.MIN_VALUE..Short.MAX_VALUE -> methodNode.visitIntInsn(Opcodes.SIPUSH, value)
+                else -> methodNode.visitLdcInsn(value)
+            }
+            is Long -> when (value) {
+                0L, 1L -> methodNode.visitInsn(Opcodes.LCONST_0 + value.toInt())
+                else -> methodNode.visitLdcInsn(value)
+            }
+            // Compare bits rather than values so -0.0 isn't pushed as 0.0
+            is Float -> when (value.toRawBits()) {
+                0.0f.toRawBits(), 1.0f.toRawBits(), 2.0f.toRawBits() -> methodNode.visitInsn(Opcodes.FCONST_0 + value.toInt())
+                else -> pushFinite(value, value.isFinite(), "float")
+            }
+            is Double -> when (value.toRawBits()) {
+                0.0.toRawBits(), 1.0.toRawBits() -> methodNode.visitInsn(Opcodes.DCONST_0 + value.toInt())
+                else -> pushFinite(value, value.isFinite(), "double")
+            }
+            is String -> methodNode.visitLdcInsn(value)
+            else -> throw IllegalArgumentException("Invalid operand to PUSH: $value")
+        }
+
+        return this
+    }
+
+    fun putfield(owner: String, name: String, descriptor: String) = fieldInsn(Opcodes.PUTFIELD, owner, name, descriptor)
+    fun putstatic(owner: String, name: String, descriptor: String) = fieldInsn(Opcodes.PUTSTATIC, owner, name, descriptor)
+    fun ret(slot: Int) = intInsn("RET", Opcodes.RET, slot, 0..0xFFFF)
+    fun saload() = insn(Opcodes.SALOAD)
+    fun sastore() = insn(Opcodes.SASTORE)
+    fun sipush(value: Int) = intInsn("SIPUSH", Opcodes.SIPUSH, value, Short.MIN_VALUE..Short.MAX_VALUE)
+    fun swap() = insn(Opcodes.SWAP)
+
+    /**
+     * Keys between the smallest and largest that aren't given jump to the default, as in source.
+     *
+     * @param cases The label to jump to for each key
+     */
+    fun tableswitch(default: String, cases: Map<Int, String>): JasmMethodBuilder {
+        require(cases.isNotEmpty()) { "A tableswitch needs at least one case" }
+
+        val defaultLabel = getLabel(default).label
+        val min = cases.keys.minOf { it }
+        val max = cases.keys.maxOf { it }
+
+        methodNode.visitTableSwitchInsn(
+            min,
+            max,
+            defaultLabel,
+            *(min..max).map { key -> cases[key]?.let { getLabel(it).label } ?: defaultLabel }.toTypedArray()
+        )
+        return this
+    }
+
+    /**
+     * The `return` instruction.
+     */
+    fun vreturn() = insn(Opcodes.RETURN)
+
+    internal fun finish() {
+        val errorCollector = owner.errorCollector
+        val errorCount = errorCollector.getErrors().size
+
+        val undeclaredLabels = labels.entries
+            .filter { (_, value) -> !value.declared }
+            .joinToString { (key, _) -> key }
+
+        if (undeclaredLabels.isNotEmpty()) {
+            errorCollector.addError(BaseError(owner.unitName,
+                "Labels used but not declared in ${methodNode.name}${methodNode.desc}: [$undeclaredLabels]"))
+            return
+        }
+
+        methodNode.visitMaxs(0, 0)
+        methodNode.visitEnd()
+
+        // Same passes as the assembler - there's no source to attribute diagnostics to, though
+        owner.deadCodeEliminator.eliminate(methodNode, emptyMap())
+        owner.localAllocator.allocate(methodNode, localNames, emptyMap())
+
+        if (errorCollector.getErrors().size == errorCount) {
+            owner.tailCallEliminator?.eliminate(methodNode)
+            methodNode.accept(owner.writer)
+        }
+    }
+
+    private fun insn(opcode: Int): JasmMethodBuilder {
+        methodNode.visitInsn(opcode)
+        return this
+    }
+
+    private fun intInsn(name: String, opcode: Int, value: Int, range: IntRange): JasmMethodBuilder {
+        require(value in range) { "Invalid operand to $name: $value (must be in range ${range.first} to ${range.last})" }
+        methodNode.visitIntInsn(opcode, value)
+        return this
+    }
+
+    private fun constInsn(name: String, base: Int, value: Int, range: IntRange): JasmMethodBuilder {
+        require(value in range) { "Invalid operand to $name: $value (must be in range ${range.first} to ${range.last})" }
+        methodNode.visitInsn(base + value)
+        return this
+    }
+
+    private fun varInsn(opcode: Int, slot: Int): JasmMethodBuilder {
+        methodNode.visitVarInsn(opcode, slot)
+        return this
+    }
+
+    // Named locals are emitted with a placeholder slot; the real one is assigned once the whole method is known
+    private fun namedVarInsn(opcode: Int, name: String): JasmMethodBuilder {
+        methodNode.visitVarInsn(opcode, 0)
+        localNames[methodNode.instructions.last] = name
+        return this
+    }
+
+    private fun typeInsn(opcode: Int, type: String): JasmMethodBuilder {
+        methodNode.visitTypeInsn(opcode, type)
+        return this
+    }
+
+    private fun fieldInsn(opcode: Int, owner: String, name: String, descriptor: String): JasmMethodBuilder {
+        methodNode.visitFieldInsn(opcode, owner, name, descriptor)
+        return this
+    }
+
+    private fun methodInsn(opcode: Int, owner: String, name: String, descriptor: String, isInterface: Boolean): JasmMethodBuilder {
+        methodNode.visitMethodInsn(opcode, owner, name, descriptor, isInterface)
+        return this
+    }
+
+    private fun jumpInsn(opcode: Int, label: String): JasmMethodBuilder {
+        methodNode.visitJumpInsn(opcode, getLabel(label).label)
+        return this
+    }
+
+    private fun pushFinite(value: Any, finite: Boolean, type: String) {
+        require(finite) { "Invalid operand to PUSH: $value (must be a finite $type)" }
+        methodNode.visitLdcInsn(value)
+    }
+
+    private fun getLabel(name: String) = labels.computeIfAbsent(name) { LabelHolder(Label(), false) }
+
+    private fun declareLabel(name: String): LabelHolder {
+        val label = labels[name]
+
+        if (label == null) {
+            labels[name] = LabelHolder(Label(), true)
+        } else if (!label.declared) {
+            labels[name] = LabelHolder(label.label, true)
+        }
+
+        return labels[name]!!
+    }
+
+    private class LabelHolder(val label: Label, val declared: Boolean)
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import com.roscopeco.jasm.errors.BaseError
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassVisitor
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.FieldVisitor
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.tree.ClassNode
+import org.objectweb.asm.tree.FieldNode
+import org.objectweb.asm.tree.MethodNode
+import java.io.InputStream
+import java.util.function.Supplier
+
+/**
+ * Patches existing classes with members written in JASM.
+ *
+ * The patch is a JASM class with the same name as the class being patched, containing just the
+ * fields and methods to replace (matched by name and descriptor) or add. Only the patch is
+ * assembled - everything else is copied from the original class as-is, without recomputing
+ * frames. The rest of the patch's class declaration is ignored, but it's used when computing
+ * frames for the patched methods, so it should match the original.
+ *
+ * **Note**: The patcher **will** close the stream returned by the supplier when it is done!
+ *
+ * @param unitName The (display) name of the patch
+ * @param options Optional assembler behaviour, for the patched members
+ * @param classLoader Where to find the class files of other classes when computing frames and verifying
+ *                    (usually the loader of the class being patched). If `null`, see [JasmAssembler].
+ * @param source A supplier of `InputStream` for the patch
+ */
+class JasmPatcher(
+    private val unitName: String,
+    private val options: AssemblerOptions,
+    private val classLoader: ClassLoader?,
+    private val source: Supplier<InputStream>,
+) {
+
+    /**
+     * Convenience constructor which will compute frames using the patcher's own class loader.
+     *
+     * @param unitName The (display) name of the patch
+     * @param options Optional assembler behaviour, for the patched members
+     * @param source A supplier of `InputStream` for the patch
+     */
+    constructor(unitName: String, options: AssemblerOptions, source: Supplier<InputStream>)
+            : this(unitName, options, null, source)
+
+    /**
+     * Convenience constructor which will use default options.
+     *
+     * @param unitName The (display) name of the patch
+     * @param source A supplier of `InputStream` for the patch
+     */
+    constructor(unitName: String, source: Supplier<InputStream>) : this(unitName, AssemblerOptions(), source)
+
+    /**
+     * Non-fatal diagnostics produced when assembling the patch in the most recent call to [patch].
+     */
+    var warnings: List<BaseError> = emptyList()
+        private set
+
+    /**
+     * Patch a class.
+     *
+     * @param classBytes The class to patch
+     * @return bytecode for the patched class
+     */
+    fun patch(classBytes: ByteArray): ByteArray {
+        val reader = ClassReader(classBytes)
+
+        // The patch is always assembled for the same class format as the original
+        val assembler = JasmAssembler(unitName, reader.readUnsignedShort(6), options.copy(release = false), classLoader, source)
+        val patch = ClassNode()
+
+        try {
+            ClassReader(assembler.assemble()).accept(patch, 0)
+        } finally {
+            warnings = assembler.warnings
+        }
+
+        if (patch.name != reader.className) {
+            throw AssemblyException(
+                listOf(BaseError(unitName, "Patch is for class ${patch.name}, but the class being patched is ${reader.className}"))
+            )
+        }
+
+        // Sharing the reader lets the writer copy untouched methods straight from the original
+        val writer = ClassWriter(reader, 0)
+        reader.accept(PatchingVisitor(writer, patch), 0)
+
+        return writer.toByteArray()
+    }
+
+    private class PatchingVisitor(writer: ClassWriter, patch: ClassNode) : ClassVisitor(Opcodes.ASM9, writer) {
+        private val fields = patch.fields.associateByTo(LinkedHashMap()) { it.name + ":" + it.desc }
+        private val methods = patch.methods.associateByTo(LinkedHashMap()) { it.name + it.desc }
+
+        override fun visitField(
+            access: Int,
+            name: String,
+            descriptor: String,
+            signature: String?,
+            value: Any?
+        ): FieldVisitor? {
+            // Replacements go where the original was
+            val replacement: FieldNode = fields.remove("$name:$descriptor")
+                ?: return super.visitField(access, name, descriptor, signature, value)
+
+            replacement.accept(cv)
+            return null
+        }
+
+        override fun visitMethod(
+            access: Int,
+            name: String,
+            descriptor: String,
+            signature: String?,
+            exceptions: Array<out String>?
+        ): MethodVisitor? {
+            val replacement: MethodNode = methods.remove(name + descriptor)
+                ?: return super.visitMethod(access, name, descriptor, signature, exceptions)
+
+            replacement.accept(cv)
+            return null
+        }
+
+        override fun visitEnd() {
+            // Anything left is new
+            fields.values.forEach { it.accept(cv) }
+            methods.values.forEach { it.accept(cv) }
+
+            super.visitEnd()
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import org.objectweb.asm.Opcodes
+import java.io.InputStream
+import java.lang.invoke.MethodHandles
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Method
+import java.util.function.Supplier
+
+/**
+ * Assembles and defines classes at runtime, without needing a `ClassLoader` for each one.
+ *
+ * Classes are defined as hidden classes (with `Lookup.defineHiddenClass`) where the JVM supports
+ * them (Java 15 and later). Hidden classes aren't visible by name, and can be unloaded as soon as
+ * they're no longer used, so they're ideal for generated code. On older JVMs, classes are defined
+ * with `Lookup.defineClass` instead, and belong to the lookup class's loader like any other class.
+ *
+ * Either way, the class must be in the same package as the lookup class, and the lookup must have
+ * `PACKAGE` access. The name of a hidden class is just a prefix - the JVM adds a suffix to make it
+ * unique, so the same code can be defined as many times as needed. Classes can only be made
+ * nestmates of the lookup class when they're hidden.
+ */
+object JasmRuntime {
+    // Looked up reflectively, as it isn't there on Java 11
+    private val defineHiddenClass: Method?
+    private val noOptions: Any?
+    private val nestmateOption: Any?
+
+    init {
+        val classOption = try {
+            Class.forName("java.lang.invoke.MethodHandles\$Lookup\$ClassOption")
+        } catch (e: ClassNotFoundException) {
+            null
+        }
+
+        if (classOption != null) {
+            noOptions = java.lang.reflect.Array.newInstance(classOption, 0)
+            nestmateOption = java.lang.reflect.Array.newInstance(classOption, 1).also {
+                java.lang.reflect.Array.set(it, 0, classOption.getField("NESTMATE").get(null))
+            }
+            defineHiddenClass = MethodHandles.Lookup::class.java.getMethod(
+                "defineHiddenClass",
+                ByteArray::class.java,
+                Boolean::class.javaPrimitiveType,
+                noOptions.javaClass
+            )
+        } else {
+            noOptions = null
+            nestmateOption = null
+            defineHiddenClass = null
+        }
+    }
+
+    /**
+     * Whether this JVM supports hidden classes. If not, classes will be defined normally.
+     */
+    @JvmStatic
+    val supportsHiddenClasses get() = defineHiddenClass != null
+
+    /**
+     * Assemble the given source and define it as a hidden class.
+     *
+     * @param lookup A lookup in the same package as the class, with `PACKAGE` access
+     * @param source The JASM source for the class
+     * @param nestmate If `true`, make the class a nestmate of the lookup class, so each can access the other's private members
+     * @param options Optional assembler behaviour
+     *
+     * @return The class (which has already been initialized)
+     *
+     * @throws AssemblyException if the source has errors
+     * @throws IllegalAccessException if the lookup doesn't have `PACKAGE` access
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun defineHidden(
+        lookup: MethodHandles.Lookup,
+        source: String,
+        nestmate: Boolean = false,
+        options: AssemblerOptions = AssemblerOptions()
+    ): Class<*> = defineHidden(lookup, "<runtime>", { source.byteInputStream() }, nestmate, options)
+
+    /**
+     * Assemble source from the given supplier and define it as a hidden class.
+     *
+     * @param lookup A lookup in the same package as the class, with `PACKAGE` access
+     * @param unitName The (display) name of the compilation unit
+     * @param source A supplier of `InputStream` (which will be closed once the source is read)
+     * @param nestmate If `true`, make the class a nestmate of the lookup class, so each can access the other's private members
+     * @param options Optional assembler behaviour
+     *
+     * @return The class (which has already been initialized)
+     *
+     * @throws AssemblyException if the source has errors
+     * @throws IllegalAccessException if the lookup doesn't have `PACKAGE` access
+     */
+    @JvmStatic
+    fun defineHidden(
+        lookup: MethodHandles.Lookup,
+        unitName: String,
+        source: Supplier<InputStream>,
+        nestmate: Boolean,
+        options: AssemblerOptions
+    ): Class<*> {
+        val bytes = JasmAssembler(unitName, Opcodes.V11, options, source).assemble()
+        return defineHidden(lookup, bytes, nestmate)
+    }
+
+    /**
+     * Define already-assembled bytecode as a hidden class.
+     *
+     * @param lookup A lookup in the same package as the class, with `PACKAGE` access
+     * @param bytes The bytecode
+     * @param nestmate If `true`, make the class a nestmate of the lookup class, so each can access the other's private members
+     *
+     * @return The class (which has already been initialized)
+     *
+     * @throws IllegalAccessException if the lookup doesn't have `PACKAGE` access
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun defineHidden(lookup: MethodHandles.Lookup, bytes: ByteArray, nestmate: Boolean = false): Class<*> {
+        val define = defineHiddenClass ?: return lookup.defineClass(bytes).also {
+            // Hidden classes are initialized when they're defined, so do the same here
+            Class.forName(it.name, true, it.classLoader)
+        }
+
+        try {
+            val hiddenLookup = define.invoke(lookup, bytes, true, if (nestmate) nestmateOption else noOptions)
+            return (hiddenLookup as MethodHandles.Lookup).lookupClass()
+        } catch (e: InvocationTargetException) {
+            throw e.cause ?: e
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import com.roscopeco.jasm.errors.BaseError
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassVisitor
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.ConstantDynamic
+import org.objectweb.asm.FieldVisitor
+import org.objectweb.asm.Handle
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.commons.ClassRemapper
+import org.objectweb.asm.commons.Remapper
+import org.objectweb.asm.tree.ClassNode
+import java.math.BigDecimal
+
+/**
+ * A JASM class with placeholders, which is assembled once and can then be instantiated any
+ * number of times with different values, without lexing or parsing it again.
+ *
+ * Placeholders are written `${name:type}`, and stand in for a whole token. The types are:
+ *
+ * * `class` - an internal class name (e.g. `com/example/Foo`), usable anywhere a class name is,
+ *   including descriptors and the name of the class itself
+ * * `string` - a string constant, including its quotes
+ * * `int`, `long`, `float` and `double` - numeric constants
+ *
+ * Constants can only go where the assembler keeps them as they are - with `ldc`, as the
+ * initial value of a field, or as an argument to a bootstrap method. Integers that are loaded
+ * with `ldc` are pushed with the smallest instruction for the value they're given.
+ *
+ * For example:
+ *
+ * ```
+ * public class ${name:class} implements java/util/function/IntSupplier {
+ *     public getAsInt()I {
+ *         ldc ${value:int}
+ *         ireturn
+ *     }
+ * }
+ * ```
+ *
+ * Frames are computed once, when the template is compiled. Classes given by placeholders are
+ * taken to extend `java/lang/Object` directly then, so where one is merged with a different class
+ * (for example, at a label reached with either on the stack) the result is only known to be an
+ * `Object`. Templates are safe to instantiate from several threads.
+ *
+ * @see compile
+ */
+class JasmTemplate private constructor(
+    /** The (display) name of the template */
+    val unitName: String,
+
+    /** The placeholders in the template, and their types */
+    val parameters: Map<String, ParameterType>,
+
+    /** Non-fatal diagnostics produced when compiling the template */
+    val warnings: List<BaseError>,
+
+    // Kept as bytes (rather than a ClassNode) as replaying a tree isn't thread-safe
+    private val template: ByteArray,
+    private val classSentinels: Map<String, String>,
+    private val constantSentinels: Map<Any, String>,
+) {
+
+    /**
+     * The types of placeholder.
+     */
+    enum class ParameterType(internal val valueClass: Class<*>) {
+        CLASS(String::class.javaObjectType),
+        STRING(String::class.javaObjectType),
+        INT(Int::class.javaObjectType),
+        LONG(Long::class.javaObjectType),
+        FLOAT(Float::class.javaObjectType),
+        DOUBLE(Double::class.javaObjectType),
+    }
+
+    /**
+     * Instantiate the template.
+     *
+     * @param values The value for every placeholder, by name
+     * @return The bytecode
+     *
+     * @throws IllegalArgumentException if a value is missing, or of the wrong type
+     */
+    fun instantiate(values: Map<String, Any>): ByteArray {
+        parameters.forEach { (name, type) ->
+            val value = values[name] ?: throw IllegalArgumentException("No value given for placeholder '$name'")
+
+            require(type.valueClass.isInstance(value)) {
+                "Value for placeholder '$name' must be ${type.valueClass.simpleName}, but was ${value.javaClass.simpleName}"
+            }
+        }
+
+        (values.keys - parameters.keys).firstOrNull()?.let { throw IllegalArgumentException("Unknown placeholder '$it'") }
+
+        val writer = ClassWriter(0)
+        accept(writer, values, null)
+
+        return writer.toByteArray()
+    }
+
+    private fun accept(writer: ClassVisitor, values: Map<String, Any>, used: MutableSet<String>?) {
+        val constants = constantSentinels.mapValuesTo(HashMap()) { (_, name) -> values.getValue(name) }
+        val substituting = SubstitutingClassVisitor(writer, constants, constantSentinels, used)
+
+        if (classSentinels.isEmpty()) {
+            ClassReader(template).accept(substituting, 0)
+        } else {
+            ClassReader(template).accept(ClassRemapper(substituting, TemplateRemapper(classSentinels, values, used)), 0)
+        }
+    }
+
+    private class TemplateRemapper(
+        private val sentinels: Map<String, String>,
+        private val values: Map<String, Any>,
+        private val used: MutableSet<String>?,
+    ) : Remapper() {
+        override fun map(internalName: String): String {
+            val name = sentinels[internalName] ?: return internalName
+            used?.add(name)
+            return values.getValue(name) as String
+        }
+    }
+
+    private class SubstitutingClassVisitor(
+        visitor: ClassVisitor,
+        private val constants: Map<Any, Any>,
+        private val names: Map<Any, String>,
+        private val used: MutableSet<String>?,
+    ) : ClassVisitor(Opcodes.ASM9, visitor) {
+
+        fun substitute(value: Any?): Any? = when (value) {
+            null -> null
+            is ConstantDynamic -> ConstantDynamic(
+                value.name,
+                value.descriptor,
+                value.bootstrapMethod,
+                *Array(value.bootstrapMethodArgumentCount) { substitute(value.getBootstrapMethodArgument(it)) }
+            )
+            else -> constants[value]?.also { used?.add(names.getValue(value)) } ?: value
+        }
+
+        override fun visitField(
+            access: Int,
+            name: String,
+            descriptor: String,
+            signature: String?,
+            value: Any?
+        ): FieldVisitor? = super.visitField(access, name, descriptor, signature, substitute(value))
+
+        override fun visitMethod(
+            access: Int,
+            name: String,
+            descriptor: String,
+            signature: String?,
+            exceptions: Array<out String>?
+        ): MethodVisitor? {
+            val visitor = super.visitMethod(access, name, descriptor, signature, exceptions) ?: return null
+
+            return object : MethodVisitor(Opcodes.ASM9, visitor) {
+                override fun visitLdcInsn(value: Any) {
+                    when (val constant = substitute(value)) {
+                        value -> super.visitLdcInsn(value)
+                        is Int -> visitPushInt(constant)
+                        is Long -> if (constant == 0L || constant == 1L) {
+                            super.visitInsn(Opcodes.LCONST_0 + constant.toInt())
+                        } else {
+                            super.visitLdcInsn(constant)
+                        }
+                        else -> super.visitLdcInsn(constant)
+                    }
+                }
+
+                override fun visitInvokeDynamicInsn(
+                    name: String,
+                    descriptor: String,
+                    bootstrapMethodHandle: Handle,
+                    vararg bootstrapMethodArguments: Any?
+                ) = super.visitInvokeDynamicInsn(
+                    name,
+                    descriptor,
+                    bootstrapMethodHandle,
+                    *bootstrapMethodArguments.map(::substitute).toTypedArray()
+                )
+
+                // Push a constant using the smallest available encoding
+                private fun visitPushInt(value: Int) = when (value) {
+                    in -1..5 -> super.visitInsn(Opcodes.ICONST_0 + value)
+                    in Byte.MIN_VALUE..Byte.MAX_VALUE -> super.visitIntInsn(Opcodes.BIPUSH, value)
+                    in Short.MIN_VALUE..Short.MAX_VALUE -> super.visitIntInsn(Opcodes.SIPUSH, value)
+                    else -> super.visitLdcInsn(value)
+                }
+            }
+        }
+    }
+
+    companion object {
+        private val PLACEHOLDER = Regex("""\$\{([^}]*)}""")
+        private val VALID_PLACEHOLDER = Regex("""([A-Za-z_][A-Za-z_0-9]*):([a-z]+)""")
+
+        // Unlikely to turn up in real code - templates that use them are rejected anyway
+        private const val INT_SENTINEL = 0x7A5D3E00
+        private const val LONG_SENTINEL = 0x7A5D3E0000000000L
+        private const val FLOAT_SENTINEL = 73510.0625f
+        private const val DOUBLE_SENTINEL = 7351073510.03125
+        private const val NAME_SENTINEL = "jasm\$template\$"
+        private const val OBJECT = "java/lang/Object"
+
+        /**
+         * Compile a template.
+         *
+         * @param unitName The (display) name of the template
+         * @param source The template source
+         * @param options Optional assembler behaviour
+         * @param classFormat The ASM `Vxx` constant for the class format
+         * @return The compiled template
+         *
+         * @throws AssemblyException if the template has errors
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun compile(
+            unitName: String,
+            source: String,
+            options: AssemblerOptions = AssemblerOptions(),
+            classFormat: Int = Opcodes.V11,
+        ): JasmTemplate {
+            val parameters = LinkedHashMap<String, ParameterType>()
+            val classSentinels = HashMap<String, String>()
+            val constantSentinels = HashMap<Any, String>()
+            val sentinelText = HashMap<String, String>()
+            val errors = mutableListOf<BaseError>()
+
+            val substituted = PLACEHOLDER.replace(source) { match ->
+                val line = source.substring(0, match.range.first).count { it == '\n' } + 1
+                val placeholder = VALID_PLACEHOLDER.matchEntire(match.groupValues[1])
+                val type = placeholder?.let { ParameterType.values().find { it.name.lowercase() == placeholder.groupValues[2] } }
+
+                if (placeholder == null || type == null) {
+                    errors.add(BaseError(unitName, "Invalid placeholder '${match.value}' on line $line (expecting \${name:type}, " +
+                            "where type is one of ${ParameterType.values().joinToString { it.name.lowercase() }})"))
+                    return@replace match.value
+                }
+
+                val name = placeholder.groupValues[1]
+
+                if (parameters.getOrPut(name) { type } != type) {
+                    errors.add(BaseError(unitName,
+                        "Placeholder '$name' on line $line is used as both ${parameters[name]!!.name.lowercase()} and ${type.name.lowercase()}"))
+                    return@replace match.value
+                }
+
+                sentinelText.getOrPut(name) {
+                    val index = parameters.keys.indexOf(name)
+
+                    when (type) {
+                        ParameterType.CLASS -> "$NAME_SENTINEL$index".also { classSentinels[it] = name }
+                        ParameterType.STRING -> "$NAME_SENTINEL$index".also { constantSentinels[it] = name }.let { "\"$it\"" }
+                        ParameterType.INT -> (INT_SENTINEL + index).also { constantSentinels[it] = name }.toString()
+                        ParameterType.LONG -> (LONG_SENTINEL + index).also { constantSentinels[it] = name }.toString() + "L"
+                        ParameterType.FLOAT -> (FLOAT_SENTINEL + index).also { constantSentinels[it] = name }.let(::plain)
+                        ParameterType.DOUBLE -> (DOUBLE_SENTINEL + index).also { constantSentinels[it] = name }.let(::plain) + "D"
+                    }
+                }
+            }
+
+            sentinelText.values.map { it.trim('"').removeSuffix("L").removeSuffix("D") }.filter(source::contains).forEach {
+                errors.add(BaseError(unitName, "Template contains '$it', which is reserved for placeholders"))
+            }
+
+            if (errors.isNotEmpty()) {
+                throw AssemblyException(errors)
+            }
+
+            val assembler = JasmAssembler(unitName, classFormat, options) { substituted.byteInputStream() }
+            val loader = JasmTemplate::class.java.classLoader ?: ClassLoader.getSystemClassLoader()
+
+            // Placeholder classes have no class files to find them in
+            assembler.classHierarchy = ClassHierarchy { name ->
+                if (name in classSentinels) ClassHierarchy.Entry(OBJECT, false) else ClassHierarchy.readClassFile(loader, name)
+            }
+
+            val template = assembler.assemble()
+
+            return JasmTemplate(unitName, parameters, assembler.warnings, template, classSentinels, constantSentinels)
+                .also { it.checkAllUsed() }
+        }
+
+        // JASM doesn't support exponents
+        private fun plain(value: Number) = BigDecimal(value.toDouble()).toPlainString()
+    }
+
+    // Catch placeholders that the assembler didn't keep as they were (e.g. an int used with bipush)
+    private fun checkAllUsed() {
+        val used = HashSet<String>()
+        val values = parameters.mapValues { (name, type) ->
+            when (type) {
+                ParameterType.CLASS -> "jasm/Unused"
+                ParameterType.STRING -> name
+                ParameterType.INT -> 0
+                ParameterType.LONG -> 0L
+                ParameterType.FLOAT -> 0f
+                ParameterType.DOUBLE -> 0.0
+            }
+        }
+
+        accept(ClassNode(), values, used)
+
+        val unused = parameters.keys - used
+
+        if (unused.isNotEmpty()) {
+            throw AssemblyException(unused.map {
+                BaseError(unitName, "Placeholder '$it' isn't used anywhere it can be substituted (see JasmTemplate)")
+            })
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import java.io.File
+
+/**
+ * Branch hints for block layout, loaded from a profile rather than given in the source.
+ *
+ * A profile is a text file with one entry per line, giving the method (as `owner.name` followed
+ * by the descriptor), the label, and either `likely`, `unlikely` or the probability (from `0` to
+ * `1`) that the code at the label is run. Anything after a `#` is a comment:
+ *
+ * ```
+ * # Error handling is hardly ever run
+ * com/example/Parser.parse(Ljava/lang/String;)I error unlikely
+ * com/example/Parser.parse(Ljava/lang/String;)I found 0.97
+ * ```
+ *
+ * Where a label also has a hint in the source, the profile takes precedence.
+ */
+class LayoutProfile private constructor(private val methods: Map<String, Map<String, Boolean>>) {
+
+    /**
+     * Get the hints for the given method.
+     *
+     * @return Map of label names to `true` if the label is likely, or `false` if it's unlikely
+     */
+    fun hintsFor(owner: String, name: String, descriptor: String) = methods["$owner.$name$descriptor"] ?: emptyMap()
+
+    override fun equals(other: Any?) = other is LayoutProfile && other.methods == methods
+
+    override fun hashCode() = methods.hashCode()
+
+    /**
+     * The hints in this profile, in the format it's parsed from. Entries are sorted, so equal
+     * profiles give the same text.
+     */
+    override fun toString() = methods.toSortedMap().flatMap { (method, labels) ->
+        labels.toSortedMap().map { (label, likely) -> "$method ${LiteralNames.escape(label)} ${if (likely) "likely" else "unlikely"}" }
+    }.joinToString("\n")
+
+    companion object {
+        /**
+         * Parse a profile.
+         *
+         * @param source The text of the profile
+         * @param sourceName The name of the profile (shows up in errors)
+         *
+         * @throws JasmException if the profile is malformed
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun parse(source: String, sourceName: String = "<profile>"): LayoutProfile {
+            val methods = LinkedHashMap<String, MutableMap<String, Boolean>>()
+
+            source.lines().forEachIndexed { i, line ->
+                val fields = line.substringBefore('#').trim().split(Regex("\\s+")).filter { it.isNotEmpty() }
+
+                if (fields.isEmpty()) {
+                    return@forEachIndexed
+                }
+
+                if (fields.size != 3) {
+                    throw JasmException("$sourceName:${i + 1}: Expected method, label and hint but found '${line.trim()}'")
+                }
+
+                val likely = when (val hint = fields[2]) {
+                    "likely" -> true
+                    "unlikely" -> false
+                    else -> when (val probability = hint.toDoubleOrNull()?.takeIf { it in 0.0..1.0 }) {
+                        null -> throw JasmException(
+                            "$sourceName:${i + 1}: Invalid hint '$hint' (must be likely, unlikely or a probability from 0 to 1)"
+                        )
+                        else -> if (probability == 0.5) null else probability > 0.5
+                    }
+                }
+
+                if (likely != null) {
+                    methods.getOrPut(fields[0]) { LinkedHashMap() }[LiteralNames.unescape(fields[1])] = likely
+                }
+            }
+
+            return LayoutProfile(methods)
+        }
+
+        /**
+         * Load a profile from a file.
+         *
+         * @throws JasmException if the profile is malformed
+         */
+        @JvmStatic
+        fun load(file: File) = parse(file.readText(), file.name)
+    }
+}
@@ -5,7 +5,7 @@ internal object LiteralNames {
         name.replace(LITERAL_NAME_REGEX, "$1")
 
     internal fun escape(name: String): String {
-        return if (name.contains(' ') || name.matches(SPECIAL_CHAR_REGEX) || KEYWORDS.contains(name)) {
+        return if (needsEscape(name)) {
             "`${name.replace("`", "``")}`"
         } else {
             name
@@ -18,21 +18,27 @@ internal object LiteralNames {
             return name;
         }
 
-        return if (name.contains(' ') || name.matches(SPECIAL_CHAR_REGEX) || KEYWORDS.contains(name)) {
+        return if (needsEscape(name)) {
             "`${name.replace("`", "``")}`"
         } else {
             name
         }
     }
 
+    // Only a name that's a single special character needs escaping for that, so avoid the regex otherwise
+    private fun needsEscape(name: String) =
+        name.contains(' ') || (name.length == 1 && name.matches(SPECIAL_CHAR_REGEX)) || KEYWORDS.contains(name)
+
     private val LITERAL_NAME_REGEX = Regex("`(?:([^`])|$)")
 
     private val SPECIAL_CHAR_REGEX = Regex("[(){}\\[\\].-;:,=\"*'`]")
 
-    private val KEYWORDS = listOf(
+    private val KEYWORDS = hashSetOf(
         "class",
         "extends",
         "implements",
+        "nesthost",
+        "nestmembers",
         "abstract",
         "annotation",
         "bridge",
@@ -70,12 +76,14 @@ internal object LiteralNames {
         "caload",
         "castore",
         "checkcast",
+        "concat",
         "d2f",
         "d2i",
         "d2l",
         "dadd",
         "daload",
         "dastore",
+        "data",
         "dcmpg",
         "dcmpl",
         "dconst",
@@ -193,6 +201,7 @@ internal object LiteralNames {
         "nop",
         "pop",
         "pop2",
+        "push",
         "putfield",
         "putstatic",
         "return",
@@ -207,6 +216,8 @@ internal object LiteralNames {
         "try",
         "catch",
         "exception",
+        "macro",
+        "expand",
         "V",
         "void",
         "B",
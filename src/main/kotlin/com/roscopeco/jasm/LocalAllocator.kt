@@ -0,0 +1,271 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import com.roscopeco.jasm.antlr.JasmParser
+import com.roscopeco.jasm.errors.BaseError
+import com.roscopeco.jasm.errors.CodeError
+import com.roscopeco.jasm.errors.ErrorCollector
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
+import org.objectweb.asm.tree.AbstractInsnNode
+import org.objectweb.asm.tree.IincInsnNode
+import org.objectweb.asm.tree.IntInsnNode
+import org.objectweb.asm.tree.LabelNode
+import org.objectweb.asm.tree.LocalVariableNode
+import org.objectweb.asm.tree.MethodNode
+import org.objectweb.asm.tree.VarInsnNode
+import java.util.BitSet
+
+/**
+ * Assigns slots to named locals (e.g. `istore count`).
+ *
+ * Named locals are always allocated above the arguments and any slots that are referenced
+ * by number, so the two styles can be mixed freely. Within that space, slots are assigned
+ * by colouring the interference graph built from a liveness analysis, so locals whose
+ * lifetimes don't overlap share a slot. `long` and `double` locals get two adjacent slots.
+ *
+ * Methods using `jsr` / `ret` just get a distinct slot for each name, as we can't work out
+ * where `ret` goes without a much more involved analysis.
+ *
+ * @param unitName The name of the compilation unit (shows up in errors)
+ * @param errorCollector Collector that will receive any errors
+ * @param emitLocalVariableTable If `true`, emit a `LocalVariableTable` entry for each live range of each named local
+ */
+internal class LocalAllocator(
+    private val unitName: String,
+    private val errorCollector: ErrorCollector,
+    private val emitLocalVariableTable: Boolean
+) {
+    private class NamedLocal(val id: Int, val name: String, val sort: Int) {
+        val size = sizeOf(sort)
+        var slot = -1
+    }
+
+    /**
+     * Allocate slots for the named locals in the given method.
+     *
+     * @param method The method to process (modified in place)
+     * @param names Map of instructions that refer to named locals to the name they use
+     * @param sources Map of instructions to the source instruction they were generated from
+     */
+    fun allocate(
+        method: MethodNode,
+        names: Map<AbstractInsnNode, String>,
+        sources: Map<AbstractInsnNode, JasmParser.InstructionContext>
+    ) {
+        if (names.isEmpty()) {
+            return
+        }
+
+        val locals = resolveLocals(method, names, sources) ?: return
+        val insns = method.instructions
+        val refs = HashMap<AbstractInsnNode, NamedLocal>()
+
+        insns.forEach { insn -> names[insn]?.let { refs[insn] = locals.getValue(it) } }
+
+        val base = firstFreeSlot(method, refs)
+
+        if (insns.any { it.opcode == Opcodes.JSR || it.opcode == Opcodes.RET }) {
+            var next = base
+            locals.values.forEach { local -> local.slot = next; next += local.size }
+        } else {
+            val liveIn = computeLiveness(method, refs)
+
+            if (!checkInitialized(method, liveIn, refs, locals, sources)) {
+                return
+            }
+
+            colour(locals.values.toList(), buildInterference(method, liveIn, refs, locals.size), base)
+
+            if (emitLocalVariableTable) {
+                // Temporaries generated by the assembler (e.g. for `data`) have names that can't be written in source
+                emitLocalVariables(method, liveIn, locals.values.filter { '#' !in it.name })
+            }
+        }
+
+        refs.forEach { (insn, local) ->
+            when (insn) {
+                is VarInsnNode -> insn.`var` = local.slot
+                is IincInsnNode -> insn.`var` = local.slot
+            }
+        }
+    }
+
+    private fun resolveLocals(
+        method: MethodNode,
+        names: Map<AbstractInsnNode, String>,
+        sources: Map<AbstractInsnNode, JasmParser.InstructionContext>
+    ): Map<String, NamedLocal>? {
+        val locals = LinkedHashMap<String, NamedLocal>()
+        var ok = true
+
+        names.forEach { (insn, name) ->
+            val sort = sortOf(insn.opcode)
+            val local = locals.getOrPut(name) { NamedLocal(locals.size, name, sort) }
+
+            if (local.sort != sort) {
+                val message = "Local $name in ${method.name}${method.desc} is used as both " +
+                        "${sortName(local.sort)} and ${sortName(sort)}"
+
+                val source = sources[insn]
+                errorCollector.addError(
+                    if (source?.start != null) CodeError(unitName, source, message) else BaseError(unitName, message)
+                )
+                ok = false
+            }
+        }
+
+        return if (ok) locals else null
+    }
+
+    private fun firstFreeSlot(method: MethodNode, refs: Map<AbstractInsnNode, NamedLocal>): Int {
+        var base = Type.getArgumentsAndReturnSizes(method.desc) shr 2
+        if (method.access and Opcodes.ACC_STATIC != 0) base--
+
+        method.instructions.filter { !refs.containsKey(it) }.forEach { insn ->
+            base = when {
+                insn is VarInsnNode -> maxOf(base, insn.`var` + sizeOf(sortOf(insn.opcode)))
+                insn is IincInsnNode -> maxOf(base, insn.`var` + 1)
+                insn is IntInsnNode && insn.opcode == Opcodes.RET -> maxOf(base, insn.operand + 1)
+                else -> base
+            }
+        }
+
+        return base
+    }
+
+    private fun computeLiveness(method: MethodNode, refs: Map<AbstractInsnNode, NamedLocal>) =
+        ControlFlow.liveness(method) { insn, live ->
+            refs[insn]?.let { local -> if (isStore(insn.opcode)) live.clear(local.id) else live.set(local.id) }
+        }
+
+    private fun checkInitialized(
+        method: MethodNode,
+        liveIn: Array<BitSet>,
+        refs: Map<AbstractInsnNode, NamedLocal>,
+        locals: Map<String, NamedLocal>,
+        sources: Map<AbstractInsnNode, JasmParser.InstructionContext>
+    ): Boolean {
+        if (liveIn.isEmpty() || liveIn[0].isEmpty) {
+            return true
+        }
+
+        locals.values.filter { liveIn[0][it.id] }.forEach { local ->
+            val message = "Local ${local.name} in ${method.name}${method.desc} may be loaded before it is stored"
+            val source = method.instructions.firstOrNull { refs[it] == local }?.let { sources[it] }
+
+            errorCollector.addError(
+                if (source?.start != null) CodeError(unitName, source, message) else BaseError(unitName, message)
+            )
+        }
+
+        return false
+    }
+
+    private fun buildInterference(
+        method: MethodNode,
+        liveIn: Array<BitSet>,
+        refs: Map<AbstractInsnNode, NamedLocal>,
+        count: Int
+    ): Array<BitSet> {
+        val interference = Array(count) { BitSet(count) }
+
+        fun interfereAll(live: BitSet) {
+            live.stream().forEach { a -> interference[a].or(live) }
+        }
+
+        val insns = method.instructions
+
+        insns.forEach { insn ->
+            interfereAll(liveIn[insns.indexOf(insn)])
+
+            // A store clobbers its slot even if the value is never read, so it
+            // must not share with anything that's live across it.
+            val local = refs[insn]
+            if (local != null && isStore(insn.opcode)) {
+                val live = ControlFlow.liveOut(insn, insns, liveIn)
+                live.set(local.id)
+                interfereAll(live)
+            }
+        }
+
+        interference.forEachIndexed { id, set -> set.clear(id) }
+        return interference
+    }
+
+    private fun colour(locals: List<NamedLocal>, interference: Array<BitSet>, base: Int) {
+        locals.forEach { local ->
+            val taken = interference[local.id].stream().toArray()
+                .map { locals[it] }
+                .filter { it.slot >= 0 }
+
+            var slot = base
+            while (taken.any { slot < it.slot + it.size && it.slot < slot + local.size }) {
+                slot++
+            }
+
+            local.slot = slot
+        }
+    }
+
+    private fun emitLocalVariables(method: MethodNode, liveIn: Array<BitSet>, locals: Collection<NamedLocal>) {
+        val insns = method.instructions.toArray()
+
+        locals.forEach { local ->
+            var i = 0
+            while (i < insns.size) {
+                if (!liveIn[i][local.id]) {
+                    i++
+                    continue
+                }
+
+                val start = i
+                while (i < insns.size && liveIn[i][local.id]) i++
+
+                if ((start until i).any { insns[it].opcode >= 0 }) {
+                    val startLabel = LabelNode()
+                    val endLabel = LabelNode()
+
+                    method.instructions.insertBefore(insns[start], startLabel)
+                    if (i < insns.size) method.instructions.insertBefore(insns[i], endLabel) else method.instructions.add(endLabel)
+
+                    method.localVariables.add(
+                        LocalVariableNode(local.name, descriptorOf(local.sort), null, startLabel, endLabel, local.slot)
+                    )
+                }
+            }
+        }
+    }
+
+    private fun isStore(opcode: Int) = opcode >= Opcodes.ISTORE && opcode <= Opcodes.ASTORE
+
+    private fun sortOf(opcode: Int) = when (opcode) {
+        Opcodes.ILOAD, Opcodes.ISTORE, Opcodes.IINC -> Type.INT
+        Opcodes.LLOAD, Opcodes.LSTORE -> Type.LONG
+        Opcodes.FLOAD, Opcodes.FSTORE -> Type.FLOAT
+        Opcodes.DLOAD, Opcodes.DSTORE -> Type.DOUBLE
+        else -> Type.OBJECT
+    }
+
+    private fun sortName(sort: Int) = when (sort) {
+        Type.INT -> "int"
+        Type.LONG -> "long"
+        Type.FLOAT -> "float"
+        Type.DOUBLE -> "double"
+        else -> "reference"
+    }
+
+    private fun descriptorOf(sort: Int) = when (sort) {
+        Type.INT -> "I"
+        Type.LONG -> "J"
+        Type.FLOAT -> "F"
+        Type.DOUBLE -> "D"
+        else -> "Ljava/lang/Object;"
+    }
+}
+
+private fun sizeOf(sort: Int) = if (sort == Type.LONG || sort == Type.DOUBLE) 2 else 1
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import com.roscopeco.jasm.antlr.JasmLexer
+import com.roscopeco.jasm.antlr.JasmParser
+import com.roscopeco.jasm.errors.BaseError
+import com.roscopeco.jasm.errors.CodeError
+import com.roscopeco.jasm.errors.CollectingErrorListener
+import com.roscopeco.jasm.errors.ErrorCollector
+import com.roscopeco.jasm.errors.TokenOrigin
+import org.antlr.v4.runtime.CommonToken
+import org.antlr.v4.runtime.CommonTokenStream
+import org.antlr.v4.runtime.ListTokenSource
+import org.antlr.v4.runtime.Token
+import org.antlr.v4.runtime.tree.ParseTree
+import org.antlr.v4.runtime.tree.TerminalNode
+
+/**
+ * Expands the macros declared in a class into the methods that use them.
+ *
+ * A macro's body is kept as tokens, and each expansion parses a copy of them with the
+ * arguments in place of the parameters, so the body need only be valid code once it's
+ * expanded. Labels declared in the body are renamed for each expansion (so a macro can be
+ * expanded more than once in a method), while other names refer to the method's own.
+ *
+ * The copied tokens keep their positions in the body, so errors in expanded code are reported
+ * where the code is written. Errors reported through [errorCollector] also say where the
+ * macro was expanded.
+ */
+internal class MacroExpander(private val unitName: String, errorCollector: ErrorCollector) {
+    private val macros = HashMap<String, Macro>()
+    private val expanding = LinkedHashSet<String>()
+
+    val errorCollector: ErrorCollector = ExpansionErrorCollector(errorCollector)
+
+    fun define(ctx: JasmParser.MacroContext) {
+        val name = nameOf(ctx.membername())
+        val params = LinkedHashMap<String, ParamType>()
+
+        ctx.macro_param().forEach { param ->
+            val type = ParamType.named(param.macro_param_type().text)
+
+            when {
+                type == null -> errorCollector.addError(CodeError(unitName, param.macro_param_type(),
+                    "Unknown macro parameter type ${param.macro_param_type().text} (expected ${ParamType.names()})"))
+                params.putIfAbsent(param.NAME().text, type) != null -> errorCollector.addError(
+                    CodeError(unitName, param, "Duplicate parameter ${param.NAME().text} in macro $name"))
+            }
+        }
+
+        if (macros.putIfAbsent(name, Macro(name, params, bodyTokens(ctx.macro_body()), ctx.RBRACE())) != null) {
+            errorCollector.addError(CodeError(unitName, ctx, "Duplicate macro $name"))
+        }
+    }
+
+    /**
+     * Expand a macro, passing the expanded code to [visit].
+     *
+     * @param index Unique (within the method) index of this expansion, used to rename its labels
+     * @return `false` if the macro couldn't be expanded (in which case the error has been reported)
+     */
+    fun expand(ctx: JasmParser.ExpandContext, index: Int, visit: (JasmParser.Stat_blockContext) -> Unit): Boolean {
+        val name = nameOf(ctx.membername())
+        val macro = macros[name]
+        val args = ctx.macro_arg()
+
+        when {
+            macro == null -> errorCollector.addError(CodeError(unitName, ctx, "Unknown macro $name"))
+            name in expanding -> errorCollector.addError(CodeError(unitName, ctx, "Macro $name is expanded recursively"))
+            args.size != macro.params.size -> errorCollector.addError(
+                CodeError(unitName, ctx, "Macro $name expects ${macro.params.size} argument(s), but ${args.size} were given"))
+            else -> {
+                val mismatches = macro.params.entries.zip(args).filter { (param, arg) -> arg.start.type !in param.value.tokenTypes }
+
+                mismatches.forEach { (param, arg) ->
+                    errorCollector.addError(CodeError(unitName, arg,
+                        "Argument ${param.key} to macro $name must be ${param.value.description}, but was ${arg.text}"))
+                }
+
+                if (mismatches.isEmpty()) {
+                    expanding.add(name)
+
+                    try {
+                        val parsed = parse(macro, substitute(macro, ctx, "$name#$index")) ?: return false
+                        visit(parsed.stat_block())
+                    } finally {
+                        expanding.remove(name)
+                    }
+
+                    return true
+                }
+            }
+        }
+
+        return false
+    }
+
+    private fun substitute(macro: Macro, ctx: JasmParser.ExpandContext, prefix: String): List<Token> {
+        val site = "macro ${macro.name} at [${ctx.start.line}:${ctx.start.charPositionInLine}]" +
+            ((ctx.start as? ExpandedToken)?.let { ", ${it.origin}" } ?: "")
+
+        val args = macro.params.keys.zip(ctx.macro_arg().map { it.start }).toMap()
+        val tokens = ArrayList<Token>(macro.body.size + 1)
+        var i = 0
+
+        while (i < macro.body.size) {
+            val token = macro.body[i++]
+            val arg = if (token.type == JasmLexer.NAME) args[token.text] else null
+
+            tokens += when {
+                arg != null -> ExpandedToken(token, arg.type, arg.text, site)
+
+                token.type == JasmLexer.LABEL && macro.labels.contains(token.text.dropLast(1)) ->
+                    ExpandedToken(token, JasmLexer.LABEL, "$prefix.${token.text}", site)
+
+                token.type == JasmLexer.LITERAL_NAME && macro.body.getOrNull(i)?.type == JasmLexer.COLON
+                        && macro.labels.contains(LiteralNames.unescape(token.text)) -> {
+                    i++
+                    ExpandedToken(token, JasmLexer.LABEL, "$prefix.${LiteralNames.unescape(token.text)}:", site)
+                }
+
+                (token.type == JasmLexer.NAME || token.type == JasmLexer.LITERAL_NAME)
+                        && macro.labels.contains(LiteralNames.unescape(token.text)) ->
+                    ExpandedToken(token, JasmLexer.NAME, "$prefix.${LiteralNames.unescape(token.text)}", site)
+
+                else -> ExpandedToken(token, token.type, token.text, site)
+            }
+        }
+
+        tokens += ExpandedToken(macro.end, Token.EOF, "<EOF>", site)
+        return tokens
+    }
+
+    // Returns null if the expanded code has syntax errors (which have been reported)
+    private fun parse(macro: Macro, tokens: List<Token>): JasmParser.Expanded_macroContext? {
+        val parser = JasmParser(CommonTokenStream(ListTokenSource(tokens, "${macro.name} in $unitName")))
+        parser.removeErrorListeners()
+        parser.addErrorListener(CollectingErrorListener(unitName, errorCollector))
+
+        val result = parser.expanded_macro()
+        return if (parser.numberOfSyntaxErrors == 0) result else null
+    }
+
+    private fun nameOf(ctx: JasmParser.MembernameContext) = LiteralNames.unescape(ctx.text)
+
+    private fun bodyTokens(ctx: ParseTree, into: MutableList<Token> = ArrayList()): List<Token> {
+        if (ctx is TerminalNode) {
+            into += ctx.symbol
+        } else {
+            (0 until ctx.childCount).forEach { bodyTokens(ctx.getChild(it), into) }
+        }
+
+        return into
+    }
+
+    private class Macro(val name: String, val params: Map<String, ParamType>, val body: List<Token>, end: TerminalNode) {
+        val end: Token = end.symbol
+
+        // Labels declared in the body, which are local to each expansion
+        val labels = body.indices.mapNotNull { i ->
+            when {
+                body[i].type == JasmLexer.LABEL -> body[i].text.dropLast(1)
+                body[i].type == JasmLexer.LITERAL_NAME && body.getOrNull(i + 1)?.type == JasmLexer.COLON ->
+                    LiteralNames.unescape(body[i].text)
+                else -> null
+            }
+        }.toSet()
+    }
+
+    private enum class ParamType(val description: String, vararg val tokenTypes: Int) {
+        INT("an int", JasmLexer.INT),
+        LONG("a long", JasmLexer.LONG),
+        FLOAT("a float", JasmLexer.FLOAT),
+        DOUBLE("a double", JasmLexer.DOUBLE),
+        STRING("a string", JasmLexer.STRING),
+        CLASS("a class name", JasmLexer.QNAME, JasmLexer.NAME, JasmLexer.LITERAL_NAME),
+        LOCAL("a local name or slot", JasmLexer.NAME, JasmLexer.INT),
+        LABEL("a label", JasmLexer.NAME);
+
+        companion object {
+            fun named(name: String) = values().firstOrNull { it.name.lowercase() == name }
+
+            fun names() = values().joinToString { it.name.lowercase() }
+        }
+    }
+
+    // A token copied into an expansion, which remembers where the macro was expanded
+    private class ExpandedToken(token: Token, type: Int, text: String, override val origin: String) : CommonToken(token), TokenOrigin {
+        init {
+            this.type = type
+            this.text = text
+        }
+    }
+
+    private class ExpansionErrorCollector(private val delegate: ErrorCollector) : ErrorCollector by delegate {
+        override fun addError(error: BaseError) = delegate.addError(withSite(error))
+
+        override fun addWarning(warning: BaseError) = delegate.addWarning(withSite(warning))
+
+        private fun withSite(error: BaseError): BaseError {
+            val site = (error as? CodeError)?.origin ?: return error
+            return error.withMessage("${error.message} (in expansion of $site)")
+        }
+    }
+}
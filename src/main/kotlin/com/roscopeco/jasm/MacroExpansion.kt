@@ -0,0 +1,28 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+/**
+ * A macro that was expanded into a method, and how much code it added to it.
+ *
+ * @param unitName The compilation unit
+ * @param macro The name of the macro
+ * @param method The method it was expanded into (name and descriptor)
+ * @param line The line the macro was expanded at
+ * @param column The column the macro was expanded at
+ * @param size The (estimated) bytes of code added to the method, including any macros expanded
+ *             within this one, and after unreachable code has been removed
+ */
+data class MacroExpansion(
+    val unitName: String,
+    val macro: String,
+    val method: String,
+    val line: Int,
+    val column: Int,
+    val size: Int,
+) {
+    override fun toString() = "$unitName:[$line:$column]: $macro in $method: $size bytes"
+}
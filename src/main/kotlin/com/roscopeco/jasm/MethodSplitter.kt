@@ -0,0 +1,555 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import com.roscopeco.jasm.errors.BaseError
+import com.roscopeco.jasm.errors.ErrorCollector
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
+import org.objectweb.asm.tree.AbstractInsnNode
+import org.objectweb.asm.tree.FrameNode
+import org.objectweb.asm.tree.IincInsnNode
+import org.objectweb.asm.tree.InsnList
+import org.objectweb.asm.tree.InsnNode
+import org.objectweb.asm.tree.IntInsnNode
+import org.objectweb.asm.tree.JumpInsnNode
+import org.objectweb.asm.tree.LabelNode
+import org.objectweb.asm.tree.LdcInsnNode
+import org.objectweb.asm.tree.LineNumberNode
+import org.objectweb.asm.tree.LookupSwitchInsnNode
+import org.objectweb.asm.tree.MethodInsnNode
+import org.objectweb.asm.tree.MethodNode
+import org.objectweb.asm.tree.TableSwitchInsnNode
+import org.objectweb.asm.tree.TryCatchBlockNode
+import org.objectweb.asm.tree.VarInsnNode
+import org.objectweb.asm.tree.analysis.BasicInterpreter
+import org.objectweb.asm.tree.analysis.BasicValue
+import org.objectweb.asm.tree.analysis.Frame
+import java.util.BitSet
+
+/**
+ * Splits methods whose code is larger than a given size into private static helper methods.
+ *
+ * Code is only split at points where the operand stack is empty. Two kinds of split are used:
+ *
+ * * The tail of the method (from some point to the end) is moved to a helper, and the method
+ *   returns whatever the helper returns. The helper is split again if it's still too large.
+ * * A region in the middle of the method that is only entered at the top and only left at the
+ *   bottom (for example, the body of a loop) is moved to a helper. At most one local that is
+ *   written in the region and needed afterwards is passed back as the helper's return value.
+ *
+ * Locals that are live at the split point are passed to the helper as arguments, laid out so
+ * they keep the same slot numbers. Try/catch blocks must either be moved along with the code
+ * they cover, or cover the whole region.
+ *
+ * Constructors and methods using `jsr` / `ret` are never split.
+ *
+ * @param unitName The name of the compilation unit (shows up in warnings)
+ * @param errorCollector Collector that will receive warnings for methods that can't be split
+ * @param owner Internal name of the class being assembled
+ * @param isInterface Whether the class being assembled is an interface
+ * @param maxMethodSize The maximum size (in bytes) of the code for any one method
+ * @param reservedNames Names of methods declared in the class (which helpers must not clash with)
+ */
+internal class MethodSplitter(
+    private val unitName: String,
+    private val errorCollector: ErrorCollector,
+    private val owner: String,
+    private val isInterface: Boolean,
+    private val maxMethodSize: Int,
+    reservedNames: Collection<String>
+) {
+    private val usedNames = HashSet(reservedNames)
+
+    /**
+     * Split the given method if it's larger than the maximum size.
+     *
+     * @param method The method to process (modified in place)
+     *
+     * @return Any helper methods that were created, which must also be emitted
+     */
+    fun split(method: MethodNode): List<MethodNode> {
+        val helpers = mutableListOf<MethodNode>()
+
+        if (method.name == "<init>" || method.instructions.any { it.opcode == Opcodes.JSR || it.opcode == Opcodes.RET }) {
+            return helpers
+        }
+
+        val worklist = ArrayDeque(listOf(method))
+
+        while (worklist.isNotEmpty()) {
+            val current = worklist.removeFirst()
+
+            while (codeSize(current.instructions) > maxMethodSize) {
+                val helper = extractOne(current, method)
+
+                if (helper == null) {
+                    errorCollector.addWarning(BaseError(unitName,
+                        "Method ${method.name}${method.desc} could not be split to fit in $maxMethodSize bytes " +
+                                "(${current.name}${current.desc} is still about ${codeSize(current.instructions)} bytes)"
+                    ))
+                    break
+                }
+
+                helpers.add(helper)
+                worklist.add(helper)
+            }
+        }
+
+        return helpers
+    }
+
+    private class Param(val slot: Int, val type: Type, val filler: Boolean)
+
+    private class Region(
+        val start: Int,
+        val end: Int,
+        val tail: Boolean,
+        val params: List<Param>,
+        val result: Param?,
+        val moved: List<TryCatchBlockNode>
+    )
+
+    private class Analysis(val method: MethodNode, val frames: Array<Frame<BasicValue>?>) {
+        val insns: Array<AbstractInsnNode> = method.instructions.toArray()
+        val index = HashMap<AbstractInsnNode, Int>().apply { insns.forEachIndexed { i, insn -> put(insn, i) } }
+        val wideJumps = codeSize(method.instructions) > Short.MAX_VALUE
+        val offsets = IntArray(insns.size + 1).apply {
+            insns.forEachIndexed { i, insn -> this[i + 1] = this[i] + insnSize(insn, wideJumps) }
+        }
+        val liveIn = ControlFlow.liveness(method) { insn, live ->
+            when {
+                insn is VarInsnNode && isStore(insn.opcode) -> live.clear(insn.`var`, insn.`var` + ControlFlow.slotSize(insn.opcode))
+                insn is VarInsnNode -> live.set(insn.`var`, insn.`var` + ControlFlow.slotSize(insn.opcode))
+                insn is IincInsnNode -> live.set(insn.`var`)
+            }
+        }
+
+        // Last node before the next real instruction (i.e. the labels that share its position)
+        val exitLimit = IntArray(insns.size).apply {
+            var limit = insns.size - 1
+            for (i in insns.size - 1 downTo 0) {
+                this[i] = limit
+                if (insns[i].opcode >= 0) limit = i - 1
+            }
+        }
+
+        // Last real instruction before each node
+        val prevReal = IntArray(insns.size).apply {
+            var prev = -1
+            insns.forEachIndexed { i, insn ->
+                this[i] = prev
+                if (insn.opcode >= 0) prev = i
+            }
+        }
+
+        val lastReal = insns.indexOfLast { it.opcode >= 0 }
+
+        fun size(start: Int, end: Int) = offsets[end + 1] - offsets[start]
+
+        fun isBoundary(i: Int) = insns[i].opcode >= 0 && frames[i]?.stackSize == 0
+
+        fun targets(i: Int): List<Int> = when (val insn = insns[i]) {
+            is JumpInsnNode -> listOf(insn.label)
+            is TableSwitchInsnNode -> insn.labels + insn.dflt
+            is LookupSwitchInsnNode -> insn.labels + insn.dflt
+            else -> emptyList()
+        }.map { index.getValue(it) }
+
+        fun written(start: Int, end: Int) = BitSet().apply {
+            (start..end).forEach { i ->
+                when (val insn = insns[i]) {
+                    is VarInsnNode -> if (isStore(insn.opcode)) set(insn.`var`, insn.`var` + ControlFlow.slotSize(insn.opcode))
+                    is IincInsnNode -> set(insn.`var`)
+                }
+            }
+        }
+    }
+
+    private fun extractOne(method: MethodNode, original: MethodNode): MethodNode? {
+        val frames = analyze(method) ?: return null
+        val analysis = Analysis(method, frames)
+
+        val region = findTail(analysis) ?: findMiddle(analysis) ?: return null
+        return extract(analysis, region, original)
+    }
+
+    private fun analyze(method: MethodNode) = ControlFlow.frames(owner, method, TypedInterpreter())
+
+    /*
+     * Look for the earliest split that leaves the start of the method small enough, keeping
+     * as much as possible in the original method.
+     */
+    private fun findTail(analysis: Analysis): Region? {
+        val insns = analysis.insns
+        if (analysis.lastReal < 0) return null
+
+        // Can't split where any jump crosses the split point
+        val maxTargetBefore = IntArray(insns.size + 1) { -1 }
+        for (i in insns.indices) {
+            maxTargetBefore[i + 1] = maxOf(maxTargetBefore[i], analysis.targets(i).maxOrNull() ?: -1)
+        }
+
+        val minTargetAfter = IntArray(insns.size + 1) { Int.MAX_VALUE }
+        for (i in insns.size - 1 downTo 0) {
+            minTargetAfter[i] = minOf(minTargetAfter[i + 1], analysis.targets(i).minOrNull() ?: Int.MAX_VALUE)
+        }
+
+        val firstReal = insns.indexOfFirst { it.opcode >= 0 }
+
+        for (start in analysis.lastReal downTo firstReal + 1) {
+            if (!analysis.isBoundary(start) || maxTargetBefore[start] >= start || minTargetAfter[start] < start) {
+                continue
+            }
+
+            if (analysis.offsets[start] > maxMethodSize) {
+                continue
+            }
+
+            val region = checkRegion(analysis, start, analysis.lastReal, true) ?: continue
+
+            if (analysis.offsets[start] + callSize(region) <= maxMethodSize) {
+                return region
+            }
+        }
+
+        return null
+    }
+
+    /*
+     * Look for the largest single-entry, single-exit region that will fit in a helper.
+     */
+    private fun findMiddle(analysis: Analysis): Region? {
+        val insns = analysis.insns
+        val budget = maxMethodSize - HELPER_EXIT_SIZE
+        val needed = analysis.offsets[insns.size] - maxMethodSize
+
+        // Lowest and highest source of jumps to each label
+        val minSourceInto = IntArray(insns.size) { Int.MAX_VALUE }
+        val maxSourceInto = IntArray(insns.size) { -1 }
+
+        insns.indices.forEach { i ->
+            analysis.targets(i).forEach { t ->
+                minSourceInto[t] = minOf(minSourceInto[t], i)
+                maxSourceInto[t] = maxOf(maxSourceInto[t], i)
+            }
+        }
+
+        var best: Region? = null
+        var bestSize = 0
+
+        for (start in insns.indices) {
+            if (!analysis.isBoundary(start)) continue
+
+            var minTarget = Int.MAX_VALUE
+            var maxTarget = -1
+            var minSource = Int.MAX_VALUE
+            var maxSource = -1
+            val candidates = mutableListOf<Int>()
+
+            for (end in start until analysis.lastReal) {
+                val insn = insns[end]
+
+                if (analysis.size(start, end) > budget || isReturn(insn.opcode)
+                    || insn.opcode == Opcodes.MONITORENTER || insn.opcode == Opcodes.MONITOREXIT) {
+                    break
+                }
+
+                analysis.targets(end).forEach { t -> minTarget = minOf(minTarget, t); maxTarget = maxOf(maxTarget, t) }
+                minSource = minOf(minSource, minSourceInto[end])
+                maxSource = maxOf(maxSource, maxSourceInto[end])
+
+                // Jumps back out of the top, or in from above, can't be fixed by extending the region
+                if (minTarget < start || minSource < start) {
+                    break
+                }
+
+                if (insn.opcode >= 0 && maxTarget <= analysis.exitLimit[end] && maxSource <= end) {
+                    val next = analysis.exitLimit[end] + 1
+                    if (analysis.frames[next] == null || analysis.frames[next]?.stackSize == 0) {
+                        candidates.add(end)
+                    }
+                }
+            }
+
+            for (end in candidates.asReversed()) {
+                val size = analysis.size(start, end)
+                if (size <= bestSize) break
+
+                val region = checkRegion(analysis, start, end, false) ?: continue
+
+                if (size > callSize(region)) {
+                    best = region
+                    bestSize = size
+                    break
+                }
+            }
+
+            if (best != null && bestSize >= needed + callSize(best)) {
+                break
+            }
+        }
+
+        return best
+    }
+
+    /*
+     * Checks the try/catch blocks and locals for a region where control flow has already been checked.
+     */
+    private fun checkRegion(analysis: Analysis, start: Int, end: Int, tail: Boolean): Region? {
+        val exitLimit = analysis.exitLimit[end]
+        val written = analysis.written(start, end)
+        val moved = mutableListOf<TryCatchBlockNode>()
+
+        fun inside(i: Int) = i in start..end
+
+        for (tcb in analysis.method.tryCatchBlocks) {
+            val tcbStart = analysis.index.getValue(tcb.start)
+            val tcbEnd = analysis.index.getValue(tcb.end)
+            val handler = analysis.index.getValue(tcb.handler)
+
+            if (!inside(tcbStart) && !inside(tcbEnd) && !inside(handler)) {
+                if (tcbStart < start && tcbEnd > end) {
+                    // Covers the whole region, so exceptions from the helper still go to the handler,
+                    // but any locals the region changes won't have been updated when it gets there
+                    if (written.intersects(analysis.liveIn[handler])) return null
+                } else if (tcbEnd > start && tcbStart <= end) {
+                    return null
+                }
+            } else {
+                // Must move with the code, so it can't cover anything outside the region
+                if (!inside(handler)) return null
+                if (tcbStart < start && tcbStart <= analysis.prevReal[start]) return null
+                if (tcbEnd > end && tcbEnd > exitLimit + 1) return null
+
+                moved.add(tcb)
+            }
+        }
+
+        val params = params(analysis.frames[start]!!, analysis.liveIn[start]) ?: return null
+
+        var result: Param? = null
+        if (!tail) {
+            val next = exitLimit + 1
+            val frame = analysis.frames[next]
+
+            if (frame != null) {
+                val out = written.clone() as BitSet
+                out.and(analysis.liveIn[next])
+
+                var slot = out.nextSetBit(0)
+                while (slot >= 0) {
+                    if (result != null) return null
+
+                    val type = typeOf(frame.getLocal(slot)) ?: return null
+                    result = Param(slot, type, false)
+                    slot = out.nextSetBit(slot + type.size)
+                }
+            }
+        }
+
+        return Region(start, end, tail, params, result, moved)
+    }
+
+    /*
+     * Live locals are passed in their original slots (so the code doesn't need renumbering), with
+     * dead slots below them filled with dummy ints.
+     */
+    private fun params(frame: Frame<BasicValue>, live: BitSet): List<Param>? {
+        val params = mutableListOf<Param>()
+        var slot = 0
+
+        while (slot < live.length()) {
+            if (live[slot]) {
+                val type = typeOf(frame.getLocal(slot)) ?: return null
+                params.add(Param(slot, type, false))
+                slot += type.size
+            } else {
+                params.add(Param(slot, Type.INT_TYPE, true))
+                slot++
+            }
+        }
+
+        return if (slot <= MAX_PARAM_SLOTS) params else null
+    }
+
+    private fun typeOf(value: BasicValue?): Type? = when {
+        value is Reference -> if (value.precise && value.type != BasicInterpreter.NULL_TYPE) value.type else null
+        value == BasicValue.INT_VALUE -> Type.INT_TYPE
+        value == BasicValue.FLOAT_VALUE -> Type.FLOAT_TYPE
+        value == BasicValue.LONG_VALUE -> Type.LONG_TYPE
+        value == BasicValue.DOUBLE_VALUE -> Type.DOUBLE_TYPE
+        else -> null
+    }
+
+    private fun extract(analysis: Analysis, region: Region, original: MethodNode): MethodNode {
+        val method = analysis.method
+        val insns = analysis.insns
+
+        val returnType = when {
+            region.tail -> Type.getReturnType(method.desc)
+            region.result != null -> region.result.type
+            else -> Type.VOID_TYPE
+        }
+
+        val name = helperName(original.name)
+        val desc = Type.getMethodDescriptor(returnType, *region.params.map { it.type }.toTypedArray())
+        val helper = MethodNode(
+            Opcodes.ASM9,
+            Opcodes.ACC_PRIVATE or Opcodes.ACC_STATIC or Opcodes.ACC_SYNTHETIC,
+            name,
+            desc,
+            null,
+            null
+        )
+
+        val entry = LabelNode()
+        val exit = LabelNode()
+        val labels = HashMap<LabelNode, LabelNode>()
+
+        (region.start..region.end).map { insns[it] }.filterIsInstance<LabelNode>().forEach { labels[it] = LabelNode() }
+        (region.end + 1..analysis.exitLimit[region.end]).map { insns[it] }.filterIsInstance<LabelNode>().forEach { labels[it] = exit }
+
+        helper.instructions.add(entry)
+        (region.start..region.end)
+            .map { insns[it] }
+            .filter { it !is LineNumberNode && it !is FrameNode }
+            .forEach { helper.instructions.add(it.clone(labels)) }
+        helper.instructions.add(exit)
+
+        if (!region.tail) {
+            region.result?.let { helper.instructions.add(VarInsnNode(it.type.getOpcode(Opcodes.ILOAD), it.slot)) }
+            helper.instructions.add(InsnNode(returnType.getOpcode(Opcodes.IRETURN)))
+        }
+
+        region.moved.forEach { tcb ->
+            helper.tryCatchBlocks.add(TryCatchBlockNode(
+                labels[tcb.start] ?: entry,
+                labels[tcb.end] ?: exit,
+                labels.getValue(tcb.handler),
+                tcb.type
+            ))
+        }
+
+        val call = InsnList()
+        region.params.forEach {
+            call.add(if (it.filler) InsnNode(Opcodes.ICONST_0) else VarInsnNode(it.type.getOpcode(Opcodes.ILOAD), it.slot))
+        }
+        call.add(MethodInsnNode(Opcodes.INVOKESTATIC, owner, name, desc, isInterface))
+
+        if (region.tail) {
+            call.add(InsnNode(returnType.getOpcode(Opcodes.IRETURN)))
+        } else {
+            region.result?.let { call.add(VarInsnNode(it.type.getOpcode(Opcodes.ISTORE), it.slot)) }
+        }
+
+        val removed = (region.start..region.end).map { insns[it] }.toSet()
+
+        method.instructions.insertBefore(insns[region.start], call)
+        removed.forEach { method.instructions.remove(it) }
+        method.tryCatchBlocks.removeAll(region.moved)
+        method.localVariables?.removeIf { it.start in removed || it.end in removed }
+        method.instructions.filterIsInstance<LineNumberNode>().filter { it.start in removed }.forEach { method.instructions.remove(it) }
+
+        return helper
+    }
+
+    private fun callSize(region: Region): Int {
+        val params = region.params.sumOf { if (it.filler) 1 else varInsnSize(it.slot) }
+        val result = if (region.tail) 1 else region.result?.let { varInsnSize(it.slot) } ?: 0
+        return params + 3 + result
+    }
+
+    private fun helperName(name: String): String {
+        val base = name.replace("<", "").replace(">", "")
+        var count = 0
+
+        while (!usedNames.add("$base\$split\$$count")) {
+            count++
+        }
+
+        return "$base\$split\$$count"
+    }
+
+    /*
+     * Tracks the actual type of references (BasicInterpreter only tracks that they're references),
+     * since the helper method's parameters need them. When different types merge, the value is
+     * marked as imprecise and won't be passed to a helper.
+     */
+    private class TypedInterpreter : BasicInterpreter(Opcodes.ASM9) {
+        override fun newValue(type: Type?): BasicValue? = when (type?.sort) {
+            Type.OBJECT, Type.ARRAY -> Reference(type, true)
+            else -> super.newValue(type)
+        }
+
+        override fun binaryOperation(insn: AbstractInsnNode, value1: BasicValue, value2: BasicValue): BasicValue? =
+            if (insn.opcode == Opcodes.AALOAD) {
+                if (value1 is Reference && value1.precise && value1.type.sort == Type.ARRAY) {
+                    newValue(Type.getType(value1.type.descriptor.substring(1)))
+                } else {
+                    IMPRECISE
+                }
+            } else {
+                super.binaryOperation(insn, value1, value2)
+            }
+
+        override fun merge(value1: BasicValue, value2: BasicValue): BasicValue = when {
+            value1 == value2 -> value1
+            value1 is Reference && value2 is Reference -> when {
+                value1.type == NULL_TYPE -> value2
+                value2.type == NULL_TYPE -> value1
+                else -> IMPRECISE
+            }
+            else -> super.merge(value1, value2)
+        }
+    }
+
+    private class Reference(type: Type, val precise: Boolean) : BasicValue(type) {
+        override fun equals(other: Any?) = other is Reference && other.type == type && other.precise == precise
+
+        override fun hashCode() = type.hashCode() * 31 + precise.hashCode()
+    }
+
+    companion object {
+        private const val MAX_PARAM_SLOTS = 255
+        private const val HELPER_EXIT_SIZE = 5
+
+        private val IMPRECISE = Reference(Type.getObjectType("java/lang/Object"), false)
+
+        /**
+         * Estimate the size of the given code. This errs on the large side (for example, it assumes
+         * every `ldc` needs a wide index).
+         */
+        fun codeSize(insns: InsnList): Int {
+            val narrow = insns.sumOf { insnSize(it, false) }
+            return if (narrow > Short.MAX_VALUE) insns.sumOf { insnSize(it, true) } else narrow
+        }
+
+        internal fun insnSize(insn: AbstractInsnNode, wideJumps: Boolean): Int = when (insn) {
+            is LabelNode, is LineNumberNode, is FrameNode -> 0
+            is VarInsnNode -> varInsnSize(insn.`var`)
+            is IincInsnNode -> if (insn.`var` > 255 || insn.incr !in Byte.MIN_VALUE..Byte.MAX_VALUE) 6 else 3
+            is IntInsnNode -> if (insn.opcode == Opcodes.SIPUSH) 3 else 2
+            is LdcInsnNode -> 3
+            is JumpInsnNode -> if (wideJumps) 8 else 3
+            is TableSwitchInsnNode -> 16 + 4 * insn.labels.size
+            is LookupSwitchInsnNode -> 12 + 8 * insn.labels.size
+            is MethodInsnNode -> if (insn.opcode == Opcodes.INVOKEINTERFACE) 5 else 3
+            else -> when (insn.type) {
+                AbstractInsnNode.INSN -> 1
+                AbstractInsnNode.INVOKE_DYNAMIC_INSN -> 5
+                AbstractInsnNode.MULTIANEWARRAY_INSN -> 4
+                else -> 3
+            }
+        }
+
+        private fun varInsnSize(slot: Int) = if (slot < 4) 1 else if (slot < 256) 2 else 4
+
+        private fun isStore(opcode: Int) = opcode >= Opcodes.ISTORE && opcode <= Opcodes.ASTORE
+
+        private fun isReturn(opcode: Int) = opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN
+    }
+}
@@ -7,6 +7,7 @@ package com.roscopeco.jasm
 
 import org.antlr.v4.runtime.ParserRuleContext
 import org.objectweb.asm.Opcodes
+import java.util.concurrent.ConcurrentHashMap
 
 class Modifiers {
     private val forwardMap = mapOf(
@@ -32,6 +33,9 @@ class Modifiers {
         "volatile"      to Opcodes.ACC_VOLATILE
     )
 
+    // The same few combinations are used over and over when building classes
+    private val parsedModifiers = ConcurrentHashMap<String, Int>()
+
     private val reverseClassMap = listOf(  /* Keep in JLS order for nice output */
         Pair(Opcodes.ACC_PUBLIC, "public"),
         Pair(Opcodes.ACC_ABSTRACT, "abstract"),
@@ -69,6 +73,18 @@ class Modifiers {
             .map { mod -> forwardMap[mod.text]!! }
             .fold(0) { value, modifier -> value or modifier }
 
+    /**
+     * Map modifiers written as they would be in source (e.g. `"public static final"`).
+     *
+     * @throws IllegalArgumentException if any of the modifiers is unknown
+     */
+    fun mapModifiers(modifiers: String): Int = parsedModifiers[modifiers] ?: modifiers
+            .split(' ')
+            .filter { it.isNotEmpty() }
+            .map { mod -> forwardMap[mod] ?: throw IllegalArgumentException("Unknown modifier '$mod'") }
+            .fold(0) { value, modifier -> value or modifier }
+            .also { parsedModifiers[modifiers] = it }
+
     fun disassembleClassModifiers(modifiers: Int): String = disassembleModifiers(modifiers, reverseClassMap)
 
     fun disassembleMethodModifiers(modifiers: Int): String = disassembleModifiers(modifiers, reverseMethodMap)
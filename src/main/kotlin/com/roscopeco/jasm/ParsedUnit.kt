@@ -0,0 +1,422 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import com.roscopeco.jasm.antlr.JasmLexer
+import com.roscopeco.jasm.antlr.JasmParser
+import com.roscopeco.jasm.errors.BaseError
+import com.roscopeco.jasm.errors.CollectingErrorListener
+import com.roscopeco.jasm.errors.ErrorCollector
+import com.roscopeco.jasm.errors.StandardErrorCollector
+import org.antlr.v4.runtime.CharStream
+import org.antlr.v4.runtime.CharStreams
+import org.antlr.v4.runtime.CommonToken
+import org.antlr.v4.runtime.CommonTokenStream
+import org.antlr.v4.runtime.ParserRuleContext
+import org.antlr.v4.runtime.Token
+import org.antlr.v4.runtime.misc.Pair
+import org.antlr.v4.runtime.tree.ErrorNode
+import org.antlr.v4.runtime.tree.TerminalNode
+import org.antlr.v4.runtime.tree.TerminalNodeImpl
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.lang.reflect.Constructor
+import java.util.IdentityHashMap
+import java.util.Objects
+import java.util.zip.CRC32
+
+/**
+ * A parsed JASM compilation unit, which can be written in a binary form and read back (and so
+ * assembled) without lexing or parsing the source again.
+ *
+ * The binary form holds the parse tree, with the text and source position of every token, so
+ * assembling it gives exactly the same class as assembling the source, with errors reported
+ * at the same positions. [JasmAssembler] recognises it by its header and reads it in place of
+ * source, taking the unit name from it rather than the one it's given.
+ *
+ * The header holds a version, a fingerprint of the grammar the unit was parsed with, and a
+ * checksum, and units from a different version (or grammar) of JASM, or that are damaged,
+ * are rejected rather than assembled.
+ *
+ * @see parse
+ * @see read
+ */
+class ParsedUnit private constructor(
+    /** The (display) name of the compilation unit the source was parsed from */
+    val unitName: String,
+
+    internal val tree: JasmParser.ClassContext,
+) {
+    /**
+     * Write the unit in binary form.
+     */
+    fun write(output: OutputStream) {
+        val body = ByteArrayOutputStream()
+        Writer(DataOutputStream(body)).write()
+
+        val checksum = CRC32()
+        checksum.update(body.toByteArray())
+
+        val data = DataOutputStream(output)
+        data.write(MAGIC)
+        data.writeShort(FORMAT_VERSION)
+        data.writeInt(GRAMMAR_FINGERPRINT)
+        data.writeInt(body.size())
+        data.writeInt(checksum.value.toInt())
+        body.writeTo(data)
+        data.flush()
+    }
+
+    /**
+     * The unit in binary form.
+     */
+    fun toByteArray(): ByteArray = ByteArrayOutputStream().also(::write).toByteArray()
+
+    /*
+     * The body is a table of strings, then one of tokens (referring to the strings for their
+     * text, and with their positions in the source), then the tree in pre-order. Numbers are
+     * variable-length, as most are small.
+     */
+    private inner class Writer(private val out: DataOutputStream) {
+        private val strings = LinkedHashMap<String, Int>()
+        private val tokens = IdentityHashMap<Token, Int>()
+
+        fun write() {
+            collect(tree)
+
+            val ordered = tokens.keys.sortedBy { it.tokenIndex }
+            ordered.forEachIndexed { i, token ->
+                tokens[token] = i
+                strings.putIfAbsent(token.text, strings.size)
+            }
+
+            writeString(unitName)
+
+            writeVarInt(strings.size)
+            strings.keys.forEach(::writeString)
+
+            writeVarInt(ordered.size)
+            var lastIndex = 0
+            var lastStart = 0
+            ordered.forEach { token ->
+                writeVarInt(token.type + 1)
+                writeVarInt(strings.getValue(token.text))
+                writeVarInt(token.line)
+                writeVarInt(token.charPositionInLine)
+                writeVarInt(token.tokenIndex - lastIndex)
+                writeVarInt(token.startIndex - lastStart)
+                writeVarInt(token.stopIndex - token.startIndex + 1)
+                lastIndex = token.tokenIndex
+                lastStart = token.startIndex
+            }
+
+            writeNode(tree)
+        }
+
+        private fun collect(ctx: ParserRuleContext) {
+            tokens[ctx.start] = 0
+            ctx.stop?.let { tokens[it] = 0 }
+
+            ctx.children?.forEach {
+                when (it) {
+                    is ErrorNode -> throw IllegalStateException("Cannot write a unit with syntax errors")
+                    is TerminalNode -> tokens[it.symbol] = 0
+                    is ParserRuleContext -> collect(it)
+                }
+            }
+        }
+
+        private fun writeNode(ctx: ParserRuleContext) {
+            writeVarInt(ctx.ruleIndex shl 1)
+            writeVarInt(ctx.invokingState + 1)
+            writeVarInt(tokens.getValue(ctx.start))
+            writeVarInt(ctx.stop?.let { tokens.getValue(it) + 1 } ?: 0)
+
+            val children = ctx.children ?: emptyList()
+            writeVarInt(children.size)
+
+            children.forEach {
+                if (it is TerminalNode) {
+                    writeVarInt((tokens.getValue(it.symbol) shl 1) or 1)
+                } else {
+                    writeNode(it as ParserRuleContext)
+                }
+            }
+        }
+
+        private fun writeString(value: String) {
+            val bytes = value.toByteArray(Charsets.UTF_8)
+            writeVarInt(bytes.size)
+            out.write(bytes)
+        }
+
+        private fun writeVarInt(value: Int) {
+            var remaining = value
+
+            while (remaining and 0x7F.inv() != 0) {
+                out.writeByte((remaining and 0x7F) or 0x80)
+                remaining = remaining ushr 7
+            }
+
+            out.writeByte(remaining)
+        }
+    }
+
+    private class Reader(private val bytes: ByteArray, private var pos: Int, private val end: Int) {
+        private lateinit var strings: Array<String>
+        private lateinit var tokens: Array<Token>
+
+        fun read(): ParsedUnit {
+            val unitName = readString()
+
+            strings = Array(readCount()) { readString() }
+            tokens = readTokens()
+
+            val root = readNode(null)
+            check(root is JasmParser.ClassContext) { "Root is not a class" }
+            check(pos == end) { "Unexpected data after the parse tree" }
+
+            return ParsedUnit(unitName, root)
+        }
+
+        private fun readTokens(): Array<Token> {
+            var index = 0
+            var start = 0
+
+            val read = Array(readCount()) {
+                val type = readVarInt() - 1
+                check(type == Token.EOF || type in 1..JasmParser.VOCABULARY.maxTokenType) { "Unknown token type $type" }
+
+                CommonToken(type, strings[readIndex(strings.size)]).apply {
+                    line = readVarInt()
+                    charPositionInLine = readVarInt()
+                    index += readVarInt()
+                    tokenIndex = index
+                    start += readVarInt()
+                    startIndex = start
+                    stopIndex = start + readVarInt() - 1
+                }
+            }
+
+            val input = source(read)
+
+            return Array(read.size) {
+                val token = read[it]
+
+                CommonToken(Pair(null, input), token.type, Token.DEFAULT_CHANNEL, token.startIndex, token.stopIndex).apply {
+                    text = token.text
+                    line = token.line
+                    charPositionInLine = token.charPositionInLine
+                    tokenIndex = token.tokenIndex
+                }
+            }
+        }
+
+        // Only the tokens are kept, so errors take their excerpts from the source rebuilt from them
+        // (with blanks in place of the whitespace and comments between them)
+        private fun source(tokens: Array<CommonToken>): CharStream {
+            val text = StringBuilder()
+            var line = 1
+
+            tokens.filter { it.type != Token.EOF && it.startIndex >= text.length }.forEach { token ->
+                val gap = token.startIndex - text.length
+                val newlines = (token.line - line).coerceIn(0, gap)
+
+                repeat(newlines) { text.append('\n') }
+                repeat(gap - newlines) { text.append(' ') }
+                text.append(token.text)
+
+                line = token.line + token.text.count { it == '\n' }
+            }
+
+            return CharStreams.fromString(text.toString())
+        }
+
+        private fun readNode(parent: ParserRuleContext?): ParserRuleContext {
+            val rule = readVarInt()
+            check(rule and 1 == 0 && rule shr 1 < RULE_CONSTRUCTORS.size) { "Expected a rule, found $rule" }
+
+            val ctx = RULE_CONSTRUCTORS[rule shr 1].newInstance(parent, readVarInt() - 1)
+            ctx.start = tokens[readIndex(tokens.size)]
+            ctx.stop = readVarInt().let { if (it == 0) null else tokens[checkIndex(it - 1, tokens.size)] }
+
+            repeat(readCount()) {
+                val next = peekVarInt()
+
+                if (next and 1 == 1) {
+                    readVarInt()
+                    ctx.addChild(TerminalNodeImpl(tokens[checkIndex(next shr 1, tokens.size)]))
+                } else {
+                    ctx.addChild(readNode(ctx))
+                }
+            }
+
+            return ctx
+        }
+
+        private fun readString(): String {
+            val length = readCount()
+            return String(bytes, pos, length, Charsets.UTF_8).also { pos += length }
+        }
+
+        // A count can't be more than the bytes left, which keeps damaged data from allocating too much
+        private fun readCount() = readVarInt().also { check(it <= end - pos) { "Bad count $it" } }
+
+        private fun readIndex(size: Int) = checkIndex(readVarInt(), size)
+
+        private fun checkIndex(index: Int, size: Int) = index.also { check(it in 0 until size) { "Bad index $it" } }
+
+        private fun peekVarInt() = pos.let { start -> readVarInt().also { pos = start } }
+
+        private fun readVarInt(): Int {
+            var value = 0
+            var shift = 0
+
+            while (true) {
+                if (pos >= end) {
+                    throw EOFException()
+                }
+
+                val b = bytes[pos++].toInt()
+                value = value or ((b and 0x7F) shl shift)
+
+                if (b and 0x80 == 0) {
+                    return value
+                }
+
+                shift += 7
+                check(shift < 32) { "Bad number" }
+            }
+        }
+    }
+
+    companion object {
+        // Starts with a NUL so it can't be mistaken for source, and ends with CR LF to catch mangled line endings
+        private val MAGIC = byteArrayOf(0x00, 'J'.code.toByte(), 'A'.code.toByte(), 'S'.code.toByte(), 'M'.code.toByte(), 'P'.code.toByte(), 0x0D, 0x0A)
+
+        /** The version of the binary form written by this version of JASM */
+        const val FORMAT_VERSION = 2
+
+        private const val HEADER_SIZE = 8 + 2 + 4 + 4 + 4
+
+        /** The file extension for units in binary form */
+        const val EXTENSION = "jasmc"
+
+        // Trees are only readable by the grammar they were parsed with
+        private val GRAMMAR_FINGERPRINT = CRC32().run {
+            JasmParser.ruleNames.forEach { update(it.toByteArray()) }
+            (0..JasmParser.VOCABULARY.maxTokenType).forEach { update("${JasmParser.VOCABULARY.getSymbolicName(it)}".toByteArray()) }
+            value.toInt()
+        }
+
+        private val RULE_CONSTRUCTORS: Array<Constructor<out ParserRuleContext>> = JasmParser.ruleNames.map { rule ->
+            Class.forName("${JasmParser::class.java.name}\$${rule.replaceFirstChar { it.uppercaseChar() }}Context")
+                .asSubclass(ParserRuleContext::class.java)
+                .getConstructor(ParserRuleContext::class.java, Int::class.javaPrimitiveType)
+        }.toTypedArray()
+
+        /**
+         * Parse JASM source.
+         *
+         * @param unitName The (display) name of the compilation unit
+         * @param source The source, which is read but not closed
+         *
+         * @throws AssemblyException if the source has syntax errors
+         */
+        @JvmStatic
+        fun parse(unitName: String, source: InputStream): ParsedUnit {
+            val errorCollector = StandardErrorCollector()
+            val unit = parse(unitName, source, errorCollector)
+
+            if (errorCollector.hasErrors()) {
+                throw AssemblyException(errorCollector.getErrors())
+            }
+
+            return unit
+        }
+
+        internal fun parse(unitName: String, source: InputStream, errorCollector: ErrorCollector): ParsedUnit {
+            val lexer = JasmLexer(Objects.requireNonNull(CharStreams.fromStream(source), "Failed to open stream for $unitName"))
+            lexer.removeErrorListeners()
+            lexer.addErrorListener(CollectingErrorListener(unitName, errorCollector))
+
+            val parser = JasmParser(CommonTokenStream(lexer))
+            parser.removeErrorListeners()
+            parser.addErrorListener(CollectingErrorListener(unitName, errorCollector))
+
+            return ParsedUnit(unitName, parser.class_())
+        }
+
+        /**
+         * Read a unit in binary form.
+         *
+         * @param unitName The (display) name to report problems reading the unit against
+         * @param input The binary form, which is read but not closed
+         *
+         * @throws AssemblyException if the input isn't a unit in binary form, or is from a
+         *                           different version of JASM, or is damaged
+         */
+        @JvmStatic
+        fun read(unitName: String, input: InputStream): ParsedUnit {
+            fun invalid(reason: String) = AssemblyException(listOf(BaseError(unitName, "Invalid parsed unit: $reason")))
+
+            val bytes = input.readAllBytes()
+
+            if (!isParsedUnit(bytes)) {
+                throw invalid("not a parsed unit")
+            }
+
+            val header = DataInputStream(bytes.inputStream(MAGIC.size, HEADER_SIZE - MAGIC.size))
+            val version = header.readUnsignedShort()
+            val fingerprint = header.readInt()
+            val length = header.readInt()
+            val checksum = header.readInt()
+
+            when {
+                version != FORMAT_VERSION -> throw invalid("format version $version is not supported (expected $FORMAT_VERSION)")
+                fingerprint != GRAMMAR_FINGERPRINT -> throw invalid("parsed by a different version of JASM")
+                length != bytes.size - HEADER_SIZE -> throw invalid("expected $length bytes of data, found ${bytes.size - HEADER_SIZE}")
+            }
+
+            val crc = CRC32()
+            crc.update(bytes, HEADER_SIZE, length)
+
+            if (crc.value.toInt() != checksum) {
+                throw invalid("checksum mismatch")
+            }
+
+            return try {
+                Reader(bytes, HEADER_SIZE, bytes.size).read()
+            } catch (e: IllegalStateException) {
+                throw invalid(e.message ?: "malformed")
+            } catch (e: IOException) {
+                throw invalid("truncated")
+            }
+        }
+
+        /**
+         * Whether the given bytes start with the header of a unit in binary form.
+         */
+        @JvmStatic
+        fun isParsedUnit(bytes: ByteArray) =
+            bytes.size >= HEADER_SIZE && MAGIC.indices.all { bytes[it] == MAGIC[it] }
+
+        internal fun isParsedUnit(input: InputStream): Boolean {
+            input.mark(MAGIC.size)
+
+            try {
+                return MAGIC.all { input.read() == it.toInt() }
+            } finally {
+                input.reset()
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.tree.ClassNode
+import org.objectweb.asm.tree.LdcInsnNode
+import java.io.ByteArrayInputStream
+import java.io.DataInputStream
+
+/**
+ * Rewrites an assembled class to make it as small as possible, for release builds.
+ *
+ * Debug attributes (`SourceFile`, `SourceDebugExtension`, `LocalVariableTable`,
+ * `LocalVariableTypeTable`, `LineNumberTable` and `MethodParameters`) are removed, and the
+ * class is written out again with a fresh constant pool, so it only has the entries that are
+ * still referenced, and identical bootstrap methods are shared.
+ *
+ * The pool is ordered to compress well in a jar: constants loaded with `ldc` come first (most
+ * used first, so they keep the short form of the instruction), followed by the strings in
+ * sorted order, which puts names and descriptors with common prefixes next to each other.
+ */
+internal object ReleaseOptimizer {
+    private const val CONSTANT_UTF8 = 1
+
+    fun optimize(bytes: ByteArray): ByteArray {
+        val node = ClassNode()
+        ClassReader(bytes).accept(node, ClassReader.SKIP_DEBUG)
+
+        // Write it once to find out which strings are still needed
+        val strings = utf8Constants(write(node, ClassWriter(0)))
+
+        val writer = ClassWriter(0)
+
+        node.methods
+            .flatMap { it.instructions.filterIsInstance<LdcInsnNode>() }
+            .groupingBy { it.cst }
+            .eachCount()
+            .entries
+            .sortedByDescending { it.value }
+            .forEach { writer.newConst(it.key) }
+
+        strings.sorted().forEach { writer.newUTF8(it) }
+
+        return write(node, writer)
+    }
+
+    private fun write(node: ClassNode, writer: ClassWriter): ByteArray {
+        node.accept(writer)
+        return writer.toByteArray()
+    }
+
+    private fun utf8Constants(bytes: ByteArray): List<String> {
+        val reader = ClassReader(bytes)
+
+        return (1 until reader.itemCount)
+            .map { reader.getItem(it) }
+            // Offsets point past the tag, and are zero for the unused slot after a long or double
+            .filter { it > 0 && bytes[it - 1].toInt() == CONSTANT_UTF8 }
+            .map { offset ->
+                // ClassReader only reads strings by index, the item is in the same format DataInput uses
+                DataInputStream(ByteArrayInputStream(bytes, offset, bytes.size - offset)).readUTF()
+            }
+    }
+}
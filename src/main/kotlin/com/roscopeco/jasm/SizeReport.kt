@@ -0,0 +1,78 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import java.util.Locale
+import java.util.zip.Deflater
+
+/**
+ * How much smaller a class (or set of classes) was made in release mode.
+ *
+ * Compressed sizes are for the class deflated as it would be in a jar.
+ *
+ * @param unitName The compilation unit (or `"Total"` for an aggregate report)
+ * @param originalSize Size of the class as normally assembled
+ * @param releaseSize Size of the class in release mode
+ * @param originalCompressedSize Compressed size of the class as normally assembled
+ * @param releaseCompressedSize Compressed size of the class in release mode
+ */
+data class SizeReport(
+    val unitName: String,
+    val originalSize: Int,
+    val releaseSize: Int,
+    val originalCompressedSize: Int,
+    val releaseCompressedSize: Int,
+) {
+    /** Bytes saved, uncompressed */
+    val saved get() = originalSize - releaseSize
+
+    /** Bytes saved, compressed */
+    val compressedSaved get() = originalCompressedSize - releaseCompressedSize
+
+    override fun toString() =
+        "$unitName: $originalSize -> $releaseSize bytes (saved $saved, ${percent(saved, originalSize)}), " +
+        "compressed $originalCompressedSize -> $releaseCompressedSize bytes " +
+        "(saved $compressedSaved, ${percent(compressedSaved, originalCompressedSize)})"
+
+    private fun percent(saved: Int, size: Int) = if (size == 0) "0.0%" else String.format(Locale.ROOT, "%.1f%%", saved * 100.0 / size)
+
+    companion object {
+        /**
+         * Compare a class as normally assembled with the same class in release mode.
+         */
+        @JvmStatic
+        fun of(unitName: String, original: ByteArray, release: ByteArray) =
+            SizeReport(unitName, original.size, release.size, compressedSize(original), compressedSize(release))
+
+        /**
+         * Add up the given reports.
+         */
+        @JvmStatic
+        fun total(reports: Collection<SizeReport>) = SizeReport(
+            "Total",
+            reports.sumOf { it.originalSize },
+            reports.sumOf { it.releaseSize },
+            reports.sumOf { it.originalCompressedSize },
+            reports.sumOf { it.releaseCompressedSize },
+        )
+
+        private fun compressedSize(bytes: ByteArray): Int {
+            val deflater = Deflater(Deflater.DEFAULT_COMPRESSION, true)
+            val buffer = ByteArray(bytes.size + 64)
+
+            try {
+                deflater.setInput(bytes)
+                deflater.finish()
+
+                var size = 0
+                while (!deflater.finished()) size += deflater.deflate(buffer)
+                return size
+            } finally {
+                deflater.end()
+            }
+        }
+    }
+}
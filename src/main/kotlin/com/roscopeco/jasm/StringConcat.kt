@@ -0,0 +1,97 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import org.objectweb.asm.Handle
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
+
+/**
+ * Support for the `concat` pseudo-instruction, which concatenates the values on the stack
+ * according to a `StringConcatFactory`-style recipe.
+ *
+ * For class format 53 (Java 9) and up this is an `invokedynamic` to `makeConcatWithConstants`,
+ * which is what `javac` generates. For older formats (or more arguments than the bootstrap
+ * accepts) it's a `StringBuilder` sized to fit the expected result.
+ */
+internal object StringConcat {
+    /** Marks where an argument is inserted into the recipe. */
+    const val TAG_ARG = '\u0001'
+
+    /** Marks where a bootstrap constant is inserted - not supported, as the text can just go in the recipe. */
+    const val TAG_CONST = '\u0002'
+
+    /** `StringConcatFactory` only accepts this many argument slots. */
+    const val MAX_INDY_SLOTS = 200
+
+    // Escaped backslashes are matched too, so whatever follows them is never taken as a tag
+    private val TAG_ESCAPE = Regex("""\\(\\|u0001|u0002)""")
+
+    val BOOTSTRAP = Handle(
+        Opcodes.H_INVOKESTATIC,
+        "java/lang/invoke/StringConcatFactory",
+        "makeConcatWithConstants",
+        "(Ljava/lang/invoke/MethodHandles\$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;" +
+                "Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;",
+        false
+    )
+
+    /**
+     * Unescape the `\u0001` and `\u0002` tags in a recipe, as written in the source. This must
+     * be done before the other escapes (which are handled as for any other string constant) so
+     * that an escaped backslash followed by `u0001` is left as literal text.
+     */
+    fun unescapeTags(recipe: String) = TAG_ESCAPE.replace(recipe) {
+        when (it.groupValues[1]) {
+            "u0001" -> TAG_ARG.toString()
+            "u0002" -> TAG_CONST.toString()
+            else -> it.value
+        }
+    }
+
+    /**
+     * Split the recipe into the literal text around each argument, so there is always
+     * one more segment than there are arguments.
+     */
+    fun segments(recipe: String) = recipe.split(TAG_ARG)
+
+    /**
+     * The descriptor of the `StringBuilder.append` overload that gives the same result as
+     * `StringConcatFactory` for the given type.
+     */
+    fun appendDescriptor(type: Type) = when (type.sort) {
+        Type.BOOLEAN -> "(Z)Ljava/lang/StringBuilder;"
+        Type.CHAR -> "(C)Ljava/lang/StringBuilder;"
+        Type.BYTE, Type.SHORT, Type.INT -> "(I)Ljava/lang/StringBuilder;"
+        Type.LONG -> "(J)Ljava/lang/StringBuilder;"
+        Type.FLOAT -> "(F)Ljava/lang/StringBuilder;"
+        Type.DOUBLE -> "(D)Ljava/lang/StringBuilder;"
+        else -> if (type.descriptor == "Ljava/lang/String;") {
+            "(Ljava/lang/String;)Ljava/lang/StringBuilder;"
+        } else {
+            // Not append(char[]), that would append the contents rather than toString()
+            "(Ljava/lang/Object;)Ljava/lang/StringBuilder;"
+        }
+    }
+
+    /**
+     * Initial `StringBuilder` capacity: the literal text plus the longest string each
+     * primitive can produce (references are a guess).
+     */
+    fun capacity(segments: List<String>, args: List<Type>) = segments.sumOf { it.length } + args.sumOf { type ->
+        when (type.sort) {
+            Type.BOOLEAN -> 5
+            Type.CHAR -> 1
+            Type.BYTE -> 4
+            Type.SHORT -> 6
+            Type.INT -> 11
+            Type.LONG -> 20
+            Type.FLOAT -> 15
+            Type.DOUBLE -> 24
+            else -> 16
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm
+
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
+import org.objectweb.asm.tree.AbstractInsnNode
+import org.objectweb.asm.tree.InsnList
+import org.objectweb.asm.tree.JumpInsnNode
+import org.objectweb.asm.tree.LabelNode
+import org.objectweb.asm.tree.MethodInsnNode
+import org.objectweb.asm.tree.MethodNode
+import org.objectweb.asm.tree.VarInsnNode
+import org.objectweb.asm.tree.analysis.BasicInterpreter
+
+/**
+ * Turns self-recursive tail calls into loops.
+ *
+ * A call to the method itself that is immediately followed by a return is replaced with
+ * stores of the arguments (from the stack) into the parameter slots, and a `goto` back to
+ * the start of the method. This is only done where nothing else is on the stack, and where
+ * the call isn't covered by an exception handler.
+ *
+ * Only `static` and `private` methods are changed, as any other method could be overridden
+ * (so the call might not be to the same code). Constructors, static initializers,
+ * `synchronized` methods and methods using `jsr` / `ret` are never changed.
+ *
+ * This must run after slots have been allocated for named locals.
+ *
+ * @param owner Internal name of the class being assembled
+ */
+internal class TailCallEliminator(private val owner: String) {
+
+    /**
+     * Eliminate self-recursive tail calls in the given method.
+     *
+     * @param method The method to process (modified in place)
+     */
+    fun eliminate(method: MethodNode) {
+        val insns = method.instructions
+        val isStatic = method.access and Opcodes.ACC_STATIC != 0
+
+        if ((!isStatic && method.access and Opcodes.ACC_PRIVATE == 0) || method.name.startsWith("<")) {
+            return
+        }
+
+        // Each call takes (and releases) its own monitor, which a loop wouldn't
+        if (method.access and Opcodes.ACC_SYNCHRONIZED != 0) {
+            return
+        }
+
+        if (insns.any { it.opcode == Opcodes.JSR || it.opcode == Opcodes.RET }) {
+            return
+        }
+
+        val candidates = insns
+            .filterIsInstance<MethodInsnNode>()
+            .filter { isSelfCall(method, it) && returnAfter(method, it) != null && !isCovered(method, it) }
+
+        if (candidates.isEmpty()) {
+            return
+        }
+
+        val frames = ControlFlow.frames(owner, method, BasicInterpreter()) ?: return
+        val argTypes = Type.getArgumentTypes(method.desc)
+        val stackSize = argTypes.size + if (isStatic) 0 else 1
+
+        // Anything else on the stack would be lost by the jump (and wouldn't verify)
+        val calls = candidates.filter { frames[insns.indexOf(it)]?.stackSize == stackSize }
+
+        if (calls.isEmpty()) {
+            return
+        }
+
+        val entry = LabelNode()
+        insns.insert(entry)
+
+        calls.forEach { call ->
+            val ret = returnAfter(method, call)!!
+
+            // Unless something else jumps to it, the return is now unreachable
+            if (!hasLabelBetween(call, ret)) {
+                insns.remove(ret)
+            }
+
+            insns.insertBefore(call, loopBack(argTypes, isStatic, entry))
+            insns.remove(call)
+        }
+    }
+
+    private fun isSelfCall(method: MethodNode, call: MethodInsnNode): Boolean {
+        val opcodeMatches = if (method.access and Opcodes.ACC_STATIC != 0) {
+            call.opcode == Opcodes.INVOKESTATIC
+        } else {
+            call.opcode == Opcodes.INVOKESPECIAL || call.opcode == Opcodes.INVOKEVIRTUAL || call.opcode == Opcodes.INVOKEINTERFACE
+        }
+
+        return opcodeMatches && call.owner == owner && call.name == method.name && call.desc == method.desc
+    }
+
+    // The return immediately following the call (labels etc. aside), if it returns the call's result
+    private fun returnAfter(method: MethodNode, call: MethodInsnNode): AbstractInsnNode? {
+        var next = call.next
+        while (next != null && next.opcode < 0) next = next.next
+
+        return next?.takeIf { it.opcode == Type.getReturnType(method.desc).getOpcode(Opcodes.IRETURN) }
+    }
+
+    private fun hasLabelBetween(start: AbstractInsnNode, end: AbstractInsnNode): Boolean {
+        var insn = start.next
+
+        while (insn != end) {
+            if (insn is LabelNode) return true
+            insn = insn.next
+        }
+
+        return false
+    }
+
+    private fun isCovered(method: MethodNode, call: MethodInsnNode): Boolean {
+        val insns = method.instructions
+        val index = insns.indexOf(call)
+
+        return method.tryCatchBlocks.any { tcb -> insns.indexOf(tcb.start) < index && index < insns.indexOf(tcb.end) }
+    }
+
+    // Arguments are on the stack in order, so they're stored last first
+    private fun loopBack(argTypes: Array<Type>, isStatic: Boolean, entry: LabelNode): InsnList {
+        val code = InsnList()
+        var slot = argTypes.sumOf { it.size } + if (isStatic) 0 else 1
+
+        argTypes.reversed().forEach { type ->
+            slot -= type.size
+            code.add(VarInsnNode(type.getOpcode(Opcodes.ISTORE), slot))
+        }
+
+        if (!isStatic) {
+            code.add(VarInsnNode(Opcodes.ASTORE, 0))
+        }
+
+        code.add(JumpInsnNode(Opcodes.GOTO, entry))
+        return code
+    }
+}
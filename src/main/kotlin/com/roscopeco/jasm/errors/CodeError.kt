@@ -1,14 +1,122 @@
 package com.roscopeco.jasm.errors
 
+import org.antlr.v4.runtime.CommonToken
 import org.antlr.v4.runtime.ParserRuleContext
 import org.antlr.v4.runtime.Token
 import org.antlr.v4.runtime.misc.Interval
 
-class CodeError(unitName: String, val start: Token, val stop: Token, val interval: Interval, message: String) : BaseError(unitName, message) {
-    constructor(unitName: String, ctx: ParserRuleContext, message: String) : this(unitName, ctx.start, ctx.stop, ctx.sourceInterval, message)
+/**
+ * An error (or warning) at a position in the source.
+ *
+ * Only the position and a short excerpt of the source are kept, rather than the tokens, as
+ * those keep the whole token stream (and with it the parse tree) alive for as long as the
+ * error is.
+ *
+ * @param line The line the error starts at
+ * @param column The column the error starts at
+ * @param stopLine The line the error ends at
+ * @param stopColumn The column the error ends at
+ * @param startIndex The offset of the first character in the source
+ * @param stopIndex The offset of the last character in the source
+ * @param interval The interval of tokens covered by the error
+ * @param excerpt The (first line of the) source covered by the error, shortened if long
+ */
+class CodeError(
+    unitName: String,
+    val line: Int,
+    val column: Int,
+    val stopLine: Int,
+    val stopColumn: Int,
+    val startIndex: Int,
+    val stopIndex: Int,
+    val interval: Interval,
+    val excerpt: String,
+    message: String,
+) : BaseError(unitName, message) {
+    private var startText: String? = null
+    private var stopText: String? = null
+
+    /**
+     * Where the tokens came from, if not directly from the source (see [TokenOrigin])
+     */
+    internal var origin: String? = null
+        private set
+
+    constructor(unitName: String, start: Token, stop: Token, interval: Interval, message: String) : this(
+        unitName,
+        start.line,
+        start.charPositionInLine,
+        stop.line,
+        stop.charPositionInLine,
+        start.startIndex,
+        stop.stopIndex,
+        interval,
+        excerpt(start, stop),
+        message
+    ) {
+        startText = start.text
+        stopText = stop.text
+        origin = (start as? TokenOrigin)?.origin
+    }
+
+    constructor(unitName: String, ctx: ParserRuleContext, message: String)
+            : this(unitName, ctx.start, ctx.stop ?: ctx.start, ctx.sourceInterval, message)
+
+    /**
+     * The first token of the error. This is a copy holding just its position and text.
+     */
+    val start: Token
+        get() = token(line, column, startIndex, startIndex + (startText?.length ?: 1) - 1, startText)
+
+    /**
+     * The last token of the error. This is a copy holding just its position and text.
+     */
+    val stop: Token
+        get() = token(stopLine, stopColumn, stopIndex - (stopText?.length ?: 1) + 1, stopIndex, stopText)
+
+    /**
+     * A copy of this error with a different message.
+     */
+    fun withMessage(message: String) =
+        CodeError(unitName, line, column, stopLine, stopColumn, startIndex, stopIndex, interval, excerpt, message).also {
+            it.startText = startText
+            it.stopText = stopText
+        }
 
     override val displayMessage: String
-        get() = "$unitName:[${start.line}:${start.charPositionInLine}]: ${message.substringBefore("expecting")}"
+        get() = "$unitName:[$line:$column]: ${message.substringBefore("expecting")}"
+
+    override fun toString(): String = "$unitName:[$line:$column]: $message"
+
+    private fun token(line: Int, column: Int, startIndex: Int, stopIndex: Int, text: String?): Token =
+        CommonToken(Token.INVALID_TYPE, text).also {
+            it.line = line
+            it.charPositionInLine = column
+            it.startIndex = startIndex
+            it.stopIndex = stopIndex
+        }
+
+    companion object {
+        private const val MAX_EXCERPT = 80
+
+        private fun excerpt(start: Token, stop: Token): String {
+            val input = start.inputStream
+            val text = if (input != null && start.startIndex >= 0 && stop.stopIndex >= start.startIndex && stop.stopIndex < input.size()) {
+                input.getText(Interval.of(start.startIndex, stop.stopIndex))
+            } else {
+                start.text ?: ""
+            }
+
+            val firstLine = text.lineSequence().first()
+            return if (firstLine.length > MAX_EXCERPT) firstLine.take(MAX_EXCERPT) + "..." else firstLine
+        }
+    }
+}
 
-    override fun toString(): String = "$unitName:[${start.line}:${start.charPositionInLine}]: $message"
-}
\ No newline at end of file
+/**
+ * Implemented by tokens that weren't read directly from the source (such as those copied into a
+ * macro expansion) to say where they came from. Errors at the token keep this, but not the token.
+ */
+internal interface TokenOrigin {
+    val origin: String
+}
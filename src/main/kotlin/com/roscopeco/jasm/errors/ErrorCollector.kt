@@ -4,4 +4,12 @@ interface ErrorCollector {
     fun addError(error: BaseError)
     fun hasErrors(): Boolean
     fun getErrors(): List<BaseError>
-}
\ No newline at end of file
+
+    /*
+     * Warnings are non-fatal diagnostics. They default to being dropped so that
+     * existing collectors don't need to care about them.
+     */
+    fun addWarning(warning: BaseError) { }
+    fun hasWarnings(): Boolean = false
+    fun getWarnings(): List<BaseError> = emptyList()
+}
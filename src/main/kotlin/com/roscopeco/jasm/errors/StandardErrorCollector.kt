@@ -2,6 +2,7 @@ package com.roscopeco.jasm.errors
 
 class StandardErrorCollector: ErrorCollector {
     private val errors: MutableList<BaseError> = mutableListOf()
+    private val warnings: MutableList<BaseError> = mutableListOf()
 
     override fun addError(error: BaseError) {
         errors.add(error)
@@ -10,4 +11,12 @@ class StandardErrorCollector: ErrorCollector {
     override fun hasErrors() = errors.isNotEmpty()
 
     override fun getErrors(): List<BaseError> = errors.toList()
+
+    override fun addWarning(warning: BaseError) {
+        warnings.add(warning)
+    }
+
+    override fun hasWarnings() = warnings.isNotEmpty()
+
+    override fun getWarnings(): List<BaseError> = warnings.toList()
 }
@@ -1,23 +1,47 @@
 package com.roscopeco.jasm.tool
 
+import com.roscopeco.jasm.AssemblerOptions
 import com.roscopeco.jasm.JasmAssembler
 import java.io.File
 import java.io.FileInputStream
 import java.io.FileOutputStream
 
-class AssembleTask(src: File, dest: File, val targetVersion: Int) : FileTransformTask<AssemblyResult>(src, dest) {
-    private val assembler = JasmAssembler(unitName(), targetVersion) { FileInputStream(src) }
+/**
+ * Assembles a source file to a class file.
+ *
+ * @param targetVersion The class format for [dest]
+ * @param options Optional assembler behaviour
+ * @param versionedDests Destinations for the same class in additional class formats, assembled from the same parse
+ */
+class AssembleTask(
+    src: File,
+    dest: File,
+    val targetVersion: Int,
+    val options: AssemblerOptions = AssemblerOptions(),
+    val versionedDests: Map<Int, File> = emptyMap()
+) : FileTransformTask<AssemblyResult>(src, dest) {
+    private val assembler = JasmAssembler(unitName(), targetVersion, options) { FileInputStream(src) }
 
     private fun unitName(): String = src.name
+
+    private fun warnings() = assembler.warnings.map { it.displayMessage }
     
     override fun perform(): AssemblyResult {
         try {
-            File(dest.parent ?: ".").mkdirs()
-            FileOutputStream(dest).use { it.write(assembler.assemble()) }
+            val classes = assembler.assemble(listOf(targetVersion) + versionedDests.keys)
+
+            write(dest, classes.getValue(targetVersion))
+            versionedDests.forEach { (version, file) -> write(file, classes.getValue(version)) }
         } catch (e: Exception) {
-            return AssemblyResult(unitName(), false, e.message ?: "[BUG]: <Unknown> [${e}")
+            return AssemblyResult(unitName(), false, e.message ?: "[BUG]: <Unknown> [${e}", warnings())
         }
 
-        return AssemblyResult(unitName(), true)
+        return AssemblyResult(unitName(), true, warnings = warnings(), sizeReport = assembler.sizeReport,
+            macroExpansions = assembler.macroExpansions)
+    }
+
+    private fun write(file: File, bytes: ByteArray) {
+        File(file.parent ?: ".").mkdirs()
+        FileOutputStream(file).use { it.write(bytes) }
     }
 }
\ No newline at end of file
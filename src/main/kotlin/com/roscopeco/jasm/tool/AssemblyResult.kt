@@ -1,3 +1,13 @@
 package com.roscopeco.jasm.tool
 
-data class AssemblyResult(val unitName: String, val success: Boolean, val message: String = "")
\ No newline at end of file
+import com.roscopeco.jasm.MacroExpansion
+import com.roscopeco.jasm.SizeReport
+
+data class AssemblyResult(
+    val unitName: String,
+    val success: Boolean,
+    val message: String = "",
+    val warnings: List<String> = emptyList(),
+    val sizeReport: SizeReport? = null,
+    val macroExpansions: List<MacroExpansion> = emptyList()
+)
\ No newline at end of file
@@ -2,6 +2,9 @@ package com.roscopeco.jasm.tool
 
 import com.beust.jcommander.JCommander
 import com.beust.jcommander.ParameterException
+import com.roscopeco.jasm.JasmException
+import com.roscopeco.jasm.SizeReport
+import java.util.stream.Collectors
 import kotlin.system.exitProcess
 
 class Jasm(private val args: ToolArgs) : Runnable {
@@ -25,6 +28,9 @@ class Jasm(private val args: ToolArgs) : Runnable {
                 }
             } catch (e: ParameterException) {
                 System.err.println("\u001B[1;31mERROR:\u001B[0m " + e.message)
+            } catch (e: JasmException) {
+                System.err.println("\u001B[1;31mERROR:\u001B[0m " + e.message)
+                exitProcess(1)
             }
         }
     }
@@ -35,9 +41,30 @@ class Jasm(private val args: ToolArgs) : Runnable {
         if (tasks.isEmpty()) {
             println("No input files (specify --help for usage)")
         } else {
-            val failed = tasks
-                .map { it.perform() }
-                .filter { !it.success }
+            // Verification is the bulk of the work, and each class is verified on its own
+            val results = if (args.verify) {
+                tasks.parallelStream().map { it.perform() }.collect(Collectors.toList())
+            } else {
+                tasks.map { it.perform() }
+            }
+
+            results
+                .flatMap { it.warnings }
+                .forEach { println("\u001B[1;33mWARN:\u001B[0m $it") }
+
+            val sizeReports = results.mapNotNull { it.sizeReport }
+
+            sizeReports.forEach { println("\u001B[1;32mSIZE:\u001B[0m $it") }
+
+            if (sizeReports.size > 1) {
+                println("\u001B[1;32mSIZE:\u001B[0m ${SizeReport.total(sizeReports)}")
+            }
+
+            results
+                .flatMap { it.macroExpansions }
+                .forEach { println("\u001B[1;32mMACRO:\u001B[0m $it") }
+
+            val failed = results.filter { !it.success }
 
             if (failed.isNotEmpty()) {
                 System.err.print(
@@ -0,0 +1,40 @@
+package com.roscopeco.jasm.tool
+
+import com.roscopeco.jasm.AssemblerOptions
+import com.roscopeco.jasm.JasmPatcher
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+
+/**
+ * Patches a class file with the members from a source file.
+ *
+ * @param original The class file to patch
+ * @param options Optional assembler behaviour, for the patched members
+ */
+class PatchTask(
+    src: File,
+    dest: File,
+    val original: File,
+    val options: AssemblerOptions = AssemblerOptions()
+) : FileTransformTask<AssemblyResult>(src, dest) {
+    private val patcher = JasmPatcher(unitName(), options) { FileInputStream(src) }
+
+    private fun unitName(): String = src.name
+
+    private fun warnings() = patcher.warnings.map { it.displayMessage }
+
+    override fun perform(): AssemblyResult {
+        try {
+            // Read it all first, as the original and the destination may be the same file
+            val patched = patcher.patch(original.readBytes())
+
+            File(dest.parent ?: ".").mkdirs()
+            FileOutputStream(dest).use { it.write(patched) }
+        } catch (e: Exception) {
+            return AssemblyResult(unitName(), false, e.message ?: "[BUG]: <Unknown> [${e}", warnings())
+        }
+
+        return AssemblyResult(unitName(), true, warnings = warnings())
+    }
+}
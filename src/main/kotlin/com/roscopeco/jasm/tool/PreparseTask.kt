@@ -0,0 +1,27 @@
+package com.roscopeco.jasm.tool
+
+import com.roscopeco.jasm.ParsedUnit
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+
+/**
+ * Parses a source file, and writes the parsed unit in binary form (see [ParsedUnit]) so it can
+ * be assembled again without parsing.
+ */
+class PreparseTask(src: File, dest: File) : FileTransformTask<AssemblyResult>(src, dest) {
+    private fun unitName(): String = src.name
+
+    override fun perform(): AssemblyResult {
+        try {
+            val unit = FileInputStream(src).use { ParsedUnit.parse(unitName(), it) }
+
+            File(dest.parent ?: ".").mkdirs()
+            FileOutputStream(dest).use { unit.write(it) }
+        } catch (e: Exception) {
+            return AssemblyResult(unitName(), false, e.message ?: "[BUG]: <Unknown> [${e}")
+        }
+
+        return AssemblyResult(unitName(), true)
+    }
+}
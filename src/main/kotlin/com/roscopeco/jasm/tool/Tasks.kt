@@ -1,5 +1,10 @@
 package com.roscopeco.jasm.tool
 
+import com.roscopeco.jasm.AssemblerOptions
+import com.roscopeco.jasm.JasmException
+import com.roscopeco.jasm.LayoutProfile
+import com.roscopeco.jasm.ParsedUnit
+import org.objectweb.asm.Opcodes
 import java.io.File
 import java.nio.file.Paths
 
@@ -8,34 +13,105 @@ object Tasks {
     fun createTasks(args: ToolArgs) = createTasks(args, File::exists)
 
     @JvmStatic
-    fun createTasks(args: ToolArgs, exists: (File) -> Boolean) = args.inputFiles
-        .asSequence()
-            .map { Pair(it, Paths.get(args.inputDirectory, it)) }
-            .map { Pair(it.first, it.second.toFile()) }
-            .onEach { if (!exists(it.second)) println("\u001B[1;33mWARN:\u001B[0m Input file ${it.second.name} not found!")}
-            .filter { exists(it.second) }
-            .map {
-                if (args.disassmbly) {
-                    DisassembleTask(
-                        it.second,
-                        Paths.get(args.outputDirectory, fixJasmExtension(it.first)).toFile(),
-                        args.emitLineNumbers
-                    )
-                } else {
-                    AssembleTask(
-                        it.second,
-                        Paths.get(args.outputDirectory, fixClassExtension(it.first)).toFile(),
-                        args.target
-                    )
+    fun createTasks(args: ToolArgs, exists: (File) -> Boolean): List<FileTransformTask<AssemblyResult>> {
+        checkTargets(args)
+
+        val options = AssemblerOptions(
+            emitLocalVariableTable = args.emitLocalVariableTable,
+            splitLargeMethods = args.splitLargeMethods,
+            maxMethodSize = args.maxMethodSize,
+            inlineConstants = args.inlineConstants || args.dropInlinedConstants,
+            dropInlinedConstants = args.dropInlinedConstants,
+            layoutProfile = args.layoutProfile?.let { LayoutProfile.load(File(it)) },
+            eliminateTailCalls = args.eliminateTailCalls,
+            release = args.release,
+            instrumentBlocks = when (args.instrument) {
+                null -> false
+                "blocks" -> true
+                else -> throw JasmException("Unknown instrumentation '${args.instrument}' (expected blocks)")
+            },
+            verify = args.verify
+        )
+
+        return args.inputFiles
+            .asSequence()
+                .map { Pair(it, Paths.get(args.inputDirectory, it)) }
+                .map { Pair(it.first, it.second.toFile()) }
+                .onEach { if (!exists(it.second)) println("\u001B[1;33mWARN:\u001B[0m Input file ${it.second.name} not found!")}
+                .filter { exists(it.second) }
+                .map {
+                    if (args.disassmbly) {
+                        DisassembleTask(
+                            it.second,
+                            Paths.get(args.outputDirectory, fixJasmExtension(it.first)).toFile(),
+                            args.emitLineNumbers
+                        )
+                    } else if (args.preparse) {
+                        PreparseTask(
+                            it.second,
+                            Paths.get(args.outputDirectory, fixExtension(it.first, ParsedUnit.EXTENSION)).toFile()
+                        )
+                    } else if (args.patchDirectory != null) {
+                        PatchTask(
+                            it.second,
+                            Paths.get(args.outputDirectory, fixClassExtension(it.first)).toFile(),
+                            Paths.get(args.patchDirectory!!, fixClassExtension(it.first)).toFile(),
+                            options
+                        )
+                    } else {
+                        AssembleTask(
+                            it.second,
+                            Paths.get(args.outputDirectory, fixClassExtension(it.first)).toFile(),
+                            args.target,
+                            options,
+                            args.targets
+                                .filter { version -> version != args.target }
+                                .distinct()
+                                .associateWith { version ->
+                                    Paths.get(
+                                        args.outputDirectory,
+                                        "META-INF",
+                                        "versions",
+                                        javaVersion(version).toString(),
+                                        fixClassExtension(it.first)
+                                    ).toFile()
+                                }
+                        )
+                    }
                 }
-            }
-            .toList()
+                .toList()
+    }
+
+    private fun checkTargets(args: ToolArgs) {
+        val versioned = args.targets.filter { it != args.target }.distinct()
+
+        if (versioned.isEmpty()) {
+            return
+        }
 
-    private fun fixClassExtension(input: String) = with (File(input)) {
-        Paths.get(parent ?: "", "$nameWithoutExtension.class").toString()
+        if (args.patchDirectory != null) {
+            throw JasmException("Only one target can be given with --patch (the patched classes keep their own)")
+        }
+
+        // Multi-release jars ignore META-INF/versions/N for N below 9, so these would never be used
+        val unused = versioned.filter { (it and 0xFFFF) < Opcodes.V9 }
+
+        if (unused.isNotEmpty()) {
+            throw JasmException(
+                "Targets other than the lowest must be at least ${Opcodes.V9} (Java 9), as multi-release " +
+                        "jars ignore earlier versions: ${unused.joinToString(",")}"
+            )
+        }
     }
 
-    private fun fixJasmExtension(input: String) = with (File(input)) {
-        Paths.get(parent ?: "", "$nameWithoutExtension.jasm").toString()
+    // The Vxx constants for Java 1.1 and earlier have a minor version in the upper half
+    private fun javaVersion(classFormat: Int) = (classFormat and 0xFFFF) - 44
+
+    private fun fixClassExtension(input: String) = fixExtension(input, "class")
+
+    private fun fixJasmExtension(input: String) = fixExtension(input, "jasm")
+
+    private fun fixExtension(input: String, extension: String) = with (File(input)) {
+        Paths.get(parent ?: "", "$nameWithoutExtension.$extension").toString()
     }
 }
\ No newline at end of file
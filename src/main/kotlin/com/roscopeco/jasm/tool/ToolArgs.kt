@@ -1,8 +1,12 @@
 package com.roscopeco.jasm.tool
 
 import com.beust.jcommander.Parameter
+import com.beust.jcommander.Parameters
+import com.roscopeco.jasm.AssemblerOptions
 import org.objectweb.asm.Opcodes
 
+// Options can be given as either "--option value" or "--option=value"
+@Parameters(separators = "=")
 class ToolArgs {
     @Parameter(names = ["-h", "--help"], description =  "Display usage and quit")
     var showHelp: Boolean = false
@@ -19,8 +23,58 @@ class ToolArgs {
     @Parameter(names = ["-l", "--line-numbers"], description = "Emit line number comments in disassembly")
     var emitLineNumbers: Boolean = false
 
-    @Parameter(names = ["-target", "--target"], description = "Generate class files suitable for the specified class format versionx")
-    var target: Int = Opcodes.V11;
+    @Parameter(
+        names = ["-target", "--target"],
+        description = "Generate class files suitable for the specified class format version(s). Given more than one " +
+                "(e.g. 52,55,61), the lowest is written as usual and the others (53 or later) to META-INF/versions/N for a " +
+                "multi-release jar"
+    )
+    var targets: List<Int> = listOf(Opcodes.V11)
+
+    /**
+     * The lowest of the [targets].
+     */
+    var target: Int
+        get() = targets.minOrNull() ?: Opcodes.V11
+        set(value) {
+            targets = listOf(value)
+        }
+
+    @Parameter(names = ["-g", "--local-variable-table"], description = "Emit a LocalVariableTable for named locals")
+    var emitLocalVariableTable: Boolean = false
+
+    @Parameter(names = ["--split-methods"], description = "Split methods that are too large into helper methods")
+    var splitLargeMethods: Boolean = false
+
+    @Parameter(names = ["--max-method-size"], description = "Largest method (in bytes of code) to allow when splitting methods")
+    var maxMethodSize: Int = AssemblerOptions.MAX_METHOD_SIZE
+
+    @Parameter(names = ["--inline-constants"], description = "Replace reads of constant static final fields in the same class with the constant")
+    var inlineConstants: Boolean = false
+
+    @Parameter(names = ["--drop-inlined-constants"], description = "Inline constants, and leave out private constant fields that are no longer referenced")
+    var dropInlinedConstants: Boolean = false
+
+    @Parameter(names = ["--layout-profile"], description = "Profile of branch hints to lay out code by")
+    var layoutProfile: String? = null
+
+    @Parameter(names = ["--eliminate-tail-calls"], description = "Turn self-recursive tail calls in static and private methods into loops")
+    var eliminateTailCalls: Boolean = false
+
+    @Parameter(names = ["--release"], description = "Strip debug attributes and reorder the constant pool for the smallest class files")
+    var release: Boolean = false
+
+    @Parameter(names = ["--instrument"], description = "Instrument the assembled classes (blocks: count how often each basic block runs)")
+    var instrument: String? = null
+
+    @Parameter(names = ["--verify"], description = "Verify the assembled code as the JVM would, reporting problems against the source (classes are assembled in parallel)")
+    var verify: Boolean = false
+
+    @Parameter(names = ["--preparse"], description = "Parse source files to binary .jasmc files, which assemble without parsing again")
+    var preparse: Boolean = false
+
+    @Parameter(names = ["-p", "--patch"], description = "Patch the class files under this base directory with the members in the input files")
+    var patchDirectory: String? = null
 
     @Parameter(description = "List of files to assemble (names relative to input directory)")
     var inputFiles: List<String> = mutableListOf()
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.objectweb.asm.Opcodes.*;
+
+class CompactCodeTest {
+    @ParameterizedTest
+    @ValueSource(strings = { "java/lang/String", "java/lang/Character", "java/util/HashMap", "java/util/stream/Collectors" })
+    void testRoundTripsToSameBytes(final String name) throws IOException {
+        final var reader = new ClassReader(name);
+
+        final var original = readWithoutLocals(reader);
+        final var replayed = readWithoutLocals(reader);
+
+        for (final var method : replayed.methods) {
+            final var code = CompactCode.of(method);
+            method.instructions.clear();
+            method.tryCatchBlocks.clear();
+
+            code.accept(method);
+
+            assertThat(CompactCode.of(method)).isEqualTo(code);
+        }
+
+        assertThat(write(replayed)).isEqualTo(write(original));
+    }
+
+    @Test
+    void testRecordsCompactly() {
+        final var recorder = new CompactCode.Recorder();
+        final var loop = new Label();
+        final var done = new Label();
+
+        recorder.visitLabel(loop);
+        recorder.visitVarInsn(ILOAD, 1);
+        recorder.visitJumpInsn(IFLE, done);
+        recorder.visitFieldInsn(GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;");
+        recorder.visitLdcInsn("tick");
+        recorder.visitMethodInsn(INVOKEVIRTUAL, "java/io/PrintStream", "println", "(Ljava/lang/String;)V", false);
+        recorder.visitIincInsn(1, -1);
+        recorder.visitJumpInsn(GOTO, loop);
+        recorder.visitLabel(done);
+        recorder.visitLdcInsn("tick");
+        recorder.visitInsn(RETURN);
+
+        final var code = recorder.toCompactCode();
+
+        assertThat(code.getSize()).isEqualTo(11);
+        assertThat(code.getLabelCount()).isEqualTo(2);
+
+        assertThat(code.opcode(0)).isEqualTo(CompactCode.LABEL);
+        assertThat(code.operand(0, 0)).isZero();
+        assertThat(code.opcode(2)).isEqualTo(IFLE);
+        assertThat(code.operand(2, 0)).isEqualTo(1);
+
+        assertThat(code.operandCount(5)).isEqualTo(4);
+        assertThat(code.symbol(code.operand(5, 0))).isEqualTo("java/io/PrintStream");
+        assertThat(code.symbol(code.operand(5, 1))).isEqualTo("println");
+
+        assertThat(code.opcode(6)).isEqualTo(IINC);
+        assertThat(code.operand(6, 1)).isEqualTo(-1);
+
+        // Repeated constants share a symbol
+        assertThat(code.operand(9, 0)).isEqualTo(code.operand(4, 0));
+        assertThat(code.getSymbolCount()).isEqualTo(7);
+
+        assertThat(code.opcode(10)).isEqualTo(RETURN);
+        assertThat(code.operandCount(10)).isZero();
+    }
+
+    @Test
+    void testReplaysToMethodVisitor() {
+        final var method = new MethodNode(ACC_PUBLIC | ACC_STATIC, "choose", "(I)I", null, null);
+        final var one = new Label();
+        final var other = new Label();
+
+        method.visitCode();
+        method.visitVarInsn(ILOAD, 0);
+        method.visitLookupSwitchInsn(other, new int[] { 1, 100 }, new Label[] { one, one });
+        method.visitLabel(one);
+        method.visitLineNumber(42, one);
+        method.visitIntInsn(SIPUSH, 1000);
+        method.visitInsn(IRETURN);
+        method.visitLabel(other);
+        method.visitInsn(ICONST_M1);
+        method.visitInsn(IRETURN);
+        method.visitMaxs(1, 1);
+        method.visitEnd();
+
+        final var code = CompactCode.of(method);
+        final var replayed = new MethodNode(ACC_PUBLIC | ACC_STATIC, "choose", "(I)I", null, null);
+        code.accept(replayed);
+
+        assertThat(replayed.instructions.size()).isEqualTo(method.instructions.size());
+        assertThat(CompactCode.of(replayed)).isEqualTo(code).hasSameHashCodeAs(code);
+    }
+
+    @Test
+    void testAssemblerRecordsTheCodeItEmits() {
+        final var testCase = "com/roscopeco/jasm/TailCallTest.jasm";
+        final var assembler = new JasmAssembler(testCase, () -> TestUtil.inputStreamForTestCase(testCase));
+
+        // Only when asked for
+        assembler.assemble();
+        assertThat(assembler.getMethodCode()).isEmpty();
+
+        assembler.setRecordMethodCode(true);
+
+        final var node = new ClassNode();
+        new ClassReader(assembler.assemble()).accept(node, ClassReader.SKIP_FRAMES | ClassReader.SKIP_DEBUG);
+
+        assertThat(assembler.getMethodCode()).hasSameSizeAs(node.methods);
+
+        // The same as the disassembler would see in the class
+        for (final var method : node.methods) {
+            assertThat(assembler.getMethodCode().get(method.name + method.desc)).isEqualTo(CompactCode.of(method));
+        }
+    }
+
+    private static ClassNode readWithoutLocals(final ClassReader reader) {
+        final var node = new ClassNode();
+        reader.accept(node, ClassReader.SKIP_FRAMES);
+
+        for (final var method : node.methods) {
+            method.localVariables = null;
+            method.visibleLocalVariableAnnotations = null;
+            method.invisibleLocalVariableAnnotations = null;
+            method.visibleTypeAnnotations = null;
+            method.invisibleTypeAnnotations = null;
+        }
+
+        return node;
+    }
+
+    private static byte[] write(final ClassNode node) {
+        final var writer = new ClassWriter(0);
+        node.accept(writer);
+        return writer.toByteArray();
+    }
+}
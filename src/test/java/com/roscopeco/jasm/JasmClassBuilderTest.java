@@ -0,0 +1,201 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.objectweb.asm.Opcodes.V11;
+
+class JasmClassBuilderTest {
+    private static final String SOURCE = "public class com/roscopeco/jasm/Built implements java/util/function/IntUnaryOperator {\n"
+        + "  private static final SCALE I = 3\n"
+        + "  public <init>()V {\n"
+        + "    aload 0\n"
+        + "    invokespecial java/lang/Object.<init>()V\n"
+        + "    return\n"
+        + "  }\n"
+        + "  public applyAsInt(I)I {\n"
+        + "    iload 1\n"
+        + "    istore total\n"
+        + "    iload total\n"
+        + "    ifge positive\n"
+        + "    iconst 0\n"
+        + "    ireturn\n"
+        + "  positive:\n"
+        + "    iload total\n"
+        + "    getstatic com/roscopeco/jasm/Built.SCALE I\n"
+        + "    imul\n"
+        + "    ireturn\n"
+        + "    nop\n"
+        + "  }\n"
+        + "  public static parse(java/lang/String)I {\n"
+        + "    try {\n"
+        + "      aload 0\n"
+        + "      invokestatic java/lang/Integer.parseInt(java/lang/String)I\n"
+        + "      istore result\n"
+        + "    } catch (java/lang/NumberFormatException) {\n"
+        + "      pop\n"
+        + "      push 1000\n"
+        + "      istore result\n"
+        + "    } catch (java/lang/NullPointerException) {\n"
+        + "      pop\n"
+        + "      push -1\n"
+        + "      istore result\n"
+        + "    }\n"
+        + "    iload result\n"
+        + "    ireturn\n"
+        + "  }\n"
+        + "  public static classify(I)java/lang/String {\n"
+        + "    iload 0\n"
+        + "    tableswitch other {\n"
+        + "      1: one\n"
+        + "      3: three\n"
+        + "    }\n"
+        + "  one:\n"
+        + "    ldc \"one\"\n"
+        + "    areturn\n"
+        + "  three:\n"
+        + "    ldc \"three\"\n"
+        + "    areturn\n"
+        + "  other:\n"
+        + "    ldc \"other\"\n"
+        + "    areturn\n"
+        + "  }\n"
+        + "}\n";
+
+    @Test
+    void testBuildsSameBytesAsSource() {
+        assertThat(build(new AssemblerOptions())).isEqualTo(assemble(new AssemblerOptions()));
+    }
+
+    @Test
+    void testBuildsSameBytesAsSourceWithOptions() {
+        final var options = new AssemblerOptions().withEmitLocalVariableTable(true);
+        assertThat(build(options)).isEqualTo(assemble(options));
+
+        final var release = new AssemblerOptions().withEliminateTailCalls(true).withRelease(true);
+        assertThat(build(release)).isEqualTo(assemble(release));
+    }
+
+    @Test
+    void testBuiltClassRuns() throws ReflectiveOperationException {
+        final var bytes = build(new AssemblerOptions());
+        final var clz = new BuilderClassLoader().define(bytes);
+        final var op = (IntUnaryOperator) clz.getConstructor().newInstance();
+
+        assertThat(op.applyAsInt(5)).isEqualTo(15);
+        assertThat(op.applyAsInt(-5)).isZero();
+        assertThat(clz.getMethod("parse", String.class).invoke(null, "42")).isEqualTo(42);
+        assertThat(clz.getMethod("parse", String.class).invoke(null, "nope")).isEqualTo(1000);
+        assertThat(clz.getMethod("parse", String.class).invoke(null, (Object) null)).isEqualTo(1000);
+        assertThat(clz.getMethod("classify", int.class).invoke(null, 2)).isEqualTo("other");
+        assertThat(clz.getMethod("classify", int.class).invoke(null, 3)).isEqualTo("three");
+    }
+
+    @Test
+    void testReportsErrors() {
+        final var builder = new JasmClassBuilder("com/roscopeco/jasm/Broken")
+            .method("broken", "()V", m -> m.goTo("nowhere"))
+            .method("mixed", "()V", m -> m.iconst(1).istore("x").aconst_null().astore("x").vreturn());
+
+        assertThatThrownBy(builder::build)
+            .isInstanceOf(AssemblyException.class)
+            .hasMessageContaining("Labels used but not declared in broken()V: [nowhere]")
+            .hasMessageContaining("Local x in mixed()V is used as both int and reference");
+
+        assertThatThrownBy(() -> new JasmClassBuilder("Bad").method("bad", "()V", m -> m.fconst(3)))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessage("Invalid operand to FCONST: 3 (must be in range 0 to 2)");
+
+        assertThatThrownBy(() -> new JasmClassBuilder("Bad", "public sealed"))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessage("Unknown modifier 'sealed'");
+    }
+
+    @Test
+    void testRejectsUnsupportedOptions() {
+        // Verification reports errors against the source, which built classes don't have
+        assertThatThrownBy(() -> new JasmClassBuilder("Bad", "public", "java/lang/Object", List.of(), "Bad.jasm", V11,
+                new AssemblerOptions().withVerify(true)))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessage("Only the emitLocalVariableTable, eliminateTailCalls and release options are supported when building classes");
+
+        assertThatThrownBy(() -> new JasmClassBuilder("Bad", "public", "java/lang/Object", List.of(), "Bad.jasm", V11,
+                new AssemblerOptions().withInlineConstants(true)))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static byte[] build(final AssemblerOptions options) {
+        final var owner = "com/roscopeco/jasm/Built";
+        final var cases = new LinkedHashMap<Integer, String>();
+        cases.put(1, "one");
+        cases.put(3, "three");
+
+        return new JasmClassBuilder(owner, "public", "java/lang/Object", List.of("java/util/function/IntUnaryOperator"),
+                "Built.jasm", V11, options)
+            .field("SCALE", "I", "private static final", 3)
+            .method("<init>", "()V", m -> m
+                .aload(0)
+                .invokespecial("java/lang/Object", "<init>", "()V")
+                .vreturn())
+            .method("applyAsInt", "(I)I", m -> m
+                .iload(1)
+                .istore("total")
+                .iload("total")
+                .ifge("positive")
+                .iconst(0)
+                .ireturn()
+                .label("positive")
+                .iload("total")
+                .getstatic(owner, "SCALE", "I")
+                .imul()
+                .ireturn()
+                .nop())
+            .method("parse", "(Ljava/lang/String;)I", "public static", m -> m
+                .tryCatch(
+                    t -> t.aload(0).invokestatic("java/lang/Integer", "parseInt", "(Ljava/lang/String;)I").istore("result"),
+                    m.catching("java/lang/NumberFormatException", c -> c.pop().push(1000).istore("result")),
+                    m.catching("java/lang/NullPointerException", c -> c.pop().push(-1).istore("result"))
+                )
+                .iload("result")
+                .ireturn())
+            .method("classify", "(I)Ljava/lang/String;", "public static", m -> m
+                .iload(0)
+                .tableswitch("other", cases)
+                .label("one")
+                .ldc("one")
+                .areturn()
+                .label("three")
+                .ldc("three")
+                .areturn()
+                .label("other")
+                .ldc("other")
+                .areturn())
+            .build();
+    }
+
+    private static byte[] assemble(final AssemblerOptions options) {
+        return new JasmAssembler("Built.jasm", V11, options,
+            () -> new ByteArrayInputStream(SOURCE.getBytes())).assemble();
+    }
+
+    private static final class BuilderClassLoader extends ClassLoader {
+        BuilderClassLoader() {
+            super(JasmClassBuilderTest.class.getClassLoader());
+        }
+
+        Class<?> define(final byte[] bytes) {
+            return defineClass(null, bytes, 0, bytes.length);
+        }
+    }
+}
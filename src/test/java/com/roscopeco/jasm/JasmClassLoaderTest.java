@@ -0,0 +1,287 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntSupplier;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class JasmClassLoaderTest {
+    @TempDir
+    Path temp;
+
+    @Test
+    void testLoadsClassesFromDirectories() throws Exception {
+        final var src = Files.createDirectories(temp.resolve("src"));
+        write(src, "com/example/First", 1);
+        write(src, "com/example/Second", 2);
+        Files.writeString(src.resolve("com/example/Broken.jasm"), "public class {");
+
+        try (var loader = new JasmClassLoader(List.of(src))) {
+            assertThat(supplier(loader, "com.example.First").getAsInt()).isEqualTo(1);
+            assertThat(supplier(loader, "com.example.Second").getAsInt()).isEqualTo(2);
+
+            // Only what was asked for is assembled, so the broken class doesn't matter until it's loaded
+            assertThat(loader.getCache().getMisses()).isEqualTo(2);
+
+            assertThatThrownBy(() -> loader.loadClass("com.example.Broken"))
+                .isInstanceOf(ClassNotFoundException.class)
+                .hasMessageContaining("com/example/Broken.jasm")
+                .hasCauseInstanceOf(AssemblyException.class);
+
+            assertThatThrownBy(() -> loader.loadClass("com.example.Missing"))
+                .isInstanceOf(ClassNotFoundException.class);
+        }
+    }
+
+    @Test
+    void testLoadsClassesFromJars() throws Exception {
+        final var jar = temp.resolve("classes.jar");
+
+        try (var out = new ZipOutputStream(Files.newOutputStream(jar))) {
+            out.putNextEntry(new ZipEntry("com/example/Jarred.jasm"));
+            out.write(source("com/example/Jarred", 3).getBytes());
+            out.closeEntry();
+        }
+
+        final var src = Files.createDirectories(temp.resolve("src"));
+        write(src, "com/example/Jarred", 4);
+
+        // First match on the path wins
+        try (var loader = new JasmClassLoader(List.of(jar, src))) {
+            final var clz = loader.loadClass("com.example.Jarred");
+
+            assertThat(clz.getClassLoader()).isSameAs(loader);
+            assertThat(newSupplier(clz).getAsInt()).isEqualTo(3);
+        }
+    }
+
+    @Test
+    void testSharesCacheBetweenLoaders() throws Exception {
+        final var src = Files.createDirectories(temp.resolve("src"));
+        write(src, "com/example/Shared", 5);
+
+        final var cache = new AssemblyCache();
+
+        for (var i = 0; i < 3; i++) {
+            try (var loader = new JasmClassLoader(List.of(src), getClass().getClassLoader(), Opcodes.V11, new AssemblerOptions(), cache)) {
+                assertThat(supplier(loader, "com.example.Shared").getAsInt()).isEqualTo(5);
+            }
+        }
+
+        assertThat(cache.getMisses()).isEqualTo(1);
+        assertThat(cache.getHits()).isEqualTo(2);
+
+        // Changing the source changes the key
+        write(src, "com/example/Shared", 6);
+
+        try (var loader = new JasmClassLoader(List.of(src), getClass().getClassLoader(), Opcodes.V11, new AssemblerOptions(), cache)) {
+            assertThat(supplier(loader, "com.example.Shared").getAsInt()).isEqualTo(6);
+        }
+
+        assertThat(cache.getMisses()).isEqualTo(2);
+    }
+
+    @Test
+    void testBoundsMemoryCache() throws Exception {
+        final var src = Files.createDirectories(temp.resolve("src"));
+        final var oneClass = assemble("com/example/Class0", 0).length;
+
+        for (var i = 0; i < 10; i++) {
+            write(src, "com/example/Class" + i, i);
+        }
+
+        final var cache = new AssemblyCache(oneClass * 3L + oneClass / 2);
+
+        try (var loader = new JasmClassLoader(List.of(src), getClass().getClassLoader(), Opcodes.V11, new AssemblerOptions(), cache)) {
+            for (var i = 0; i < 10; i++) {
+                assertThat(supplier(loader, "com.example.Class" + i).getAsInt()).isEqualTo(i);
+            }
+        }
+
+        assertThat(cache.getSize()).isPositive().isLessThanOrEqualTo(cache.getMaxBytes());
+    }
+
+    @Test
+    void testPersistsCacheToDirectory() throws Exception {
+        final var src = Files.createDirectories(temp.resolve("src"));
+        final var cacheDir = temp.resolve("cache");
+        write(src, "com/example/Persisted", 7);
+
+        try (var loader = new JasmClassLoader(List.of(src), getClass().getClassLoader(), Opcodes.V11, new AssemblerOptions(), new AssemblyCache(AssemblyCache.DEFAULT_MAX_BYTES, cacheDir))) {
+            assertThat(supplier(loader, "com.example.Persisted").getAsInt()).isEqualTo(7);
+        }
+
+        final var key = AssemblyCache.key(
+            Files.readAllBytes(src.resolve("com/example/Persisted.jasm")), Opcodes.V11, new AssemblerOptions()
+        );
+        final var cached = cacheDir.resolve(key + ".class");
+
+        try (var files = Files.list(cacheDir)) {
+            assertThat(files).containsExactly(cached);
+        }
+
+        // Swap in different code, to prove the next loader doesn't assemble the source again
+        Files.write(cached, assemble("com/example/Persisted", 8));
+
+        final var cache = new AssemblyCache(AssemblyCache.DEFAULT_MAX_BYTES, cacheDir);
+
+        try (var loader = new JasmClassLoader(List.of(src), getClass().getClassLoader(), Opcodes.V11, new AssemblerOptions(), cache)) {
+            assertThat(supplier(loader, "com.example.Persisted").getAsInt()).isEqualTo(8);
+        }
+
+        assertThat(cache.getMisses()).isZero();
+    }
+
+    @Test
+    void testCacheKeyDependsOnLayoutProfileContent() {
+        final var source = "public class Test {}".getBytes();
+
+        // "Aa" and "BB" have the same hash code, so so do these profiles
+        final var first = LayoutProfile.parse("com/example/Foo.bar()V Aa likely\ncom/example/Foo.bar()V BB unlikely");
+        final var second = LayoutProfile.parse("com/example/Foo.bar()V Aa unlikely\ncom/example/Foo.bar()V BB likely");
+        assertThat(first.hashCode()).isEqualTo(second.hashCode());
+
+        assertThat(AssemblyCache.key(source, Opcodes.V11, profiled(first)))
+            .isNotEqualTo(AssemblyCache.key(source, Opcodes.V11, profiled(second)))
+            .isEqualTo(AssemblyCache.key(source, Opcodes.V11, profiled(LayoutProfile.parse(first.toString()))));
+    }
+
+    @Test
+    void testLoadsClassesInParallel() throws Exception {
+        final var src = Files.createDirectories(temp.resolve("src"));
+
+        for (var i = 0; i < 32; i++) {
+            write(src, "com/example/Parallel" + i, i);
+        }
+
+        final var executor = Executors.newFixedThreadPool(8);
+
+        try (var loader = new JasmClassLoader(List.of(src))) {
+            assertThat(loader.isRegisteredAsParallelCapable()).isTrue();
+
+            final var results = new ArrayList<Future<Class<?>>>();
+
+            // Every class is requested by several threads at once, but must only be defined once
+            for (var round = 0; round < 4; round++) {
+                for (var i = 0; i < 32; i++) {
+                    final var name = "com.example.Parallel" + i;
+                    results.add(executor.submit((Callable<Class<?>>) () -> loader.loadClass(name)));
+                }
+            }
+
+            for (var i = 0; i < results.size(); i++) {
+                final var clz = results.get(i).get();
+                assertThat(clz).isSameAs(results.get(i % 32).get());
+                assertThat(newSupplier(clz).getAsInt()).isEqualTo(i % 32);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testComputesFramesForClassesOnlyOnTheSourcePath() throws Exception {
+        final var src = Files.createDirectories(temp.resolve("src"));
+        Files.createDirectories(src.resolve("com/example"));
+
+        // pick() merges Cat and Dog, which both extend Animal (so assembling it needs them, and they need it)
+        Files.writeString(src.resolve("com/example/Animal.jasm"), source("com/example/Animal", 0).replace("}\n}\n",
+            "}\n"
+            + "  public static pick(Z)com/example/Animal {\n"
+            + "    iload 0\n"
+            + "    ifeq dog\n"
+            + "    new com/example/Cat\n"
+            + "    dup\n"
+            + "    invokespecial com/example/Cat.<init>()V\n"
+            + "    goto done\n"
+            + "  dog:\n"
+            + "    new com/example/Dog\n"
+            + "    dup\n"
+            + "    invokespecial com/example/Dog.<init>()V\n"
+            + "  done:\n"
+            + "    areturn\n"
+            + "  }\n"
+            + "}\n"));
+
+        Files.writeString(src.resolve("com/example/Cat.jasm"), subclass("com/example/Cat", "com/example/Animal", 1));
+        Files.writeString(src.resolve("com/example/Dog.jasm"), subclass("com/example/Dog", "com/example/Animal", 2));
+
+        try (var loader = new JasmClassLoader(List.of(src))) {
+            final var pick = loader.loadClass("com.example.Animal").getMethod("pick", boolean.class);
+
+            assertThat(((IntSupplier) pick.invoke(null, true)).getAsInt()).isEqualTo(1);
+            assertThat(((IntSupplier) pick.invoke(null, false)).getAsInt()).isEqualTo(2);
+        }
+    }
+
+    private static void write(final Path src, final String className, final int value) throws IOException {
+        final var file = src.resolve(className + ".jasm");
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, source(className, value));
+    }
+
+    private static byte[] assemble(final String className, final int value) {
+        return new JasmAssembler(className + ".jasm", () -> new ByteArrayInputStream(source(className, value).getBytes()))
+            .assemble();
+    }
+
+    private static AssemblerOptions profiled(final LayoutProfile profile) {
+        return new AssemblerOptions().withLayoutProfile(profile);
+    }
+
+    private static String source(final String className, final int value) {
+        return "public class " + className + " implements java/util/function/IntSupplier {\n"
+            + "  public <init>()V {\n"
+            + "    aload 0\n"
+            + "    invokespecial java/lang/Object.<init>()V\n"
+            + "    return\n"
+            + "  }\n"
+            + "  public getAsInt()I {\n"
+            + "    ldc " + value + "\n"
+            + "    ireturn\n"
+            + "  }\n"
+            + "}\n";
+    }
+
+    private static String subclass(final String className, final String superName, final int value) {
+        return "public class " + className + " extends " + superName + " {\n"
+            + "  public <init>()V {\n"
+            + "    aload 0\n"
+            + "    invokespecial " + superName + ".<init>()V\n"
+            + "    return\n"
+            + "  }\n"
+            + "  public getAsInt()I {\n"
+            + "    ldc " + value + "\n"
+            + "    ireturn\n"
+            + "  }\n"
+            + "}\n";
+    }
+
+    private static IntSupplier supplier(final ClassLoader loader, final String name) throws ReflectiveOperationException {
+        return newSupplier(loader.loadClass(name));
+    }
+
+    private static IntSupplier newSupplier(final Class<?> clz) throws ReflectiveOperationException {
+        return (IntSupplier) clz.getConstructor().newInstance();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.function.IntSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class JasmRuntimeTest {
+    private static final String SUPPLIER = "public class com/roscopeco/jasm/Generated implements java/util/function/IntSupplier {\n"
+        + "  public <init>()V {\n"
+        + "    aload 0\n"
+        + "    invokespecial java/lang/Object.<init>()V\n"
+        + "    return\n"
+        + "  }\n"
+        + "  public getAsInt()I {\n"
+        + "    bipush 42\n"
+        + "    ireturn\n"
+        + "  }\n"
+        + "}\n";
+
+    private static final String NESTED = "public class com/roscopeco/jasm/GeneratedNestmate implements java/util/function/IntSupplier {\n"
+        + "  public <init>()V {\n"
+        + "    aload 0\n"
+        + "    invokespecial java/lang/Object.<init>()V\n"
+        + "    return\n"
+        + "  }\n"
+        + "  public getAsInt()I {\n"
+        + "    invokestatic com/roscopeco/jasm/JasmRuntimeTest.secret()I\n"
+        + "    ireturn\n"
+        + "  }\n"
+        + "}\n";
+
+    private static final int STRESS_CLASSES = 100_000;
+
+    // Generous, but well under what 100k classes that were never unloaded would need
+    private static final long MAX_METASPACE_GROWTH = 16 * 1024 * 1024;
+
+    @SuppressWarnings("unused" /* Called from NESTED */)
+    private static int secret() {
+        return 1234;
+    }
+
+    @Test
+    void testDefinesClassesFromSource() throws ReflectiveOperationException {
+        final var first = JasmRuntime.defineHidden(MethodHandles.lookup(), SUPPLIER);
+        final var second = JasmRuntime.defineHidden(MethodHandles.lookup(), SUPPLIER);
+
+        assertThat(newSupplier(first).getAsInt()).isEqualTo(42);
+        assertThat(first).isNotEqualTo(second);
+
+        if (JasmRuntime.getSupportsHiddenClasses()) {
+            // Hidden class names have a suffix that can't appear in a normal binary name
+            assertThat(first.getName()).startsWith("com.roscopeco.jasm.Generated/");
+            assertThat(first.getClassLoader()).isSameAs(JasmRuntimeTest.class.getClassLoader());
+        }
+    }
+
+    @Test
+    void testDefinesNestmates() throws ReflectiveOperationException {
+        assumeTrue(JasmRuntime.getSupportsHiddenClasses());
+
+        final var nestmate = JasmRuntime.defineHidden(MethodHandles.lookup(), NESTED, true);
+        assertThat(newSupplier(nestmate).getAsInt()).isEqualTo(1234);
+
+        final var stranger = JasmRuntime.defineHidden(MethodHandles.lookup(), NESTED, false);
+        assertThatThrownBy(() -> newSupplier(stranger).getAsInt()).isInstanceOf(IllegalAccessError.class);
+    }
+
+    @Test
+    void testReportsAssemblyErrors() {
+        assertThatThrownBy(() -> JasmRuntime.defineHidden(MethodHandles.lookup(), "public class {"))
+            .isInstanceOf(AssemblyException.class)
+            .hasMessageContaining("<runtime>:[1:13]");
+    }
+
+    @Test
+    void testUnloadsHiddenClasses() throws ReflectiveOperationException {
+        assumeTrue(JasmRuntime.getSupportsHiddenClasses());
+
+        final var metaspace = ManagementFactory.getMemoryPoolMXBeans()
+            .stream()
+            .filter(pool -> pool.getName().equals("Metaspace"))
+            .findFirst();
+
+        assumeTrue(metaspace.isPresent());
+
+        final var bytes = new JasmAssembler("Generated.jasm", () -> new java.io.ByteArrayInputStream(SUPPLIER.getBytes()))
+            .assemble();
+        final var lookup = MethodHandles.lookup();
+
+        // Warm up, so one-off costs aren't counted
+        defineAndRun(lookup, bytes, STRESS_CLASSES / 10);
+        final var before = usedAfterGc(metaspace.get());
+
+        defineAndRun(lookup, bytes, STRESS_CLASSES);
+        final var after = usedAfterGc(metaspace.get());
+
+        assertThat(after - before).isLessThan(MAX_METASPACE_GROWTH);
+    }
+
+    private static void defineAndRun(final MethodHandles.Lookup lookup, final byte[] bytes, final int count)
+            throws ReflectiveOperationException {
+        for (var i = 0; i < count; i++) {
+            assertThat(newSupplier(JasmRuntime.defineHidden(lookup, bytes)).getAsInt()).isEqualTo(42);
+        }
+    }
+
+    private static long usedAfterGc(final MemoryPoolMXBean pool) {
+        // Class unloading may take more than one cycle
+        for (var i = 0; i < 3; i++) {
+            System.gc();
+        }
+
+        return pool.getUsage().getUsed();
+    }
+
+    private static IntSupplier newSupplier(final Class<?> clz) throws ReflectiveOperationException {
+        return (IntSupplier) clz.getConstructor().newInstance();
+    }
+}
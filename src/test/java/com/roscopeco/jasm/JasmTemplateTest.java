@@ -0,0 +1,253 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm;
+
+import com.roscopeco.jasm.JasmTemplate.ParameterType;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.BIPUSH;
+import static org.objectweb.asm.Opcodes.ICONST_3;
+import static org.objectweb.asm.Opcodes.IRETURN;
+import static org.objectweb.asm.Opcodes.LDC;
+
+class JasmTemplateTest {
+    private static final String TEMPLATE = "public class ${name:class} implements java/util/function/Supplier {\n"
+        + "  private static final LIMIT J = ${limit:long}\n"
+        + "  public <init>()V {\n"
+        + "    aload 0\n"
+        + "    invokespecial java/lang/Object.<init>()V\n"
+        + "    return\n"
+        + "  }\n"
+        + "  public get()java/lang/Object {\n"
+        + "    ldc ${greeting:string}\n"
+        + "    ldc ${count:int}\n"
+        + "    invokestatic ${name:class}.repeat(java/lang/String, I)java/lang/String\n"
+        + "    areturn\n"
+        + "  }\n"
+        + "  public static count()I {\n"
+        + "    ldc ${count:int}\n"
+        + "    ireturn\n"
+        + "  }\n"
+        + "  private static repeat(java/lang/String, I)java/lang/String {\n"
+        + "    aload 0\n"
+        + "    iload 1\n"
+        + "    invokevirtual java/lang/String.repeat(I)java/lang/String\n"
+        + "    areturn\n"
+        + "  }\n"
+        + "}\n";
+
+    @Test
+    void testCompilesPlaceholders() {
+        final var template = JasmTemplate.compile("Template.jasm", TEMPLATE);
+
+        assertThat(template.getParameters()).containsExactly(
+            Map.entry("name", ParameterType.CLASS),
+            Map.entry("limit", ParameterType.LONG),
+            Map.entry("greeting", ParameterType.STRING),
+            Map.entry("count", ParameterType.INT)
+        );
+    }
+
+    @Test
+    void testInstantiatesTemplate() throws ReflectiveOperationException {
+        final var template = JasmTemplate.compile("Template.jasm", TEMPLATE);
+
+        final var first = template.instantiate(Map.of("name", "com/example/First", "limit", 10L, "greeting", "hi", "count", 3));
+        final var second = template.instantiate(Map.of("name", "com/example/Second", "limit", 20L, "greeting", "yo", "count", 100));
+
+        assertThat(call(first)).isEqualTo("hihihi");
+        assertThat(call(second)).isEqualTo("yo".repeat(100));
+
+        final var node = new ClassNode();
+        new ClassReader(first).accept(node, 0);
+
+        assertThat(node.name).isEqualTo("com/example/First");
+        assertThat(node.fields.get(0).value).isEqualTo(10L);
+
+        // Constants are pushed the same way the assembler would have
+        assertThat(realOpcodes(method(node, "count"))).containsExactly(ICONST_3, IRETURN);
+        assertThat(realOpcodes(method(nodeOf(second), "count"))).containsExactly(BIPUSH, IRETURN);
+        assertThat(realOpcodes(method(nodeOf(template.instantiate(
+            Map.of("name", "com/example/Third", "limit", 0L, "greeting", "", "count", 100_000)
+        )), "count"))).containsExactly(LDC, IRETURN);
+    }
+
+    @Test
+    void testInstantiatesConcurrently() throws Exception {
+        // Branches, so each instantiation has labels to resolve
+        final var template = JasmTemplate.compile("Loop.jasm", "public class ${name:class} {\n"
+            + "  public static sum(I)I {\n"
+            + "    iconst 0\n    istore total\n"
+            + "  loop:\n"
+            + "    iload 0\n    ifle done\n"
+            + "    iload total\n    ldc ${step:int}\n    iadd\n    istore total\n"
+            + "    iinc 0, [-1]\n    goto loop\n"
+            + "  done:\n"
+            + "    iload total\n    ireturn\n"
+            + "  }\n"
+            + "}\n");
+
+        final List<Map<String, Object>> values = IntStream.range(0, 64)
+            .mapToObj(i -> Map.<String, Object>of("name", "com/example/Loop" + i, "step", i * 1000))
+            .collect(Collectors.toList());
+
+        final var expected = values.stream().map(template::instantiate).collect(Collectors.toList());
+        final var executor = Executors.newFixedThreadPool(8);
+
+        try {
+            final var futures = new ArrayList<Future<byte[]>>();
+
+            for (int round = 0; round < 500; round++) {
+                values.forEach(value -> futures.add(executor.submit(() -> template.instantiate(value))));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                assertThat(futures.get(i).get()).isEqualTo(expected.get(i % values.size()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testMergesPlaceholderClassesAsObjects() throws ReflectiveOperationException {
+        // Either argument can be on the stack at done, so its frame needs their common superclass
+        final var template = JasmTemplate.compile("Merge.jasm", "public class ${name:class} {\n"
+            + "  public static pick(Z, ${first:class}, ${second:class})java/lang/Object {\n"
+            + "    iload 0\n"
+            + "    ifeq second\n"
+            + "    aload 1\n"
+            + "    goto done\n"
+            + "  second:\n"
+            + "    aload 2\n"
+            + "  done:\n"
+            + "    areturn\n"
+            + "  }\n"
+            + "}\n");
+
+        final var clz = new TemplateClassLoader().define(template.instantiate(Map.of(
+            "name", "com/example/Merge",
+            "first", "java/lang/String",
+            "second", "java/lang/Integer"
+        )));
+
+        final var pick = clz.getMethod("pick", boolean.class, String.class, Integer.class);
+
+        assertThat(pick.invoke(null, true, "first", 2)).isEqualTo("first");
+        assertThat(pick.invoke(null, false, "first", 2)).isEqualTo(2);
+    }
+
+    @Test
+    void testSubstitutesEveryConstantType() {
+        final var template = JasmTemplate.compile("Constants.jasm", "public class Constants {\n"
+            + "  public static f()F {\n    ldc ${f:float}\n    freturn\n  }\n"
+            + "  public static d()D {\n    ldc ${d:double}\n    dreturn\n  }\n"
+            + "  public static s()java/lang/Object {\n    ldc ${s:string}\n    areturn\n  }\n"
+            + "}\n");
+
+        final var node = nodeOf(template.instantiate(Map.of("f", 1.5f, "d", 2.25, "s", "text")));
+
+        assertThat(constant(method(node, "f"))).isEqualTo(1.5f);
+        assertThat(constant(method(node, "d"))).isEqualTo(2.25);
+        assertThat(constant(method(node, "s"))).isEqualTo("text");
+        assertThat(realOpcodes(method(node, "s"))).containsExactly(LDC, ARETURN);
+    }
+
+    @Test
+    void testRejectsInvalidPlaceholders() {
+        assertThatThrownBy(() -> JasmTemplate.compile("Bad.jasm", "public class ${name:klass} {\n}\n"))
+            .isInstanceOf(AssemblyException.class)
+            .hasMessageContaining("Invalid placeholder '${name:klass}' on line 1");
+
+        assertThatThrownBy(() -> JasmTemplate.compile("Bad.jasm", "public class ${name:class} {\n"
+            + "  public static m()I {\n    ldc ${name:int}\n    ireturn\n  }\n"
+            + "}\n"))
+            .isInstanceOf(AssemblyException.class)
+            .hasMessageContaining("Placeholder 'name' on line 3 is used as both class and int");
+
+        // Dead code is dropped, taking the placeholder with it
+        assertThatThrownBy(() -> JasmTemplate.compile("Bad.jasm", "public class Bad {\n"
+            + "  public static m()I {\n    iconst 1\n    ireturn\n    ldc ${n:int}\n    ireturn\n  }\n"
+            + "}\n"))
+            .isInstanceOf(AssemblyException.class)
+            .hasMessageContaining("Placeholder 'n' isn't used anywhere it can be substituted");
+    }
+
+    @Test
+    void testRejectsMissingAndMistypedValues() {
+        final var template = JasmTemplate.compile("Template.jasm", TEMPLATE);
+
+        assertThatThrownBy(() -> template.instantiate(Map.of("name", "A", "limit", 1L, "greeting", "x")))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessage("No value given for placeholder 'count'");
+
+        assertThatThrownBy(() -> template.instantiate(Map.of("name", "A", "limit", 1, "greeting", "x", "count", 1)))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessage("Value for placeholder 'limit' must be Long, but was Integer");
+
+        assertThatThrownBy(() -> template.instantiate(Map.of("name", "A", "limit", 1L, "greeting", "x", "count", 1, "extra", 1)))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessage("Unknown placeholder 'extra'");
+    }
+
+    private static Object call(final byte[] bytes) throws ReflectiveOperationException {
+        final var clz = new TemplateClassLoader().define(bytes);
+        return ((Supplier<?>) clz.getConstructor().newInstance()).get();
+    }
+
+    private static ClassNode nodeOf(final byte[] bytes) {
+        final var node = new ClassNode();
+        new ClassReader(bytes).accept(node, 0);
+        return node;
+    }
+
+    private static MethodNode method(final ClassNode node, final String name) {
+        return node.methods.stream().filter(method -> method.name.equals(name)).findFirst().orElseThrow();
+    }
+
+    private static List<Integer> realOpcodes(final MethodNode method) {
+        return List.of(method.instructions.toArray())
+            .stream()
+            .map(insn -> insn.getOpcode())
+            .filter(opcode -> opcode >= 0)
+            .collect(Collectors.toList());
+    }
+
+    private static Object constant(final MethodNode method) {
+        return List.of(method.instructions.toArray())
+            .stream()
+            .filter(insn -> insn instanceof LdcInsnNode)
+            .map(insn -> ((LdcInsnNode) insn).cst)
+            .findFirst()
+            .orElseThrow();
+    }
+
+    private static final class TemplateClassLoader extends ClassLoader {
+        TemplateClassLoader() {
+            super(JasmTemplateTest.class.getClassLoader());
+        }
+
+        Class<?> define(final byte[] bytes) {
+            return defineClass(null, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class LayoutProfileTest {
+    @Test
+    void testParsesHintsAndProbabilities() {
+        final var profile = LayoutProfile.parse(
+            "# Comment\n" +
+            "\n" +
+            "com/example/Foo.bar(I)I error unlikely\n" +
+            "com/example/Foo.bar(I)I found likely   # trailing comment\n" +
+            "com/example/Foo.bar(I)I rare 0.1\n" +
+            "com/example/Foo.bar(I)I common 0.9\n" +
+            "com/example/Foo.bar(I)I even 0.5\n" +
+            "com/example/Foo.baz()V `odd-name` 0\n"
+        );
+
+        assertThat(profile.hintsFor("com/example/Foo", "bar", "(I)I"))
+            .isEqualTo(Map.of("error", false, "found", true, "rare", false, "common", true));
+
+        assertThat(profile.hintsFor("com/example/Foo", "baz", "()V")).isEqualTo(Map.of("odd-name", false));
+        assertThat(profile.hintsFor("com/example/Foo", "bar", "()I")).isEmpty();
+    }
+
+    @Test
+    void testToStringIsTheSortedProfile() {
+        final var profile = LayoutProfile.parse(
+            "com/example/Foo.baz()V ok likely\n" +
+            "com/example/Foo.bar(I)I found 0.9\n" +
+            "com/example/Foo.bar(I)I error unlikely\n" +
+            "com/example/Foo.bar(I)I `return` 0.2\n"
+        );
+
+        assertThat(profile).hasToString(
+            "com/example/Foo.bar(I)I error unlikely\n" +
+            "com/example/Foo.bar(I)I found likely\n" +
+            "com/example/Foo.bar(I)I `return` unlikely\n" +
+            "com/example/Foo.baz()V ok likely"
+        );
+
+        assertThat(LayoutProfile.parse(profile.toString())).isEqualTo(profile);
+    }
+
+    @Test
+    void testRejectsMalformedEntries() {
+        assertThatThrownBy(() -> LayoutProfile.parse("\ncom/example/Foo.bar(I)I error\n", "test.profile"))
+            .isInstanceOf(JasmException.class)
+            .hasMessage("test.profile:2: Expected method, label and hint but found 'com/example/Foo.bar(I)I error'");
+    }
+
+    @Test
+    void testRejectsInvalidHints() {
+        assertThatThrownBy(() -> LayoutProfile.parse("com/example/Foo.bar(I)I error 1.5"))
+            .isInstanceOf(JasmException.class)
+            .hasMessage("<profile>:1: Invalid hint '1.5' (must be likely, unlikely or a probability from 0 to 1)");
+    }
+}
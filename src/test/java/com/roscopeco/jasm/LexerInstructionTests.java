@@ -337,6 +337,29 @@ class LexerInstructionTests {
         });
     }
 
+    @Test
+    void shouldLexHintedLabel() {
+        runInstructionTest("com/roscopeco/jasm/insntest/HintedLabel.jasm", lexer -> {
+            assertNextToken(lexer)
+                    .hasType(JasmLexer.GOTO);
+
+            assertNextToken(lexer)
+                    .hasType(JasmLexer.NAME)
+                    .hasText("cold");
+
+            assertNextToken(lexer)
+                    .hasType(JasmLexer.ANNOTATION_NAME)
+                    .hasText("@unlikely");
+
+            assertNextToken(lexer)
+                    .hasType(JasmLexer.LABEL)
+                    .hasText("cold:");
+
+            assertNextToken(lexer)
+                    .hasType(JasmLexer.RETURN);
+        });
+    }
+
     @Test
     void shouldLexIconst() {
         runInstructionTest("com/roscopeco/jasm/insntest/Iconst.jasm", lexer -> {
@@ -1328,6 +1351,51 @@ class LexerInstructionTests {
         });
     }
 
+    @Test
+    void shouldLexConcat() {
+        runInstructionTest("com/roscopeco/jasm/insntest/Concat.jasm", lexer -> assertTokens(lexer, tokens -> {
+            tokens.next().hasType(JasmLexer.CONCAT);
+            tokens.next().hasType(JasmLexer.STRING).hasText("\"Hello \\u0001\"");
+            tokens.next().hasType(JasmLexer.LPAREN);
+            tokens.next().hasType(JasmLexer.QNAME).hasText("java/lang/String");
+            tokens.next().hasType(JasmLexer.RPAREN);
+        }));
+    }
+
+    @Test
+    void shouldLexExpand() {
+        runInstructionTest("com/roscopeco/jasm/insntest/Expand.jasm", lexer -> assertTokens(lexer, tokens -> {
+            tokens.next().hasType(JasmLexer.EXPAND);
+            tokens.next().hasType(JasmLexer.NAME).hasText("checkIndex");
+            tokens.next().hasType(JasmLexer.LPAREN);
+            tokens.next().hasType(JasmLexer.INT).hasText("1");
+            tokens.next().hasType(JasmLexer.COMMA);
+            tokens.next().hasType(JasmLexer.NAME).hasText("length");
+            tokens.next().hasType(JasmLexer.COMMA);
+            tokens.next().hasType(JasmLexer.STRING).hasText("\"two\"");
+            tokens.next().hasType(JasmLexer.COMMA);
+            tokens.next().hasType(JasmLexer.QNAME).hasText("java/lang/Object");
+            tokens.next().hasType(JasmLexer.COMMA);
+            tokens.next().hasType(JasmLexer.LONG).hasText("3L");
+            tokens.next().hasType(JasmLexer.RPAREN);
+        }));
+    }
+
+    @Test
+    void shouldLexData() {
+        runInstructionTest("com/roscopeco/jasm/insntest/Data.jasm", lexer -> assertTokens(lexer, tokens -> {
+            tokens.next().hasType(JasmLexer.DATA);
+            tokens.next().hasType(JasmLexer.TYPE_INT);
+            tokens.next().hasType(JasmLexer.LSQUARE);
+            tokens.next().hasType(JasmLexer.INT).hasText("1");
+            tokens.next().hasType(JasmLexer.COMMA);
+            tokens.next().hasType(JasmLexer.INT).hasText("-2");
+            tokens.next().hasType(JasmLexer.COMMA);
+            tokens.next().hasType(JasmLexer.INT).hasText("3");
+            tokens.next().hasType(JasmLexer.RSQUARE);
+        }));
+    }
+
     @Test
     void shouldLexNewarray() {
         runInstructionTest("com/roscopeco/jasm/insntest/Newarray.jasm", lexer -> {
@@ -1340,6 +1408,18 @@ class LexerInstructionTests {
     }
 
 
+    @Test
+    void shouldLexPush() {
+        runInstructionTest("com/roscopeco/jasm/insntest/Push.jasm", lexer -> {
+            assertNextToken(lexer)
+                .hasType(JasmLexer.PUSH);
+
+            assertNextToken(lexer)
+                .hasType(JasmLexer.INT)
+                .hasText("1000");
+        });
+    }
+
     @Test
     void shouldLexPutField() {
         runInstructionTest("com/roscopeco/jasm/insntest/PutField.jasm", lexer -> assertTokens(lexer, tokens -> {
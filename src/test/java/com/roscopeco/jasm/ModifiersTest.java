@@ -14,6 +14,7 @@ import java.util.List;
 import java.util.stream.Collectors;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.objectweb.asm.Opcodes.ACC_FINAL;
@@ -79,6 +80,16 @@ class ModifiersTest {
         );
     }
 
+    @Test
+    void testModifiersAreMappedFromText() {
+        assertThat(modifiers.mapModifiers("public static  final")).isEqualTo(ACC_PUBLIC | ACC_STATIC | ACC_FINAL);
+        assertThat(modifiers.mapModifiers("")).isZero();
+
+        assertThatThrownBy(() -> modifiers.mapModifiers("public sealed"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Unknown modifier 'sealed'");
+    }
+
     private void runTest(final int expectedBitmap, @NonNull final List<String> mocks) {
         final var mockContexts = mocks.stream().map(mockFunc -> {
             final var mock = mock(JasmParser.Method_modifierContext.class);
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm;
+
+import com.roscopeco.jasm.errors.CodeError;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ParsedUnitTest {
+    private static final String SOURCE = "public class com/example/Test {\n" +
+            "    public static test()I {\n" +
+            "        iconst 1\n" +
+            "        goto nowhere\n" +
+            "    }\n" +
+            "}\n";
+
+    static Stream<Path> corpus() throws URISyntaxException, IOException {
+        final var root = Path.of(ParsedUnitTest.class.getClassLoader().getResource("jasm").toURI());
+
+        try (final var files = Files.walk(root)) {
+            return files.filter(f -> f.toString().endsWith(".jasm")).sorted().collect(Collectors.toList()).stream();
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("corpus")
+    void testAssemblesSameAsSource(final Path file) throws IOException {
+        final var source = Files.readAllBytes(file);
+        final ParsedUnit unit;
+
+        try {
+            unit = ParsedUnit.parse(file.getFileName().toString(), new ByteArrayInputStream(source));
+        } catch (AssemblyException e) {
+            // Syntax errors, which can't be written
+            return;
+        }
+
+        final var binary = unit.toByteArray();
+
+        // Assembled under another name, to show the recorded one is used
+        final var fromSource = assemble(file.getFileName().toString(), source);
+        final var fromBinary = assemble("other.jasmc", binary);
+
+        assertThat(fromBinary).isEqualTo(fromSource);
+    }
+
+    @Test
+    void testErrorsAreReportedAtSourcePositions() {
+        final var binary = ParsedUnit.parse("Test.jasm", stream(SOURCE)).toByteArray();
+
+        assertThatThrownBy(() -> new JasmAssembler("Test.jasmc", () -> new ByteArrayInputStream(binary)).assemble())
+                .isInstanceOf(AssemblyException.class)
+                .hasMessage(new String(assemble("Test.jasm", SOURCE.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8))
+                .hasMessageContaining("Test.jasm:[2:4]: Labels used but not declared: [nowhere]");
+    }
+
+    @Test
+    void testErrorOffsetsAndExcerptsMatchSource() {
+        final var source = "public class com/example/Test {\n" +
+                "    public  static test()I {\n" +
+                "        bipush 1000\n" +
+                "        goto nowhere\n" +
+                "    }\n" +
+                "}\n";
+
+        final var fromSource = errorPositions(source.getBytes(StandardCharsets.UTF_8));
+        final var fromBinary = errorPositions(ParsedUnit.parse("Test.jasm", stream(source)).toByteArray());
+
+        assertThat(fromBinary)
+                .isEqualTo(fromSource)
+                .containsExactly("[3:15]-[3:15] @ 76-79: 1000", "[2:4]-[5:4] @ 36-106: public  static test()I {");
+    }
+
+    @Test
+    void testSyntaxErrorsAreReportedWhenParsing() {
+        assertThatThrownBy(() -> ParsedUnit.parse("Bad.jasm", stream("public class {")))
+                .isInstanceOf(AssemblyException.class)
+                .hasMessageContaining("Bad.jasm:[1:13]");
+    }
+
+    @Test
+    void testRejectsInputThatIsNotAParsedUnit() {
+        assertThat(ParsedUnit.isParsedUnit(SOURCE.getBytes(StandardCharsets.UTF_8))).isFalse();
+
+        assertThatThrownBy(() -> ParsedUnit.read("Test.jasmc", stream(SOURCE)))
+                .isInstanceOf(AssemblyException.class)
+                .hasMessageContaining("Test.jasmc:[?,?]: Invalid parsed unit: not a parsed unit");
+    }
+
+    @Test
+    void testRejectsOtherFormatVersions() {
+        final var binary = validUnit();
+        binary[9]++;
+
+        assertThatThrownBy(() -> ParsedUnit.read("Test.jasmc", new ByteArrayInputStream(binary)))
+                .isInstanceOf(AssemblyException.class)
+                .hasMessageContaining("format version 3 is not supported (expected 2)");
+    }
+
+    @Test
+    void testRejectsOtherGrammars() {
+        final var binary = validUnit();
+        binary[10]++;
+
+        assertThatThrownBy(() -> ParsedUnit.read("Test.jasmc", new ByteArrayInputStream(binary)))
+                .isInstanceOf(AssemblyException.class)
+                .hasMessageContaining("parsed by a different version of JASM");
+    }
+
+    @Test
+    void testRejectsCorruptUnits() {
+        final var binary = validUnit();
+        binary[binary.length - 5] ^= 0x20;
+
+        assertThatThrownBy(() -> ParsedUnit.read("Test.jasmc", new ByteArrayInputStream(binary)))
+                .isInstanceOf(AssemblyException.class)
+                .hasMessageContaining("checksum mismatch");
+    }
+
+    @Test
+    void testRejectsTruncatedUnits() {
+        final var binary = Arrays.copyOf(validUnit(), 40);
+
+        assertThatThrownBy(() -> ParsedUnit.read("Test.jasmc", new ByteArrayInputStream(binary)))
+                .isInstanceOf(AssemblyException.class)
+                .hasMessageContaining("bytes of data, found 18");
+    }
+
+    private static byte[] validUnit() {
+        return ParsedUnit.parse("Test.jasm", stream(SOURCE)).toByteArray();
+    }
+
+    private static byte[] assemble(final String unitName, final byte[] input) {
+        try {
+            return new JasmAssembler(unitName, () -> new ByteArrayInputStream(input)).assemble();
+        } catch (RuntimeException e) {
+            // Failures (including those for cases that need other options) should be the same either way
+            return e.getMessage().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static List<String> errorPositions(final byte[] input) {
+        try {
+            new JasmAssembler("Test.jasm", () -> new ByteArrayInputStream(input)).assemble();
+            throw new AssertionError("Expected errors");
+        } catch (AssemblyException e) {
+            return e.getCodeErrors().stream()
+                    .map(CodeError.class::cast)
+                    .map(error -> String.format("[%d:%d]-[%d:%d] @ %d-%d: %s",
+                            error.getLine(), error.getColumn(), error.getStopLine(), error.getStopColumn(),
+                            error.getStartIndex(), error.getStopIndex(), error.getExcerpt()))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static ByteArrayInputStream stream(final String source) {
+        return new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8));
+    }
+}
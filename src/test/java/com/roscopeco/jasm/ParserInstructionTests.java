@@ -165,6 +165,16 @@ class ParserInstructionTests {
         );
     }
 
+    @Test
+    void shouldParseHintedLabel() {
+        runInstructionTest("com/roscopeco/jasm/insntest/HintedLabel.jasm", code -> code
+                ._goto("cold")
+                .hintedLabel("@unlikely", "cold:")
+                .vreturn()
+                .noMoreCode()
+        );
+    }
+
     @Test
     void shouldParseGoto() {
         runInstructionTest("com/roscopeco/jasm/insntest/Goto.jasm", code -> code
@@ -238,6 +248,64 @@ class ParserInstructionTests {
         );
     }
 
+    @Test
+    void shouldParseNamedLocals() {
+        runInstructionTest("com/roscopeco/jasm/insntest/NamedLocals.jasm", code -> code
+            .iconst(1)
+            .istore("count")
+            .iinc("count", 2)
+            .iinc("count", 2)
+            .iload("count")
+            .pop()
+            .aconstNull()
+            .astore("thing")
+            .aload("thing")
+            .pop()
+            .lconst(0)
+            .lstore("big")
+            .noMoreCode()
+        );
+    }
+
+    @Test
+    void shouldParseData() {
+        runInstructionTest("com/roscopeco/jasm/insntest/DataForms.jasm", code -> code
+            .data("int [1, -2, 3]")
+            .data("byte []")
+            .data("double [1.5, 2.5d]")
+            .data("boolean [true, false]")
+            .noMoreCode()
+        );
+    }
+
+    @Test
+    void shouldParsePush() {
+        runInstructionTest("com/roscopeco/jasm/insntest/PushForms.jasm", code -> code
+            .push("1000")
+            .push("-5L")
+            .push("2.5")
+            .push("2.5d")
+            .push("\"Hello\"")
+            .noMoreCode()
+        );
+    }
+
+    @Test
+    void shouldParseConcat() {
+        runInstructionTest("com/roscopeco/jasm/insntest/Concat.jasm", code -> code
+            .concat("\"Hello \\u0001\"java/lang/String")
+            .noMoreCode()
+        );
+    }
+
+    @Test
+    void shouldParseExpand() {
+        runInstructionTest("com/roscopeco/jasm/insntest/Expand.jasm", code -> code
+            .expand("checkIndex(1, length, \"two\", java/lang/Object, 3L)")
+            .noMoreCode()
+        );
+    }
+
     @Test
     void shouldParseInvokeDynamic() {
         runInstructionTest("com/roscopeco/jasm/insntest/InvokeDynamic.jasm", code -> code
@@ -5,12 +5,17 @@
  */
 package com.roscopeco.jasm;
 
+import com.roscopeco.jasm.antlr.JasmParser;
 import lombok.NonNull;
+import org.antlr.v4.runtime.tree.ParseTree;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
 import org.objectweb.asm.Type;
 
+import java.util.Objects;
+import java.util.stream.Collectors;
+
 import static com.roscopeco.jasm.TestUtil.doParse;
 import static com.roscopeco.jasm.asserts.LexerParserAssertions.assertClass;
 import static com.roscopeco.jasm.asserts.LexerParserAssertions.assertMember;
@@ -154,6 +159,40 @@ class ParserTests {
             .hasInterfaces("com/roscopeco/jasm/model/Interface1", "com/roscopeco/jasm/model/Interface2");
     }
 
+    @Test
+    void shouldParseClassWithNest() {
+        assertClass(doParse("com/roscopeco/jasm/NestTest.jasm"))
+            .hasName("com/roscopeco/jasm/NestTest")
+            .hasNestMembers("com/roscopeco/jasm/NestTest$Member");
+
+        assertClass(doParse("com/roscopeco/jasm/NestTest$Member.jasm"))
+            .hasName("com/roscopeco/jasm/NestTest$Member")
+            .hasNestHost("com/roscopeco/jasm/NestTest");
+    }
+
+    @Test
+    void shouldParseClassWithMacros() {
+        final var test = doParse("com/roscopeco/jasm/MacroTest.jasm");
+
+        final var macros = test.classbody().member().stream()
+            .map(JasmParser.MemberContext::macro)
+            .filter(Objects::nonNull)
+            .collect(Collectors.toList());
+
+        assertThat(macros)
+            .extracting(m -> m.membername().getText())
+            .containsExactly("checkIndex", "checkBoth", "mix", "newInstance", "ifZero");
+
+        assertThat(macros.get(4).macro_param())
+            .extracting(p -> p.macro_param_type().getText() + " " + p.NAME().getText())
+            .containsExactly("local value", "label target");
+
+        // The body is kept as tokens until it's expanded
+        assertThat(macros.get(2).macro_body().macro_token())
+            .extracting(ParseTree::getText)
+            .containsExactly("ldc", "factor", "imul", "dup", "bipush", "shift", "iushr", "ixor");
+    }
+
     @Test
     void shouldParseClassWithArrayTypes() {
         final var test = doParse("com/roscopeco/jasm/ArrayTypesTest.jasm");
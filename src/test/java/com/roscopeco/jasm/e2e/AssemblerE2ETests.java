@@ -5,7 +5,16 @@
  */
 package com.roscopeco.jasm.e2e;
 
+import com.roscopeco.jasm.AssemblerOptions;
 import com.roscopeco.jasm.AssemblyException;
+import com.roscopeco.jasm.BlockCounters;
+import com.roscopeco.jasm.JasmAssembler;
+import com.roscopeco.jasm.JasmAssemblingVisitor;
+import com.roscopeco.jasm.JasmPatcher;
+import com.roscopeco.jasm.LayoutProfile;
+import com.roscopeco.jasm.MacroExpansion;
+import com.roscopeco.jasm.errors.BaseError;
+import com.roscopeco.jasm.errors.StandardErrorCollector;
 import com.roscopeco.jasm.model.AthrowTest;
 import com.roscopeco.jasm.model.CheckcastTest;
 import com.roscopeco.jasm.model.ConstFieldTests;
@@ -27,6 +36,7 @@ import com.roscopeco.jasm.model.LiteralNames;
 import com.roscopeco.jasm.model.LoadsAndStoresTest;
 import com.roscopeco.jasm.model.LongMathTests;
 import com.roscopeco.jasm.model.MultiCatchFallthroughTest;
+import com.roscopeco.jasm.model.PatchTarget;
 import com.roscopeco.jasm.model.PrimArrayTests;
 import com.roscopeco.jasm.model.RefArrayTests;
 import com.roscopeco.jasm.model.StackOpsTest;
@@ -36,17 +46,44 @@ import com.roscopeco.jasm.model.TryCatchTest;
 import com.roscopeco.jasm.model.annotations.TestAnnotation;
 import com.roscopeco.jasm.model.annotations.TestEnum;
 import org.junit.jupiter.api.Test;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodTooLargeException;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
-
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.util.Textifier;
+import org.objectweb.asm.util.TraceMethodVisitor;
+
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static com.roscopeco.jasm.TestUtil.assemble;
 import static com.roscopeco.jasm.TestUtil.assembleAndDefine;
+import static com.roscopeco.jasm.TestUtil.assembleString;
 import static com.roscopeco.jasm.TestUtil.boolVoidInvoker;
+import static com.roscopeco.jasm.TestUtil.defineClass;
+import static com.roscopeco.jasm.TestUtil.doParseString;
+import static com.roscopeco.jasm.TestUtil.floatVoidInvoker;
+import static com.roscopeco.jasm.TestUtil.inputStreamForTestCase;
 import static com.roscopeco.jasm.TestUtil.instantiate;
 import static com.roscopeco.jasm.TestUtil.intVoidInvoker;
 import static com.roscopeco.jasm.TestUtil.objectArgsInvoker;
@@ -55,6 +92,7 @@ import static com.roscopeco.jasm.TestUtil.objectVoidInvoker;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.Assertions.tuple;
 
 @SuppressWarnings("java:S5961" /* Some methods need to assert combinatorial explosion of multiple variants */)
 class AssemblerE2ETests {
@@ -1044,4 +1082,1177 @@ class AssemblerE2ETests {
         assertThat(obj.getEscapeTestStr())
                 .isEqualTo("\" \t \b \n \r \f ' \" \\");
     }
+
+    @Test
+    void shouldRemoveUnreachableCodeAndWarn() {
+        final var assembler = new JasmAssembler(
+            "DeadCodeTest.jasm",
+            Opcodes.V11,
+            () -> inputStreamForTestCase("com/roscopeco/jasm/DeadCodeTest.jasm")
+        );
+
+        final var bytes = assembler.assemble();
+        final var clz = defineClass(bytes);
+
+        assertThat(intVoidInvoker(clz, "afterReturn").get()).isEqualTo(1);
+        assertThat(intVoidInvoker(clz, "unreachableHandler").get()).isEqualTo(1);
+        assertThat(intVoidInvoker(clz, "reachableHandler").get()).isEqualTo(4);
+
+        final var node = new ClassNode();
+        new ClassReader(bytes).accept(node, ClassReader.SKIP_FRAMES);
+
+        // No nop / athrow padding from ASM, the dead code is just gone
+        assertThat(realOpcodes(method(node, "afterReturn"))).containsExactly(Opcodes.ICONST_1, Opcodes.IRETURN);
+
+        final var unreachableHandler = method(node, "unreachableHandler");
+        assertThat(realOpcodes(unreachableHandler)).containsExactly(Opcodes.ICONST_1, Opcodes.IRETURN);
+        assertThat(unreachableHandler.tryCatchBlocks).isEmpty();
+
+        final var reachableHandler = method(node, "reachableHandler");
+        assertThat(realOpcodes(reachableHandler)).doesNotContain(Opcodes.GOTO, Opcodes.NOP);
+        assertThat(reachableHandler.tryCatchBlocks).hasSize(1);
+
+        // Only user-written code is warned about, not the jump generated by the try/catch sugar
+        assertThat(assembler.getWarnings())
+            .extracting(BaseError::toString)
+            .containsExactly(
+                "DeadCodeTest.jasm:[6:8]: Unreachable code removed from afterReturn()I (2 instructions)",
+                "DeadCodeTest.jasm:[17:8]: Unreachable code removed from unreachableHandler()I (5 instructions)"
+            );
+    }
+
+    @Test
+    void shouldAllocateNamedLocalsBySharingSlots() {
+        final var bytes = assemble("com/roscopeco/jasm/NamedLocalsTest.jasm", Opcodes.V11);
+        final var clz = defineClass(bytes);
+
+        assertThat(invokeWithInt(clz, "sequentialNamed", 5)).isEqualTo(invokeWithInt(clz, "sequentialNumbered", 5));
+        assertThat(invokeWithInt(clz, "widenNamed", 5)).isEqualTo(invokeWithInt(clz, "widenNumbered", 5)).isEqualTo(10L);
+        assertThat(invokeWithInt(clz, "sumToNamed", 10)).isEqualTo(invokeWithInt(clz, "sumToNumbered", 10)).isEqualTo(55);
+        assertThat(invokeWithInt(clz, "mixed", 7)).isEqualTo(7);
+
+        final var node = new ClassNode();
+        new ClassReader(bytes).accept(node, ClassReader.SKIP_FRAMES);
+
+        assertThat(method(node, "sequentialNamed").maxLocals).isEqualTo(2);
+        assertThat(method(node, "sequentialNumbered").maxLocals).isEqualTo(3);
+        assertThat(method(node, "widenNamed").maxLocals).isEqualTo(4);
+        assertThat(method(node, "widenNumbered").maxLocals).isEqualTo(6);
+        assertThat(method(node, "sumToNamed").maxLocals).isEqualTo(method(node, "sumToNumbered").maxLocals);
+        assertThat(method(node, "mixed").maxLocals).isEqualTo(5);
+
+        // Not requested, so no debug info
+        assertThat(method(node, "sequentialNamed").localVariables).isNullOrEmpty();
+    }
+
+    @Test
+    void shouldEmitLocalVariableTableForNamedLocalsWhenRequested() {
+        final var bytes = assembler("NamedLocalsTest.jasm", new AssemblerOptions().withEmitLocalVariableTable(true)).assemble();
+
+        final var node = new ClassNode();
+        new ClassReader(bytes).accept(node, 0);
+
+        assertThat(method(node, "sequentialNamed").localVariables)
+            .extracting(lv -> lv.name, lv -> lv.desc, lv -> lv.index)
+            .containsExactly(tuple("doubled", "I", 1), tuple("result", "I", 1));
+
+        assertThat(method(node, "widenNamed").localVariables)
+            .extracting(lv -> lv.name, lv -> lv.desc, lv -> lv.index)
+            .containsExactly(tuple("wide", "J", 1), tuple("narrow", "I", 3), tuple("total", "J", 1));
+
+        // Numbered locals aren't described
+        assertThat(method(node, "sequentialNumbered").localVariables).isNullOrEmpty();
+    }
+
+    @Test
+    void shouldReportMisusedNamedLocals() {
+        assertThatThrownBy(() -> assembleAndDefine("com/roscopeco/jasm/NamedLocalsErrorsTest.jasm"))
+            .isInstanceOf(AssemblyException.class)
+            .hasMessageContaining("NamedLocalsErrorsTest.jasm:[5:8]")
+            .hasMessageContaining("Local value in wrongType()I is used as both int and reference")
+            .hasMessageContaining("NamedLocalsErrorsTest.jasm:[10:8]")
+            .hasMessageContaining("Local value in loadBeforeStore()I may be loaded before it is stored");
+    }
+
+    @Test
+    void shouldFailOnHugeMethodsWhenNotSplitting() {
+        assertThatThrownBy(() -> assembleString(straightLineClass("SplitStraightLineTest", 25000), Opcodes.V11))
+            .isInstanceOf(MethodTooLargeException.class);
+    }
+
+    @Test
+    void shouldSplitMethodsLargerThanTheJvmLimit() {
+        final var bytes = assembleWithOptions(
+            straightLineClass("SplitStraightLineTest", 25000),
+            new AssemblerOptions().withSplitLargeMethods(true)
+        );
+
+        final var clz = defineClass(bytes);
+        assertThat(intVoidInvoker(clz, "count").get()).isEqualTo(25000 + "prefix".length());
+
+        final var sizes = codeSizes(bytes);
+        assertThat(sizes).hasSizeGreaterThan(1);
+        assertThat(sizes.values()).allMatch(size -> size <= AssemblerOptions.MAX_METHOD_SIZE);
+
+        final var node = new ClassNode();
+        new ClassReader(bytes).accept(node, 0);
+
+        assertThat(node.methods)
+            .filteredOn(m -> !m.name.equals("count"))
+            .allMatch(m -> m.access == (Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC))
+            .allMatch(m -> m.name.startsWith("count$split$"));
+    }
+
+    @Test
+    void shouldSplitLoopBodiesToConfiguredSize() {
+        final var bytes = assembleWithOptions(
+            loopClass(4000),
+            new AssemblerOptions().withSplitLargeMethods(true).withMaxMethodSize(AssemblerOptions.HUGE_METHOD_LIMIT)
+        );
+
+        final var clz = defineClass(bytes);
+        assertThat(intVoidInvoker(clz, "loop").get()).isEqualTo(40000);
+
+        final var sizes = codeSizes(bytes);
+        assertThat(sizes).hasSizeGreaterThan(1);
+        assertThat(sizes.values()).allMatch(size -> size <= AssemblerOptions.HUGE_METHOD_LIMIT);
+    }
+
+    @Test
+    void shouldAssembleDataArrays() {
+        final var clz = assembleAndDefine("com/roscopeco/jasm/DataTest.jasm");
+
+        assertThat(objectVoidInvoker(clz, "smallInts").get()).isEqualTo(new int[] { 1, 0, -1, 1000, Integer.MAX_VALUE });
+        assertThat(objectVoidInvoker(clz, "emptyBytes").get()).isEqualTo(new byte[0]);
+        assertThat(objectVoidInvoker(clz, "bytes").get())
+            .isEqualTo(new byte[] { 0, 1, -1, 127, -128, 0, 0, 0, 42, -42, 100, -100 });
+        assertThat(objectVoidInvoker(clz, "booleans").get())
+            .isEqualTo(new boolean[] { true, false, true, true, false, false, false, true, true, false });
+        assertThat(objectVoidInvoker(clz, "chars").get())
+            .isEqualTo(new char[] { 0, 65, 66, 67, 65535, 32768, 127, 128, 2047, 2048 });
+        assertThat(objectVoidInvoker(clz, "shorts").get())
+            .isEqualTo(new short[] { 0, 1, -1, 32767, -32768, 255, 256, -256, 12345, -12345 });
+        assertThat(objectVoidInvoker(clz, "ints").get())
+            .isEqualTo(new int[] { 0, 1, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, 65535, 65536, -65536, 123456789, -123456789 });
+        assertThat(objectVoidInvoker(clz, "longs").get())
+            .isEqualTo(new long[] { 0, 1, -1, Long.MAX_VALUE, Long.MIN_VALUE, 4294967295L, 4294967296L, -4294967296L, 1234567890123L });
+        assertThat(objectVoidInvoker(clz, "floats").get())
+            .isEqualTo(new float[] { 0.0f, -0.0f, 1.0f, -1.5f, 3.14159f, 0.0000001f, 100, -100, 16777216.0f });
+        assertThat(objectVoidInvoker(clz, "doubles").get())
+            .isEqualTo(new double[] { 0.0, -0.0, 1.0, -1.5, 3.141592653589793, 0.0000001, 100, -100, 123456789.125 });
+        assertThat(invokeWithInt(clz, "withLocals", 3)).isEqualTo(4);
+    }
+
+    @Test
+    void shouldPackLargeDataSmallerThanElementByElement() {
+        final var values = new int[2000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (i * 7919) % 1000 - 500;
+        }
+
+        final var packed = assembleString(dataClass("DataPackedTest", values, true), Opcodes.V11);
+        final var unpacked = assembleString(dataClass("DataUnpackedTest", values, false), Opcodes.V11);
+
+        assertThat(objectVoidInvoker(defineClass(packed), "values").get()).isEqualTo(values);
+        assertThat(objectVoidInvoker(defineClass(unpacked), "values").get()).isEqualTo(values);
+
+        assertThat(codeSizes(packed).get("values")).isLessThan(100);
+        assertThat(packed.length).isLessThan(unpacked.length / 2);
+    }
+
+    @Test
+    void shouldReportInvalidData() {
+        assertThatThrownBy(() -> assembleAndDefine("com/roscopeco/jasm/DataErrorsTest.jasm"))
+            .isInstanceOf(AssemblyException.class)
+            .hasMessageContaining("DataErrorsTest.jasm:[3:22]: Invalid value for byte data: 128")
+            .hasMessageContaining("DataErrorsTest.jasm:[8:21]: Invalid value for int data: 2.5");
+    }
+
+    @Test
+    void shouldPushConstantsWithSmallestEncoding() {
+        final var bytes = assemble("com/roscopeco/jasm/PushTest.jasm", Opcodes.V11);
+        final var clz = defineClass(bytes);
+
+        assertThat(intVoidInvoker(clz, "intM1").get()).isEqualTo(-1);
+        assertThat(intVoidInvoker(clz, "int5").get()).isEqualTo(5);
+        assertThat(intVoidInvoker(clz, "int6").get()).isEqualTo(6);
+        assertThat(intVoidInvoker(clz, "intMinByte").get()).isEqualTo(-128);
+        assertThat(intVoidInvoker(clz, "int128").get()).isEqualTo(128);
+        assertThat(intVoidInvoker(clz, "intMinShort").get()).isEqualTo(-32768);
+        assertThat(intVoidInvoker(clz, "int32768").get()).isEqualTo(32768);
+        assertThat(intVoidInvoker(clz, "intMin").get()).isEqualTo(Integer.MIN_VALUE);
+        assertThat(objectVoidInvoker(clz, "long1").get()).isEqualTo(1L);
+        assertThat(objectVoidInvoker(clz, "long2").get()).isEqualTo(2L);
+        assertThat(floatVoidInvoker(clz, "float2").get()).isEqualTo(2.0f);
+        assertThat(floatVoidInvoker(clz, "floatNegativeZero").get()).isEqualTo(-0.0f);
+        assertThat(floatVoidInvoker(clz, "float3").get()).isEqualTo(3.0f);
+        assertThat(objectVoidInvoker(clz, "double1").get()).isEqualTo(1.0);
+        assertThat(objectVoidInvoker(clz, "double2").get()).isEqualTo(2.0);
+        assertThat(objectVoidInvoker(clz, "string").get()).isEqualTo("Hello");
+
+        final var node = new ClassNode();
+        new ClassReader(bytes).accept(node, 0);
+
+        assertThat(realOpcodes(method(node, "intM1"))).containsExactly(Opcodes.ICONST_M1, Opcodes.IRETURN);
+        assertThat(realOpcodes(method(node, "int5"))).containsExactly(Opcodes.ICONST_5, Opcodes.IRETURN);
+        assertThat(realOpcodes(method(node, "int6"))).containsExactly(Opcodes.BIPUSH, Opcodes.IRETURN);
+        assertThat(realOpcodes(method(node, "intMinByte"))).containsExactly(Opcodes.BIPUSH, Opcodes.IRETURN);
+        assertThat(realOpcodes(method(node, "int128"))).containsExactly(Opcodes.SIPUSH, Opcodes.IRETURN);
+        assertThat(realOpcodes(method(node, "intMinShort"))).containsExactly(Opcodes.SIPUSH, Opcodes.IRETURN);
+        assertThat(realOpcodes(method(node, "int32768"))).containsExactly(Opcodes.LDC, Opcodes.IRETURN);
+        assertThat(realOpcodes(method(node, "intMin"))).containsExactly(Opcodes.LDC, Opcodes.IRETURN);
+        assertThat(realOpcodes(method(node, "long1"))).containsExactly(Opcodes.LCONST_1, Opcodes.LRETURN);
+        assertThat(realOpcodes(method(node, "long2"))).containsExactly(Opcodes.LDC, Opcodes.LRETURN);
+        assertThat(realOpcodes(method(node, "float2"))).containsExactly(Opcodes.FCONST_2, Opcodes.FRETURN);
+        assertThat(realOpcodes(method(node, "floatNegativeZero"))).containsExactly(Opcodes.LDC, Opcodes.FRETURN);
+        assertThat(realOpcodes(method(node, "float3"))).containsExactly(Opcodes.LDC, Opcodes.FRETURN);
+        assertThat(realOpcodes(method(node, "double1"))).containsExactly(Opcodes.DCONST_1, Opcodes.DRETURN);
+        assertThat(realOpcodes(method(node, "double2"))).containsExactly(Opcodes.LDC, Opcodes.DRETURN);
+        assertThat(realOpcodes(method(node, "string"))).containsExactly(Opcodes.LDC, Opcodes.ARETURN);
+    }
+
+    @Test
+    void shouldReportOutOfRangePushOperands() {
+        assertThatThrownBy(() -> assembleAndDefine("com/roscopeco/jasm/PushErrorsTest.jasm"))
+            .isInstanceOf(AssemblyException.class)
+            .hasMessageContaining("PushErrorsTest.jasm:[3:15]: Invalid operand to BIPUSH: 128 (must be in range -128 to 127)")
+            .hasMessageContaining("PushErrorsTest.jasm:[8:15]: Invalid operand to SIPUSH: -32769 (must be in range -32768 to 32767)")
+            .hasMessageContaining("PushErrorsTest.jasm:[13:13]: Invalid operand to PUSH: 2147483648 (out of range for int)")
+            .hasMessageContaining("PushErrorsTest.jasm:[18:13]: Invalid operand to PUSH: 9223372036854775808L (out of range for long)");
+    }
+
+    @Test
+    void shouldConcatWithInvokedynamicForJava9AndUp() {
+        final var bytes = assemble("com/roscopeco/jasm/ConcatTest.jasm", Opcodes.V11);
+        assertConcatResults(defineClass(bytes));
+
+        final var node = new ClassNode();
+        new ClassReader(bytes).accept(node, 0);
+
+        assertThat(realOpcodes(method(node, "describe")))
+            .containsExactly(Opcodes.ALOAD, Opcodes.ILOAD, Opcodes.INVOKEDYNAMIC, Opcodes.ARETURN);
+        assertThat(realOpcodes(method(node, "constant"))).containsExactly(Opcodes.LDC, Opcodes.ARETURN);
+    }
+
+    @Test
+    void shouldConcatWithStringBuilderForOlderFormats() {
+        final var bytes = assemble("com/roscopeco/jasm/ConcatTest.jasm", Opcodes.V1_8);
+
+        // Same class as above, so needs its own loader
+        assertConcatResults(new IsolatedClassLoader().define(bytes));
+
+        final var node = new ClassNode();
+        new ClassReader(bytes).accept(node, 0);
+
+        assertThat(realOpcodes(method(node, "describe")))
+            .doesNotContain(Opcodes.INVOKEDYNAMIC)
+            .startsWith(Opcodes.ALOAD, Opcodes.ILOAD, Opcodes.ISTORE, Opcodes.ASTORE, Opcodes.NEW, Opcodes.DUP, Opcodes.BIPUSH)
+            .endsWith(Opcodes.INVOKEVIRTUAL, Opcodes.ARETURN);
+    }
+
+    @Test
+    void shouldReportMismatchedConcatArguments() {
+        assertThatThrownBy(() -> assembleAndDefine("com/roscopeco/jasm/ConcatErrorsTest.jasm"))
+            .isInstanceOf(AssemblyException.class)
+            .hasMessageContaining("ConcatErrorsTest.jasm:[4:8]: CONCAT recipe has 2 argument(s) but 1 type(s) were given");
+    }
+
+    @Test
+    void shouldExpandMacros() throws Exception {
+        final var clz = assembleAndDefine("com/roscopeco/jasm/MacroTest.jasm");
+        final var array = new int[] { 1, 2, 3 };
+
+        assertThat(clz.getMethod("get", int[].class, int.class).invoke(null, array, 2)).isEqualTo(3);
+        assertThatThrownBy(() -> clz.getMethod("get", int[].class, int.class).invoke(null, array, 3))
+            .hasCauseInstanceOf(IndexOutOfBoundsException.class);
+        assertThatThrownBy(() -> clz.getMethod("get", int[].class, int.class).invoke(null, array, -1))
+            .hasCauseInstanceOf(IndexOutOfBoundsException.class);
+
+        // Labels in the macro are local to each expansion
+        clz.getMethod("swap", int[].class, int.class, int.class).invoke(null, array, 0, 2);
+        assertThat(array).containsExactly(3, 2, 1);
+        assertThatThrownBy(() -> clz.getMethod("swap", int[].class, int.class, int.class).invoke(null, array, 0, 5))
+            .hasCauseInstanceOf(IndexOutOfBoundsException.class);
+
+        var expected = 12345 * -1640531535;
+        expected ^= expected >>> 16;
+        expected *= -2048144789;
+        expected ^= expected >>> 13;
+        assertThat(invokeWithInt(clz, "hash", 12345)).isEqualTo(expected);
+
+        assertThat(objectVoidInvoker(clz, "create").get()).isInstanceOf(StringBuilder.class);
+        assertThat(invokeWithInt(clz, "isZero", 0)).isEqualTo(true);
+        assertThat(invokeWithInt(clz, "isZero", 7)).isEqualTo(false);
+    }
+
+    @Test
+    void shouldReportMacroExpansionSizes() {
+        final var assembler = new JasmAssembler(
+            "MacroTest.jasm",
+            () -> inputStreamForTestCase("com/roscopeco/jasm/MacroTest.jasm")
+        );
+
+        assembler.assemble();
+
+        // Expansions within a macro are counted in its size, too
+        assertThat(assembler.getMacroExpansions()).extracting(MacroExpansion::toString).containsExactly(
+            "MacroTest.jasm:[46:8]: checkIndex in get([II)I: 17 bytes",
+            "MacroTest.jasm:[18:8]: checkIndex in swap([III)V: 17 bytes",
+            "MacroTest.jasm:[19:8]: checkIndex in swap([III)V: 17 bytes",
+            "MacroTest.jasm:[57:8]: checkBoth in swap([III)V: 34 bytes",
+            "MacroTest.jasm:[77:8]: mix in hash(I)I: 9 bytes",
+            "MacroTest.jasm:[78:8]: mix in hash(I)I: 9 bytes",
+            "MacroTest.jasm:[83:8]: newInstance in create()Ljava/lang/Object;: 7 bytes",
+            "MacroTest.jasm:[88:8]: ifZero in isZero(I)Z: 4 bytes"
+        );
+    }
+
+    @Test
+    void shouldReportErrorsInMacroExpansions() {
+        assertThatThrownBy(() -> assembleAndDefine("com/roscopeco/jasm/MacroErrorsTest.jasm"))
+            .isInstanceOf(AssemblyException.class)
+            .hasMessageContaining("com/roscopeco/jasm/MacroErrorsTest.jasm:[14:14]: Unknown macro parameter type number (expected int, long, float, double, string, class, local, label)")
+            .hasMessageContaining("com/roscopeco/jasm/MacroErrorsTest.jasm:[3:15]: Invalid operand to BIPUSH: 1000 (must be in range -128 to 127) (in expansion of macro push at [18:8])")
+            .hasMessageContaining("com/roscopeco/jasm/MacroErrorsTest.jasm:[19:8]: Macro push expects 1 argument(s), but 2 were given")
+            .hasMessageContaining("com/roscopeco/jasm/MacroErrorsTest.jasm:[20:20]: Argument value to macro push must be an int, but was \"one\"")
+            .hasMessageContaining("com/roscopeco/jasm/MacroErrorsTest.jasm:[21:8]: Unknown macro missing")
+            .hasMessageContaining("com/roscopeco/jasm/MacroErrorsTest.jasm:[8:4]: no viable alternative at input 'iload' (in expansion of macro incomplete at [22:8])")
+            .hasMessageContaining("com/roscopeco/jasm/MacroErrorsTest.jasm:[11:8]: Macro forever is expanded recursively (in expansion of macro forever at [23:8])");
+    }
+
+    @Test
+    void shouldAssembleForSeveralClassFormatsFromOneParse() {
+        final var opened = new AtomicInteger();
+
+        final var classes = new JasmAssembler("ConcatTest.jasm", Opcodes.V11, new AssemblerOptions(), () -> {
+            opened.incrementAndGet();
+            return inputStreamForTestCase("com/roscopeco/jasm/ConcatTest.jasm");
+        }).assemble(List.of(Opcodes.V1_8, Opcodes.V11));
+
+        assertThat(opened).hasValue(1);
+        assertThat(classes).containsOnlyKeys(Opcodes.V1_8, Opcodes.V11);
+
+        final var java8 = new ClassNode();
+        new ClassReader(classes.get(Opcodes.V1_8)).accept(java8, 0);
+        final var java11 = new ClassNode();
+        new ClassReader(classes.get(Opcodes.V11)).accept(java11, 0);
+
+        assertThat(java8.version).isEqualTo(Opcodes.V1_8);
+        assertThat(java11.version).isEqualTo(Opcodes.V11);
+
+        // Each is lowered for its own format
+        assertThat(realOpcodes(method(java8, "describe"))).doesNotContain(Opcodes.INVOKEDYNAMIC);
+        assertThat(realOpcodes(method(java11, "describe"))).contains(Opcodes.INVOKEDYNAMIC);
+
+        assertConcatResults(new IsolatedClassLoader().define(classes.get(Opcodes.V1_8)));
+        assertConcatResults(new IsolatedClassLoader().define(classes.get(Opcodes.V11)));
+    }
+
+    @Test
+    void shouldReportDynamicConstantsAndCallSitesUnsupportedByTheClassFormat() {
+        assertThatThrownBy(() -> assemble("com/roscopeco/jasm/InvokeDynamicTest.jasm", Opcodes.V1_6))
+            .isInstanceOf(AssemblyException.class)
+            .hasMessageContaining("InvokeDynamicTest.jasm:[18:8]: invokedynamic requires class format 51 (Java 7) or later");
+
+        assertThatThrownBy(() -> assemble("com/roscopeco/jasm/LdcAconstAreturn.jasm", Opcodes.V1_8))
+            .isInstanceOf(AssemblyException.class)
+            .hasMessageContaining("constdynamic requires class format 55 (Java 11) or later");
+    }
+
+    @Test
+    void shouldCountBlocksWhenInstrumented() {
+        final var options = new AssemblerOptions().withInstrumentBlocks(true);
+        final var clz = new IsolatedClassLoader().define(assembler("BlockCountTest.jasm", options).assemble());
+        final Map<String, BlockCounters.BlockCount> counts;
+
+        try {
+            assertThat(invokeWithInt(clz, "countEvens", 10)).isEqualTo(5);
+            assertThat(objectVoidInvoker(clz, "limit").get()).isEqualTo(10);
+
+            counts = blockCounts();
+        } finally {
+            // Otherwise they're dumped to stderr when the tests finish
+            BlockCounters.unregister(clz);
+        }
+
+        assertThat(blockCounts()).isEmpty();
+
+        assertThat(counts.get("countEvens(I)I - 17").getCount()).isEqualTo(1);
+        assertThat(counts.get("countEvens(I)I loop 22").getCount()).isEqualTo(11);
+        assertThat(counts.get("countEvens(I)I - 25").getCount()).isEqualTo(10);
+        assertThat(counts.get("countEvens(I)I even 30").getCount()).isEqualTo(5);
+        assertThat(counts.get("countEvens(I)I next 32").getCount()).isEqualTo(10);
+        assertThat(counts.get("countEvens(I)I done 35").getCount()).isEqualTo(1);
+        assertThat(counts.get("<clinit>()V - 5").getCount()).isEqualTo(1);
+        assertThat(counts.get("limit()I - 40").getCount()).isEqualTo(1);
+
+        assertThat(counts.get("countEvens(I)I loop 22").toString())
+            .isEqualTo("BlockCountTest.jasm:22 com/roscopeco/jasm/BlockCountTest.countEvens(I)I loop 11");
+    }
+
+    @Test
+    void shouldNotKeepUnloadedInstrumentedClassesRegistered() throws InterruptedException {
+        final var clz = loadInstrumentedBlockCountTest();
+
+        for (int i = 0; i < 100 && clz.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertThat(clz.get()).isNull();
+        assertThat(blockCounts()).isEmpty();
+    }
+
+    // Kept separate so nothing from the class is left on the stack
+    private static WeakReference<Class<?>> loadInstrumentedBlockCountTest() {
+        final var options = new AssemblerOptions().withInstrumentBlocks(true);
+        final var clz = new IsolatedClassLoader().define(assembler("BlockCountTest.jasm", options).assemble());
+
+        assertThat(invokeWithInt(clz, "countEvens", 4)).isEqualTo(2);
+        assertThat(blockCounts()).isNotEmpty();
+
+        return new WeakReference<>(clz);
+    }
+
+    private static Map<String, BlockCounters.BlockCount> blockCounts() {
+        return BlockCounters.snapshot().stream()
+            .filter(count -> count.getClassName().equals("com/roscopeco/jasm/BlockCountTest"))
+            .collect(Collectors.toMap(count -> count.getMethod() + " " + count.getLabel() + " " + count.getLine(), count -> count));
+    }
+
+    @Test
+    void shouldNotInstrumentByDefault() {
+        final var node = new ClassNode();
+        new ClassReader(assemble("com/roscopeco/jasm/BlockCountTest.jasm", Opcodes.V11)).accept(node, 0);
+
+        assertThat(node.fields).extracting(field -> field.name).containsExactly("LIMIT");
+    }
+
+    @Test
+    void shouldPatchMethodsIntoExistingClass() throws Exception {
+        final var original = PatchTarget.class.getResourceAsStream("PatchTarget.class").readAllBytes();
+
+        final var bytes = new JasmPatcher(
+            "PatchTest.jasm",
+            () -> inputStreamForTestCase("com/roscopeco/jasm/PatchTest.jasm")
+        ).patch(original);
+
+        final var clz = new IsolatedClassLoader().define(bytes);
+        final var obj = clz.getConstructor().newInstance();
+
+        assertThat(objectVoidInvoker(obj, "answer").get()).isEqualTo(42);
+        assertThat(invokeWithInt(clz, "doubled", 21)).isEqualTo(42);
+        assertThat(objectArgsInvoker(obj, "describe", int.class).apply(new Object[] { 1 })).isEqualTo("positive");
+
+        // Everything else is copied as it was, including frames and debug info
+        assertThat(textify(bytes, "describe")).isEqualTo(textify(original, "describe"));
+        assertThat(textify(bytes, "<init>")).isEqualTo(textify(original, "<init>"));
+        assertThat(new ClassReader(bytes).readUnsignedShort(6)).isEqualTo(new ClassReader(original).readUnsignedShort(6));
+    }
+
+    @Test
+    void shouldRejectPatchForDifferentClass() throws Exception {
+        final var original = PatchTarget.class.getResourceAsStream("PatchTarget.class").readAllBytes();
+
+        assertThatThrownBy(() -> new JasmPatcher(
+            "PatchWrongClassTest.jasm",
+            () -> inputStreamForTestCase("com/roscopeco/jasm/PatchWrongClassTest.jasm")
+        ).patch(original))
+            .isInstanceOf(AssemblyException.class)
+            .hasMessageContaining(
+                "PatchWrongClassTest.jasm:[?,?]: Patch is for class com/roscopeco/jasm/model/SomethingElse, " +
+                "but the class being patched is com/roscopeco/jasm/model/PatchTarget"
+            );
+    }
+
+    @Test
+    void shouldComputePatchFramesFromTheGivenClassLoader() throws Exception {
+        final var original = PatchTarget.class.getResourceAsStream("PatchTarget.class").readAllBytes();
+        final var loader = hiddenClassLoader();
+
+        final var bytes = new JasmPatcher(
+            "PatchHierarchyTest.jasm",
+            new AssemblerOptions(),
+            loader,
+            () -> inputStreamForTestCase("com/roscopeco/jasm/PatchHierarchyTest.jasm")
+        ).patch(original);
+
+        final var node = new ClassNode();
+        new ClassReader(bytes).accept(node, 0);
+
+        assertThat(method(node, "pick").instructions.toArray())
+            .filteredOn(insn -> insn instanceof FrameNode && ((FrameNode) insn).stack != null)
+            .flatExtracting(insn -> ((FrameNode) insn).stack)
+            .contains("com/roscopeco/jasm/hidden/Base");
+
+        final var clz = loader.define(bytes);
+        final var obj = clz.getConstructor().newInstance();
+
+        assertThat(objectArgsInvoker(obj, "pick", boolean.class).apply(new Object[] { true }).getClass().getName())
+            .isEqualTo("com.roscopeco.jasm.hidden.First");
+        assertThat(objectArgsInvoker(obj, "pick", boolean.class).apply(new Object[] { false }).getClass().getName())
+            .isEqualTo("com.roscopeco.jasm.hidden.Second");
+
+        // The patcher's own class loader can't see them
+        assertThatThrownBy(() -> new JasmPatcher(
+            "PatchHierarchyTest.jasm",
+            () -> inputStreamForTestCase("com/roscopeco/jasm/PatchHierarchyTest.jasm")
+        ).patch(original))
+            .isInstanceOf(TypeNotPresentException.class);
+    }
+
+    @Test
+    void shouldVerifyAgainstTheGivenClassLoader() {
+        final var loader = hiddenClassLoader();
+        final var code = "public class VerifyHiddenTest {\n" +
+            "    public static pick()com/roscopeco/jasm/hidden/Second {\n" +
+            "        new com/roscopeco/jasm/hidden/First\n" +
+            "        dup\n" +
+            "        invokespecial com/roscopeco/jasm/hidden/First.<init>()V\n" +
+            "        areturn\n" +
+            "    }\n" +
+            "}\n";
+
+        final var options = new AssemblerOptions().withVerify(true);
+
+        // Without the classes, anything is assumed to be assignable to them
+        assertThat(new JasmAssembler("<test>", Opcodes.V11, options, () -> new ByteArrayInputStream(code.getBytes()))
+            .assemble()).isNotEmpty();
+
+        assertThatThrownBy(() -> new JasmAssembler("<test>", Opcodes.V11, options, loader, () -> new ByteArrayInputStream(code.getBytes()))
+            .assemble())
+            .isInstanceOf(AssemblyException.class)
+            .hasMessageContaining("Verification failed in pick()Lcom/roscopeco/jasm/hidden/Second;: Incompatible return type");
+    }
+
+    private static HiddenClassLoader hiddenClassLoader() {
+        return new HiddenClassLoader(Map.of(
+            "com/roscopeco/jasm/hidden/Base", hiddenClass("Base", "java/lang/Object"),
+            "com/roscopeco/jasm/hidden/First", hiddenClass("First", "com/roscopeco/jasm/hidden/Base"),
+            "com/roscopeco/jasm/hidden/Second", hiddenClass("Second", "com/roscopeco/jasm/hidden/Base")
+        ));
+    }
+
+    private static byte[] hiddenClass(final String name, final String superName) {
+        return assembleWithOptions(
+            "public class com/roscopeco/jasm/hidden/" + name + " extends " + superName + " {\n" +
+            "    public <init>()V {\n" +
+            "        aload 0\n" +
+            "        invokespecial " + superName + ".<init>()V\n" +
+            "        return\n" +
+            "    }\n" +
+            "}\n",
+            new AssemblerOptions()
+        );
+    }
+
+    // Serves the hidden classes only as class files, until they're actually needed
+    private static final class HiddenClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classes;
+
+        HiddenClassLoader(final Map<String, byte[]> classes) {
+            super(AssemblerE2ETests.class.getClassLoader());
+            this.classes = classes;
+        }
+
+        Class<?> define(final byte[] bytes) {
+            return defineClass(null, bytes, 0, bytes.length);
+        }
+
+        @Override
+        protected Class<?> findClass(final String name) throws ClassNotFoundException {
+            final var bytes = classes.get(name.replace('.', '/'));
+
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+
+        @Override
+        public InputStream getResourceAsStream(final String name) {
+            final var bytes = classes.get(name.replace(".class", ""));
+            return bytes == null ? super.getResourceAsStream(name) : new ByteArrayInputStream(bytes);
+        }
+    }
+
+    private static final class IsolatedClassLoader extends ClassLoader {
+        IsolatedClassLoader() {
+            super(AssemblerE2ETests.class.getClassLoader());
+        }
+
+        Class<?> define(final byte[] bytes) {
+            return defineClass(null, bytes, 0, bytes.length);
+        }
+    }
+
+    private static void assertConcatResults(final Class<?> clz) {
+        final var chars = new char[] { 'a', 'b' };
+        final var obj = new Object();
+
+        assertThat(objectArgsInvoker(clz, "describe", String.class, int.class).apply(new Object[] { "Bob", 42 }))
+            .isEqualTo("Bob is 42 years old");
+        assertThat(objectArgsInvoker(clz, "primitives", boolean.class, byte.class, char.class, short.class, long.class, float.class, double.class)
+            .apply(new Object[] { true, (byte) -1, 'x', (short) 300, Long.MIN_VALUE, 1.5f, -0.25 }))
+            .isEqualTo("true-1x300 [" + Long.MIN_VALUE + ", 1.5, -0.25]");
+        assertThat(objectArgsInvoker(clz, "objects", Object.class, char[].class).apply(new Object[] { obj, chars }))
+            .isEqualTo(obj + "/null/" + chars);
+        assertThat(invokeWithInt(clz, "escaped", 7)).isEqualTo("a\\u0001b 7");
+        assertThat(objectVoidInvoker(clz, "constant").get()).isEqualTo("No arguments");
+    }
+
+    @Test
+    void shouldAllowNestmatesToAccessPrivateMembers() {
+        final var host = assembleAndDefine("com/roscopeco/jasm/NestTest.jasm");
+        final var member = assembleAndDefine("com/roscopeco/jasm/NestTest$Member.jasm");
+
+        assertThat(member.getNestHost()).isEqualTo(host);
+        assertThat(host.getNestMembers()).containsExactly(host, member);
+        assertThat(intVoidInvoker(member, "peek").get()).isEqualTo(42);
+    }
+
+    @Test
+    void shouldInlineConstantsWhenEnabled() {
+        final var bytes = assembler("ConstantInliningTest.jasm", new AssemblerOptions().withInlineConstants(true)).assemble();
+
+        final var node = new ClassNode();
+        new ClassReader(bytes).accept(node, 0);
+
+        assertThat(realOpcodes(method(node, "small"))).containsExactly(Opcodes.ICONST_3, Opcodes.IRETURN);
+        assertThat(realOpcodes(method(node, "byteRange"))).containsExactly(Opcodes.BIPUSH, Opcodes.IRETURN);
+        assertThat(realOpcodes(method(node, "shortRange"))).containsExactly(Opcodes.SIPUSH, Opcodes.IRETURN);
+        assertThat(realOpcodes(method(node, "big"))).containsExactly(Opcodes.LDC, Opcodes.IRETURN);
+        assertThat(realOpcodes(method(node, "one"))).containsExactly(Opcodes.LCONST_1, Opcodes.LRETURN);
+        assertThat(realOpcodes(method(node, "bigLong"))).containsExactly(Opcodes.LDC, Opcodes.LRETURN);
+        assertThat(realOpcodes(method(node, "two"))).containsExactly(Opcodes.FCONST_2, Opcodes.FRETURN);
+        assertThat(realOpcodes(method(node, "half"))).containsExactly(Opcodes.LDC, Opcodes.DRETURN);
+        assertThat(realOpcodes(method(node, "greeting"))).containsExactly(Opcodes.LDC, Opcodes.ARETURN);
+        assertThat(realOpcodes(method(node, "visible"))).containsExactly(Opcodes.BIPUSH, Opcodes.IRETURN);
+
+        // Assigned in <clinit>, so must still be read from the field
+        assertThat(realOpcodes(method(node, "assigned"))).containsExactly(Opcodes.GETSTATIC, Opcodes.IRETURN);
+
+        // Without dropInlinedConstants, all fields are kept
+        assertThat(node.fields).hasSize(13);
+
+        assertConstantInliningResults(new IsolatedClassLoader().define(bytes));
+    }
+
+    @Test
+    void shouldNotInlineConstantsByDefault() {
+        final var bytes = assembler("ConstantInliningTest.jasm", new AssemblerOptions()).assemble();
+
+        final var node = new ClassNode();
+        new ClassReader(bytes).accept(node, 0);
+
+        assertThat(realOpcodes(method(node, "small"))).containsExactly(Opcodes.GETSTATIC, Opcodes.IRETURN);
+        assertThat(node.fields).hasSize(13);
+
+        assertConstantInliningResults(new IsolatedClassLoader().define(bytes));
+    }
+
+    @Test
+    void shouldDropOnlyPrivateUnreferencedConstants() {
+        final var options = new AssemblerOptions().withInlineConstants(true).withDropInlinedConstants(true);
+        final var bytes = assembler("ConstantInliningTest.jasm", options).assemble();
+
+        final var node = new ClassNode();
+        new ClassReader(bytes).accept(node, 0);
+
+        assertThat(node.fields)
+            .extracting(f -> f.name)
+            .containsExactly("VISIBLE", "HANDLED", "ASSIGNED");
+
+        assertConstantInliningResults(new IsolatedClassLoader().define(bytes));
+    }
+
+    @Test
+    void shouldVisitNestMembersAfterClassAnnotations() {
+        final var errors = new StandardErrorCollector();
+        final var calls = new ArrayList<String>();
+
+        // ClassVisitor requires annotations to be visited before nest members, fields and methods
+        final var recorder = new ClassVisitor(Opcodes.ASM9, new ClassWriter(0)) {
+            @Override
+            public AnnotationVisitor visitAnnotation(final String descriptor, final boolean visible) {
+                calls.add("annotation " + descriptor);
+                return super.visitAnnotation(descriptor, visible);
+            }
+
+            @Override
+            public void visitNestMember(final String nestMember) {
+                calls.add("nest member " + nestMember);
+                super.visitNestMember(nestMember);
+            }
+        };
+
+        doParseString("@com/roscopeco/jasm/model/annotations/TestAnnotation\n" +
+            "public class Host nestmembers Host$Member {\n" +
+            "}\n").accept(new JasmAssemblingVisitor(recorder, "<test>", errors));
+
+        assertThat(errors.hasErrors()).isFalse();
+        assertThat(calls).containsExactly(
+            "annotation Lcom/roscopeco/jasm/model/annotations/TestAnnotation;",
+            "nest member Host$Member"
+        );
+    }
+
+    @Test
+    void shouldNotDropPrivateConstantsNestmatesCanRead() {
+        final var options = new AssemblerOptions().withInlineConstants(true).withDropInlinedConstants(true);
+        final var hostBytes = assembler("NestConstantTest.jasm", options).assemble();
+        final var memberBytes = assembler("NestConstantTest$Member.jasm", options).assemble();
+
+        final var node = new ClassNode();
+        new ClassReader(hostBytes).accept(node, 0);
+
+        // Still inlined in the host itself
+        assertThat(realOpcodes(method(node, "secret"))).containsExactly(Opcodes.BIPUSH, Opcodes.IRETURN);
+        assertThat(node.fields).extracting(f -> f.name).containsExactly("SECRET");
+
+        final var loader = new IsolatedClassLoader();
+        final var host = loader.define(hostBytes);
+        final var member = loader.define(memberBytes);
+
+        assertThat(intVoidInvoker(host, "secret").get()).isEqualTo(42);
+        assertThat(intVoidInvoker(member, "peek").get()).isEqualTo(42);
+    }
+
+    @Test
+    void shouldNotInlineOrDropConstantsNamedInMacros() throws Throwable {
+        final var options = new AssemblerOptions().withInlineConstants(true).withDropInlinedConstants(true);
+        final var bytes = assembler("MacroConstantTest.jasm", options).assemble();
+
+        final var node = new ClassNode();
+        new ClassReader(bytes).accept(node, 0);
+
+        assertThat(realOpcodes(method(node, "assigned"))).containsExactly(Opcodes.GETSTATIC, Opcodes.IRETURN);
+        assertThat(realOpcodes(method(node, "plain"))).containsExactly(Opcodes.ICONST_3, Opcodes.IRETURN);
+        assertThat(node.fields).extracting(f -> f.name).containsExactly("ASSIGNED", "HANDLED");
+
+        final var clz = new IsolatedClassLoader().define(bytes);
+
+        assertThat(intVoidInvoker(clz, "assigned").get()).isEqualTo(5);
+        assertThat(intVoidInvoker(clz, "plain").get()).isEqualTo(3);
+        assertThat(((MethodHandle) objectVoidInvoker(clz, "handled").get()).invoke()).isEqualTo(7);
+    }
+
+    private static void assertConstantInliningResults(final Class<?> clz) {
+        assertThat(intVoidInvoker(clz, "small").get()).isEqualTo(3);
+        assertThat(intVoidInvoker(clz, "byteRange").get()).isEqualTo(100);
+        assertThat(intVoidInvoker(clz, "shortRange").get()).isEqualTo(1000);
+        assertThat(intVoidInvoker(clz, "big").get()).isEqualTo(100000);
+        assertThat(objectVoidInvoker(clz, "truncated").get()).isEqualTo((byte) 300);
+        assertThat(objectVoidInvoker(clz, "one").get()).isEqualTo(1L);
+        assertThat(objectVoidInvoker(clz, "bigLong").get()).isEqualTo(100L);
+        assertThat(floatVoidInvoker(clz, "two").get()).isEqualTo(2.0f);
+        assertThat(objectVoidInvoker(clz, "half").get()).isEqualTo(0.5);
+        assertThat(objectVoidInvoker(clz, "greeting").get()).isEqualTo("Hello");
+        assertThat(intVoidInvoker(clz, "visible").get()).isEqualTo(42);
+        assertThat(objectVoidInvoker(clz, "handled").get()).isNotNull();
+        assertThat(intVoidInvoker(clz, "assigned").get()).isEqualTo(99);
+    }
+
+    @Test
+    void shouldMoveUnlikelyBlocksToTheEnd() {
+        final var assembler = assembler("BlockLayoutTest.jasm", new AssemblerOptions());
+        final var bytes = assembler.assemble();
+
+        final var node = new ClassNode();
+        new ClassReader(bytes).accept(node, 0);
+
+        assertThat(realOpcodes(method(node, "checked"))).containsExactly(
+            Opcodes.ILOAD, Opcodes.IFLT, Opcodes.ILOAD, Opcodes.ICONST_1, Opcodes.IADD, Opcodes.IRETURN,
+            Opcodes.NEW, Opcodes.DUP, Opcodes.INVOKESPECIAL, Opcodes.ATHROW
+        );
+
+        assertThat(realOpcodes(method(node, "likely"))).containsExactly(
+            Opcodes.ILOAD, Opcodes.IFEQ, Opcodes.ILOAD, Opcodes.ICONST_2, Opcodes.IMUL, Opcodes.IRETURN,
+            Opcodes.ICONST_0, Opcodes.IRETURN
+        );
+
+        assertThat(realOpcodes(method(node, "gotoBack"))).containsExactly(
+            Opcodes.GOTO, Opcodes.ICONST_1, Opcodes.IRETURN, Opcodes.ILOAD, Opcodes.IFLE, Opcodes.GOTO,
+            Opcodes.ICONST_0, Opcodes.IRETURN
+        );
+
+        final var guarded = method(node, "guarded");
+        assertThat(realOpcodes(guarded)).containsExactly(
+            Opcodes.ILOAD, Opcodes.IFEQ, Opcodes.ILOAD, Opcodes.IRETURN, Opcodes.POP, Opcodes.BIPUSH, Opcodes.IRETURN,
+            Opcodes.NEW, Opcodes.DUP, Opcodes.INVOKESPECIAL, Opcodes.ATHROW
+        );
+        assertThat(guarded.tryCatchBlocks).hasSize(2);
+
+        // Not hinted without the profile
+        assertThat(realOpcodes(method(node, "profiled"))).startsWith(Opcodes.ILOAD, Opcodes.IFGE, Opcodes.NEW);
+
+        assertThat(realOpcodes(method(node, "unmovable"))).startsWith(Opcodes.ILOAD, Opcodes.IFNE, Opcodes.NEW);
+        assertThat(assembler.getWarnings())
+            .extracting(BaseError::toString)
+            .containsExactly(
+                "BlockLayoutTest.jasm:[91:4]: Block at label zero in unmovable(I)I was not moved " +
+                    "(it contains the start or end of an exception range)"
+            );
+
+        assertBlockLayoutResults(defineClass(bytes));
+    }
+
+    @Test
+    void shouldLayOutBlocksFromProfile() {
+        final var profile = LayoutProfile.parse(
+            "# Negative numbers are rare\n" +
+            "com/roscopeco/jasm/BlockLayoutTest.profiled(I)I negative 0.01\n" +
+            "com/roscopeco/jasm/BlockLayoutTest.checked(I)I negative 0.9\n" +
+            "com/roscopeco/jasm/BlockLayoutTest.likely(I)I missing 0.5  # No hint either way\n"
+        );
+
+        final var assembler = assembler("BlockLayoutTest.jasm", new AssemblerOptions().withLayoutProfile(profile));
+        final var bytes = assembler.assemble();
+
+        final var node = new ClassNode();
+        new ClassReader(bytes).accept(node, 0);
+
+        assertThat(realOpcodes(method(node, "profiled"))).containsExactly(
+            Opcodes.ILOAD, Opcodes.IFLT, Opcodes.ILOAD, Opcodes.ICONST_1, Opcodes.IADD, Opcodes.IRETURN,
+            Opcodes.NEW, Opcodes.DUP, Opcodes.INVOKESPECIAL, Opcodes.ATHROW
+        );
+
+        // The profile replaces the @unlikely in the source
+        assertThat(realOpcodes(method(node, "checked"))).startsWith(Opcodes.ILOAD, Opcodes.IFGE, Opcodes.NEW);
+        assertThat(assembler.getWarnings())
+            .extracting(BaseError::toString)
+            .contains("BlockLayoutTest.jasm:[?,?]: Block at label negative in checked(I)I was not moved (no conditional jump forward to it)");
+
+        assertBlockLayoutResults(new IsolatedClassLoader().define(bytes));
+    }
+
+    @Test
+    void shouldReportUnknownLabelHints() {
+        assertThatThrownBy(() -> assembleAndDefine("com/roscopeco/jasm/BlockLayoutErrorsTest.jasm"))
+            .isInstanceOf(AssemblyException.class)
+            .hasMessageContaining("BlockLayoutErrorsTest.jasm:[5:4]: Unknown label hint @rarely (expected @likely or @unlikely)");
+    }
+
+    private static void assertBlockLayoutResults(final Class<?> clz) {
+        for (final var name : List.of("checked", "profiled")) {
+            assertThat(invokeWithInt(clz, name, 41)).isEqualTo(42);
+            assertThatThrownBy(() -> invokeWithInt(clz, name, -1)).hasRootCauseInstanceOf(IllegalArgumentException.class);
+        }
+
+        assertThat(invokeWithInt(clz, "likely", 21)).isEqualTo(42);
+        assertThat(invokeWithInt(clz, "likely", 0)).isEqualTo(0);
+        assertThat(invokeWithInt(clz, "gotoBack", 5)).isEqualTo(1);
+        assertThat(invokeWithInt(clz, "gotoBack", -5)).isEqualTo(0);
+        assertThat(invokeWithInt(clz, "guarded", 7)).isEqualTo(7);
+        assertThat(invokeWithInt(clz, "guarded", 0)).isEqualTo(-1);
+        assertThat(invokeWithInt(clz, "unmovable", 7)).isEqualTo(7);
+        assertThatThrownBy(() -> invokeWithInt(clz, "unmovable", 0)).hasRootCauseInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void shouldEliminateSelfTailCallsWhenEnabled() {
+        final var bytes = assembler("TailCallTest.jasm", new AssemblerOptions().withEliminateTailCalls(true)).assemble();
+
+        final var node = new ClassNode();
+        new ClassReader(bytes).accept(node, 0);
+
+        assertThat(realOpcodes(method(node, "sum"))).doesNotContain(Opcodes.INVOKESTATIC).contains(Opcodes.GOTO);
+        assertThat(realOpcodes(method(node, "halves"))).doesNotContain(Opcodes.INVOKESTATIC).contains(Opcodes.GOTO);
+        assertThat(realOpcodes(method(node, "count"))).doesNotContain(Opcodes.INVOKEVIRTUAL).contains(Opcodes.GOTO);
+        assertThat(realOpcodes(method(node, "countDown"))).doesNotContain(Opcodes.INVOKESTATIC).contains(Opcodes.GOTO);
+        assertThat(realOpcodes(method(node, "factorial"))).contains(Opcodes.INVOKESTATIC);
+        assertThat(realOpcodes(method(node, "guarded"))).contains(Opcodes.INVOKESTATIC);
+        assertThat(realOpcodes(method(node, "virtualSum"))).contains(Opcodes.INVOKEVIRTUAL);
+        assertThat(realOpcodes(method(node, "locked"))).contains(Opcodes.INVOKEVIRTUAL);
+
+        final var clz = new IsolatedClassLoader().define(bytes);
+
+        // Deep enough to overflow the stack if the calls weren't eliminated
+        assertThat(objectArgsInvoker(clz, "sum", int.class, int.class).apply(new Object[] { 1_000_000, 0 }))
+            .isEqualTo((int) (1_000_000L * 1_000_001L / 2));
+        assertThat(objectArgsInvoker(clz, "halves", long.class, int.class, double.class).apply(new Object[] { 1_000_000L, 7, 0.0 }))
+            .isEqualTo(500_000.0);
+        assertThat(invokeWithInt(clz, "countInstance", 1_000_000)).isEqualTo(1_000_000);
+        invokeWithInt(clz, "countDown", 1_000_000);
+
+        assertThat(invokeWithInt(clz, "factorial", 5)).isEqualTo(120);
+        assertThat(invokeWithInt(clz, "guarded", 5)).isEqualTo(0);
+        assertThat(invokeWithInt(clz, "lockedChain", 3)).isEqualTo(true);
+    }
+
+    @Test
+    void shouldNotEliminateTailCallsByDefault() {
+        final var bytes = assembler("TailCallTest.jasm", new AssemblerOptions()).assemble();
+
+        final var node = new ClassNode();
+        new ClassReader(bytes).accept(node, 0);
+
+        assertThat(realOpcodes(method(node, "sum"))).contains(Opcodes.INVOKESTATIC);
+
+        final var clz = new IsolatedClassLoader().define(bytes);
+
+        assertThat(objectArgsInvoker(clz, "sum", int.class, int.class).apply(new Object[] { 10, 0 })).isEqualTo(55);
+        assertThatThrownBy(() -> objectArgsInvoker(clz, "sum", int.class, int.class).apply(new Object[] { 1_000_000, 0 }))
+            .hasRootCauseInstanceOf(StackOverflowError.class);
+    }
+
+    @Test
+    void shouldStripDebugInfoAndReportSavingsInReleaseMode() {
+        final var debug = assembler("ReleaseTest.jasm", new AssemblerOptions().withEmitLocalVariableTable(true));
+        final var debugBytes = debug.assemble();
+
+        final var release = assembler("ReleaseTest.jasm", new AssemblerOptions().withEmitLocalVariableTable(true).withRelease(true));
+        final var releaseBytes = release.assemble();
+
+        final var node = new ClassNode();
+        new ClassReader(releaseBytes).accept(node, 0);
+
+        assertThat(node.sourceFile).isNull();
+        assertThat(method(node, "describe").localVariables).isNullOrEmpty();
+        assertThat(bootstrapMethodCount(releaseBytes)).isEqualTo(1);
+
+        final var report = release.getSizeReport();
+        assertThat(report).isNotNull();
+        assertThat(report.getUnitName()).isEqualTo("ReleaseTest.jasm");
+        assertThat(report.getOriginalSize()).isEqualTo(debugBytes.length);
+        assertThat(report.getReleaseSize()).isEqualTo(releaseBytes.length);
+        assertThat(report.getSaved()).isPositive();
+        assertThat(report.getCompressedSaved()).isPositive();
+        assertThat(debug.getSizeReport()).isNull();
+
+        final var clz = new IsolatedClassLoader().define(releaseBytes);
+
+        assertThat(objectVoidInvoker(clz, "first").get()).isEqualTo("The value");
+        assertThat(objectVoidInvoker(clz, "second").get()).isEqualTo("The value");
+        assertThat(invokeWithInt(clz, "describe", 42)).isEqualTo("Count: 42");
+    }
+
+    @Test
+    void shouldKeepSourceFileByDefault() {
+        final var node = new ClassNode();
+        new ClassReader(assembler("ReleaseTest.jasm", new AssemblerOptions()).assemble()).accept(node, 0);
+
+        assertThat(node.sourceFile).isEqualTo("ReleaseTest.jasm");
+    }
+
+    @Test
+    void shouldPassVerificationWhenCodeIsCorrect() throws Exception {
+        final var clz = defineClass(assembler("VerifyTest.jasm", new AssemblerOptions().withVerify(true)).assemble());
+
+        assertThat(clz.getMethod("either", boolean.class).invoke(null, false)).isEqualTo(1L);
+        assertThat(clz.getMethod("create").invoke(null)).isInstanceOf(clz);
+    }
+
+    @Test
+    void shouldReportVerificationErrorsAgainstSource() {
+        // Without verification, these only show up when the class is loaded
+        assertThatThrownBy(() -> assembleAndDefine("com/roscopeco/jasm/VerifyErrorsTest.jasm"))
+            .isInstanceOf(VerifyError.class);
+
+        assertThatThrownBy(() -> assembler("VerifyErrorsTest.jasm", new AssemblerOptions().withVerify(true)).assemble())
+            .isInstanceOf(AssemblyException.class)
+            .hasMessageContaining("VerifyErrorsTest.jasm:[4:8]: Verification failed in wrongArgument(Ljava/lang/String;)I: Argument 1: expected I, but found Ljava/lang/String;")
+            .hasMessageContaining("VerifyErrorsTest.jasm:[10:8]: Verification failed in wrongReturn()Ljava/lang/Number;: Incompatible return type: expected Ljava/lang/Number;, but found Ljava/lang/String;")
+            .hasMessageContaining("VerifyErrorsTest.jasm:[14:8]: Verification failed in wrongLocal(I)I: Expected an object reference, but found I");
+    }
+
+    private static String textify(final byte[] bytes, final String methodName) {
+        final var node = new ClassNode();
+        new ClassReader(bytes).accept(node, 0);
+
+        final var printer = new Textifier();
+        method(node, methodName).accept(new TraceMethodVisitor(printer));
+
+        final var out = new StringWriter();
+        printer.print(new PrintWriter(out));
+        return out.toString();
+    }
+
+    // The test case is found in com/roscopeco/jasm, and its file name is the unit name
+    private static JasmAssembler assembler(final String testCase, final AssemblerOptions options) {
+        return new JasmAssembler(
+            testCase,
+            Opcodes.V11,
+            options,
+            () -> inputStreamForTestCase("com/roscopeco/jasm/" + testCase)
+        );
+    }
+
+    // ASM handles BootstrapMethods itself, so find it by walking the class file
+    private static int bootstrapMethodCount(final byte[] bytes) {
+        final var reader = new ClassReader(bytes);
+        final var buffer = new char[reader.getMaxStringLength()];
+
+        var offset = reader.header + 6;
+        offset += 2 + 2 * reader.readUnsignedShort(offset);
+
+        // Fields, then methods
+        for (var i = 0; i < 2; i++) {
+            final var count = reader.readUnsignedShort(offset);
+            offset += 2;
+
+            for (var j = 0; j < count; j++) {
+                offset += 6;
+                final var attributes = reader.readUnsignedShort(offset);
+                offset += 2;
+
+                for (var k = 0; k < attributes; k++) {
+                    offset += 6 + reader.readInt(offset + 2);
+                }
+            }
+        }
+
+        final var attributes = reader.readUnsignedShort(offset);
+        offset += 2;
+
+        for (var k = 0; k < attributes; k++) {
+            if ("BootstrapMethods".equals(reader.readUTF8(offset, buffer))) {
+                return reader.readUnsignedShort(offset + 6);
+            }
+
+            offset += 6 + reader.readInt(offset + 2);
+        }
+
+        return 0;
+    }
+
+    private static byte[] assembleWithOptions(final String code, final AssemblerOptions options) {
+        return new JasmAssembler("<test>", Opcodes.V11, options, () -> new ByteArrayInputStream(code.getBytes()))
+            .assemble();
+    }
+
+    private static String straightLineClass(final String name, final int increments) {
+        final var code = new StringBuilder()
+            .append("public class com/roscopeco/jasm/").append(name).append(" {\n")
+            .append("  public static count()I {\n")
+            .append("    ldc \"prefix\"\n")
+            .append("    astore prefix\n")
+            .append("    iconst 0\n")
+            .append("    istore total\n");
+
+        for (int i = 0; i < increments; i++) {
+            code.append("    iinc total, [1]\n");
+        }
+
+        return code
+            .append("    aload prefix\n")
+            .append("    invokevirtual java/lang/String.length()I\n")
+            .append("    iload total\n")
+            .append("    iadd\n")
+            .append("    ireturn\n")
+            .append("  }\n")
+            .append("}\n")
+            .toString();
+    }
+
+    private static String loopClass(final int increments) {
+        final var code = new StringBuilder()
+            .append("public class com/roscopeco/jasm/SplitLoopTest {\n")
+            .append("  public static loop()I {\n")
+            .append("    iconst 0\n")
+            .append("    istore i\n")
+            .append("    iconst 0\n")
+            .append("    istore total\n")
+            .append("  loop:\n")
+            .append("    iload i\n")
+            .append("    bipush 10\n")
+            .append("    if_icmpge done\n");
+
+        for (int i = 0; i < increments; i++) {
+            code.append("    iinc total, [1]\n");
+        }
+
+        return code
+            .append("    iinc i, [1]\n")
+            .append("    goto loop\n")
+            .append("  done:\n")
+            .append("    iload total\n")
+            .append("    ireturn\n")
+            .append("  }\n")
+            .append("}\n")
+            .toString();
+    }
+
+    private static String dataClass(final String name, final int[] values, final boolean useData) {
+        final var code = new StringBuilder()
+            .append("public class com/roscopeco/jasm/").append(name).append(" {\n")
+            .append("  public static values()[I {\n");
+
+        if (useData) {
+            code.append("    data int [");
+            for (int i = 0; i < values.length; i++) {
+                code.append(i == 0 ? "" : ", ").append(values[i]);
+            }
+            code.append("]\n");
+        } else {
+            code.append("    ldc ").append(values.length).append("\n")
+                .append("    newarray int\n");
+            for (int i = 0; i < values.length; i++) {
+                code.append("    dup\n")
+                    .append("    sipush ").append(i).append("\n")
+                    .append("    sipush ").append(values[i]).append("\n")
+                    .append("    iastore\n");
+            }
+        }
+
+        return code
+            .append("    areturn\n")
+            .append("  }\n")
+            .append("}\n")
+            .toString();
+    }
+
+    /*
+     * Copies each method to a ClassWriter, marking the end of its code with a label to find the size.
+     */
+    private static Map<String, Integer> codeSizes(final byte[] bytes) {
+        final var sizes = new HashMap<String, Integer>();
+
+        new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM9, new ClassWriter(0)) {
+            @Override
+            public MethodVisitor visitMethod(
+                final int access,
+                final String name,
+                final String descriptor,
+                final String signature,
+                final String[] exceptions
+            ) {
+                return new MethodVisitor(Opcodes.ASM9, super.visitMethod(access, name, descriptor, signature, exceptions)) {
+                    @Override
+                    public void visitMaxs(final int maxStack, final int maxLocals) {
+                        final var end = new Label();
+                        super.visitLabel(end);
+                        sizes.put(name, end.getOffset());
+                        super.visitMaxs(maxStack, maxLocals);
+                    }
+                };
+            }
+        }, 0);
+
+        return sizes;
+    }
+
+    private static Object invokeWithInt(final Class<?> clz, final String name, final int arg) {
+        return objectArgsInvoker(clz, name, int.class).apply(new Object[] { arg });
+    }
+
+    private static MethodNode method(final ClassNode node, final String name) {
+        return node.methods.stream()
+            .filter(m -> m.name.equals(name))
+            .findFirst()
+            .orElseThrow(() -> new AssertionError("No method " + name));
+    }
+
+    private static List<Integer> realOpcodes(final MethodNode method) {
+        final var result = new ArrayList<Integer>();
+
+        for (final AbstractInsnNode insn : method.instructions) {
+            if (insn.getOpcode() >= 0) {
+                result.add(insn.getOpcode());
+            }
+        }
+
+        return result;
+    }
 }
@@ -384,6 +384,31 @@ public class DisassemblerE2ETests {
         assertThat(clz.getMethod("getI").invoke(two)).isEqualTo(2);
     }
 
+    @Test
+    void shouldDisassembleNests() throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        final var hostSource = disassemble("NestTest");
+        final var memberSource = disassemble("NestTest$Member");
+
+        assertClass(doParseString(hostSource))
+            .hasName("com/roscopeco/jasm/model/disasm/NestTest")
+            .hasNestMembers("com/roscopeco/jasm/model/disasm/NestTest$Member");
+
+        assertClass(doParseString(memberSource))
+            .hasName("com/roscopeco/jasm/model/disasm/NestTest$Member")
+            .hasNestHost("com/roscopeco/jasm/model/disasm/NestTest");
+
+        // Round trip, so the member can still call the host's private method
+        final var host = defineClass(assembleString(renameNest(hostSource), Opcodes.V11));
+        final var member = defineClass(assembleString(renameNest(memberSource), Opcodes.V11));
+
+        assertThat(member.getNestHost()).isEqualTo(host);
+        assertThat(member.getMethod("peek").invoke(null)).isEqualTo(42);
+    }
+
+    private String renameNest(final String source) {
+        return source.replace("com/roscopeco/jasm/model/disasm/NestTest", "com/roscopeco/jasm/NestTest0000");
+    }
+
     private Class<?> checkAssembleAndDefineClass(final String source, final String name) {
         final var newSource = source.replace("com/roscopeco/jasm/model/disasm/" + name, "com/roscopeco/jasm/" + name + "Test0000");
         final var clz = defineClass(assembleString(newSource, Opcodes.V11));
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c)2022 Ross Bamford & Contributors
+ *
+ * Licensed under the MIT license. See LICENSE.md for details.
+ */
+package com.roscopeco.jasm.errors;
+
+import com.roscopeco.jasm.JasmAssemblingVisitor;
+import com.roscopeco.jasm.antlr.JasmLexer;
+import com.roscopeco.jasm.antlr.JasmParser;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.List;
+
+import static com.roscopeco.jasm.TestUtil.doParseString;
+import static com.roscopeco.jasm.TestUtil.inputStreamForTestCase;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CodeErrorTest {
+    @Test
+    void shouldNotKeepFailedUnitsReachable() throws Exception {
+        final var errors = new StandardErrorCollector();
+        final var unit = assembleInto("com/roscopeco/jasm/MacroErrorsTest.jasm", errors);
+
+        assertThat(errors.getErrors()).hasSize(7);
+        assertThat(collected(unit)).isTrue();
+
+        // Everything needed to report them is still there
+        assertThat(errors.getErrors().get(1))
+            .hasToString("com/roscopeco/jasm/MacroErrorsTest.jasm:[3:15]: Invalid operand to BIPUSH: 1000 " +
+                "(must be in range -128 to 127) (in expansion of macro push at [18:8])");
+
+        final var error = (CodeError) errors.getErrors().get(4);
+        assertThat(error.getLine()).isEqualTo(21);
+        assertThat(error.getColumn()).isEqualTo(8);
+        assertThat(error.getExcerpt()).isEqualTo("expand missing()");
+        assertThat(error.getStart().getLine()).isEqualTo(21);
+        assertThat(error.getStart().getText()).isEqualTo("expand");
+        assertThat(error.getStop().getText()).isEqualTo(")");
+        assertThat(error.getStop().getCharPositionInLine()).isEqualTo(23);
+    }
+
+    @Test
+    void shouldKeepOnlyTheFirstLineOfLongExcerpts() {
+        final var method = doParseString("public class Test {\n" +
+            "    public test()V {\n" +
+            "        ldc \"" + "x".repeat(100) + "\"\n" +
+            "        return\n" +
+            "    }\n" +
+            "}\n").classbody().member(0).method();
+
+        final var error = new CodeError("Test.jasm", method.stat_block(), "Too long");
+
+        assertThat(error).hasToString("Test.jasm:[3:8]: Too long");
+        assertThat(error.getStopLine()).isEqualTo(4);
+        assertThat(error.getExcerpt()).isEqualTo("ldc \"" + "x".repeat(75) + "...");
+    }
+
+    // Kept separate so nothing from the unit is left on the stack
+    private static List<WeakReference<Object>> assembleInto(final String testCase, final ErrorCollector errors)
+            throws IOException {
+        final var lexer = new JasmLexer(CharStreams.fromStream(inputStreamForTestCase(testCase)));
+        final var tokens = new CommonTokenStream(lexer);
+        final var parser = new JasmParser(tokens);
+
+        parser.removeErrorListeners();
+        parser.addErrorListener(new CollectingErrorListener(testCase, errors));
+
+        final var tree = parser.class_();
+        tree.accept(new JasmAssemblingVisitor(new ClassWriter(ClassWriter.COMPUTE_FRAMES), testCase, errors));
+
+        return List.of(
+            new WeakReference<>(lexer.getInputStream()),
+            new WeakReference<>(lexer),
+            new WeakReference<>(tokens),
+            new WeakReference<>(tree)
+        );
+    }
+
+    private static boolean collected(final List<WeakReference<Object>> refs) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            System.gc();
+
+            if (refs.stream().allMatch(ref -> ref.get() == null)) {
+                return true;
+            }
+
+            Thread.sleep(10);
+        }
+
+        return false;
+    }
+}
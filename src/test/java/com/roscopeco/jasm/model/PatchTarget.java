@@ -0,0 +1,17 @@
+package com.roscopeco.jasm.model;
+
+public class PatchTarget {
+    private final int base = 1;
+
+    public int answer() {
+        return base;
+    }
+
+    public String describe(final int value) {
+        if (value > 0) {
+            return "positive";
+        }
+
+        return "not positive";
+    }
+}
@@ -0,0 +1,13 @@
+package com.roscopeco.jasm.model.disasm;
+
+public class NestTest {
+    private static int secret() {
+        return 42;
+    }
+
+    public static class Member {
+        public static int peek() {
+            return secret();
+        }
+    }
+}
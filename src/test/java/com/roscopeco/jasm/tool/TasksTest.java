@@ -1,5 +1,7 @@
 package com.roscopeco.jasm.tool;
 
+import com.roscopeco.jasm.AssemblerOptions;
+import com.roscopeco.jasm.JasmException;
 import org.junit.jupiter.api.Test;
 
 import java.io.File;
@@ -7,6 +9,8 @@ import java.nio.file.Path;
 import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
 
 public class TasksTest {
     @Test
@@ -42,6 +46,122 @@ public class TasksTest {
         assertThat(tasks.stream().filter(t -> t instanceof AssembleTask).map(AssembleTask.class::cast))
             .extracting(AssembleTask::getTargetVersion)
             .allMatch(ver -> ver == 50);
+
+        assertThat(tasks.stream().filter(t -> t instanceof AssembleTask).map(AssembleTask.class::cast))
+            .extracting(AssembleTask::getOptions)
+            .allMatch(options -> options.equals(new AssemblerOptions().withSplitLargeMethods(true).withMaxMethodSize(8000)));
+    }
+
+    @Test
+    void testDropInlinedConstantsImpliesInlineConstants() {
+        final var args = createTestArgs();
+        args.setDropInlinedConstants(true);
+
+        assertThat(Tasks.createTasks(args, f -> true).stream().filter(t -> t instanceof AssembleTask).map(AssembleTask.class::cast))
+            .extracting(AssembleTask::getOptions)
+            .allMatch(options -> options.getInlineConstants() && options.getDropInlinedConstants());
+    }
+
+    @Test
+    void testAdditionalTargetsAreWrittenAsVersionedClasses() {
+        final var args = createTestArgs();
+        args.setTargets(List.of(55, 52, 61));
+
+        final var task = (AssembleTask) Tasks.createTasks(args, f -> true).get(2);
+
+        assertThat(task.getTargetVersion()).isEqualTo(52);
+        assertThat(task.getDest().getPath()).isEqualTo(Path.of("output", "dir", "has/path/three.class").toString());
+        assertThat(task.getVersionedDests()).containsOnly(
+            entry(55, Path.of("output", "dir", "META-INF", "versions", "11", "has/path/three.class").toFile()),
+            entry(61, Path.of("output", "dir", "META-INF", "versions", "17", "has/path/three.class").toFile())
+        );
+    }
+
+    @Test
+    void testAdditionalTargetsBeforeJava9AreRejected() {
+        final var args = createTestArgs();
+        args.setTargets(List.of(50, 52, 55));
+
+        assertThatThrownBy(() -> Tasks.createTasks(args, f -> true))
+            .isInstanceOf(JasmException.class)
+            .hasMessage("Targets other than the lowest must be at least 53 (Java 9), as multi-release jars ignore earlier versions: 52");
+    }
+
+    @Test
+    void testAdditionalTargetsAreRejectedWhenPatching() {
+        final var args = createTestArgs();
+        args.setTargets(List.of(52, 55));
+        args.setPatchDirectory(Path.of("classes", "dir").toString());
+
+        assertThatThrownBy(() -> Tasks.createTasks(args, f -> true))
+            .isInstanceOf(JasmException.class)
+            .hasMessage("Only one target can be given with --patch (the patched classes keep their own)");
+    }
+
+    @Test
+    void testInstrumentBlocksSetsOption() {
+        final var args = createTestArgs();
+        args.setInstrument("blocks");
+
+        assertThat(Tasks.createTasks(args, f -> true).stream().map(AssembleTask.class::cast))
+            .extracting(AssembleTask::getOptions)
+            .allMatch(AssemblerOptions::getInstrumentBlocks);
+    }
+
+    @Test
+    void testVerifySetsOption() {
+        final var args = createTestArgs();
+        args.setVerify(true);
+
+        assertThat(Tasks.createTasks(args, f -> true).stream().map(AssembleTask.class::cast))
+            .extracting(AssembleTask::getOptions)
+            .allMatch(AssemblerOptions::getVerify);
+    }
+
+    @Test
+    void testUnknownInstrumentationIsRejected() {
+        final var args = createTestArgs();
+        args.setInstrument("lines");
+
+        assertThatThrownBy(() -> Tasks.createTasks(args, f -> true))
+            .isInstanceOf(JasmException.class)
+            .hasMessage("Unknown instrumentation 'lines' (expected blocks)");
+    }
+
+    @Test
+    void testPatchDirectoryCreatesPatchTasks() {
+        final var args = createTestArgs();
+        args.setPatchDirectory(Path.of("classes", "dir").toString());
+
+        final var tasks = Tasks.createTasks(args, f -> true);
+
+        assertThat(tasks).allMatch(t -> t instanceof PatchTask);
+        assertThat(tasks.stream().map(PatchTask.class::cast))
+            .extracting(PatchTask::getOriginal)
+            .extracting(File::getPath)
+            .containsExactly(
+                Path.of("classes", "dir", "one.class").toString(),
+                Path.of("classes", "dir", "two.class").toString(),
+                Path.of("classes", "dir", "has/path/three.class").toString()
+            );
+    }
+
+    @Test
+    void testPreparseCreatesPreparseTasks() {
+        final var args = createTestArgs();
+        args.setPreparse(true);
+
+        final var tasks = Tasks.createTasks(args, f -> true);
+
+        assertThat(tasks).allMatch(t -> t instanceof PreparseTask);
+        assertThat(tasks)
+            .extracting(FileTransformTask::getDest)
+            .extracting(File::getPath)
+            .containsExactly(
+                Path.of("output", "dir", "one.jasmc").toString(),
+                Path.of("output", "dir", "two.jasmc").toString(),
+                Path.of("output", "dir", "has/path/three.jasmc").toString()
+            );
     }
 
     private ToolArgs createTestArgs() {
@@ -51,6 +171,8 @@ public class TasksTest {
         args.setOutputDirectory(Path.of("output", "dir").toString());
         args.setInputFiles(List.of("one.jasm", "two", "has/path/three.whatever"));
         args.setTarget(50);
+        args.setSplitLargeMethods(true);
+        args.setMaxMethodSize(8000);
 
         return args;
     }
@@ -2,6 +2,7 @@ package com.roscopeco.jasm.tool;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.ParameterException;
+import com.roscopeco.jasm.AssemblerOptions;
 import org.junit.jupiter.api.Test;
 import org.objectweb.asm.Opcodes;
 
@@ -81,12 +82,109 @@ class ToolArgsTest {
         assertThat(args.getTarget()).isEqualTo(50);
     }
 
+    @Test
+    void testTargetListWorks() {
+        final var args = doTest("-target", "52,55,61");
+        assertThat(args.getTargets()).containsExactly(52, 55, 61);
+        assertThat(args.getTarget()).isEqualTo(52);
+    }
+
     @Test
     void testTargetNonIntegerWorks() {
         assertThatThrownBy(() -> doTest("-target", "NaN"))
             .isInstanceOf(ParameterException.class);
     }
 
+    @Test
+    void testLocalVariableTableIsFalseByDefault() {
+        final var args = doTest();
+        assertThat(args.getEmitLocalVariableTable()).isFalse();
+    }
+
+    @Test
+    void testLocalVariableTableShortFlagWorks() {
+        final var args = doTest("-g");
+        assertThat(args.getEmitLocalVariableTable()).isTrue();
+    }
+
+    @Test
+    void testLocalVariableTableLongFlagWorks() {
+        final var args = doTest("--local-variable-table");
+        assertThat(args.getEmitLocalVariableTable()).isTrue();
+    }
+
+    @Test
+    void testSplitMethodsIsFalseByDefault() {
+        final var args = doTest();
+        assertThat(args.getSplitLargeMethods()).isFalse();
+        assertThat(args.getMaxMethodSize()).isEqualTo(AssemblerOptions.MAX_METHOD_SIZE);
+    }
+
+    @Test
+    void testSplitMethodsFlagWorks() {
+        final var args = doTest("--split-methods", "--max-method-size", "8000");
+        assertThat(args.getSplitLargeMethods()).isTrue();
+        assertThat(args.getMaxMethodSize()).isEqualTo(8000);
+    }
+
+    @Test
+    void testInlineConstantsIsFalseByDefault() {
+        final var args = doTest();
+        assertThat(args.getInlineConstants()).isFalse();
+        assertThat(args.getDropInlinedConstants()).isFalse();
+    }
+
+    @Test
+    void testInlineConstantsFlagsWork() {
+        final var args = doTest("--inline-constants", "--drop-inlined-constants");
+        assertThat(args.getInlineConstants()).isTrue();
+        assertThat(args.getDropInlinedConstants()).isTrue();
+    }
+
+    @Test
+    void testLayoutProfileFlagWorks() {
+        assertThat(doTest().getLayoutProfile()).isNull();
+        assertThat(doTest("--layout-profile", "hot.profile").getLayoutProfile()).isEqualTo("hot.profile");
+    }
+
+    @Test
+    void testEliminateTailCallsFlagWorks() {
+        assertThat(doTest().getEliminateTailCalls()).isFalse();
+        assertThat(doTest("--eliminate-tail-calls").getEliminateTailCalls()).isTrue();
+    }
+
+    @Test
+    void testReleaseFlagWorks() {
+        assertThat(doTest().getRelease()).isFalse();
+        assertThat(doTest("--release").getRelease()).isTrue();
+    }
+
+    @Test
+    void testInstrumentWorks() {
+        assertThat(doTest().getInstrument()).isNull();
+        assertThat(doTest("--instrument", "blocks").getInstrument()).isEqualTo("blocks");
+        assertThat(doTest("--instrument=blocks").getInstrument()).isEqualTo("blocks");
+    }
+
+    @Test
+    void testVerifyFlagWorks() {
+        assertThat(doTest().getVerify()).isFalse();
+        assertThat(doTest("--verify").getVerify()).isTrue();
+    }
+
+    @Test
+    void testPreparseFlagWorks() {
+        assertThat(doTest().getPreparse()).isFalse();
+        assertThat(doTest("--preparse").getPreparse()).isTrue();
+    }
+
+    @Test
+    void testPatchDirectoryWorks() {
+        assertThat(doTest().getPatchDirectory()).isNull();
+        assertThat(doTest("-p", "some/classes").getPatchDirectory()).isEqualTo("some/classes");
+        assertThat(doTest("--patch", "some/classes").getPatchDirectory()).isEqualTo("some/classes");
+    }
+
     @Test
     void testNonOptionArgsAreGatheredAsFilenames() {
         final var args = doTest("file/one", "file/two");
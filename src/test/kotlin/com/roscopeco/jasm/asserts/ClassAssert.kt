@@ -50,6 +50,26 @@ class ClassAssert internal constructor(actual: ClassContext) :
         return this
     }
 
+    fun hasNestHost(name: String): ClassAssert {
+        isNotNull
+
+        if (name != actual.nesthost()?.classname()?.text?.let(LiteralNames::unescape)) {
+            failWithMessage("Expected class to have nest host '" + name + "' but was '" + actual.nesthost()?.text + "'")
+        }
+
+        return this
+    }
+
+    fun hasNestMembers(vararg names: String?): ClassAssert {
+        isNotNull
+
+        assertThat(actual.nestmembers()?.classname()?.map { LiteralNames.unescape(it.text) } ?: emptyList())
+            .`as`("Nest member list")
+            .containsExactly(*names)
+
+        return this
+    }
+
     fun isPublic(): ClassAssert {
         isNotNull
 
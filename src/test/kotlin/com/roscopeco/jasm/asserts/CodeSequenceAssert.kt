@@ -53,6 +53,10 @@ class CodeSequenceAssert<Caller> internal constructor(actual: Stat_blockContext,
             aload -> aload.int_atom().text
     }
 
+    fun aload(expected: String) = genericStringOperandCheck("aload", expected, InstructionContext::insn_aload) {
+            aload -> aload.NAME()?.text ?: ""
+    }
+
     fun anew(expected: String) = genericStringOperandCheck("new", expected, InstructionContext::insn_new) {
             anew -> anew.QNAME().text
     }
@@ -69,6 +73,10 @@ class CodeSequenceAssert<Caller> internal constructor(actual: Stat_blockContext,
             astore -> astore.int_atom().text
     }
 
+    fun astore(expected: String) = genericStringOperandCheck("astore", expected, InstructionContext::insn_astore) {
+            astore -> astore.NAME()?.text ?: ""
+    }
+
     fun athrow() = genericNoOperandCheck("athrow", InstructionContext::insn_athrow)
 
     fun baload() = genericNoOperandCheck("baload", InstructionContext::insn_baload)
@@ -86,6 +94,10 @@ class CodeSequenceAssert<Caller> internal constructor(actual: Stat_blockContext,
             checkcast -> (checkcast.LSQUARE()?.joinToString("") { it.text } ?: "") + checkcast.QNAME().text
     }
 
+    fun concat(expected: String) = genericStringOperandCheck("concat", expected, InstructionContext::insn_concat) {
+            concat -> concat.string_atom().text + concat.method_arguments().text
+    }
+
     fun d2f() = genericNoOperandCheck("d2f", InstructionContext::insn_d2f)
 
     fun d2i() = genericNoOperandCheck("d2i", InstructionContext::insn_d2i)
@@ -98,6 +110,10 @@ class CodeSequenceAssert<Caller> internal constructor(actual: Stat_blockContext,
 
     fun dastore() = genericNoOperandCheck("dastore", InstructionContext::insn_dastore)
 
+    fun data(expected: String) = genericStringOperandCheck("data", expected, InstructionContext::insn_data) {
+            data -> data.prim_type().text + " " + data.data_atom().joinToString(", ", "[", "]") { it.text }
+    }
+
     fun dcmpg() = genericNoOperandCheck("dcmpg", InstructionContext::insn_dcmpg)
 
     fun dcmpl() = genericNoOperandCheck("dcmpl", InstructionContext::insn_dcmpl)
@@ -138,6 +154,10 @@ class CodeSequenceAssert<Caller> internal constructor(actual: Stat_blockContext,
 
     fun dup2X2() = genericNoOperandCheck("dup2_x2", InstructionContext::insn_dup2_x2)
 
+    fun expand(expected: String) = genericStringOperandCheck("expand", expected, InstructionContext::expand) {
+            expand -> expand.membername().text + expand.macro_arg().joinToString(", ", "(", ")") { it.text }
+    }
+
     fun f2d() = genericNoOperandCheck("f2d", InstructionContext::insn_f2d)
 
     fun f2i() = genericNoOperandCheck("f2i", InstructionContext::insn_f2i)
@@ -316,10 +336,32 @@ class CodeSequenceAssert<Caller> internal constructor(actual: Stat_blockContext,
         return this
     }
 
+    fun iinc(expectedName: String, expectedAmount: Int): CodeSequenceAssert<Caller> {
+        isNotNull
+
+        val insn = actual.stat()[pc]?.instruction()?.insn_iinc()
+        val actualName = insn?.NAME()?.text
+        val actualAmount = insn?.int_atom(0)?.text?.toInt()
+
+        if (actualName != expectedName || actualAmount != expectedAmount) {
+            failWithMessage(
+                "Expected iinc instruction at pc($pc) with local $expectedName"
+                        + " and amount $expectedAmount, but was ${insn?.text ?: "<NONE>"}"
+            )
+        }
+
+        pc++
+        return this
+    }
+
     fun iload(expected: Int) = genericIntOperandCheck("iload", expected, InstructionContext::insn_iload) {
             iload -> iload.int_atom().text
     }
 
+    fun iload(expected: String) = genericStringOperandCheck("iload", expected, InstructionContext::insn_iload) {
+            iload -> iload.NAME()?.text ?: ""
+    }
+
     fun imul() = genericNoOperandCheck("imul", InstructionContext::insn_imul)
 
     fun ineg() = genericNoOperandCheck("ineg", InstructionContext::insn_ineg)
@@ -451,6 +493,10 @@ class CodeSequenceAssert<Caller> internal constructor(actual: Stat_blockContext,
             istore -> istore.int_atom().text
     }
 
+    fun istore(expected: String) = genericStringOperandCheck("istore", expected, InstructionContext::insn_istore) {
+            istore -> istore.NAME()?.text ?: ""
+    }
+
     fun isub() = genericNoOperandCheck("isub", InstructionContext::insn_isub)
 
     fun iushr() = genericNoOperandCheck("iushr", InstructionContext::insn_iushr)
@@ -485,6 +531,10 @@ class CodeSequenceAssert<Caller> internal constructor(actual: Stat_blockContext,
             label -> label.text
     }
 
+    fun hintedLabel(hint: String, expected: String) = genericStringOperandCheck("label", "$hint $expected", InstructionContext::label) {
+            label -> "${label.label_hint()?.text} ${label.LABEL()?.text ?: (label.LITERAL_NAME().text + ":")}"
+    }
+
     fun ldc(expected: Boolean) = genericLdcCheck("" + expected) { constarg -> expected == constarg.text.toBoolean() }
     fun ldc(expected: Int) = genericLdcCheck("" + expected) { constarg -> expected == constarg.text.toInt() }
     fun ldc(expected: Float) = genericLdcCheck("" + expected) { constarg -> expected == constarg.text.toFloat() }
@@ -535,6 +585,10 @@ class CodeSequenceAssert<Caller> internal constructor(actual: Stat_blockContext,
             lstore -> lstore.int_atom().text
     }
 
+    fun lstore(expected: String) = genericStringOperandCheck("lstore", expected, InstructionContext::insn_lstore) {
+            lstore -> lstore.NAME()?.text ?: ""
+    }
+
     fun lsub() = genericNoOperandCheck("lsub", InstructionContext::insn_lsub)
 
     fun lushr() = genericNoOperandCheck("lushr", InstructionContext::insn_lushr)
@@ -593,6 +647,10 @@ class CodeSequenceAssert<Caller> internal constructor(actual: Stat_blockContext,
             ret -> ret.int_atom().text
     }
 
+    fun push(expected: String) = genericStringOperandCheck("push", expected, InstructionContext::insn_push) {
+            push -> push.getChild(1).text
+    }
+
     fun putField(expectedOwner: String, expectedName: String, expectedDescriptor: String) =
         genericFieldAccessCheck(
             "putfield",